@@ -0,0 +1,115 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.resource.IReadableResource;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * A single message to be send with the {@link AS2BatchSender}.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@Immutable
+public class AS2BatchMessage
+{
+  private final IParticipantIdentifier m_aReceiverID;
+  private final IDocumentTypeIdentifier m_aDocTypeID;
+  private final IProcessIdentifier m_aProcessID;
+  private final IReadableResource m_aBusinessDocument;
+
+  /**
+   * Constructor
+   *
+   * @param aReceiverID
+   *        The Peppol receiver ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        The Peppol document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        The Peppol process ID. May not be <code>null</code>.
+   * @param aBusinessDocument
+   *        The business document to be send. May not be <code>null</code>.
+   */
+  public AS2BatchMessage (@Nonnull final IParticipantIdentifier aReceiverID,
+                          @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                          @Nonnull final IProcessIdentifier aProcessID,
+                          @Nonnull final IReadableResource aBusinessDocument)
+  {
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    ValueEnforcer.notNull (aBusinessDocument, "BusinessDocument");
+    m_aReceiverID = aReceiverID;
+    m_aDocTypeID = aDocTypeID;
+    m_aProcessID = aProcessID;
+    m_aBusinessDocument = aBusinessDocument;
+  }
+
+  /**
+   * @return The Peppol receiver ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IParticipantIdentifier getReceiverID ()
+  {
+    return m_aReceiverID;
+  }
+
+  /**
+   * @return The Peppol document type ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IDocumentTypeIdentifier getDocTypeID ()
+  {
+    return m_aDocTypeID;
+  }
+
+  /**
+   * @return The Peppol process ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IProcessIdentifier getProcessID ()
+  {
+    return m_aProcessID;
+  }
+
+  /**
+   * @return The business document to be send. Never <code>null</code>.
+   */
+  @Nonnull
+  public final IReadableResource getBusinessDocument ()
+  {
+    return m_aBusinessDocument;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ReceiverID", m_aReceiverID)
+                                       .append ("DocTypeID", m_aDocTypeID)
+                                       .append ("ProcessID", m_aProcessID)
+                                       .append ("BusinessDocument", m_aBusinessDocument)
+                                       .getToString ();
+  }
+}
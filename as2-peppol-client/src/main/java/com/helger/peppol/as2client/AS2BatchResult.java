@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.as2lib.client.AS2ClientResponse;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * The result of sending a single {@link AS2BatchMessage}. Either the AS2
+ * response or the exception that prevented sending is present.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@Immutable
+public class AS2BatchResult
+{
+  private final AS2BatchMessage m_aMessage;
+  private final String m_sReceiverAS2Url;
+  private final AS2ClientResponse m_aResponse;
+  private final Exception m_aException;
+
+  /**
+   * Constructor
+   *
+   * @param aMessage
+   *        The source message. May not be <code>null</code>.
+   * @param sReceiverAS2Url
+   *        The resolved endpoint URL. May be <code>null</code>.
+   * @param aResponse
+   *        The AS2 response. May be <code>null</code> if sending failed.
+   * @param aException
+   *        The exception that occurred. May be <code>null</code>.
+   */
+  public AS2BatchResult (@Nonnull final AS2BatchMessage aMessage,
+                         @Nullable final String sReceiverAS2Url,
+                         @Nullable final AS2ClientResponse aResponse,
+                         @Nullable final Exception aException)
+  {
+    ValueEnforcer.notNull (aMessage, "Message");
+    ValueEnforcer.isTrue (aResponse != null || aException != null, "Either response or exception must be present");
+    m_aMessage = aMessage;
+    m_sReceiverAS2Url = sReceiverAS2Url;
+    m_aResponse = aResponse;
+    m_aException = aException;
+  }
+
+  /**
+   * @return The source message. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS2BatchMessage getMessage ()
+  {
+    return m_aMessage;
+  }
+
+  /**
+   * @return The AS2 endpoint URL the message was sent to. May be
+   *         <code>null</code> if it could not be determined.
+   */
+  @Nullable
+  public final String getReceiverAS2Url ()
+  {
+    return m_sReceiverAS2Url;
+  }
+
+  /**
+   * @return The AS2 response. May be <code>null</code> if the message could
+   *         not be sent.
+   */
+  @Nullable
+  public final AS2ClientResponse getResponse ()
+  {
+    return m_aResponse;
+  }
+
+  /**
+   * @return The exception that prevented sending. May be <code>null</code>.
+   */
+  @Nullable
+  public final Exception getException ()
+  {
+    return m_aException;
+  }
+
+  /**
+   * @return <code>true</code> if the message was sent and the AS2 response
+   *         contains no exception, <code>false</code> otherwise.
+   */
+  public boolean isSuccess ()
+  {
+    return m_aException == null && m_aResponse != null && !m_aResponse.hasException ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Message", m_aMessage)
+                                       .append ("ReceiverAS2Url", m_sReceiverAS2Url)
+                                       .append ("Response", m_aResponse)
+                                       .append ("Exception", m_aException)
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.client.AS2ClientResponse;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.smp.ISMPTransportProfile;
+
+/**
+ * Send many messages at once. The SMP lookup is performed only once for each
+ * distinct combination of receiver, document type, process and transport
+ * profiles. Afterwards the messages are grouped by the receiving endpoint URL.
+ * The groups are processed in parallel, whereas at most
+ * {@link #getMaxParallelismPerEndpoint()} messages of one group are sent at the
+ * same time, so that the TLS session to an endpoint can be reused and a single
+ * endpoint is not flooded with parallel requests.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class AS2BatchSender
+{
+  /** The default number of groups that are processed in parallel */
+  public static final int DEFAULT_PARALLELISM = 8;
+  /** By default the messages of one endpoint group are sent one after another */
+  public static final int DEFAULT_MAX_PARALLELISM_PER_ENDPOINT = 1;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2BatchSender.class);
+
+  /**
+   * Lazily created default executor.
+   */
+  private static final class DefaultExecutorHolder
+  {
+    static final ExecutorService INSTANCE;
+    static
+    {
+      final AtomicInteger aThreadCounter = new AtomicInteger (0);
+      INSTANCE = Executors.newCachedThreadPool (r -> {
+        final Thread t = new Thread (r, "as2-batch-" + aThreadCounter.incrementAndGet ());
+        t.setDaemon (true);
+        return t;
+      });
+    }
+  }
+
+  private final AS2ClientSender m_aSender;
+  private final Executor m_aExecutor;
+  private final int m_nParallelism;
+  private final int m_nMaxParallelismPerEndpoint;
+
+  /**
+   * Constructor using the default executor and the default parallelism.
+   *
+   * @param aSender
+   *        The sender with the sender configuration. May not be
+   *        <code>null</code>.
+   */
+  public AS2BatchSender (@Nonnull final AS2ClientSender aSender)
+  {
+    this (aSender, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Constructor using the default executor.
+   *
+   * @param aSender
+   *        The sender with the sender configuration. May not be
+   *        <code>null</code>.
+   * @param nParallelism
+   *        The number of endpoint groups that are processed in parallel. Must
+   *        be &gt; 0.
+   */
+  public AS2BatchSender (@Nonnull final AS2ClientSender aSender, @Nonnegative final int nParallelism)
+  {
+    this (aSender, getDefaultExecutor (), nParallelism, DEFAULT_MAX_PARALLELISM_PER_ENDPOINT);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aSender
+   *        The sender with the sender configuration. May not be
+   *        <code>null</code>.
+   * @param aExecutor
+   *        The executor to run the workers on. Each call to
+   *        {@link #sendAll(Collection)} blocks up to <code>nParallelism</code>
+   *        threads of it until the batch is finished. May not be
+   *        <code>null</code>.
+   * @param nParallelism
+   *        The number of workers that are processing the batch in parallel.
+   *        Must be &gt; 0.
+   * @param nMaxParallelismPerEndpoint
+   *        The maximum number of messages that are sent to the same endpoint
+   *        at the same time. Must be &gt; 0.
+   */
+  public AS2BatchSender (@Nonnull final AS2ClientSender aSender,
+                         @Nonnull final Executor aExecutor,
+                         @Nonnegative final int nParallelism,
+                         @Nonnegative final int nMaxParallelismPerEndpoint)
+  {
+    ValueEnforcer.notNull (aSender, "Sender");
+    ValueEnforcer.notNull (aExecutor, "Executor");
+    ValueEnforcer.isGT0 (nParallelism, "Parallelism");
+    ValueEnforcer.isGT0 (nMaxParallelismPerEndpoint, "MaxParallelismPerEndpoint");
+    m_aSender = aSender;
+    m_aExecutor = aExecutor;
+    m_nParallelism = nParallelism;
+    m_nMaxParallelismPerEndpoint = nMaxParallelismPerEndpoint;
+  }
+
+  /**
+   * Get the executor that is used if no executor is provided in the
+   * constructor. It is a shared pool of daemon threads that is created upon
+   * the first usage.
+   *
+   * @return The default executor. Never <code>null</code>.
+   */
+  @Nonnull
+  public static Executor getDefaultExecutor ()
+  {
+    return DefaultExecutorHolder.INSTANCE;
+  }
+
+  /**
+   * @return The sender used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS2ClientSender getSender ()
+  {
+    return m_aSender;
+  }
+
+  /**
+   * @return The number of endpoint groups that are processed in parallel.
+   *         Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getParallelism ()
+  {
+    return m_nParallelism;
+  }
+
+  /**
+   * @return The maximum number of messages that are sent to the same endpoint
+   *         at the same time. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxParallelismPerEndpoint ()
+  {
+    return m_nMaxParallelismPerEndpoint;
+  }
+
+  /**
+   * @return The executor the workers are run on. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Executor getExecutor ()
+  {
+    return m_aExecutor;
+  }
+
+  @Nonnull
+  private AS2ClientBuilder _createBuilder (@Nonnull final AS2BatchMessage aMessage,
+                                          @Nonnull final SMPEndpointCache aBatchCache) throws AS2ClientBuilderException
+  {
+    final AS2ClientBuilder ret = m_aSender.createBuilder (aMessage.getReceiverID (), aMessage.getDocTypeID (), aMessage.getProcessID ());
+    if (ret.getSMPEndpointCache () == null)
+      ret.setSMPEndpointCache (aBatchCache);
+    return ret;
+  }
+
+  private static final class Resolution
+  {
+    private final String m_sReceiverAS2Url;
+    private final Exception m_aException;
+
+    Resolution (final String sReceiverAS2Url, final Exception aException)
+    {
+      m_sReceiverAS2Url = sReceiverAS2Url;
+      m_aException = aException;
+    }
+  }
+
+  /**
+   * A single endpoint group. Multiple workers may send the messages of a group
+   * at the same time.
+   */
+  private static final class EndpointGroup
+  {
+    private final String m_sURL;
+    private final ICommonsList <Integer> m_aIndices;
+    private final AtomicInteger m_aNext = new AtomicInteger (0);
+
+    EndpointGroup (@Nonnull final String sURL, @Nonnull final ICommonsList <Integer> aIndices)
+    {
+      m_sURL = sURL;
+      m_aIndices = aIndices;
+    }
+  }
+
+  /**
+   * Run the provided worker action with at most {@link #getParallelism()}
+   * workers on the executor and wait until all of them are finished.
+   */
+  private void _runWorkers (@Nonnegative final int nWorkers, @Nonnull final Runnable aWorker)
+  {
+    final int nRealWorkers = Math.min (nWorkers, m_nParallelism);
+    final CompletableFuture <?> [] aFutures = new CompletableFuture <?> [nRealWorkers];
+    for (int i = 0; i < nRealWorkers; ++i)
+      aFutures[i] = CompletableFuture.runAsync (aWorker, m_aExecutor);
+    CompletableFuture.allOf (aFutures).join ();
+  }
+
+  /**
+   * Send all provided messages.
+   *
+   * @param aMessages
+   *        The messages to be send. May not be <code>null</code>.
+   * @return A list with one result per message, in the same order as the
+   *         provided messages. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS2BatchResult> sendAll (@Nonnull final Collection <? extends AS2BatchMessage> aMessages)
+  {
+    ValueEnforcer.noNullValue (aMessages, "Messages");
+
+    final ICommonsList <AS2BatchMessage> aMessageList = new CommonsArrayList <> (aMessages);
+    final AS2BatchResult [] aResults = new AS2BatchResult [aMessageList.size ()];
+    if (aMessageList.isEmpty ())
+      return new CommonsArrayList <> ();
+
+    // Cache for the duration of this batch, if no other cache is configured
+    final SMPEndpointCache aBatchCache = new SMPEndpointCache (Duration.ofHours (1), Duration.ofHours (1), aMessageList.size ());
+
+    // Determine the distinct lookup keys
+    final ICommonsList <ISMPTransportProfile> aTransportProfiles = m_aSender.createTemplateBuilder ().getAllSMPTransportProfiles ();
+    final ICommonsMap <String, ICommonsList <Integer>> aByLookupKey = new CommonsLinkedHashMap <> ();
+    for (int i = 0; i < aMessageList.size (); ++i)
+    {
+      final AS2BatchMessage aMsg = aMessageList.get (i);
+      final String sKey = SMPEndpointCache.createKey (aMsg.getReceiverID (), aMsg.getDocTypeID (), aMsg.getProcessID (), aTransportProfiles);
+      aByLookupKey.computeIfAbsent (sKey, k -> new CommonsArrayList <> ()).add (Integer.valueOf (i));
+    }
+
+    // 1. resolve each distinct key once
+    final ICommonsList <String> aKeys = new CommonsArrayList <> (aByLookupKey.keySet ());
+    final Resolution [] aResolved = new Resolution [aKeys.size ()];
+    final AtomicInteger aNextKey = new AtomicInteger (0);
+    _runWorkers (aResolved.length, () -> {
+      int nIndex;
+      while ((nIndex = aNextKey.getAndIncrement ()) < aResolved.length)
+      {
+        final AS2BatchMessage aFirst = aMessageList.get (aByLookupKey.get (aKeys.get (nIndex)).getFirst ().intValue ());
+        try
+        {
+          final AS2ClientBuilder aBuilder = _createBuilder (aFirst, aBatchCache);
+          aBuilder.performSMPClientLookup ();
+          aResolved[nIndex] = new Resolution (aBuilder.getReceiverAS2Url (), null);
+        }
+        catch (final Exception ex)
+        {
+          aResolved[nIndex] = new Resolution (null, ex);
+        }
+      }
+    });
+
+    // 2. group by endpoint
+    final ICommonsMap <String, ICommonsList <Integer>> aByEndpoint = new CommonsLinkedHashMap <> ();
+    for (int i = 0; i < aKeys.size (); ++i)
+    {
+      final Resolution aRes = aResolved[i];
+      final ICommonsList <Integer> aIndices = aByLookupKey.get (aKeys.get (i));
+      if (aRes == null || aRes.m_aException != null || aRes.m_sReceiverAS2Url == null)
+      {
+        // Lookup failed - all messages fail
+        final Exception aEx = aRes != null && aRes.m_aException != null ? aRes.m_aException
+                                                                        : new AS2ClientBuilderException ("Failed to determine the receiver AS2 URL");
+        for (final Integer aIdx : aIndices)
+          aResults[aIdx.intValue ()] = new AS2BatchResult (aMessageList.get (aIdx.intValue ()), null, null, aEx);
+      }
+      else
+        aByEndpoint.computeIfAbsent (aRes.m_sReceiverAS2Url, k -> new CommonsArrayList <> ()).addAll (aIndices);
+    }
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Sending " +
+                    aMessageList.size () +
+                    " messages for " +
+                    aKeys.size () +
+                    " distinct lookups to " +
+                    aByEndpoint.size () +
+                    " endpoints");
+
+    // 3. send the groups in parallel with a limited parallelism per group
+    final ICommonsList <EndpointGroup> aSlots = new CommonsArrayList <> ();
+    final ICommonsList <EndpointGroup> aGroups = new CommonsArrayList <> (aByEndpoint.size ());
+    aByEndpoint.forEach ( (k, v) -> aGroups.add (new EndpointGroup (k, v)));
+    for (int nSlot = 0; nSlot < m_nMaxParallelismPerEndpoint; ++nSlot)
+    {
+      // The first slot of all groups comes first, so that all groups make
+      // progress
+      for (final EndpointGroup aGroup : aGroups)
+        if (nSlot < aGroup.m_aIndices.size ())
+          aSlots.add (aGroup);
+    }
+    final AtomicInteger aNextSlot = new AtomicInteger (0);
+    _runWorkers (aSlots.size (), () -> {
+      int nSlotIndex;
+      while ((nSlotIndex = aNextSlot.getAndIncrement ()) < aSlots.size ())
+      {
+        final EndpointGroup aGroup = aSlots.get (nSlotIndex);
+        int nIndex;
+        while ((nIndex = aGroup.m_aNext.getAndIncrement ()) < aGroup.m_aIndices.size ())
+        {
+          final int nMsgIndex = aGroup.m_aIndices.get (nIndex).intValue ();
+          final AS2BatchMessage aMsg = aMessageList.get (nMsgIndex);
+          AS2BatchResult aResult;
+          try
+          {
+            final AS2ClientResponse aResponse = _createBuilder (aMsg, aBatchCache).setBusinessDocument (aMsg.getBusinessDocument ())
+                                                                                  .sendSynchronous ();
+            aResult = new AS2BatchResult (aMsg, aGroup.m_sURL, aResponse, null);
+          }
+          catch (final Exception ex)
+          {
+            aResult = new AS2BatchResult (aMsg, aGroup.m_sURL, null, ex);
+          }
+          aResults[nMsgIndex] = aResult;
+        }
+      }
+    });
+
+    final ICommonsList <AS2BatchResult> ret = new CommonsArrayList <> (aResults.length);
+    for (int i = 0; i < aResults.length; ++i)
+      ret.add (aResults[i] != null ? aResults[i]
+                                   : new AS2BatchResult (aMessageList.get (i), null, null, new IllegalStateException ("Message was not processed")));
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Sender", m_aSender)
+                                       .append ("Executor", m_aExecutor)
+                                       .append ("Parallelism", m_nParallelism)
+                                       .append ("MaxParallelismPerEndpoint", m_nMaxParallelismPerEndpoint)
+                                       .getToString ();
+  }
+}
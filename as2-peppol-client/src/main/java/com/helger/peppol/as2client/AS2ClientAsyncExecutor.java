@@ -0,0 +1,233 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.as2lib.client.AS2ClientResponse;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A bounded executor for asynchronous AS2 sending. It uses a fixed number of
+ * worker threads and a bounded queue. If both are exhausted, the configured
+ * {@link RejectedExecutionHandler} is invoked. The default handler rejects the
+ * task, which results in an exceptionally completed future. Use
+ * {@link ThreadPoolExecutor.CallerRunsPolicy} to slow down the producer
+ * instead. Handlers that silently discard tasks (like
+ * {@link ThreadPoolExecutor.DiscardPolicy}) are not supported, because the
+ * future of a discarded task would never complete.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class AS2ClientAsyncExecutor implements Executor, AutoCloseable
+{
+  /** The default number of worker threads */
+  public static final int DEFAULT_THREAD_COUNT = 16;
+  /** The default maximum number of queued tasks */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1_000;
+
+  private static final AtomicInteger s_aPoolCounter = new AtomicInteger (0);
+
+  private final int m_nThreadCount;
+  private final int m_nQueueCapacity;
+  private final ThreadPoolExecutor m_aExecutor;
+
+  /**
+   * Constructor with the default settings.
+   */
+  public AS2ClientAsyncExecutor ()
+  {
+    this (DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_CAPACITY, new ThreadPoolExecutor.AbortPolicy ());
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nThreadCount
+   *        The number of worker threads. Must be &gt; 0.
+   * @param nQueueCapacity
+   *        The maximum number of tasks waiting for execution. Must be &gt; 0.
+   * @param aRejectionHandler
+   *        The handler invoked if all workers are busy and the queue is full.
+   *        It must either run the task or throw a
+   *        {@link RejectedExecutionException}. May not be <code>null</code>.
+   * @throws IllegalArgumentException
+   *         If a {@link ThreadPoolExecutor.DiscardPolicy} or
+   *         {@link ThreadPoolExecutor.DiscardOldestPolicy} is provided.
+   */
+  public AS2ClientAsyncExecutor (@Nonnegative final int nThreadCount,
+                                 @Nonnegative final int nQueueCapacity,
+                                 @Nonnull final RejectedExecutionHandler aRejectionHandler)
+  {
+    ValueEnforcer.isGT0 (nThreadCount, "ThreadCount");
+    ValueEnforcer.isGT0 (nQueueCapacity, "QueueCapacity");
+    ValueEnforcer.notNull (aRejectionHandler, "RejectionHandler");
+    ValueEnforcer.isFalse (aRejectionHandler instanceof ThreadPoolExecutor.DiscardPolicy ||
+                           aRejectionHandler instanceof ThreadPoolExecutor.DiscardOldestPolicy,
+                           "RejectionHandler may not discard tasks");
+    m_nThreadCount = nThreadCount;
+    m_nQueueCapacity = nQueueCapacity;
+
+    final String sPrefix = "as2-send-" + s_aPoolCounter.incrementAndGet () + "-";
+    final AtomicInteger aThreadCounter = new AtomicInteger (0);
+    m_aExecutor = new ThreadPoolExecutor (nThreadCount,
+                                          nThreadCount,
+                                          60,
+                                          TimeUnit.SECONDS,
+                                          new ArrayBlockingQueue <> (nQueueCapacity),
+                                          r -> {
+                                            final Thread t = new Thread (r, sPrefix + aThreadCounter.incrementAndGet ());
+                                            t.setDaemon (true);
+                                            return t;
+                                          },
+                                          (r, aExecutor) -> {
+                                            // E.g. the CallerRunsPolicy silently discards tasks after shutdown
+                                            if (aExecutor.isShutdown ())
+                                              throw new RejectedExecutionException ("The AS2 send executor is closed");
+                                            aRejectionHandler.rejectedExecution (r, aExecutor);
+                                          });
+    // Don't keep idle threads forever
+    m_aExecutor.allowCoreThreadTimeOut (true);
+  }
+
+  /**
+   * @return The number of worker threads. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getThreadCount ()
+  {
+    return m_nThreadCount;
+  }
+
+  /**
+   * @return The maximum number of queued tasks. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getQueueCapacity ()
+  {
+    return m_nQueueCapacity;
+  }
+
+  /**
+   * @return The number of tasks currently waiting for execution.
+   */
+  @Nonnegative
+  public int getQueuedTaskCount ()
+  {
+    return m_aExecutor.getQueue ().size ();
+  }
+
+  /**
+   * @return The number of tasks currently being executed.
+   */
+  @Nonnegative
+  public int getActiveTaskCount ()
+  {
+    return m_aExecutor.getActiveCount ();
+  }
+
+  /**
+   * Execute the provided task on one of the worker threads. If all workers are
+   * busy, the task is queued.
+   *
+   * @param aRunnable
+   *        The task to execute. May not be <code>null</code>.
+   * @throws RejectedExecutionException
+   *         If all workers are busy, the queue is full and the rejection
+   *         handler rejects the task, or if the executor was closed.
+   */
+  @Override
+  public void execute (@Nonnull final Runnable aRunnable)
+  {
+    m_aExecutor.execute (aRunnable);
+  }
+
+  /**
+   * Shutdown the executor and wait until all queued tasks are finished.
+   */
+  public void close ()
+  {
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aExecutor);
+  }
+
+  @FunctionalInterface
+  interface IAS2SendCallable
+  {
+    @Nonnull
+    AS2ClientResponse call () throws AS2ClientBuilderException;
+  }
+
+  /**
+   * Run the provided send action on the provided executor. A checked
+   * {@link AS2ClientBuilderException} is wrapped in a
+   * {@link CompletionException}. If the executor rejects the task, an
+   * exceptionally completed future is returned.
+   *
+   * @param aCallable
+   *        The send action. May not be <code>null</code>.
+   * @param aExecutor
+   *        The executor to use. May not be <code>null</code>.
+   * @return The future and never <code>null</code>.
+   */
+  @Nonnull
+  static CompletableFuture <AS2ClientResponse> runAsync (@Nonnull final IAS2SendCallable aCallable, @Nonnull final Executor aExecutor)
+  {
+    try
+    {
+      return CompletableFuture.supplyAsync ( () -> {
+        try
+        {
+          return aCallable.call ();
+        }
+        catch (final AS2ClientBuilderException ex)
+        {
+          throw new CompletionException (ex);
+        }
+      }, aExecutor);
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      final CompletableFuture <AS2ClientResponse> ret = new CompletableFuture <> ();
+      ret.completeExceptionally (ex);
+      return ret;
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ThreadCount", m_nThreadCount)
+                                       .append ("QueueCapacity", m_nQueueCapacity)
+                                       .getToString ();
+  }
+}
@@ -17,16 +17,34 @@
 package com.helger.peppol.as2client;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.time.LocalDateTime;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.activation.FileDataSource;
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.OverridingMethodsMustInvokeSuper;
@@ -43,11 +61,13 @@ import com.helger.as2lib.client.AS2Client;
 import com.helger.as2lib.client.AS2ClientRequest;
 import com.helger.as2lib.client.AS2ClientResponse;
 import com.helger.as2lib.client.AS2ClientSettings;
+import com.helger.as2lib.crypto.ECompressionType;
 import com.helger.as2lib.crypto.ECryptoAlgorithmSign;
 import com.helger.as2lib.disposition.DispositionOptions;
 import com.helger.as2lib.util.dump.IHTTPIncomingDumper;
 import com.helger.as2lib.util.dump.IHTTPOutgoingDumper;
 import com.helger.as2lib.util.dump.IHTTPOutgoingDumperFactory;
+import com.helger.commons.CGlobal;
 import com.helger.commons.ValueEnforcer;
 import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.annotation.OverrideOnDemand;
@@ -57,12 +77,17 @@ import com.helger.commons.collection.impl.ICommonsList;
 import com.helger.commons.datetime.PDTFactory;
 import com.helger.commons.email.EmailAddressHelper;
 import com.helger.commons.functional.IConsumer;
+import com.helger.commons.functional.IPredicate;
 import com.helger.commons.functional.ISupplier;
 import com.helger.commons.http.CHttpHeader;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.file.FileOperationManager;
 import com.helger.commons.io.resource.FileSystemResource;
 import com.helger.commons.io.resource.IReadableResource;
 import com.helger.commons.io.resource.inmemory.ReadableResourceByteArray;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
 import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
 import com.helger.commons.mime.CMimeType;
 import com.helger.commons.mime.IMimeType;
 import com.helger.commons.state.ETriState;
@@ -78,6 +103,7 @@ import com.helger.peppol.utils.EPeppolCertificateCheckResult;
 import com.helger.peppol.utils.PeppolCertificateChecker;
 import com.helger.peppol.utils.PeppolCertificateHelper;
 import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IIdentifier;
 import com.helger.peppolid.IParticipantIdentifier;
 import com.helger.peppolid.IProcessIdentifier;
 import com.helger.peppolid.factory.PeppolIdentifierFactory;
@@ -127,6 +153,22 @@ public class AS2ClientBuilder
   public static final boolean DEFAULT_USE_DATA_HANDLER = true;
   /** The default mime type to be used for outgoing messages */
   public static final IMimeType DEFAULT_MIME_TYPE = CMimeType.APPLICATION_XML;
+  /** By default the SBDH is created in memory and not streamed */
+  public static final boolean DEFAULT_USE_STREAMING_SBDH = false;
+  /** By default the streamed SBDH envelope is written with StAX */
+  public static final boolean DEFAULT_SPLICE_SBDH = false;
+  /** By default business document resources are not decompressed */
+  public static final boolean DEFAULT_DECOMPRESS_BUSINESS_DOCUMENT = false;
+  /** By default the SMP lookup and the validation run one after another */
+  public static final boolean DEFAULT_PIPELINED_VALIDATION = false;
+  /** The number of threads of the default pipeline executor */
+  public static final int DEFAULT_PIPELINE_THREAD_COUNT = Runtime.getRuntime ().availableProcessors ();
+  /** The maximum number of queued tasks of the default pipeline executor */
+  public static final int DEFAULT_PIPELINE_QUEUE_CAPACITY = 16 * DEFAULT_PIPELINE_THREAD_COUNT;
+  /** By default spooling to disk is disabled */
+  public static final long DEFAULT_SPOOL_THRESHOLD_BYTES = -1;
+  /** By default payloads of at least 64 KiB are compressed, if enabled */
+  public static final long DEFAULT_COMPRESSION_THRESHOLD_BYTES = 64 * CGlobal.BYTES_PER_KILOBYTE;
   /** The default validation handler doing nothing */
   public static final IAS2ClientBuilderValidatonResultHandler DEFAULT_VALIDATION_RESULT_HANDLER = new IAS2ClientBuilderValidatonResultHandler ()
   {};
@@ -160,6 +202,7 @@ public class AS2ClientBuilder
   }
 
   private static final Logger LOGGER = LoggerFactory.getLogger (AS2ClientBuilder.class);
+  private static final AS2MessageIDGenerator DEFAULT_MESSAGE_ID_GENERATOR = AS2MessageIDGenerator.compile (DEFAULT_AS2_MESSAGE_ID_FORMAT);
 
   /**
    * The default implementation of
@@ -192,6 +235,7 @@ public class AS2ClientBuilder
   private byte [] m_aKeyStoreBytes;
   private String m_sKeyStorePassword;
   private boolean m_bSaveKeyStoreChangesToFile = IStorableCertificateFactory.DEFAULT_SAVE_CHANGES_TO_FILE;
+  private AS2KeyStoreCache m_aKeyStoreCache;
   private String m_sAS2Subject = DEFAULT_AS2_SUBJECT;
   private String m_sSenderAS2ID;
   private String m_sSenderAS2Email;
@@ -203,6 +247,7 @@ public class AS2ClientBuilder
   private IAS2ClientBuilderCertificateCheckResultHandler m_aReceiverCertCheckResultHandler = new CertificateCheckResultHandler ();
   private ECryptoAlgorithmSign m_eSigningAlgo = DEFAULT_SIGNING_ALGORITHM;
   private String m_sMessageIDFormat = DEFAULT_AS2_MESSAGE_ID_FORMAT;
+  private AS2MessageIDGenerator m_aMessageIDGenerator = DEFAULT_MESSAGE_ID_GENERATOR;
   private int m_nConnectTimeoutMS = AS2ClientSettings.DEFAULT_CONNECT_TIMEOUT_MS;
   private int m_nReadTimeoutMS = AS2ClientSettings.DEFAULT_READ_TIMEOUT_MS;
 
@@ -214,9 +259,15 @@ public class AS2ClientBuilder
   private IProcessIdentifier m_aPeppolProcessID;
   private VESID m_aVESID;
   private ISMPServiceMetadataProvider m_aSMPClient;
+  private SMPEndpointCache m_aSMPEndpointCache;
+  private AS2EndpointHealthTracker m_aEndpointHealthTracker;
+  private AS2PartnerThrottle m_aPartnerThrottle;
+  private AS2MemoryGovernor m_aMemoryGovernor;
   private ISupplier <AS2Client> m_aAS2ClientFactory = new AS2ClientSupplier ();
   private INamespaceContext m_aSBDHNamespaceContext;
   private IConsumer <byte []> m_aSBDHBytesConsumer;
+  private IConsumer <ByteBuffer> m_aSBDHBufferConsumer;
+  private IAS2ClientBuilderSBDHArchiveProvider m_aSBDHArchiveProvider;
   private EContentTransferEncoding m_eCTE = EContentTransferEncoding.AS2_DEFAULT;
   private IAS2ClientBuilderValidatonResultHandler m_aValidationResultHandler = DEFAULT_VALIDATION_RESULT_HANDLER;
   private transient ValidationExecutorSetRegistry <IValidationSourceXML> m_aVESRegistry;
@@ -224,6 +275,18 @@ public class AS2ClientBuilder
   private IHTTPIncomingDumper m_aHttpIncomingDumper;
   private boolean m_bUseDataHandler = DEFAULT_USE_DATA_HANDLER;
   private IMimeType m_aMimeType = DEFAULT_MIME_TYPE;
+  private boolean m_bUseStreamingSBDH = DEFAULT_USE_STREAMING_SBDH;
+  private boolean m_bSpliceSBDH = DEFAULT_SPLICE_SBDH;
+  private boolean m_bDecompressBusinessDocument = DEFAULT_DECOMPRESS_BUSINESS_DOCUMENT;
+  // Status var - the business document resource incl. decompression
+  private IReadableResource m_aEffectiveBusinessDocumentRes;
+  private boolean m_bPipelinedValidation = DEFAULT_PIPELINED_VALIDATION;
+  private Executor m_aPipelineExecutor;
+  private long m_nSpoolThresholdBytes = DEFAULT_SPOOL_THRESHOLD_BYTES;
+  private File m_aSpoolDirectory;
+  private ECompressionType m_eCompressionType;
+  private long m_nCompressionThresholdBytes = DEFAULT_COMPRESSION_THRESHOLD_BYTES;
+  private IPredicate <String> m_aCompressionPartnerFilter;
   private final ICommonsList <ISMPTransportProfile> m_aTransportProfiles = new CommonsArrayList <> (ESMPTransportProfile.TRANSPORT_PROFILE_AS2_V2,
                                                                                                     ESMPTransportProfile.TRANSPORT_PROFILE_AS2);
   private Consumer <ISMPTransportProfile> m_aSelectedTransportProfileConsumer = DEFAULT_SELECTED_TRANSPORT_PROFILE_CONSUMER;
@@ -234,6 +297,105 @@ public class AS2ClientBuilder
   public AS2ClientBuilder ()
   {}
 
+  /**
+   * Copy constructor. All settings of the provided builder are copied. Byte
+   * arrays, certificates, handlers and the validation registry are shared
+   * with the source builder and must therefore not be modified afterwards.
+   * Because the message handler counts the errors of a single message, a
+   * {@link DefaultAS2ClientBuilderMessageHandler} is never shared but a new one
+   * is created for the copy. Custom message handlers are shared and must be
+   * thread-safe if the copies are used concurrently.
+   * The selected transport profile consumer is only copied if it is not the
+   * default consumer of the source builder, because the default consumer
+   * modifies the builder it belongs to. The same applies to the default
+   * certificate check result handler.
+   *
+   * @param aOther
+   *        The builder to copy from. May not be <code>null</code>.
+   * @since 5.4.4
+   */
+  public AS2ClientBuilder (@Nonnull final AS2ClientBuilder aOther)
+  {
+    ValueEnforcer.notNull (aOther, "Other");
+    if (aOther.m_aMessageHandler.getClass () != DefaultAS2ClientBuilderMessageHandler.class)
+      m_aMessageHandler = aOther.m_aMessageHandler;
+    m_aKeyStoreType = aOther.m_aKeyStoreType;
+    m_aKeyStoreFile = aOther.m_aKeyStoreFile;
+    m_aKeyStoreBytes = aOther.m_aKeyStoreBytes;
+    m_sKeyStorePassword = aOther.m_sKeyStorePassword;
+    m_bSaveKeyStoreChangesToFile = aOther.m_bSaveKeyStoreChangesToFile;
+    m_aKeyStoreCache = aOther.m_aKeyStoreCache;
+    m_sAS2Subject = aOther.m_sAS2Subject;
+    m_sSenderAS2ID = aOther.m_sSenderAS2ID;
+    m_sSenderAS2Email = aOther.m_sSenderAS2Email;
+    m_sSenderAS2KeyAlias = aOther.m_sSenderAS2KeyAlias;
+    m_sReceiverAS2ID = aOther.m_sReceiverAS2ID;
+    m_sReceiverAS2KeyAlias = aOther.m_sReceiverAS2KeyAlias;
+    m_sReceiverAS2Url = aOther.m_sReceiverAS2Url;
+    m_aReceiverCert = aOther.m_aReceiverCert;
+    if (aOther.m_aReceiverCertCheckResultHandler.getClass () != CertificateCheckResultHandler.class)
+      m_aReceiverCertCheckResultHandler = aOther.m_aReceiverCertCheckResultHandler;
+    m_eSigningAlgo = aOther.m_eSigningAlgo;
+    m_sMessageIDFormat = aOther.m_sMessageIDFormat;
+    m_aMessageIDGenerator = aOther.m_aMessageIDGenerator;
+    m_nConnectTimeoutMS = aOther.m_nConnectTimeoutMS;
+    m_nReadTimeoutMS = aOther.m_nReadTimeoutMS;
+    m_aBusinessDocumentRes = aOther.m_aBusinessDocumentRes;
+    m_aBusinessDocumentElement = aOther.m_aBusinessDocumentElement;
+    m_aPeppolSenderID = aOther.m_aPeppolSenderID;
+    m_aPeppolReceiverID = aOther.m_aPeppolReceiverID;
+    m_aPeppolDocumentTypeID = aOther.m_aPeppolDocumentTypeID;
+    m_aPeppolProcessID = aOther.m_aPeppolProcessID;
+    m_aVESID = aOther.m_aVESID;
+    m_aSMPClient = aOther.m_aSMPClient;
+    m_aSMPEndpointCache = aOther.m_aSMPEndpointCache;
+    m_aEndpointHealthTracker = aOther.m_aEndpointHealthTracker;
+    m_aPartnerThrottle = aOther.m_aPartnerThrottle;
+    m_aMemoryGovernor = aOther.m_aMemoryGovernor;
+    m_aAS2ClientFactory = aOther.m_aAS2ClientFactory;
+    m_aSBDHNamespaceContext = aOther.m_aSBDHNamespaceContext;
+    m_aSBDHBytesConsumer = aOther.m_aSBDHBytesConsumer;
+    m_aSBDHBufferConsumer = aOther.m_aSBDHBufferConsumer;
+    m_aSBDHArchiveProvider = aOther.m_aSBDHArchiveProvider;
+    m_eCTE = aOther.m_eCTE;
+    m_aValidationResultHandler = aOther.m_aValidationResultHandler;
+    m_aVESRegistry = aOther.m_aVESRegistry;
+    m_aHttpOutgoingDumperFactory = aOther.m_aHttpOutgoingDumperFactory;
+    m_aHttpIncomingDumper = aOther.m_aHttpIncomingDumper;
+    m_bUseDataHandler = aOther.m_bUseDataHandler;
+    m_aMimeType = aOther.m_aMimeType;
+    m_bUseStreamingSBDH = aOther.m_bUseStreamingSBDH;
+    m_bSpliceSBDH = aOther.m_bSpliceSBDH;
+    m_bDecompressBusinessDocument = aOther.m_bDecompressBusinessDocument;
+    m_aEffectiveBusinessDocumentRes = aOther.m_aEffectiveBusinessDocumentRes;
+    m_bPipelinedValidation = aOther.m_bPipelinedValidation;
+    m_aPipelineExecutor = aOther.m_aPipelineExecutor;
+    m_nSpoolThresholdBytes = aOther.m_nSpoolThresholdBytes;
+    m_aSpoolDirectory = aOther.m_aSpoolDirectory;
+    m_eCompressionType = aOther.m_eCompressionType;
+    m_nCompressionThresholdBytes = aOther.m_nCompressionThresholdBytes;
+    m_aCompressionPartnerFilter = aOther.m_aCompressionPartnerFilter;
+    m_aTransportProfiles.setAll (aOther.m_aTransportProfiles);
+    if (aOther.m_aSelectedTransportProfileConsumer != aOther.DEFAULT_SELECTED_TRANSPORT_PROFILE_CONSUMER)
+      m_aSelectedTransportProfileConsumer = aOther.m_aSelectedTransportProfileConsumer;
+  }
+
+  /**
+   * Create a copy of this builder. Derived classes with additional fields
+   * must override this method and provide a copy constructor.
+   *
+   * @return A new builder with the same settings as this builder. Never
+   *         <code>null</code>.
+   * @see #AS2ClientBuilder(AS2ClientBuilder)
+   * @since 5.4.4
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public AS2ClientBuilder getClone ()
+  {
+    return new AS2ClientBuilder (this);
+  }
+
   /**
    * @return The internal message handler. Only required for derived classes
    *         that want to add additional verification mechanisms.
@@ -332,6 +494,40 @@ public class AS2ClientBuilder
     return this;
   }
 
+  /**
+   * @return The key store cache to be used. May be <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nullable
+  public AS2KeyStoreCache getKeyStoreCache ()
+  {
+    return m_aKeyStoreCache;
+  }
+
+  /**
+   * Set the key store cache to be used. If a cache is set, the key store is
+   * only loaded once and an in-memory copy is passed to the AS2 client for
+   * every message. If the cache is used, changes made by the AS2 client (e.g.
+   * the added receiver certificate) are not saved to the key store file, even
+   * if {@link #setSaveKeyStoreChangesToFile(boolean)} is enabled. This is not
+   * necessary, because the receiver certificate is provided for every message.
+   * If the key store cannot be loaded into the cache, it is loaded directly for
+   * every message.
+   *
+   * @param aKeyStoreCache
+   *        The cache to be used. May be <code>null</code> to load the key store
+   *        for every message (which is the default). Usually
+   *        {@link AS2KeyStoreCache#getDefaultInstance()} is used.
+   * @return this for chaining
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setKeyStoreCache (@Nullable final AS2KeyStoreCache aKeyStoreCache)
+  {
+    m_aKeyStoreCache = aKeyStoreCache;
+    return this;
+  }
+
   /**
    * Set the subject for the AS2 message. By default
    * {@value #DEFAULT_AS2_SUBJECT} is used so you don't need to set it.
@@ -435,6 +631,17 @@ public class AS2ClientBuilder
     return this;
   }
 
+  /**
+   * @return The AS2 endpoint URL of the receiver. May be <code>null</code> if
+   *         neither set nor determined by an SMP lookup.
+   * @since 5.4.4
+   */
+  @Nullable
+  public String getReceiverAS2Url ()
+  {
+    return m_sReceiverAS2Url;
+  }
+
   /**
    * Set the AS2 endpoint URL of the receiver. This URL should be determined by
    * an SMP query.
@@ -503,8 +710,10 @@ public class AS2ClientBuilder
   /**
    * Set the abstract format for AS2 message IDs. By default
    * {@link #DEFAULT_AS2_MESSAGE_ID_FORMAT} is used so there is no need to
-   * change it. The replacement of placeholders depends on the underlying AS2
-   * library.
+   * change it. The format is compiled once into an
+   * {@link AS2MessageIDGenerator}, which guarantees unique message IDs within
+   * the JVM. Formats with placeholders not supported by the generator are
+   * handled by the underlying AS2 library.
    *
    * @param sMessageIDFormat
    *        The message ID format to be used. May not be <code>null</code>.
@@ -514,6 +723,7 @@ public class AS2ClientBuilder
   public AS2ClientBuilder setAS2MessageIDFormat (@Nullable final String sMessageIDFormat)
   {
     m_sMessageIDFormat = sMessageIDFormat;
+    m_aMessageIDGenerator = StringHelper.hasText (sMessageIDFormat) ? AS2MessageIDGenerator.compile (sMessageIDFormat) : null;
     return this;
   }
 
@@ -621,6 +831,7 @@ public class AS2ClientBuilder
   public AS2ClientBuilder setBusinessDocument (@Nullable final IReadableResource aBusinessDocumentRes)
   {
     m_aBusinessDocumentRes = aBusinessDocumentRes;
+    m_aEffectiveBusinessDocumentRes = null;
     return this;
   }
 
@@ -699,6 +910,17 @@ public class AS2ClientBuilder
     return this;
   }
 
+  /**
+   * @return The validation executor set ID to be used for validating the
+   *         business document before sending. May be <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nullable
+  public VESID getValidationKey ()
+  {
+    return m_aVESID;
+  }
+
   /**
    * Set the validation executor set ID to be used for validating the business
    * document before sending.<br>
@@ -751,6 +973,131 @@ public class AS2ClientBuilder
     return this;
   }
 
+  /**
+   * @return The SMP endpoint cache to be used. May be <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nullable
+  public SMPEndpointCache getSMPEndpointCache ()
+  {
+    return m_aSMPEndpointCache;
+  }
+
+  /**
+   * Set the cache for SMP lookup results. The cache is only used if an SMP
+   * client is set via {@link #setSMPClient(ISMPServiceMetadataProvider)}. The
+   * same cache instance should be shared between all builders that use the
+   * same SMP network, to avoid an SMP lookup for every single message.
+   *
+   * @param aSMPEndpointCache
+   *        The cache to be used. May be <code>null</code> to always query the
+   *        SMP (which is the default).
+   * @return this for chaining
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setSMPEndpointCache (@Nullable final SMPEndpointCache aSMPEndpointCache)
+  {
+    m_aSMPEndpointCache = aSMPEndpointCache;
+    return this;
+  }
+
+  /**
+   * @return The endpoint health tracker to be used. May be <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nullable
+  public AS2EndpointHealthTracker getEndpointHealthTracker ()
+  {
+    return m_aEndpointHealthTracker;
+  }
+
+  /**
+   * Set the endpoint health tracker that provides retries for transient
+   * failures and a circuit breaker per receiver AS2 URL. While the circuit of
+   * an endpoint is open, sending fails immediately with an
+   * {@link AS2ClientBuilderException} instead of waiting for the connect
+   * timeout. The same tracker instance should be shared between all builders.
+   *
+   * @param aEndpointHealthTracker
+   *        The tracker to be used. May be <code>null</code> to send exactly
+   *        once without circuit breaker (which is the default).
+   * @return this for chaining
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setEndpointHealthTracker (@Nullable final AS2EndpointHealthTracker aEndpointHealthTracker)
+  {
+    m_aEndpointHealthTracker = aEndpointHealthTracker;
+    return this;
+  }
+
+  /**
+   * @return The partner throttle to be used. May be <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nullable
+  public AS2PartnerThrottle getPartnerThrottle ()
+  {
+    return m_aPartnerThrottle;
+  }
+
+  /**
+   * Set the partner throttle that limits the message rate and the number of
+   * concurrent connections per receiver. Sending blocks until a permit is
+   * available. If no permit is available within the maximum wait time of the
+   * throttle, an {@link AS2ClientBuilderException} is thrown. The same
+   * throttle instance should be shared between all builders.
+   *
+   * @param aPartnerThrottle
+   *        The throttle to be used. May be <code>null</code> to send without
+   *        limits (which is the default).
+   * @return this for chaining
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setPartnerThrottle (@Nullable final AS2PartnerThrottle aPartnerThrottle)
+  {
+    m_aPartnerThrottle = aPartnerThrottle;
+    return this;
+  }
+
+  /**
+   * @return The memory governor to be used. May be <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nullable
+  public AS2MemoryGovernor getMemoryGovernor ()
+  {
+    return m_aMemoryGovernor;
+  }
+
+  /**
+   * Set the memory governor that limits the heap memory used by all payloads
+   * that are sent at the same time. Before a business document is read into
+   * memory, its estimated heap usage is reserved. If not enough memory is
+   * available, the message is diverted to the spool-to-disk path (if
+   * possible), otherwise sending waits until enough memory is available.
+   * Streamed and spooled messages only reserve
+   * {@link AS2MemoryGovernor#getStreamingReservationBytes()}, unless the
+   * business document is validated, cannot be streamed or the complete SBDH is
+   * passed to the SBDH bytes or buffer consumer. The same governor instance
+   * should be shared between all builders.
+   *
+   * @param aMemoryGovernor
+   *        The governor to be used. May be <code>null</code> to not limit the
+   *        memory (which is the default).
+   * @return this for chaining
+   * @see #setSpoolThresholdBytes(long)
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setMemoryGovernor (@Nullable final AS2MemoryGovernor aMemoryGovernor)
+  {
+    m_aMemoryGovernor = aMemoryGovernor;
+    return this;
+  }
+
   /**
    * Set the factory to create {@link AS2Client} objects internally. Overwrite
    * this if you need a proxy in the AS2Client object. By default a new instance
@@ -833,6 +1180,45 @@ public class AS2ClientBuilder
     return this;
   }
 
+  /**
+   * Set an optional consumer that takes a read-only view on the serialized
+   * StandardBusinessDocument. Compared to
+   * {@link #setSBDHBytesConsumer(IConsumer)} no copy of the data is created if
+   * the SBDH is created in memory. The buffer is only valid during the
+   * invocation of the consumer.
+   *
+   * @param aSBDHBufferConsumer
+   *        The optional consumer to use. May be <code>null</code>.
+   * @return this for chaining
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setSBDHBufferConsumer (@Nullable final IConsumer <ByteBuffer> aSBDHBufferConsumer)
+  {
+    m_aSBDHBufferConsumer = aSBDHBufferConsumer;
+    return this;
+  }
+
+  /**
+   * Set an optional provider for an archive stream. The serialized
+   * StandardBusinessDocument is written to the stream provided by it before
+   * the message is sent. Compared to {@link #setSBDHBytesConsumer(IConsumer)}
+   * no byte array of the complete SBDH is created, so this works for streamed
+   * and spooled documents as well. Streamed business documents are read an
+   * additional time for archiving.
+   *
+   * @param aSBDHArchiveProvider
+   *        The optional archive provider to use. May be <code>null</code>.
+   * @return this for chaining
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setSBDHArchiveProvider (@Nullable final IAS2ClientBuilderSBDHArchiveProvider aSBDHArchiveProvider)
+  {
+    m_aSBDHArchiveProvider = aSBDHArchiveProvider;
+    return this;
+  }
+
   /**
    * Set a custom <code>Content-Transfer-Encoding</code> type. By default the
    * AS2-default 'binary' is used. This setting alters the way how the payload
@@ -976,230 +1362,670 @@ public class AS2ClientBuilder
   }
 
   /**
-   * @return Get the transport profile ID used in the SMP lookup. By default
-   *         this is Peppol AS2 v1, than Peppol AS2 v2. Never <code>null</code>.
-   * @since v3.2.1
+   * @return <code>true</code> if the SBDH should be streamed when sending a
+   *         business document resource, <code>false</code> if it should be
+   *         created in memory. The default is
+   *         {@link #DEFAULT_USE_STREAMING_SBDH}.
+   * @since 5.4.4
    */
-  @Nonnull
-  @Nonempty
-  @ReturnsMutableCopy
-  public ICommonsList <ISMPTransportProfile> getAllSMPTransportProfiles ()
+  public boolean isUseStreamingSBDH ()
   {
-    return m_aTransportProfiles.getClone ();
+    return m_bUseStreamingSBDH;
   }
 
   /**
-   * Set the SMP transport profiles to be used. This is needed if Peppol AS2 V2
-   * should be prioritized over v1.
+   * Enable or disable the streaming mode for the SBDH creation. In streaming
+   * mode, the SBDH header is written with StAX and the bytes of the business
+   * document resource are copied directly into the AS2 request body, so
+   * neither a DOM nor a JAXB object tree nor a serialized copy of the business
+   * document is held in memory. This mode only applies if the business document
+   * was set as a resource (and not as an {@link Element}), if the resource can
+   * be read multiple times and if it is UTF-8 encoded - otherwise the in-memory
+   * mode is used. Notes:
+   * <ul>
+   * <li>If a validation key is set, the business document is still read into a
+   * DOM for validation, but the DOM is not used for sending.</li>
+   * <li>Streaming always uses a {@link DataHandler}, independent of
+   * {@link #setUseDataHandler(boolean)}.</li>
+   * <li>A consumer set via {@link #setSBDHBytesConsumer(IConsumer)} forces the
+   * creation of the complete SBDH byte array.</li>
+   * </ul>
    *
-   * @param aTransportProfiles
-   *        The new SMP transport profiles to be used. The order of the array is
-   *        the order of execution. May neither be <code>null</code> nor empty.
+   * @param bUseStreamingSBDH
+   *        <code>true</code> to enable streaming, <code>false</code> to disable
+   *        it.
    * @return this for chaining
-   * @since v3.2.1
+   * @since 5.4.4
    */
   @Nonnull
-  public AS2ClientBuilder setSMPTransportProfiles (@Nonnull @Nonempty final ISMPTransportProfile... aTransportProfiles)
+  public AS2ClientBuilder setUseStreamingSBDH (final boolean bUseStreamingSBDH)
   {
-    ValueEnforcer.notEmpty (aTransportProfiles, "TransportProfiles");
-    m_aTransportProfiles.setAll (aTransportProfiles);
+    m_bUseStreamingSBDH = bUseStreamingSBDH;
     return this;
   }
 
   /**
-   * @return The consumer that is invoked when an SMP client lookup is performed
-   *         and a transport profile was chosen. May be <code>null</code>.
-   * @since v3.2.1
+   * @return <code>true</code> if the SBDH envelope is created with the JAXB
+   *         marshaller and the business document bytes are spliced in,
+   *         <code>false</code> if not. The default is
+   *         {@link #DEFAULT_SPLICE_SBDH}.
+   * @since 5.4.4
    */
-  @Nullable
-  public Consumer <ISMPTransportProfile> getSelectedTransportProfileConsumer ()
+  public boolean isSpliceSBDH ()
   {
-    return m_aSelectedTransportProfileConsumer;
+    return m_bSpliceSBDH;
   }
 
   /**
-   * @param aConsumer
-   *        The consumer that is invoked when an SMP client lookup is performed
-   *        and a transport profile was chosen. May be <code>null</code>.
+   * Enable or disable the splice mode for the SBDH creation. In splice mode,
+   * only the SBDH header is marshalled with the same JAXB marshaller that is
+   * used in the in-memory mode, and the original business document bytes
+   * (without the XML declaration) are placed inside it. The resulting envelope
+   * bytes are identical to the in-memory mode, and the business document is
+   * neither read into a DOM nor serialized again. Enabling splice mode implies
+   * the streaming mode, with the same restrictions (see
+   * {@link #setUseStreamingSBDH(boolean)}).
+   *
+   * @param bSpliceSBDH
+   *        <code>true</code> to enable splicing, <code>false</code> to disable
+   *        it.
    * @return this for chaining
-   * @since v3.2.1
+   * @since 5.4.4
    */
   @Nonnull
-  public AS2ClientBuilder setSelectedTransportProfileConsumer (@Nullable final Consumer <ISMPTransportProfile> aConsumer)
+  public AS2ClientBuilder setSpliceSBDH (final boolean bSpliceSBDH)
   {
-    m_aSelectedTransportProfileConsumer = aConsumer;
+    m_bSpliceSBDH = bSpliceSBDH;
     return this;
   }
 
   /**
-   * This method is responsible for performing the SMP client lookup if an SMP
-   * client was specified via
-   * {@link #setSMPClient(ISMPServiceMetadataProvider)}. If any of the
-   * prerequisites mentioned there is not fulfilled a warning is emitted via the
-   * {@link #getMessageHandler()} and nothing happens. If all fields to be
-   * determined by the SMP are already no SMP lookup is performed either. If the
-   * SMP lookup fails, a warning is emitted and nothing happens.
-   *
-   * @throws AS2ClientBuilderException
-   *         In case SMP client lookup triggers an unrecoverable error via the
-   *         message handler
+   * @return <code>true</code> if compressed business document resources are
+   *         decompressed automatically, <code>false</code> if not. Default is
+   *         {@link #DEFAULT_DECOMPRESS_BUSINESS_DOCUMENT}.
+   * @since 5.4.4
    */
-  protected void performSMPClientLookup () throws AS2ClientBuilderException
+  public boolean isDecompressBusinessDocument ()
   {
-    if (m_aSMPClient != null)
-    {
-      // Check pre-requisites
-      if (m_aPeppolReceiverID == null)
-        getMessageHandler ().warn ("Cannot perform SMP lookup because the Peppol receiver ID is missing");
-      else
-        if (m_aPeppolDocumentTypeID == null)
-          getMessageHandler ().warn ("Cannot perform SMP lookup because the Peppol document type ID is missing");
-        else
-          if (m_aPeppolProcessID == null)
-            getMessageHandler ().warn ("Cannot perform SMP lookup because the Peppol process ID is missing");
-          else
-          {
-            // All prerequisites are matched
-
-            // Check if all fields to be determined are present, to avoid
-            // unnecessary lookup calls.
-            if (m_sReceiverAS2Url == null || m_aReceiverCert == null || m_sReceiverAS2ID == null)
-            {
-              // Perform the lookup.
-              if (LOGGER.isDebugEnabled ())
-                LOGGER.debug ("Performing SMP lookup for receiver '" +
-                              m_aPeppolReceiverID.getURIEncoded () +
-                              "' on document type '" +
-                              m_aPeppolDocumentTypeID.getURIEncoded () +
-                              "' and process ID '" +
-                              m_aPeppolProcessID.getURIEncoded () +
-                              "' using transport profiles " +
-                              StringHelper.getImplodedMapped (", ", m_aTransportProfiles, ISMPTransportProfile::getID));
-
-              SignedServiceMetadataType aServiceMetadata = null;
-              try
-              {
-                aServiceMetadata = m_aSMPClient.getServiceMetadataOrNull (m_aPeppolReceiverID, m_aPeppolDocumentTypeID);
-                if (aServiceMetadata == null)
-                  if (LOGGER.isDebugEnabled ())
-                    LOGGER.debug ("No such SMP service registration");
-                  else
-                    LOGGER.warn ("No such SMP service registration");
-              }
-              catch (final SMPClientException ex)
-              {
-                if (LOGGER.isDebugEnabled ())
-                  LOGGER.debug ("Error querying the SMP", ex);
-                else
-                  LOGGER.error ("Error querying the SMP: " + ex.getMessage ());
-                // Fall through
-              }
-
-              EndpointType aEndpoint = null;
-              if (aServiceMetadata != null)
-              {
-                // Try to extract the endpoint from the service metadata
-                for (final ISMPTransportProfile aTP : m_aTransportProfiles)
-                {
-                  aEndpoint = SMPClientReadOnly.getEndpoint (aServiceMetadata, m_aPeppolProcessID, aTP);
-                  if (aEndpoint != null)
-                  {
-                    // Break after the first hit
-                    if (LOGGER.isDebugEnabled ())
-                      LOGGER.debug ("Using SMP endpoint using transport profile '" + aTP.getID () + "'");
-
-                    // Call consumer
-                    if (m_aSelectedTransportProfileConsumer != null)
-                      m_aSelectedTransportProfileConsumer.accept (aTP);
-
-                    break;
-                  }
-                }
-              }
-
-              // Interpret the result
-              if (aEndpoint == null)
-              {
-                // No such SMP entry
-                getMessageHandler ().error ("Failed to perform SMP lookup for receiver '" +
-                                            m_aPeppolReceiverID.getURIEncoded () +
-                                            "' on document type '" +
-                                            m_aPeppolDocumentTypeID.getURIEncoded () +
-                                            "' and process ID '" +
-                                            m_aPeppolProcessID.getURIEncoded () +
-                                            "' using transport profiles '" +
-                                            StringHelper.getImplodedMapped (", ", m_aTransportProfiles, ISMPTransportProfile::getID) +
-                                            ". " +
-                                            (aServiceMetadata != null ? "The service metadata was gathered successfully but no endpoint was found."
-                                                                      : "Failed to get the service metadata."));
-              }
-              else
-              {
-                // Extract from SMP response
-                if (m_sReceiverAS2Url == null)
-                  m_sReceiverAS2Url = SMPClientReadOnly.getEndpointAddress (aEndpoint);
-                if (m_aReceiverCert == null)
-                  try
-                  {
-                    m_aReceiverCert = SMPClientReadOnly.getEndpointCertificate (aEndpoint);
-                  }
-                  catch (final CertificateException ex)
-                  {
-                    getMessageHandler ().error ("Failed to build X.509 certificate from SMP client response", ex);
-                  }
-
-                // Verify the certificate
-                {
-                  final LocalDateTime aNow = PDTFactory.getCurrentLocalDateTime ();
-                  final EPeppolCertificateCheckResult eCertCheckResult = PeppolCertificateChecker.checkPeppolAPCertificate (m_aReceiverCert,
-                                                                                                                            aNow,
-                                                                                                                            ETriState.UNDEFINED,
-                                                                                                                            null);
-
-                  // Interpret the result
-                  m_aReceiverCertCheckResultHandler.onCertificateCheckResult (m_aReceiverCert, aNow, eCertCheckResult);
-                }
-
-                if (m_sReceiverAS2ID == null)
-                  try
-                  {
-                    m_sReceiverAS2ID = PeppolCertificateHelper.getSubjectCN (m_aReceiverCert);
-                  }
-                  catch (final Exception ex)
-                  {
-                    getMessageHandler ().error ("Failed to get the Receiver AS ID from the provided certificate", ex);
-                  }
-              }
-            }
-            else
-            {
-              if (LOGGER.isDebugEnabled ())
-                LOGGER.debug ("Not performing SMP lookup because all target fields are already set!");
-            }
-          }
-    }
+    return m_bDecompressBusinessDocument;
   }
 
   /**
-   * Certain values can by convention be derived from other values. This happens
-   * inside this method. There is no need to call this method manually, it is
-   * called automatically before {@link #verifyContent()} is called.
+   * Enable or disable the automatic decompression of business document
+   * resources. If enabled, a GZIP or ZIP compressed resource (detected by the
+   * magic bytes) is decompressed while it is read, so that compressed documents
+   * can be sent without creating a decompressed copy on disk. Combine it with
+   * {@link #setUseStreamingSBDH(boolean)} to also avoid the in-memory copy.
+   * For the spool threshold (see {@link #setSpoolThresholdBytes(long)}) the
+   * decompressed size is estimated as
+   * {@link AS2MemoryGovernor#DEFAULT_COMPRESSED_PAYLOAD_FACTOR} times the
+   * compressed size.<br>
+   * The compression is detected once per business document resource. If the
+   * resource can be read multiple times, the first bytes are read in advance.
+   * Otherwise the resource is always wrapped in a
+   * {@link DecompressingReadableResource} so that it is only read once.
+   *
+   * @param bDecompressBusinessDocument
+   *        <code>true</code> to enable decompression, <code>false</code> to
+   *        disable it.
+   * @return this for chaining
+   * @see DecompressingReadableResource
+   * @since 5.4.4
    */
-  @OverridingMethodsMustInvokeSuper
-  protected void setDefaultDerivedValues ()
+  @Nonnull
+  public AS2ClientBuilder setDecompressBusinessDocument (final boolean bDecompressBusinessDocument)
   {
-    if (m_sReceiverAS2KeyAlias == null)
-    {
-      // No key alias is specified, so use the same as the receiver ID (which
-      // may be null)
-      m_sReceiverAS2KeyAlias = m_sReceiverAS2ID;
-      if (LOGGER.isDebugEnabled ())
-        LOGGER.debug ("The receiver AS2 key alias was defaulted to the AS2 receiver ID ('" + m_sReceiverAS2ID + "')");
-    }
+    m_bDecompressBusinessDocument = bDecompressBusinessDocument;
+    m_aEffectiveBusinessDocumentRes = null;
+    return this;
   }
 
-  private void _verifyContent (final boolean bSendBusinessDocument) throws AS2ClientBuilderException
-  {
+  /**
+   * @return <code>true</code> if the business document is read and validated
+   *         in parallel to the SMP lookup, <code>false</code> if not. The
+   *         default is {@link #DEFAULT_PIPELINED_VALIDATION}.
+   * @since 5.4.4
+   */
+  public boolean isPipelinedValidation ()
+  {
+    return m_bPipelinedValidation;
+  }
+
+  /**
+   * Enable or disable the pipelined mode. In pipelined mode the business
+   * document is read and validated on the pipeline executor (see
+   * {@link #setPipelineExecutor(Executor)}) while the SMP lookup is performed
+   * on the calling thread. Both are joined before the SBDH is created. All
+   * values used by the pipelined task, including the validation registry, are
+   * captured on the calling thread before the task is started and the
+   * validation result handler is invoked on the calling thread after the join.
+   * Note: in pipelined mode
+   * {@link #validateOutgoingBusinessDocument(Element)} is not called, and the
+   * business document is read even if the SMP lookup fails. If the pipeline
+   * executor rejects the task, the business document is read and validated on
+   * the calling thread.
+   *
+   * @param bPipelinedValidation
+   *        <code>true</code> to enable pipelining, <code>false</code> to
+   *        disable it.
+   * @return this for chaining
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setPipelinedValidation (final boolean bPipelinedValidation)
+  {
+    m_bPipelinedValidation = bPipelinedValidation;
+    return this;
+  }
+
+  /**
+   * Lazily created default pipeline executor.
+   */
+  private static final class DefaultPipelineExecutorHolder
+  {
+    static final ThreadPoolExecutor INSTANCE;
+    static
+    {
+      final AtomicInteger aThreadCounter = new AtomicInteger (0);
+      INSTANCE = new ThreadPoolExecutor (DEFAULT_PIPELINE_THREAD_COUNT,
+                                         DEFAULT_PIPELINE_THREAD_COUNT,
+                                         60,
+                                         TimeUnit.SECONDS,
+                                         new ArrayBlockingQueue <> (DEFAULT_PIPELINE_QUEUE_CAPACITY),
+                                         r -> {
+                                           final Thread t = new Thread (r, "as2-pipeline-" + aThreadCounter.incrementAndGet ());
+                                           t.setDaemon (true);
+                                           return t;
+                                         });
+      // Don't keep idle threads forever
+      INSTANCE.allowCoreThreadTimeOut (true);
+    }
+  }
+
+  /**
+   * Get the executor that is used in pipelined mode, if no pipeline executor
+   * was set. It is a dedicated pool of {@link #DEFAULT_PIPELINE_THREAD_COUNT}
+   * daemon threads that is created upon the first usage. Reading and
+   * validating may block, so the common fork join pool is not used. At most
+   * {@link #DEFAULT_PIPELINE_QUEUE_CAPACITY} tasks are queued - further tasks
+   * are rejected and run on the calling thread instead.
+   *
+   * @return The default pipeline executor. Never <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nonnull
+  public static Executor getDefaultPipelineExecutor ()
+  {
+    return DefaultPipelineExecutorHolder.INSTANCE;
+  }
+
+  /**
+   * @return The executor used for reading and validating the business
+   *         document in pipelined mode. Never <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nonnull
+  public Executor getPipelineExecutor ()
+  {
+    final Executor ret = m_aPipelineExecutor;
+    return ret != null ? ret : getDefaultPipelineExecutor ();
+  }
+
+  /**
+   * Set the executor used for reading and validating the business document in
+   * pipelined mode. By default the executor returned by
+   * {@link #getDefaultPipelineExecutor()} is used.
+   *
+   * @param aPipelineExecutor
+   *        The executor to use. May not be <code>null</code>.
+   * @return this for chaining
+   * @see #setPipelinedValidation(boolean)
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setPipelineExecutor (@Nonnull final Executor aPipelineExecutor)
+  {
+    ValueEnforcer.notNull (aPipelineExecutor, "PipelineExecutor");
+    m_aPipelineExecutor = aPipelineExecutor;
+    return this;
+  }
+
+  /**
+   * @return The business document size in bytes from which on the SBDH is
+   *         spooled to disk. A value &lt; 0 means spooling is disabled. The
+   *         default is {@link #DEFAULT_SPOOL_THRESHOLD_BYTES}.
+   * @since 5.4.4
+   */
+  public long getSpoolThresholdBytes ()
+  {
+    return m_nSpoolThresholdBytes;
+  }
+
+  /**
+   * Set the business document size in bytes from which on the SBDH should be
+   * spooled to disk. If the business document is a file that is larger than
+   * the threshold, the SBDH is written to a temporary file in a streaming way
+   * (see {@link #setUseStreamingSBDH(boolean)}) and the AS2 message is created
+   * from that file, so the heap usage is independent of the document size. The
+   * temporary file is deleted after sending. Notes:
+   * <ul>
+   * <li>Only UTF-8 encoded business documents can be spooled.</li>
+   * <li>For compressed business documents (see
+   * {@link #setDecompressBusinessDocument(boolean)}) the estimated
+   * decompressed size is compared against the threshold.</li>
+   * <li>If a validation key is set, the business document is still read into a
+   * DOM for validation.</li>
+   * <li>A consumer set via {@link #setSBDHBytesConsumer(IConsumer)} is not
+   * invoked for spooled documents.</li>
+   * </ul>
+   *
+   * @param nSpoolThresholdBytes
+   *        The threshold in bytes. Use a value &lt; 0 to disable spooling.
+   * @return this for chaining
+   * @see #setSpoolDirectory(File)
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setSpoolThresholdBytes (final long nSpoolThresholdBytes)
+  {
+    m_nSpoolThresholdBytes = nSpoolThresholdBytes;
+    return this;
+  }
+
+  /**
+   * @return The directory for temporary spool files. May be <code>null</code>
+   *         to use the system temporary directory.
+   * @since 5.4.4
+   */
+  @Nullable
+  public File getSpoolDirectory ()
+  {
+    return m_aSpoolDirectory;
+  }
+
+  /**
+   * Set the directory for temporary spool files.
+   *
+   * @param aSpoolDirectory
+   *        The directory to use. May be <code>null</code> to use the system
+   *        temporary directory.
+   * @return this for chaining
+   * @see #setSpoolThresholdBytes(long)
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setSpoolDirectory (@Nullable final File aSpoolDirectory)
+  {
+    m_aSpoolDirectory = aSpoolDirectory;
+    return this;
+  }
+
+  /**
+   * @return The AS2 compression type to use. May be <code>null</code> if
+   *         compression is disabled, which is the default.
+   * @since 5.4.4
+   */
+  @Nullable
+  public ECompressionType getCompressionType ()
+  {
+    return m_eCompressionType;
+  }
+
+  /**
+   * Enable or disable AS2 compression according to RFC 5402. If enabled, the
+   * payload is compressed before it is signed. Compression is only applied if
+   * the payload is at least {@link #getCompressionThresholdBytes()} bytes
+   * large and if the partner filter accepts the receiver AS2 ID. Note: the
+   * receiving access point must support compressed messages, so this should
+   * only be enabled for known partners.
+   *
+   * @param eCompressionType
+   *        The compression type to use. May be <code>null</code> to disable
+   *        compression.
+   * @return this for chaining
+   * @see #setCompressionThresholdBytes(long)
+   * @see #setCompressionPartnerFilter(IPredicate)
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setCompressionType (@Nullable final ECompressionType eCompressionType)
+  {
+    m_eCompressionType = eCompressionType;
+    return this;
+  }
+
+  /**
+   * @return The minimum payload size in bytes for compression. Default is
+   *         {@link #DEFAULT_COMPRESSION_THRESHOLD_BYTES}.
+   * @since 5.4.4
+   */
+  public long getCompressionThresholdBytes ()
+  {
+    return m_nCompressionThresholdBytes;
+  }
+
+  /**
+   * Set the minimum payload size in bytes from which on the payload is
+   * compressed. Small payloads don't benefit from compression. If the payload
+   * size cannot be determined in advance (e.g. for streamed SBDHs), the payload
+   * is compressed.
+   *
+   * @param nCompressionThresholdBytes
+   *        The threshold in bytes. Must be &ge; 0.
+   * @return this for chaining
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setCompressionThresholdBytes (@Nonnegative final long nCompressionThresholdBytes)
+  {
+    ValueEnforcer.isGE0 (nCompressionThresholdBytes, "CompressionThresholdBytes");
+    m_nCompressionThresholdBytes = nCompressionThresholdBytes;
+    return this;
+  }
+
+  /**
+   * @return The filter deciding for which partners compression is applied. May
+   *         be <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nullable
+  public IPredicate <String> getCompressionPartnerFilter ()
+  {
+    return m_aCompressionPartnerFilter;
+  }
+
+  /**
+   * Set a filter that decides per partner whether compression should be
+   * applied. The filter is invoked with the receiver AS2 ID (as determined from
+   * the SMP) and must return <code>true</code> if the partner supports
+   * compressed messages.
+   *
+   * @param aCompressionPartnerFilter
+   *        The filter to use. May be <code>null</code> to compress for all
+   *        partners if compression is enabled.
+   * @return this for chaining
+   * @see #setCompressionType(ECompressionType)
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setCompressionPartnerFilter (@Nullable final IPredicate <String> aCompressionPartnerFilter)
+  {
+    m_aCompressionPartnerFilter = aCompressionPartnerFilter;
+    return this;
+  }
+
+  /**
+   * @return Get the transport profile ID used in the SMP lookup. By default
+   *         this is Peppol AS2 v1, than Peppol AS2 v2. Never <code>null</code>.
+   * @since v3.2.1
+   */
+  @Nonnull
+  @Nonempty
+  @ReturnsMutableCopy
+  public ICommonsList <ISMPTransportProfile> getAllSMPTransportProfiles ()
+  {
+    return m_aTransportProfiles.getClone ();
+  }
+
+  /**
+   * Set the SMP transport profiles to be used. This is needed if Peppol AS2 V2
+   * should be prioritized over v1.
+   *
+   * @param aTransportProfiles
+   *        The new SMP transport profiles to be used. The order of the array is
+   *        the order of execution. May neither be <code>null</code> nor empty.
+   * @return this for chaining
+   * @since v3.2.1
+   */
+  @Nonnull
+  public AS2ClientBuilder setSMPTransportProfiles (@Nonnull @Nonempty final ISMPTransportProfile... aTransportProfiles)
+  {
+    ValueEnforcer.notEmpty (aTransportProfiles, "TransportProfiles");
+    m_aTransportProfiles.setAll (aTransportProfiles);
+    return this;
+  }
+
+  /**
+   * @return The consumer that is invoked when an SMP client lookup is performed
+   *         and a transport profile was chosen. May be <code>null</code>.
+   * @since v3.2.1
+   */
+  @Nullable
+  public Consumer <ISMPTransportProfile> getSelectedTransportProfileConsumer ()
+  {
+    return m_aSelectedTransportProfileConsumer;
+  }
+
+  /**
+   * @param aConsumer
+   *        The consumer that is invoked when an SMP client lookup is performed
+   *        and a transport profile was chosen. May be <code>null</code>.
+   * @return this for chaining
+   * @since v3.2.1
+   */
+  @Nonnull
+  public AS2ClientBuilder setSelectedTransportProfileConsumer (@Nullable final Consumer <ISMPTransportProfile> aConsumer)
+  {
+    m_aSelectedTransportProfileConsumer = aConsumer;
+    return this;
+  }
+
+  /**
+   * This method is responsible for performing the SMP client lookup if an SMP
+   * client was specified via
+   * {@link #setSMPClient(ISMPServiceMetadataProvider)}. If any of the
+   * prerequisites mentioned there is not fulfilled a warning is emitted via the
+   * {@link #getMessageHandler()} and nothing happens. If all fields to be
+   * determined by the SMP are already no SMP lookup is performed either. If the
+   * SMP lookup fails, a warning is emitted and nothing happens.
+   *
+   * @throws AS2ClientBuilderException
+   *         In case SMP client lookup triggers an unrecoverable error via the
+   *         message handler
+   */
+  protected void performSMPClientLookup () throws AS2ClientBuilderException
+  {
+    if (m_aSMPClient != null)
+    {
+      // Check pre-requisites
+      if (m_aPeppolReceiverID == null)
+        getMessageHandler ().warn ("Cannot perform SMP lookup because the Peppol receiver ID is missing");
+      else
+        if (m_aPeppolDocumentTypeID == null)
+          getMessageHandler ().warn ("Cannot perform SMP lookup because the Peppol document type ID is missing");
+        else
+          if (m_aPeppolProcessID == null)
+            getMessageHandler ().warn ("Cannot perform SMP lookup because the Peppol process ID is missing");
+          else
+          {
+            // All prerequisites are matched
+
+            // Check if all fields to be determined are present, to avoid
+            // unnecessary lookup calls.
+            if (m_sReceiverAS2Url == null || m_aReceiverCert == null || m_sReceiverAS2ID == null)
+            {
+              SMPEndpointCache.Endpoint aResolved = null;
+              String sCacheKey = null;
+              if (m_aSMPEndpointCache != null)
+              {
+                sCacheKey = SMPEndpointCache.createKey (m_aPeppolReceiverID,
+                                                        m_aPeppolDocumentTypeID,
+                                                        m_aPeppolProcessID,
+                                                        m_aTransportProfiles);
+                aResolved = m_aSMPEndpointCache.get (sCacheKey);
+                if (aResolved != null && LOGGER.isDebugEnabled ())
+                  LOGGER.debug ("Using cached SMP lookup result " + aResolved);
+              }
+
+              if (aResolved == null)
+              {
+                // Perform the lookup.
+                aResolved = _resolveSMPEndpoint ();
+                if (m_aSMPEndpointCache != null && aResolved != null)
+                  m_aSMPEndpointCache.put (sCacheKey, aResolved);
+              }
+
+              // Interpret the result
+              if (aResolved == null || !aResolved.isEndpointFound ())
+              {
+                // No such SMP entry
+                getMessageHandler ().error ("Failed to perform SMP lookup for receiver '" +
+                                            m_aPeppolReceiverID.getURIEncoded () +
+                                            "' on document type '" +
+                                            m_aPeppolDocumentTypeID.getURIEncoded () +
+                                            "' and process ID '" +
+                                            m_aPeppolProcessID.getURIEncoded () +
+                                            "' using transport profiles '" +
+                                            StringHelper.getImplodedMapped (", ", m_aTransportProfiles, ISMPTransportProfile::getID) +
+                                            ". " +
+                                            (aResolved != null && aResolved.isServiceMetadataFound () ? "The service metadata was gathered successfully but no endpoint was found."
+                                                                                                       : "Failed to get the service metadata."));
+              }
+              else
+              {
+                // Call consumer
+                if (m_aSelectedTransportProfileConsumer != null)
+                  m_aSelectedTransportProfileConsumer.accept (aResolved.getTransportProfile ());
+
+                // Extract from SMP response
+                if (m_sReceiverAS2Url == null)
+                  m_sReceiverAS2Url = aResolved.getEndpointURL ();
+                if (m_aReceiverCert == null)
+                  m_aReceiverCert = aResolved.getCertificate ();
+
+                // Verify the certificate
+                {
+                  final LocalDateTime aNow = PDTFactory.getCurrentLocalDateTime ();
+                  final EPeppolCertificateCheckResult eCertCheckResult = PeppolCertificateChecker.checkPeppolAPCertificate (m_aReceiverCert,
+                                                                                                                            aNow,
+                                                                                                                            ETriState.UNDEFINED,
+                                                                                                                            null);
+
+                  // Interpret the result
+                  m_aReceiverCertCheckResultHandler.onCertificateCheckResult (m_aReceiverCert, aNow, eCertCheckResult);
+                }
+
+                if (m_sReceiverAS2ID == null)
+                  if (m_aReceiverCert == aResolved.getCertificate () && aResolved.getAS2ID () != null)
+                    m_sReceiverAS2ID = aResolved.getAS2ID ();
+                  else
+                    m_sReceiverAS2ID = _getAS2IDFromCertificate (m_aReceiverCert);
+              }
+            }
+            else
+            {
+              if (LOGGER.isDebugEnabled ())
+                LOGGER.debug ("Not performing SMP lookup because all target fields are already set!");
+            }
+          }
+    }
+  }
+
+  @Nullable
+  private String _getAS2IDFromCertificate (@Nullable final X509Certificate aCert) throws AS2ClientBuilderException
+  {
+    try
+    {
+      return PeppolCertificateHelper.getSubjectCN (aCert);
+    }
+    catch (final Exception ex)
+    {
+      getMessageHandler ().error ("Failed to get the Receiver AS ID from the provided certificate", ex);
+      return null;
+    }
+  }
+
+  /**
+   * Perform the main SMP lookup without any caching.
+   *
+   * @return <code>null</code> if the SMP query failed with an error and the
+   *         result must not be cached.
+   * @throws AS2ClientBuilderException
+   *         In case the message handler triggers an unrecoverable error
+   */
+  @Nullable
+  private SMPEndpointCache.Endpoint _resolveSMPEndpoint () throws AS2ClientBuilderException
+  {
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Performing SMP lookup for receiver '" +
+                    m_aPeppolReceiverID.getURIEncoded () +
+                    "' on document type '" +
+                    m_aPeppolDocumentTypeID.getURIEncoded () +
+                    "' and process ID '" +
+                    m_aPeppolProcessID.getURIEncoded () +
+                    "' using transport profiles " +
+                    StringHelper.getImplodedMapped (", ", m_aTransportProfiles, ISMPTransportProfile::getID));
+
+    SignedServiceMetadataType aServiceMetadata = null;
+    try
+    {
+      aServiceMetadata = m_aSMPClient.getServiceMetadataOrNull (m_aPeppolReceiverID, m_aPeppolDocumentTypeID);
+      if (aServiceMetadata == null)
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("No such SMP service registration");
+        else
+          LOGGER.warn ("No such SMP service registration");
+    }
+    catch (final SMPClientException ex)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Error querying the SMP", ex);
+      else
+        LOGGER.error ("Error querying the SMP: " + ex.getMessage ());
+      // Don't cache
+      return null;
+    }
+
+    if (aServiceMetadata != null)
+    {
+      // Try to extract the endpoint from the service metadata
+      for (final ISMPTransportProfile aTP : m_aTransportProfiles)
+      {
+        final EndpointType aEndpoint = SMPClientReadOnly.getEndpoint (aServiceMetadata, m_aPeppolProcessID, aTP);
+        if (aEndpoint != null)
+        {
+          // Break after the first hit
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug ("Using SMP endpoint using transport profile '" + aTP.getID () + "'");
+
+          X509Certificate aCert = null;
+          try
+          {
+            aCert = SMPClientReadOnly.getEndpointCertificate (aEndpoint);
+          }
+          catch (final CertificateException ex)
+          {
+            getMessageHandler ().error ("Failed to build X.509 certificate from SMP client response", ex);
+          }
+
+          final String sAS2ID = aCert == null ? null : _getAS2IDFromCertificate (aCert);
+          return SMPEndpointCache.Endpoint.createFound (SMPClientReadOnly.getEndpointAddress (aEndpoint), aCert, sAS2ID, aTP);
+        }
+      }
+    }
+    return SMPEndpointCache.Endpoint.createNotFound (aServiceMetadata != null);
+  }
+
+  /**
+   * Certain values can by convention be derived from other values. This happens
+   * inside this method. There is no need to call this method manually, it is
+   * called automatically before {@link #verifyContent()} is called.
+   */
+  @OverridingMethodsMustInvokeSuper
+  protected void setDefaultDerivedValues ()
+  {
+    if (m_sReceiverAS2KeyAlias == null)
+    {
+      // No key alias is specified, so use the same as the receiver ID (which
+      // may be null)
+      m_sReceiverAS2KeyAlias = m_sReceiverAS2ID;
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("The receiver AS2 key alias was defaulted to the AS2 receiver ID ('" + m_sReceiverAS2ID + "')");
+    }
+  }
+
+  private void _verifyContent (final boolean bSendBusinessDocument) throws AS2ClientBuilderException
+  {
     if (m_aKeyStoreType == null)
       m_aMessageHandler.error ("No AS2 key store type is defined");
 
@@ -1389,14 +2215,44 @@ public class AS2ClientBuilder
   }
 
   /**
-   * Create a new {@link ValidationExecutorSetRegistry} to be used with this
-   * client builder. By default the {@link PeppolValidation} artefacts are
-   * contained. If additional artefacts like SimplerInvoicing or EN16931 is to
-   * be used, this method must be overwritten! This method is only called once
-   * per client to lazily initialize the respective member variable.
+   * Holder for the shared default validation registry. The registry is created
+   * lazily upon first access in a thread-safe way by the class loader.
    *
-   * @return The created {@link ValidationExecutorSetRegistry} and never
+   * @author Philip Helger
+   */
+  private static final class SharedValidationRegistryHolder
+  {
+    static final ValidationExecutorSetRegistry <IValidationSourceXML> INSTANCE = createDefaultValidationRegistry ();
+  }
+
+  /**
+   * Get the process wide shared {@link ValidationExecutorSetRegistry}
+   * containing the default Peppol validation artefacts. It is initialized
+   * lazily on the first call and reused afterwards, so that the validation
+   * artefacts are only set up once. The registry must not be modified.
+   *
+   * @return The shared default validation registry. Never <code>null</code>.
+   * @see #createDefaultValidationRegistry()
+   * @since 5.4.4
+   */
+  @Nonnull
+  public static ValidationExecutorSetRegistry <IValidationSourceXML> getSharedDefaultValidationRegistry ()
+  {
+    return SharedValidationRegistryHolder.INSTANCE;
+  }
+
+  /**
+   * Create the {@link ValidationExecutorSetRegistry} to be used with this
+   * client builder. By default a new registry with the {@link PeppolValidation}
+   * artefacts is created. If additional artefacts like SimplerInvoicing or
+   * EN16931 is to be used, this method must be overwritten! This method is only
+   * called once per client to lazily initialize the respective member variable.
+   * It is not called if a registry was set via
+   * {@link #setValidationRegistry(ValidationExecutorSetRegistry)}.
+   *
+   * @return The {@link ValidationExecutorSetRegistry} to use and never
    *         <code>null</code>.
+   * @see #getSharedDefaultValidationRegistry()
    * @see #createDefaultValidationRegistry()
    * @since 2.0.3
    */
@@ -1427,13 +2283,26 @@ public class AS2ClientBuilder
                                                @Nonnull final VESID aVESID,
                                                @Nonnull final IAS2ClientBuilderValidatonResultHandler aValidationResultHandler,
                                                @Nonnull final Element aXML) throws AS2ClientBuilderException
+  {
+    final ValidationResultList aValidationResult = _executeValidation (aVESRegistry, aVESID, aXML);
+    _handleValidationResult (aValidationResultHandler, aValidationResult);
+  }
+
+  @Nonnull
+  private static ValidationResultList _executeValidation (@Nonnull final ValidationExecutorSetRegistry <IValidationSourceXML> aVESRegistry,
+                                                          @Nonnull final VESID aVESID,
+                                                          @Nonnull final Element aXML) throws AS2ClientBuilderException
   {
     final IValidationExecutorSet <IValidationSourceXML> aVES = aVESRegistry.getOfID (aVESID);
     if (aVES == null)
       throw new AS2ClientBuilderException ("The validation executor set ID " + aVESID.getAsSingleID () + " is unknown!");
 
-    final ValidationResultList aValidationResult = ValidationExecutionManager.executeValidation (aVES,
-                                                                                                 ValidationSourceXML.create (null, aXML));
+    return ValidationExecutionManager.executeValidation (aVES, ValidationSourceXML.create (null, aXML));
+  }
+
+  private static void _handleValidationResult (@Nonnull final IAS2ClientBuilderValidatonResultHandler aValidationResultHandler,
+                                               @Nonnull final ValidationResultList aValidationResult) throws AS2ClientBuilderException
+  {
     if (aValidationResult.containsAtLeastOneError ())
     {
       aValidationResultHandler.onValidationErrors (aValidationResult);
@@ -1462,12 +2331,82 @@ public class AS2ClientBuilder
   @OverrideOnDemand
   protected void validateOutgoingBusinessDocument (@Nonnull final Element aXML) throws AS2ClientBuilderException
   {
-    if (m_aVESRegistry == null)
-    {
-      // Create lazily
-      m_aVESRegistry = createValidationRegistry ();
-    }
-    validateBusinessDocument (m_aVESRegistry, m_aVESID, m_aValidationResultHandler, aXML);
+    validateBusinessDocument (getValidationRegistry (), m_aVESID, m_aValidationResultHandler, aXML);
+  }
+
+  /**
+   * Get the validation registry used by this builder. If no registry was set
+   * via {@link #setValidationRegistry(ValidationExecutorSetRegistry)}, it is
+   * created lazily via {@link #createValidationRegistry()} on the first call.
+   *
+   * @return The validation registry to be used. Never <code>null</code>.
+   * @since 5.4.4
+   */
+  @Nonnull
+  public ValidationExecutorSetRegistry <IValidationSourceXML> getValidationRegistry ()
+  {
+    if (m_aVESRegistry == null)
+    {
+      // Create lazily
+      m_aVESRegistry = createValidationRegistry ();
+    }
+    return m_aVESRegistry;
+  }
+
+  /**
+   * Set the validation registry to be used by this builder. Use
+   * {@link #getSharedDefaultValidationRegistry()} to share the default Peppol
+   * validation artefacts between all builders, so that they are only set up
+   * once per process.
+   *
+   * @param aVESRegistry
+   *        The validation registry to be used. May be <code>null</code> in
+   *        which case it is created via {@link #createValidationRegistry()}
+   *        upon the next validation.
+   * @return this for chaining
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientBuilder setValidationRegistry (@Nullable final ValidationExecutorSetRegistry <IValidationSourceXML> aVESRegistry)
+  {
+    m_aVESRegistry = aVESRegistry;
+    return this;
+  }
+
+  /**
+   * Create a {@link StandardBusinessDocument} out of the provided information
+   *
+   * @param aSenderID
+   *        Sender participant ID. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcID
+   *        Process ID. May not be <code>null</code>.
+   * @param sInstanceIdentifier
+   *        Optional instance identifier. May be <code>null</code> in which case
+   *        a random UUID is will be used.
+   * @param sUBLVersion
+   *        The UBL version to use. May be <code>null</code> in which case the
+   *        default "2.1" will be used.
+   * @param aPayloadElement
+   *        The payload element to be included in the SBD. May not be
+   *        <code>null</code>.
+   * @return The ready made {@link StandardBusinessDocument} according to the
+   *         Peppol needs. Never <code>null</code>.
+   * @since 3.1.0
+   */
+  @Nonnull
+  public static StandardBusinessDocument createSBDH (@Nonnull final IParticipantIdentifier aSenderID,
+                                                     @Nonnull final IParticipantIdentifier aReceiverID,
+                                                     @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                     @Nonnull final IProcessIdentifier aProcID,
+                                                     @Nullable final String sInstanceIdentifier,
+                                                     @Nullable final String sUBLVersion,
+                                                     @Nonnull final Element aPayloadElement)
+  {
+    return createSBDH (aSenderID, aReceiverID, aDocTypeID, aProcID, sInstanceIdentifier, sUBLVersion, null, aPayloadElement);
   }
 
   /**
@@ -1487,12 +2426,15 @@ public class AS2ClientBuilder
    * @param sUBLVersion
    *        The UBL version to use. May be <code>null</code> in which case the
    *        default "2.1" will be used.
+   * @param aCreationDateTime
+   *        The creation date and time to use. May be <code>null</code> in which
+   *        case the current date and time is used.
    * @param aPayloadElement
    *        The payload element to be included in the SBD. May not be
    *        <code>null</code>.
    * @return The ready made {@link StandardBusinessDocument} according to the
    *         Peppol needs. Never <code>null</code>.
-   * @since 3.1.0
+   * @since 5.4.4
    */
   @Nonnull
   public static StandardBusinessDocument createSBDH (@Nonnull final IParticipantIdentifier aSenderID,
@@ -1501,6 +2443,7 @@ public class AS2ClientBuilder
                                                      @Nonnull final IProcessIdentifier aProcID,
                                                      @Nullable final String sInstanceIdentifier,
                                                      @Nullable final String sUBLVersion,
+                                                     @Nullable final LocalDateTime aCreationDateTime,
                                                      @Nonnull final Element aPayloadElement)
   {
     final PeppolSBDHDocument aData = new PeppolSBDHDocument (PeppolIdentifierFactory.INSTANCE);
@@ -1512,7 +2455,7 @@ public class AS2ClientBuilder
                                      StringHelper.hasText (sUBLVersion) ? sUBLVersion : CPeppolSBDH.TYPE_VERSION_21,
                                      aPayloadElement.getLocalName (),
                                      StringHelper.hasText (sInstanceIdentifier) ? sInstanceIdentifier : UUID.randomUUID ().toString (),
-                                     PDTFactory.getCurrentLocalDateTime ());
+                                     aCreationDateTime != null ? aCreationDateTime : PDTFactory.getCurrentLocalDateTime ());
     aData.setBusinessMessage (aPayloadElement);
     return new PeppolSBDHDocumentWriter ().createStandardBusinessDocument (aData);
   }
@@ -1560,6 +2503,37 @@ public class AS2ClientBuilder
     }
   }
 
+  @Nullable
+  private AS2KeyStoreCache.CachedKeyStore _getCachedKeyStore ()
+  {
+    if (m_aKeyStoreCache == null || m_aKeyStoreType == null || m_sKeyStorePassword == null)
+      return null;
+
+    // Failures are logged by the cache
+    if (m_aKeyStoreFile != null)
+      return m_aKeyStoreCache.getKeyStore (m_aKeyStoreType, m_aKeyStoreFile, m_sKeyStorePassword);
+    if (m_aKeyStoreBytes != null)
+      return m_aKeyStoreCache.getKeyStore (m_aKeyStoreType, m_aKeyStoreBytes, m_sKeyStorePassword);
+    return null;
+  }
+
+  /**
+   * @return The pre-computed message ID, if the message ID format could be
+   *         compiled, otherwise the message ID format to be used by the AS2
+   *         library.
+   */
+  @Nullable
+  private String _getMessageIDFormat ()
+  {
+    // Placeholder characters in the AS2 IDs would be interpreted by the AS2
+    // library
+    if (m_aMessageIDGenerator != null &&
+        AS2MessageIDGenerator.isLiteral (m_sSenderAS2ID) &&
+        AS2MessageIDGenerator.isLiteral (m_sReceiverAS2ID))
+      return m_aMessageIDGenerator.createMessageID (m_sSenderAS2ID, m_sReceiverAS2ID);
+    return m_sMessageIDFormat;
+  }
+
   /**
    * @return The {@link AS2ClientSettings} to be used, based on the input
    *         parameters. Never <code>null</code>.
@@ -1571,11 +2545,21 @@ public class AS2ClientBuilder
     // Start building the AS2 client settings
     final AS2ClientSettings aAS2ClientSettings = new AS2ClientSettings ();
     // Key store
-    if (m_aKeyStoreFile != null)
-      aAS2ClientSettings.setKeyStore (m_aKeyStoreType, m_aKeyStoreFile, m_sKeyStorePassword);
+    final AS2KeyStoreCache.CachedKeyStore aCachedKeyStore = _getCachedKeyStore ();
+    if (aCachedKeyStore != null)
+    {
+      // The in-memory copy has no file to save to
+      aAS2ClientSettings.setKeyStore (AS2KeyStoreCache.CACHED_KEY_STORE_TYPE, aCachedKeyStore.getCachedBytes (), m_sKeyStorePassword);
+      aAS2ClientSettings.setSaveKeyStoreChangesToFile (false);
+    }
     else
-      aAS2ClientSettings.setKeyStore (m_aKeyStoreType, m_aKeyStoreBytes, m_sKeyStorePassword);
-    aAS2ClientSettings.setSaveKeyStoreChangesToFile (m_bSaveKeyStoreChangesToFile);
+    {
+      if (m_aKeyStoreFile != null)
+        aAS2ClientSettings.setKeyStore (m_aKeyStoreType, m_aKeyStoreFile, m_sKeyStorePassword);
+      else
+        aAS2ClientSettings.setKeyStore (m_aKeyStoreType, m_aKeyStoreBytes, m_sKeyStorePassword);
+      aAS2ClientSettings.setSaveKeyStoreChangesToFile (m_bSaveKeyStoreChangesToFile);
+    }
 
     // Fixed sender
     aAS2ClientSettings.setSenderData (m_sSenderAS2ID, m_sSenderAS2Email, m_sSenderAS2KeyAlias);
@@ -1591,122 +2575,758 @@ public class AS2ClientBuilder
                                                                .setProtocol (DispositionOptions.PROTOCOL_PKCS7_SIGNATURE)
                                                                .setProtocolImportance (DispositionOptions.IMPORTANCE_REQUIRED));
     aAS2ClientSettings.setEncryptAndSign (null, m_eSigningAlgo);
-    aAS2ClientSettings.setMessageIDFormat (m_sMessageIDFormat);
+    aAS2ClientSettings.setMessageIDFormat (_getMessageIDFormat ());
 
     aAS2ClientSettings.setConnectTimeoutMS (m_nConnectTimeoutMS);
     aAS2ClientSettings.setReadTimeoutMS (m_nReadTimeoutMS);
 
-    aAS2ClientSettings.setHttpOutgoingDumperFactory (m_aHttpOutgoingDumperFactory);
-    aAS2ClientSettings.setHttpIncomingDumper (m_aHttpIncomingDumper);
+    aAS2ClientSettings.setHttpOutgoingDumperFactory (m_aHttpOutgoingDumperFactory);
+    aAS2ClientSettings.setHttpIncomingDumper (m_aHttpIncomingDumper);
+
+    // Add a custom header to request an MDN for IBM implementation
+    aAS2ClientSettings.customHeaders ().addHeader (CHttpHeader.DISPOSITION_NOTIFICATION_TO, "dummy");
+
+    return aAS2ClientSettings;
+  }
+
+  /**
+   * This is the main sending routine. It performs the following steps:
+   * <ol>
+   * <li>Verify that all required parameters are present and valid -
+   * {@link #verifyContent()}</li>
+   * <li>The business document is read as XML. In case of an error, an exception
+   * is thrown.</li>
+   * <li>The Standard Business Document (SBD) is created, all Peppol required
+   * fields are set and the business document is embedded.</li>
+   * <li>The SBD is serialized and send via AS2</li>
+   * <li>The AS2 response incl. the MDN is returned for further evaluation.</li>
+   * </ol>
+   *
+   * @return The AS2 response returned by the AS2 sender. This is never
+   *         <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         In case the the business document is invalid XML or in case
+   *         {@link #verifyContent()} throws an exception because of invalid or
+   *         incomplete settings.
+   * @see #sendSynchronousSBDH(NonBlockingByteArrayOutputStream) in case you
+   *      have the SBDH ready
+   */
+  @Nonnull
+  public AS2ClientResponse sendSynchronous () throws AS2ClientBuilderException
+  {
+    // Detect the compression once, before anything may run in parallel
+    if (m_aBusinessDocumentRes != null)
+      _getBusinessDocumentResource ();
+
+    final boolean bSpool = isSpoolingRequired ();
+    // Decide upfront if streaming is possible, so that the reservation matches
+    // the path that is taken
+    final XMLPayloadHelper.RootElement aStreamingRoot = getStreamingRootElement (bSpool || m_bUseStreamingSBDH || m_bSpliceSBDH);
+    if (m_aMemoryGovernor == null)
+      return _sendSynchronous (bSpool, aStreamingRoot);
+
+    final long nHeapBytes = getRequiredHeapBytes (aStreamingRoot, bSpool);
+    AS2MemoryGovernor.Reservation aReservation = m_aMemoryGovernor.tryReserve (nHeapBytes);
+    if (aReservation == null)
+    {
+      if (m_nSpoolThresholdBytes >= 0 && m_aBusinessDocumentRes != null && m_aVESID == null)
+      {
+        // Spooling requires streaming
+        final XMLPayloadHelper.RootElement aSpoolRoot = aStreamingRoot != null ? aStreamingRoot : getStreamingRootElement (true);
+        if (aSpoolRoot != null)
+        {
+          // Divert to disk instead of waiting for the full estimate
+          if (LOGGER.isDebugEnabled ())
+            LOGGER.debug ("Memory budget exhausted - spooling business document '" + m_aBusinessDocumentRes.getPath () + "' to disk");
+          m_aMemoryGovernor.onDiverted ();
+          try (final AS2MemoryGovernor.Reservation aSpoolReservation = _reserveMemory (getRequiredHeapBytes (aSpoolRoot, true)))
+          {
+            return _sendSynchronous (true, aSpoolRoot);
+          }
+        }
+      }
+
+      aReservation = _reserveMemory (nHeapBytes);
+    }
+
+    try (final AS2MemoryGovernor.Reservation aReservationToClose = aReservation)
+    {
+      return _sendSynchronous (bSpool, aStreamingRoot);
+    }
+  }
+
+  /**
+   * Check if the business document can be streamed and read its root element.
+   * Streaming requires a business document resource that can be read multiple
+   * times and that is UTF-8 compatible.
+   *
+   * @param bStreamingRequested
+   *        <code>true</code> if streaming or spooling is requested.
+   * @return The root element of the business document or <code>null</code> if
+   *         the business document must be read into a DOM.
+   * @throws AS2ClientBuilderException
+   *         if the business document cannot be read
+   */
+  @Nullable
+  XMLPayloadHelper.RootElement getStreamingRootElement (final boolean bStreamingRequested) throws AS2ClientBuilderException
+  {
+    if (!bStreamingRequested || m_aBusinessDocumentRes == null)
+      return null;
+
+    final IReadableResource aRes = _getBusinessDocumentResource ();
+    if (!aRes.isReadMultiple ())
+    {
+      LOGGER.info ("The business document resource cannot be read multiple times - using in-memory SBDH creation");
+      return null;
+    }
+
+    final InputStream aIS = aRes.getInputStream ();
+    if (aIS == null)
+      throw new AS2ClientBuilderException ("Failed to open business document '" + m_aBusinessDocumentRes.getPath () + "'");
+    final XMLPayloadHelper.RootElement aRoot = XMLPayloadHelper.readRootElement (aIS);
+    if (aRoot == null)
+      throw new AS2ClientBuilderException ("Failed to read business document '" + m_aBusinessDocumentRes.getPath () + "' as XML");
+    if (!aRoot.isUTF8Compatible ())
+    {
+      LOGGER.info ("The business document is encoded in '" + aRoot.getEncoding () + "' - using in-memory SBDH creation");
+      return null;
+    }
+    return aRoot;
+  }
+
+  /**
+   * Get the number of bytes to reserve at the memory governor for the path
+   * that is taken. Only streamed or spooled messages that are neither
+   * validated nor passed to the SBDH bytes or buffer consumers get away with
+   * the streaming reservation. In all other cases the business document is
+   * read into a DOM or the complete SBDH is created in memory.
+   *
+   * @param aStreamingRoot
+   *        The result of {@link #getStreamingRootElement(boolean)}. May be
+   *        <code>null</code>.
+   * @param bSpool
+   *        <code>true</code> if the SBDH is spooled to disk.
+   * @return The number of bytes to reserve.
+   */
+  long getRequiredHeapBytes (@Nullable final XMLPayloadHelper.RootElement aStreamingRoot, final boolean bSpool)
+  {
+    // Spooling never invokes the consumers
+    final boolean bMaterialized = !bSpool && (m_aSBDHBytesConsumer != null || m_aSBDHBufferConsumer != null);
+    if (aStreamingRoot != null && m_aVESID == null && !bMaterialized)
+      return m_aMemoryGovernor.getStreamingReservationBytes ();
+    return _getEstimatedBusinessDocumentHeapBytes ();
+  }
+
+  /**
+   * Reserve the provided number of bytes of the memory governor and wait if
+   * necessary.
+   *
+   * @param nBytes
+   *        The number of bytes to reserve. Must be &ge; 0.
+   * @return The reservation. Never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         If the memory was not available within the maximum wait time
+   */
+  @Nonnull
+  private AS2MemoryGovernor.Reservation _reserveMemory (final long nBytes) throws AS2ClientBuilderException
+  {
+    final AS2MemoryGovernor.Reservation ret = m_aMemoryGovernor.reserve (nBytes);
+    if (ret == null)
+      throw new AS2ClientBuilderTransientException ("Failed to reserve " +
+                                                    nBytes +
+                                                    " bytes of the memory budget within " +
+                                                    m_aMemoryGovernor.getMaxWait ());
+    return ret;
+  }
+
+  /**
+   * @param aRes
+   *        The resource to check. May not be <code>null</code>.
+   * @return The size of the resource in bytes or -1 if it is unknown.
+   */
+  private static long _getResourceBytes (@Nonnull final IReadableResource aRes)
+  {
+    if (aRes instanceof ReadableResourceByteArray)
+      return ((ReadableResourceByteArray) aRes).size ();
+    final File aFile = aRes.getAsFile ();
+    if (aFile != null && aFile.isFile ())
+      return aFile.length ();
+    return -1;
+  }
+
+  /**
+   * @return The estimated heap bytes for processing the business document as
+   *         DOM. Unknown sizes (e.g. for DOM elements or streams) and
+   *         compressed resources are handled by the memory governor.
+   */
+  private long _getEstimatedBusinessDocumentHeapBytes ()
+  {
+    if (m_aBusinessDocumentRes == null)
+    {
+      // DOM element - the size is unknown
+      return m_aMemoryGovernor.getEstimatedHeapBytes (-1);
+    }
+
+    final IReadableResource aRes = _getBusinessDocumentResource ();
+    if (aRes instanceof DecompressingReadableResource)
+    {
+      final IReadableResource aCompressedRes = ((DecompressingReadableResource) aRes).getWrappedReadableResource ();
+      return m_aMemoryGovernor.getEstimatedHeapBytes (_getResourceBytes (aCompressedRes), true);
+    }
+    return m_aMemoryGovernor.getEstimatedHeapBytes (_getResourceBytes (aRes), false);
+  }
+
+  @Nonnull
+  private AS2ClientResponse _sendSynchronous (final boolean bSpool,
+                                             @Nullable final XMLPayloadHelper.RootElement aStreamingRoot) throws AS2ClientBuilderException
+  {
+    // Read and validate the business document in parallel to the SMP lookup?
+    final boolean bStreaming = aStreamingRoot != null;
+    final AtomicBoolean aCancelled = new AtomicBoolean (false);
+    CompletableFuture <PreparedBusinessDocument> aPreparedDocument = null;
+    if (m_bPipelinedValidation && (m_aVESID != null || !bStreaming))
+      aPreparedDocument = _prepareBusinessDocumentAsync (aCancelled);
+
+    try
+    {
+      // Perform SMP client lookup
+      performSMPClientLookup ();
+
+      // Set derivable values
+      setDefaultDerivedValues ();
+
+      // Verify the whole data set
+      verifyContent ();
+    }
+    catch (final AS2ClientBuilderException | RuntimeException ex)
+    {
+      if (aPreparedDocument != null)
+      {
+        // A running task cannot be interrupted, but it skips the validation
+        aCancelled.set (true);
+        aPreparedDocument.cancel (false);
+      }
+      throw ex;
+    }
+
+    // Wait for the parallel processing
+    Element aPreparedXML = null;
+    if (aPreparedDocument != null)
+    {
+      final PreparedBusinessDocument aPrepared = _joinPreparedBusinessDocument (aPreparedDocument);
+      if (aPrepared.m_aValidationResult != null)
+        _handleValidationResult (m_aValidationResultHandler, aPrepared.m_aValidationResult);
+      aPreparedXML = aPrepared.m_aXML;
+    }
+
+    // Build message
+    if (bStreaming)
+    {
+      final DataSource aStreamingDS = _createStreamingSBDHDataSource (aStreamingRoot, aPreparedXML == null, !bSpool);
+      if (bSpool)
+        return _sendSpooled (aStreamingDS);
+      // The business document is read once for archiving and once more for
+      // sending. The AS2 library may read the data source multiple times, so
+      // archiving cannot be done while sending.
+      _archiveSBDH (aStreamingDS);
+      return _sendSBDHDataSource (aStreamingDS);
+    }
+
+    final Element aBusinessDocumentXML;
+    if (aPreparedXML != null)
+    {
+      // Already read and validated
+      aBusinessDocumentXML = aPreparedXML;
+    }
+    else
+    {
+      // 1. read business document into memory - this may be a bottleneck!
+      aBusinessDocumentXML = _readBusinessDocumentXML ();
+
+      // 2. validate the business document
+      if (m_aVESID != null)
+        validateOutgoingBusinessDocument (aBusinessDocumentXML);
+    }
+
+    // 3. build Peppol SBDH data
+    final StandardBusinessDocument aSBD = createSBDH (m_aPeppolSenderID,
+                                                      m_aPeppolReceiverID,
+                                                      m_aPeppolDocumentTypeID,
+                                                      m_aPeppolProcessID,
+                                                      null,
+                                                      null,
+                                                      aBusinessDocumentXML);
+
+    final AS2ClientRequest aRequest = new AS2ClientRequest (m_sAS2Subject);
+
+    // 4. assemble and send
+    // Version with huge memory consumption
+    final NonBlockingByteArrayOutputStream aBAOS = getSerializedSBDH (aSBD, m_aSBDHNamespaceContext);
+    final ByteArrayOutputStreamDataSource aDataSource = new ByteArrayOutputStreamDataSource (aBAOS, m_aMimeType.getAsString ());
+    if (m_aSBDHBytesConsumer != null)
+    {
+      // Convert to byte[] only for the callback
+      m_aSBDHBytesConsumer.accept (aBAOS.toByteArray ());
+    }
+    if (m_aSBDHBufferConsumer != null)
+      m_aSBDHBufferConsumer.accept (aDataSource.getAsReadOnlyByteBuffer ());
+    _archiveSBDH (aDataSource);
+
+    if (m_bUseDataHandler)
+    {
+      // Use a data source to force the usage of "application/xml"
+      // Content-Type in the DataHandler - this uses the BAOS buffer directly
+      aRequest.setData (new DataHandler (aDataSource));
+    }
+    else
+    {
+
+      // Using a String is better when having a
+      // com.sun.xml.ws.encoding.XmlDataContentHandler installed!
+      aRequest.setData (aBAOS.getAsString (StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+
+      // Explicitly add application/xml even though the "setData" may have
+      // suggested something else (like text/plain)
+      aRequest.setContentType (m_aMimeType.getAsString ());
+    }
+
+    return _sendRequest (aRequest, aBAOS.size ());
+  }
+
+  /**
+   * Read the business document as DOM element.
+   *
+   * @return The business document element. Never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         if the business document cannot be read
+   */
+  @Nonnull
+  private Element _readBusinessDocumentXML () throws AS2ClientBuilderException
+  {
+    return _readBusinessDocumentXML (m_aBusinessDocumentRes == null ? null : _getBusinessDocumentResource (), m_aBusinessDocumentElement);
+  }
+
+  @Nonnull
+  private static Element _readBusinessDocumentXML (@Nullable final IReadableResource aRes,
+                                                   @Nullable final Element aElement) throws AS2ClientBuilderException
+  {
+    Element aBusinessDocumentXML = null;
+    if (aRes != null)
+    {
+      final Document aXMLDocument = DOMReader.readXMLDOM (aRes);
+      if (aXMLDocument == null)
+        throw new AS2ClientBuilderException ("Failed to read business document '" + aRes.getPath () + "' as XML");
+      aBusinessDocumentXML = aXMLDocument.getDocumentElement ();
+      LOGGER.info ("Successfully parsed the business document");
+    }
+    else
+    {
+      aBusinessDocumentXML = aElement;
+    }
+    if (aBusinessDocumentXML == null)
+      throw new AS2ClientBuilderException ("No XML business content present!");
+    return aBusinessDocumentXML;
+  }
+
+  /**
+   * The result of the pipelined task: the business document and the
+   * validation result, if validation was requested.
+   */
+  private static final class PreparedBusinessDocument
+  {
+    private final Element m_aXML;
+    private final ValidationResultList m_aValidationResult;
+
+    PreparedBusinessDocument (@Nonnull final Element aXML, @Nullable final ValidationResultList aValidationResult)
+    {
+      m_aXML = aXML;
+      m_aValidationResult = aValidationResult;
+    }
+  }
+
+  /**
+   * Read and validate the business document on the pipeline executor. The
+   * task only works on values captured here on the calling thread and never
+   * touches the builder itself.
+   *
+   * @param aCancelled
+   *        If set, the task skips the validation. May not be
+   *        <code>null</code>.
+   * @return The future with the read business document and the validation
+   *         result or <code>null</code> if the pipeline executor rejected the
+   *         task.
+   */
+  @Nullable
+  private CompletableFuture <PreparedBusinessDocument> _prepareBusinessDocumentAsync (@Nonnull final AtomicBoolean aCancelled)
+  {
+    // Snapshot everything the task needs
+    final IReadableResource aRes = m_aBusinessDocumentRes == null ? null : _getBusinessDocumentResource ();
+    final Element aElement = m_aBusinessDocumentElement;
+    final VESID aVESID = m_aVESID;
+    final ValidationExecutorSetRegistry <IValidationSourceXML> aVESRegistry = aVESID == null ? null : getValidationRegistry ();
+
+    try
+    {
+      return CompletableFuture.supplyAsync ( () -> {
+        try
+        {
+          final Element aXML = _readBusinessDocumentXML (aRes, aElement);
+          if (aVESID == null || aCancelled.get ())
+            return new PreparedBusinessDocument (aXML, null);
+          return new PreparedBusinessDocument (aXML, _executeValidation (aVESRegistry, aVESID, aXML));
+        }
+        catch (final AS2ClientBuilderException ex)
+        {
+          throw new CompletionException (ex);
+        }
+      }, getPipelineExecutor ());
+    }
+    catch (final RejectedExecutionException ex)
+    {
+      LOGGER.warn ("The pipeline executor rejected the task - reading and validating the business document on the calling thread");
+      return null;
+    }
+  }
+
+  @Nonnull
+  private static PreparedBusinessDocument _joinPreparedBusinessDocument (@Nonnull final CompletableFuture <PreparedBusinessDocument> aFuture) throws AS2ClientBuilderException
+  {
+    try
+    {
+      return aFuture.join ();
+    }
+    catch (final CompletionException ex)
+    {
+      final Throwable aCause = ex.getCause ();
+      if (aCause instanceof AS2ClientBuilderException)
+        throw (AS2ClientBuilderException) aCause;
+      if (aCause instanceof RuntimeException)
+        throw (RuntimeException) aCause;
+      throw new AS2ClientBuilderException ("Failed to read or validate the business document", aCause);
+    }
+  }
+
+  /**
+   * Create the SBDH envelope around the provided business document root
+   * element, using the JAXB marshaller in splice mode and the streaming writer
+   * otherwise.
+   *
+   * @param aPayloadRoot
+   *        The root element of the business document. May not be
+   *        <code>null</code>.
+   * @return The SBDH envelope. Never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         if the envelope cannot be created
+   */
+  @Nonnull
+  private SBDHEnvelope _createSBDHEnvelope (@Nonnull final XMLPayloadHelper.RootElement aPayloadRoot) throws AS2ClientBuilderException
+  {
+    if (m_bSpliceSBDH)
+      return SBDHEnvelope.createMarshalled (m_aPeppolSenderID,
+                                            m_aPeppolReceiverID,
+                                            m_aPeppolDocumentTypeID,
+                                            m_aPeppolProcessID,
+                                            null,
+                                            null,
+                                            null,
+                                            aPayloadRoot,
+                                            m_aSBDHNamespaceContext);
+    return SBDHEnvelope.create (m_aPeppolSenderID,
+                                m_aPeppolReceiverID,
+                                m_aPeppolDocumentTypeID,
+                                m_aPeppolProcessID,
+                                null,
+                                null,
+                                null,
+                                aPayloadRoot,
+                                m_aSBDHNamespaceContext);
+  }
+
+  /**
+   * Create the streaming data source for the business document resource.
+   *
+   * @param aRoot
+   *        The root element of the business document as returned by
+   *        {@link #getStreamingRootElement(boolean)}. May not be
+   *        <code>null</code>.
+   * @param bValidate
+   *        <code>true</code> if the business document should be validated,
+   *        <code>false</code> if it was already validated.
+   * @param bInvokeBytesConsumer
+   *        <code>true</code> to invoke the SBDH bytes and buffer consumers (if any)
+   * @return The streaming data source. Never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         if the business document cannot be read or is invalid
+   */
+  @Nonnull
+  private DataSource _createStreamingSBDHDataSource (@Nonnull final XMLPayloadHelper.RootElement aRoot,
+                                                     final boolean bValidate,
+                                                     final boolean bInvokeBytesConsumer) throws AS2ClientBuilderException
+  {
+    final IReadableResource aRes = _getBusinessDocumentResource ();
+
+    // Validation requires the DOM - it is only used for validation
+    if (bValidate && m_aVESID != null)
+      validateOutgoingBusinessDocument (_readBusinessDocumentXML ());
+
+    final SBDHEnvelope aEnvelope = _createSBDHEnvelope (aRoot);
+    final DataSource ret = new StreamingSBDHDataSource (aEnvelope,
+                                                       aRes::getInputStream,
+                                                       aEnvelope.isResetDefaultNamespaceRequired (aRoot),
+                                                       m_aMimeType.getAsString ());
+
+    if ((m_aSBDHBytesConsumer != null || m_aSBDHBufferConsumer != null) && bInvokeBytesConsumer)
+    {
+      // Convert to byte[] only for the callback
+      try
+      {
+        final byte [] aSBDHBytes = StreamHelper.getAllBytes (ret.getInputStream ());
+        if (m_aSBDHBytesConsumer != null)
+          m_aSBDHBytesConsumer.accept (aSBDHBytes);
+        if (m_aSBDHBufferConsumer != null)
+          m_aSBDHBufferConsumer.accept (ByteBuffer.wrap (aSBDHBytes).asReadOnlyBuffer ());
+      }
+      catch (final IOException ex)
+      {
+        throw new AS2ClientBuilderException ("Failed to read the streamed SBDH", ex);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * @return <code>true</code> if the business document is a file that exceeds
+   *         the spool threshold. For compressed files the decompressed size is
+   *         estimated.
+   */
+  boolean isSpoolingRequired ()
+  {
+    if (m_nSpoolThresholdBytes < 0 || m_aBusinessDocumentRes == null)
+      return false;
+    final File aFile = m_aBusinessDocumentRes.getAsFile ();
+    if (aFile == null || !aFile.isFile ())
+      return false;
+    long nDocumentBytes = aFile.length ();
+    if (_getBusinessDocumentResource () instanceof DecompressingReadableResource)
+    {
+      // The decompressed size is unknown - use the same estimate as the
+      // memory governor
+      nDocumentBytes *= AS2MemoryGovernor.DEFAULT_COMPRESSED_PAYLOAD_FACTOR;
+    }
+    return nDocumentBytes > m_nSpoolThresholdBytes;
+  }
+
+  /**
+   * @return The business document resource to read from. If decompression is
+   *         enabled and the resource is compressed, a decompressing wrapper is
+   *         returned. The result is remembered until the business document or
+   *         the decompression setting is changed.
+   */
+  @Nonnull
+  private IReadableResource _getBusinessDocumentResource ()
+  {
+    IReadableResource ret = m_aEffectiveBusinessDocumentRes;
+    if (ret == null)
+    {
+      ret = m_aBusinessDocumentRes;
+      if (m_bDecompressBusinessDocument)
+      {
+        // A resource that can only be read once must not be sniffed. The
+        // wrapper passes uncompressed content through unchanged.
+        if (!m_aBusinessDocumentRes.isReadMultiple () || DecompressingReadableResource.isCompressed (m_aBusinessDocumentRes))
+          ret = new DecompressingReadableResource (m_aBusinessDocumentRes);
+      }
+      m_aEffectiveBusinessDocumentRes = ret;
+    }
+    return ret;
+  }
 
-    // Add a custom header to request an MDN for IBM implementation
-    aAS2ClientSettings.customHeaders ().addHeader (CHttpHeader.DISPOSITION_NOTIFICATION_TO, "dummy");
+  @Nullable
+  private OutputStream _openArchiveStream () throws IOException
+  {
+    if (m_aSBDHArchiveProvider == null)
+      return null;
+    return m_aSBDHArchiveProvider.openArchiveStream (m_aPeppolSenderID, m_aPeppolReceiverID, m_aPeppolDocumentTypeID, m_aPeppolProcessID);
+  }
 
-    return aAS2ClientSettings;
+  /**
+   * Write the provided SBDH to the archive stream, if an archive provider is
+   * present. For streaming data sources this reads the business document
+   * another time, before it is read for sending. Only spooled business
+   * documents are archived while writing the spool file.
+   *
+   * @param aDataSource
+   *        The data source with the serialized SBDH. May not be
+   *        <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         If archiving fails
+   */
+  private void _archiveSBDH (@Nonnull final DataSource aDataSource) throws AS2ClientBuilderException
+  {
+    if (m_aSBDHArchiveProvider != null)
+      try (final OutputStream aArchiveOS = _openArchiveStream ())
+      {
+        if (aArchiveOS != null)
+          try (final InputStream aIS = aDataSource.getInputStream ())
+          {
+            if (StreamHelper.copyInputStreamToOutputStream (aIS, aArchiveOS).isFailure ())
+              throw new IOException ("Failed to copy the SBDH to the archive");
+          }
+      }
+      catch (final IOException ex)
+      {
+        throw new AS2ClientBuilderException ("Failed to archive the SBDH", ex);
+      }
   }
 
   /**
-   * This is the main sending routine. It performs the following steps:
-   * <ol>
-   * <li>Verify that all required parameters are present and valid -
-   * {@link #verifyContent()}</li>
-   * <li>The business document is read as XML. In case of an error, an exception
-   * is thrown.</li>
-   * <li>The Standard Business Document (SBD) is created, all Peppol required
-   * fields are set and the business document is embedded.</li>
-   * <li>The SBD is serialized and send via AS2</li>
-   * <li>The AS2 response incl. the MDN is returned for further evaluation.</li>
-   * </ol>
+   * Write the SBDH to a temporary file and send it from there.
    *
-   * @return The AS2 response returned by the AS2 sender. This is never
-   *         <code>null</code>.
+   * @param aDataSource
+   *        The streaming data source with the SBDH. May not be
+   *        <code>null</code>.
+   * @return The AS2 response. Never <code>null</code>.
    * @throws AS2ClientBuilderException
-   *         In case the the business document is invalid XML or in case
-   *         {@link #verifyContent()} throws an exception because of invalid or
-   *         incomplete settings.
-   * @see #sendSynchronousSBDH(NonBlockingByteArrayOutputStream) in case you
-   *      have the SBDH ready
+   *         if the spool file cannot be written
    */
   @Nonnull
-  public AS2ClientResponse sendSynchronous () throws AS2ClientBuilderException
+  private AS2ClientResponse _sendSpooled (@Nonnull final DataSource aDataSource) throws AS2ClientBuilderException
   {
-    // Perform SMP client lookup
-    performSMPClientLookup ();
-
-    // Set derivable values
-    setDefaultDerivedValues ();
+    if (m_aSBDHBytesConsumer != null || m_aSBDHBufferConsumer != null)
+      LOGGER.warn ("The SBDH bytes and buffer consumers are not invoked for spooled business documents");
 
-    // Verify the whole data set
-    verifyContent ();
-
-    // Build message
+    File aSpoolFile = null;
+    try
+    {
+      aSpoolFile = File.createTempFile ("as2-sbdh-", ".xml", m_aSpoolDirectory);
+      try (final InputStream aIS = aDataSource.getInputStream ();
+           final OutputStream aOS = FileHelper.getBufferedOutputStream (aSpoolFile);
+           final OutputStream aArchiveOS = _openArchiveStream ())
+      {
+        if (aOS == null)
+          throw new IOException ("Failed to open spool file '" + aSpoolFile.getAbsolutePath () + "' for writing");
+
+        // Write to spool file and archive at the same time
+        final byte [] aBuffer = new byte [16 * 1024];
+        int nRead;
+        while ((nRead = aIS.read (aBuffer)) > 0)
+        {
+          aOS.write (aBuffer, 0, nRead);
+          if (aArchiveOS != null)
+            aArchiveOS.write (aBuffer, 0, nRead);
+        }
+      }
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Spooled SBDH with " + aSpoolFile.length () + " bytes to '" + aSpoolFile.getAbsolutePath () + "'");
 
-    // 1. read business document into memory - this may be a bottleneck!
-    Element aBusinessDocumentXML = null;
-    if (m_aBusinessDocumentRes != null)
+      final String sContentType = aDataSource.getContentType ();
+      return _sendSBDHDataSource (new FileDataSource (aSpoolFile)
+      {
+        @Override
+        public String getContentType ()
+        {
+          return sContentType;
+        }
+      });
+    }
+    catch (final IOException ex)
     {
-      final Document aXMLDocument = DOMReader.readXMLDOM (m_aBusinessDocumentRes);
-      if (aXMLDocument == null)
-        throw new AS2ClientBuilderException ("Failed to read business document '" + m_aBusinessDocumentRes.getPath () + "' as XML");
-      aBusinessDocumentXML = aXMLDocument.getDocumentElement ();
-      LOGGER.info ("Successfully parsed the business document");
+      throw new AS2ClientBuilderException ("Failed to spool the SBDH to disk", ex);
     }
-    else
+    finally
     {
-      aBusinessDocumentXML = m_aBusinessDocumentElement;
+      if (aSpoolFile != null)
+        FileOperationManager.INSTANCE.deleteFileIfExisting (aSpoolFile);
     }
-    if (aBusinessDocumentXML == null)
-      throw new AS2ClientBuilderException ("No XML business content present!");
-
-    // 2. validate the business document
-    if (m_aVESID != null)
-      validateOutgoingBusinessDocument (aBusinessDocumentXML);
-
-    // 3. build Peppol SBDH data
-    final StandardBusinessDocument aSBD = createSBDH (m_aPeppolSenderID,
-                                                      m_aPeppolReceiverID,
-                                                      m_aPeppolDocumentTypeID,
-                                                      m_aPeppolProcessID,
-                                                      null,
-                                                      null,
-                                                      aBusinessDocumentXML);
-
-    // 4. set client properties
-    final AS2ClientSettings aAS2ClientSettings = createAS2ClientSettings ();
+  }
 
+  /**
+   * Send the provided SBDH data source via AS2.
+   *
+   * @param aDataSource
+   *        The data source with the serialized SBDH. May not be
+   *        <code>null</code>.
+   * @return The AS2 response. Never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         if the circuit of the endpoint is open or if no permit of the
+   *         partner throttle is available
+   */
+  @Nonnull
+  private AS2ClientResponse _sendSBDHDataSource (@Nonnull final DataSource aDataSource) throws AS2ClientBuilderException
+  {
     final AS2ClientRequest aRequest = new AS2ClientRequest (m_sAS2Subject);
+    aRequest.setData (new DataHandler (aDataSource));
+    return _sendRequest (aRequest, _getPayloadBytes (aDataSource));
+  }
 
-    // 5. assemble and send
-    // Version with huge memory consumption
-    final NonBlockingByteArrayOutputStream aBAOS = getSerializedSBDH (aSBD, m_aSBDHNamespaceContext);
-    if (m_bUseDataHandler)
-    {
-      // Use data to force the usage of "application/xml" Content-Type in the
-      // DataHandler
+  /**
+   * Get the size of the data source if it can be determined cheaply.
+   *
+   * @param aDataSource
+   *        The data source to check. May not be <code>null</code>.
+   * @return The size in bytes or -1 if it is unknown.
+   */
+  private static long _getPayloadBytes (@Nonnull final DataSource aDataSource)
+  {
+    if (aDataSource instanceof ByteArrayOutputStreamDataSource)
+      return ((ByteArrayOutputStreamDataSource) aDataSource).getLength ();
+    if (aDataSource instanceof FileDataSource)
+      return ((FileDataSource) aDataSource).getFile ().length ();
+    return -1;
+  }
 
-      // Convert to byte[] once
-      final byte [] aSBDHBytes = aBAOS.toByteArray ();
+  private boolean _isCompressionRequired (final long nPayloadBytes)
+  {
+    if (m_eCompressionType == null)
+      return false;
+    // Unknown size is compressed
+    if (nPayloadBytes >= 0 && nPayloadBytes < m_nCompressionThresholdBytes)
+      return false;
+    return m_aCompressionPartnerFilter == null || m_aCompressionPartnerFilter.test (m_sReceiverAS2ID);
+  }
 
-      if (m_aSBDHBytesConsumer != null)
-        m_aSBDHBytesConsumer.accept (aSBDHBytes);
+  @Nonnull
+  private AS2ClientResponse _sendThrottled (@Nonnull final AS2Client aAS2Client,
+                                            @Nonnull final AS2ClientSettings aAS2ClientSettings,
+                                            @Nonnull final AS2ClientRequest aRequest) throws AS2ClientBuilderException
+  {
+    if (m_aPartnerThrottle == null)
+      return aAS2Client.sendSynchronous (aAS2ClientSettings, aRequest);
 
-      aRequest.setData (new DataHandler (aSBDHBytes, m_aMimeType.getAsString ()));
-    }
-    else
+    try (final AS2PartnerThrottle.Permit aPermit = m_aPartnerThrottle.acquire (m_sReceiverAS2ID, m_sReceiverAS2Url))
     {
-      if (m_aSBDHBytesConsumer != null)
-      {
-        // Convert to byte[] only for the callback
-        m_aSBDHBytesConsumer.accept (aBAOS.toByteArray ());
-      }
-
-      // Using a String is better when having a
-      // com.sun.xml.ws.encoding.XmlDataContentHandler installed!
-      aRequest.setData (aBAOS.getAsString (StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+      if (aPermit == null)
+        throw new AS2ClientBuilderTransientException ("Failed to get a sending permit for AS2 partner '" +
+                                                      m_sReceiverAS2ID +
+                                                      "' within " +
+                                                      m_aPartnerThrottle.getMaxWait ());
+      return aAS2Client.sendSynchronous (aAS2ClientSettings, aRequest);
+    }
+  }
 
-      // Explicitly add application/xml even though the "setData" may have
-      // suggested something else (like text/plain)
-      aRequest.setContentType (m_aMimeType.getAsString ());
+  /**
+   * Create the AS2 client settings and perform the main sending. All sending
+   * methods use this method.
+   *
+   * @param aRequest
+   *        The request with the payload set. May not be <code>null</code>.
+   * @param nPayloadBytes
+   *        The payload size in bytes or -1 if it is unknown.
+   * @return The AS2 response. Never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         if the circuit of the endpoint is open or if no permit of the
+   *         partner throttle is available
+   */
+  @Nonnull
+  private AS2ClientResponse _sendRequest (@Nonnull final AS2ClientRequest aRequest,
+                                          final long nPayloadBytes) throws AS2ClientBuilderException
+  {
+    // Set client properties
+    final AS2ClientSettings aAS2ClientSettings = createAS2ClientSettings ();
+    if (_isCompressionRequired (nPayloadBytes))
+    {
+      // Compress before sign
+      aAS2ClientSettings.setCompress (m_eCompressionType, true);
     }
 
     // Set the custom content transfer encoding
@@ -1719,8 +3339,56 @@ public class AS2ClientBuilder
       aAS2Client.setHttpProxy (new Proxy (Proxy.Type.HTTP, new InetSocketAddress ("127.0.0.1", 8888)));
     }
 
-    final AS2ClientResponse aResponse = aAS2Client.sendSynchronous (aAS2ClientSettings, aRequest);
-    return aResponse;
+    if (m_aEndpointHealthTracker == null)
+    {
+      final AS2ClientResponse aResponse = _sendThrottled (aAS2Client, aAS2ClientSettings, aRequest);
+      return aResponse;
+    }
+
+    final String sURL = m_sReceiverAS2Url;
+    int nRetry = 0;
+    while (true)
+    {
+      if (!m_aEndpointHealthTracker.isCallPermitted (sURL))
+        throw new AS2ClientBuilderTransientException ("The circuit for the AS2 endpoint '" + sURL + "' is open - not sending");
+
+      AS2ClientResponse aSendResponse = null;
+      try
+      {
+        aSendResponse = _sendThrottled (aAS2Client, aAS2ClientSettings, aRequest);
+      }
+      finally
+      {
+        // E.g. throttle timeout - release a potential half-open trial
+        if (aSendResponse == null)
+          m_aEndpointHealthTracker.onCallAborted (sURL);
+      }
+      final AS2ClientResponse aResponse = aSendResponse;
+      final Throwable aEx = aResponse.getException ();
+      if (!AS2EndpointHealthTracker.isEndpointFailure (aEx))
+      {
+        m_aEndpointHealthTracker.onSuccess (sURL);
+        return aResponse;
+      }
+      m_aEndpointHealthTracker.onFailure (sURL);
+
+      // Only connection failures are retried - the message was not received
+      if (nRetry >= m_aEndpointHealthTracker.getMaxRetries () || !AS2EndpointHealthTracker.isTransientFailure (aEx))
+        return aResponse;
+
+      nRetry++;
+      final long nBackoffMS = m_aEndpointHealthTracker.getBackoffMS (nRetry);
+      LOGGER.warn ("Transient failure sending to '" + sURL + "' - retry " + nRetry + " in " + nBackoffMS + " ms: " + aEx.getMessage ());
+      try
+      {
+        Thread.sleep (nBackoffMS);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        return aResponse;
+      }
+    }
   }
 
   /**
@@ -1749,6 +3417,20 @@ public class AS2ClientBuilder
   {
     ValueEnforcer.notNull (aBAOS, "BAOS");
 
+    if (m_aMemoryGovernor == null)
+      return _sendSynchronousSBDH (aBAOS);
+
+    // The SBDH is already in memory - only wait
+    try (final AS2MemoryGovernor.Reservation aReservation = _reserveMemory (aBAOS.size ()))
+    {
+      return _sendSynchronousSBDH (aBAOS);
+    }
+  }
+
+  @Nonnull
+  private AS2ClientResponse _sendSynchronousSBDH (@Nonnull final NonBlockingByteArrayOutputStream aBAOS) throws AS2ClientBuilderException
+  {
+
     // Perform SMP client lookup
     performSMPClientLookup ();
 
@@ -1758,17 +3440,16 @@ public class AS2ClientBuilder
     // Verify the whole data set (but without the specific payload stuff)
     _verifyContent (false);
 
-    // 4. set client properties
-    final AS2ClientSettings aAS2ClientSettings = createAS2ClientSettings ();
-
     final AS2ClientRequest aRequest = new AS2ClientRequest (m_sAS2Subject);
 
-    // 5. assemble and send
+    // 5. archive, assemble and send
+    _archiveSBDH (new ByteArrayOutputStreamDataSource (aBAOS, m_aMimeType.getAsString ()));
+
     if (m_bUseDataHandler)
     {
-      // Use data to force the usage of "application/xml" Content-Type in the
-      // DataHandler
-      aRequest.setData (new DataHandler (aBAOS.toByteArray (), m_aMimeType.getAsString ()));
+      // Use a data source to force the usage of "application/xml"
+      // Content-Type in the DataHandler - this uses the BAOS buffer directly
+      aRequest.setData (new DataHandler (new ByteArrayOutputStreamDataSource (aBAOS, m_aMimeType.getAsString ())));
     }
     else
     {
@@ -1781,11 +3462,260 @@ public class AS2ClientBuilder
       aRequest.setContentType (m_aMimeType.getAsString ());
     }
 
-    // Set the custom content transfer encoding
-    aRequest.setContentTransferEncoding (m_eCTE);
+    return _sendRequest (aRequest, aBAOS.size ());
+  }
 
-    final AS2Client aAS2Client = m_aAS2ClientFactory.get ();
-    final AS2ClientResponse aResponse = aAS2Client.sendSynchronous (aAS2ClientSettings, aRequest);
-    return aResponse;
+  /**
+   * This is an alternative sending routine for an SBDH that is already
+   * available as a file. The file is streamed from disk and never read into
+   * memory as a whole. The Peppol sender, receiver, document type and process
+   * IDs that were not explicitly set on this builder are taken from the SBDH
+   * header, which is the only part of the file that is parsed. Therefore no
+   * memory is reserved at the memory governor. IDs that were explicitly set
+   * must match the SBDH header.<br>
+   * The message is sent with a copy of this builder (see {@link #getClone()}),
+   * so neither the IDs from the header nor the values derived from them (e.g.
+   * the receiver AS2 URL) are stored in this builder. Therefore the same
+   * builder can be used to send SBDH files to different receivers.
+   *
+   * @param aSBDHFile
+   *        The file containing the serialized SBDH. May not be
+   *        <code>null</code>.
+   * @return The AS2 response returned by the AS2 sender. This is never
+   *         <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         In case the file cannot be read, the SBDH header is invalid or
+   *         doesn't match the explicitly set IDs or in case
+   *         {@link #verifyContent()} throws an exception because of invalid or
+   *         incomplete settings.
+   * @see #sendSynchronousSBDH(NonBlockingByteArrayOutputStream)
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientResponse sendSynchronousSBDH (@Nonnull final Path aSBDHFile) throws AS2ClientBuilderException
+  {
+    ValueEnforcer.notNull (aSBDHFile, "SBDHFile");
+    if (!Files.isRegularFile (aSBDHFile) || !Files.isReadable (aSBDHFile))
+      throw new AS2ClientBuilderException ("The SBDH file '" + aSBDHFile + "' does not exist or is not readable");
+
+    // Read only the header to get the IDs
+    final SBDHHeaderReader.Header aHeader;
+    try
+    {
+      aHeader = SBDHHeaderReader.readHeader (Files.newInputStream (aSBDHFile));
+    }
+    catch (final IOException ex)
+    {
+      throw new AS2ClientBuilderException ("Failed to read the SBDH file '" + aSBDHFile + "'", ex);
+    }
+    if (aHeader == null)
+      throw new AS2ClientBuilderException ("The file '" + aSBDHFile + "' does not contain a valid StandardBusinessDocumentHeader");
+
+    return sendSynchronousSBDH (aSBDHFile, aHeader);
+  }
+
+  /**
+   * Send an SBDH file with an SBDH header that was already read by the caller,
+   * e.g. to determine the receiver. Apart from that it works like
+   * {@link #sendSynchronousSBDH(Path)}.
+   *
+   * @param aSBDHFile
+   *        The file containing the serialized SBDH. May not be
+   *        <code>null</code>.
+   * @param aHeader
+   *        The SBDH header read from the file via
+   *        {@link SBDHHeaderReader#readHeader(java.io.InputStream)}. May not be
+   *        <code>null</code>.
+   * @return The AS2 response returned by the AS2 sender. This is never
+   *         <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         In case the SBDH header doesn't match the explicitly set IDs or in
+   *         case {@link #verifyContent()} throws an exception because of
+   *         invalid or incomplete settings.
+   * @see #sendSynchronousSBDH(Path)
+   * @since 5.4.4
+   */
+  @Nonnull
+  public AS2ClientResponse sendSynchronousSBDH (@Nonnull final Path aSBDHFile,
+                                                @Nonnull final SBDHHeaderReader.Header aHeader) throws AS2ClientBuilderException
+  {
+    ValueEnforcer.notNull (aSBDHFile, "SBDHFile");
+    ValueEnforcer.notNull (aHeader, "Header");
+
+    // Don't modify this builder
+    final AS2ClientBuilder aBuilder = getClone ();
+    aBuilder.m_aPeppolSenderID = _getSBDHFileID ("sender ID", m_aPeppolSenderID, aHeader.getSenderID ());
+    aBuilder.m_aPeppolReceiverID = _getSBDHFileID ("receiver ID", m_aPeppolReceiverID, aHeader.getReceiverID ());
+    aBuilder.m_aPeppolDocumentTypeID = _getSBDHFileID ("document type ID", m_aPeppolDocumentTypeID, aHeader.getDocumentTypeID ());
+    aBuilder.m_aPeppolProcessID = _getSBDHFileID ("process ID", m_aPeppolProcessID, aHeader.getProcessID ());
+    return aBuilder._sendSynchronousSBDHFile (aSBDHFile);
+  }
+
+  /**
+   * Get the Peppol ID to be used for an SBDH file.
+   *
+   * @param sName
+   *        The name of the ID for error messages. May not be <code>null</code>.
+   * @param aBuilderID
+   *        The ID explicitly set on the builder. May be <code>null</code>.
+   * @param aHeaderID
+   *        The ID from the SBDH header. May be <code>null</code>.
+   * @return The builder ID if present, the header ID otherwise.
+   * @throws AS2ClientBuilderException
+   *         if both IDs are present and different
+   */
+  @Nullable
+  private static <T extends IIdentifier> T _getSBDHFileID (@Nonnull final String sName,
+                                                           @Nullable final T aBuilderID,
+                                                           @Nullable final T aHeaderID) throws AS2ClientBuilderException
+  {
+    if (aBuilderID == null)
+      return aHeaderID;
+    if (aHeaderID != null && !aBuilderID.getURIEncoded ().equals (aHeaderID.getURIEncoded ()))
+      throw new AS2ClientBuilderException ("The Peppol " +
+                                           sName +
+                                           " '" +
+                                           aBuilderID.getURIEncoded () +
+                                           "' of the builder differs from the Peppol " +
+                                           sName +
+                                           " '" +
+                                           aHeaderID.getURIEncoded () +
+                                           "' in the SBDH header");
+    return aBuilderID;
+  }
+
+  @Nonnull
+  private AS2ClientResponse _sendSynchronousSBDHFile (@Nonnull final Path aSBDHFile) throws AS2ClientBuilderException
+  {
+    // Perform SMP client lookup
+    performSMPClientLookup ();
+
+    // Set derivable values
+    setDefaultDerivedValues ();
+
+    // Verify the whole data set (but without the specific payload stuff)
+    _verifyContent (false);
+
+    if (m_aSBDHBytesConsumer != null || m_aSBDHBufferConsumer != null)
+      LOGGER.warn ("The SBDH bytes and buffer consumers are not invoked for SBDH files");
+
+    // Stream from the file - the content type must be set explicitly
+    final String sContentType = m_aMimeType.getAsString ();
+    final DataSource aDataSource = new FileDataSource (aSBDHFile.toFile ())
+    {
+      @Override
+      public String getContentType ()
+      {
+        return sContentType;
+      }
+    };
+    _archiveSBDH (aDataSource);
+    return _sendSBDHDataSource (aDataSource);
+  }
+
+  /**
+   * Send a business document that was already read, decompressed and
+   * validated. Only the SBDH envelope is created for the receiver of this
+   * builder, the payload bytes are embedded as they are. This is used by
+   * {@link AS2FanOutSender} to share a single payload between many receivers.
+   * No memory is reserved by this method, because the caller must reserve the
+   * shared payload and the streaming amount of all parallel messages at once.
+   *
+   * @param aPayloadBytes
+   *        The UTF-8 compatible business document bytes. May not be
+   *        <code>null</code>. Are not modified.
+   * @param aPayloadRoot
+   *        The root element information of the business document. May not be
+   *        <code>null</code>.
+   * @return The AS2 response returned by the AS2 sender. This is never
+   *         <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         In case {@link #verifyContent()} throws an exception because of
+   *         invalid or incomplete settings.
+   */
+  @Nonnull
+  AS2ClientResponse sendSynchronousPrepared (@Nonnull final byte [] aPayloadBytes,
+                                             @Nonnull final XMLPayloadHelper.RootElement aPayloadRoot) throws AS2ClientBuilderException
+  {
+    ValueEnforcer.notNull (aPayloadBytes, "PayloadBytes");
+    ValueEnforcer.notNull (aPayloadRoot, "PayloadRoot");
+
+    // Perform SMP client lookup
+    performSMPClientLookup ();
+
+    // Set derivable values
+    setDefaultDerivedValues ();
+
+    // Verify the whole data set (the payload was verified before)
+    _verifyContent (false);
+
+    if (m_aSBDHBytesConsumer != null || m_aSBDHBufferConsumer != null)
+      LOGGER.warn ("The SBDH bytes and buffer consumers are not invoked for shared payloads");
+
+    final SBDHEnvelope aEnvelope = _createSBDHEnvelope (aPayloadRoot);
+    final DataSource aDataSource = new StreamingSBDHDataSource (aEnvelope,
+                                                               () -> new NonBlockingByteArrayInputStream (aPayloadBytes),
+                                                               aEnvelope.isResetDefaultNamespaceRequired (aPayloadRoot),
+                                                               m_aMimeType.getAsString ());
+    _archiveSBDH (aDataSource);
+    return _sendSBDHDataSource (aDataSource);
+  }
+
+  /**
+   * Asynchronous version of {@link #sendSynchronous()}. A copy of this builder
+   * is created when this method is called, so later modifications of this
+   * builder don't affect the sending. The copy uses a new message handler if
+   * the default message handler is used. Custom message handlers are shared by
+   * all copies, so they must be thread-safe and must not let the errors of one
+   * message affect other messages if the same builder is used to send further
+   * messages.
+   *
+   * @param aExecutor
+   *        The executor to run the sending on. May not be <code>null</code>.
+   *        Usually an {@link AS2ClientAsyncExecutor} is used.
+   * @return The future with the AS2 response. If sending fails, the future is
+   *         completed exceptionally with a
+   *         {@link java.util.concurrent.CompletionException} wrapping the
+   *         {@link AS2ClientBuilderException}. If the executor rejects the task,
+   *         the future is completed exceptionally with the
+   *         {@link java.util.concurrent.RejectedExecutionException}. Never
+   *         <code>null</code>.
+   * @see #sendSynchronous()
+   * @since 5.4.4
+   */
+  @Nonnull
+  public CompletableFuture <AS2ClientResponse> sendAsync (@Nonnull final Executor aExecutor)
+  {
+    ValueEnforcer.notNull (aExecutor, "Executor");
+
+    final AS2ClientBuilder aSnapshot = getClone ();
+    return AS2ClientAsyncExecutor.runAsync (aSnapshot::sendSynchronous, aExecutor);
+  }
+
+  /**
+   * Asynchronous version of
+   * {@link #sendSynchronousSBDH(NonBlockingByteArrayOutputStream)}. A copy of
+   * this builder is created when this method is called. The same rules for the
+   * message handler as for {@link #sendAsync(Executor)} apply.
+   *
+   * @param aBAOS
+   *        The serialized SBDH. May not be <code>null</code>. Must not be
+   *        modified until the future is completed.
+   * @param aExecutor
+   *        The executor to run the sending on. May not be <code>null</code>.
+   *        Usually an {@link AS2ClientAsyncExecutor} is used.
+   * @return The future with the AS2 response. Never <code>null</code>.
+   * @see #sendAsync(Executor)
+   * @since 5.4.4
+   */
+  @Nonnull
+  public CompletableFuture <AS2ClientResponse> sendSBDHAsync (@Nonnull final NonBlockingByteArrayOutputStream aBAOS,
+                                                              @Nonnull final Executor aExecutor)
+  {
+    ValueEnforcer.notNull (aBAOS, "BAOS");
+    ValueEnforcer.notNull (aExecutor, "Executor");
+
+    final AS2ClientBuilder aSnapshot = getClone ();
+    return AS2ClientAsyncExecutor.runAsync ( () -> aSnapshot.sendSynchronousSBDH (aBAOS), aExecutor);
   }
 }
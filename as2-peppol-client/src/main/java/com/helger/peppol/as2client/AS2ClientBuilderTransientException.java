@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Special {@link AS2ClientBuilderException} exception for failures that may
+ * not occur if sending is retried later, e.g. because a circuit is open or
+ * because no sending permit or memory was available in time. The message was
+ * not sent.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+public class AS2ClientBuilderTransientException extends AS2ClientBuilderException
+{
+  /**
+   * @param sMessage
+   *        Error message
+   */
+  public AS2ClientBuilderTransientException (@Nonnull final String sMessage)
+  {
+    super (sMessage);
+  }
+}
@@ -20,6 +20,7 @@ import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
 
 import org.bouncycastle.asn1.x500.RDN;
@@ -28,8 +29,11 @@ import org.bouncycastle.asn1.x500.style.BCStyle;
 import org.bouncycastle.asn1.x500.style.IETFUtils;
 import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
 
+import com.helger.as2lib.client.AS2ClientResponse;
 import com.helger.commons.ValueEnforcer;
 import com.helger.peppol.utils.PeppolCertificateHelper;
+import com.helger.smpclient.exception.SMPClientBadRequestException;
+import com.helger.smpclient.exception.SMPClientNotFoundException;
 
 /**
  * Common functionality for AS2 clients
@@ -61,4 +65,48 @@ public final class AS2ClientHelper
     final RDN cn = x500name.getRDNs (BCStyle.CN)[0];
     return IETFUtils.valueToString (cn.getFirst ().getValue ());
   }
+
+  /**
+   * Check if a failed send may succeed if it is retried later: connection and
+   * other I/O errors, open circuits and exhausted sending permits or memory. A
+   * message for which an MDN was received is never considered retryable,
+   * because the receiver already got it, even if the MDN is negative or cannot
+   * be verified. Validation errors and receivers that are unknown to the SMP
+   * are not retryable either.
+   *
+   * @param aResponse
+   *        The AS2 response. May be <code>null</code> if sending failed before.
+   * @param aException
+   *        The exception thrown while sending. May be <code>null</code> in
+   *        which case the exception of the response is used.
+   * @return <code>true</code> if the send should be retried.
+   * @since 5.4.4
+   */
+  public static boolean isRetryable (@Nullable final AS2ClientResponse aResponse, @Nullable final Throwable aException)
+  {
+    if (aResponse != null && aResponse.hasMDN ())
+    {
+      // Retrying would deliver the message again
+      return false;
+    }
+
+    final Throwable aEx;
+    if (aException != null)
+      aEx = aException;
+    else
+      aEx = aResponse == null ? null : aResponse.getException ();
+    if (aEx == null)
+      return false;
+
+    Throwable aCur = aEx;
+    while (aCur != null)
+    {
+      if (aCur instanceof SMPClientNotFoundException || aCur instanceof SMPClientBadRequestException)
+        return false;
+      aCur = aCur.getCause () == aCur ? null : aCur.getCause ();
+    }
+    return aEx instanceof AS2ClientBuilderTransientException ||
+           AS2EndpointHealthTracker.isTransientFailure (aEx) ||
+           AS2EndpointHealthTracker.isEndpointFailure (aEx);
+  }
 }
@@ -0,0 +1,247 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.w3c.dom.Element;
+
+import com.helger.as2lib.client.AS2ClientResponse;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.functional.ISupplier;
+import com.helger.commons.io.resource.IReadableResource;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * A thread-safe sender that can be used to send many messages with the same
+ * sender configuration. The configuration (key store, sender AS2 ID, email and
+ * key alias, signing algorithm, timeouts, SMP client, validation key etc.) is
+ * taken once from a template {@link AS2ClientBuilder}. For each message, a
+ * copy of the template is created and only the message specific values are
+ * set, so the template itself is never modified.<br>
+ * The template should not contain any receiver specific values, as they would
+ * be used for all messages. If the receivers are not all registered at the
+ * same SMP (e.g. with SML based discovery), an
+ * {@link IAS2ClientBuilderSMPClientFactory} must be provided, so that the SMP
+ * client is created for each receiver.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class AS2ClientSender
+{
+  private final AS2ClientBuilder m_aTemplate;
+  private final ISupplier <? extends IAS2ClientBuilderMessageHandler> m_aMessageHandlerFactory;
+  private final IAS2ClientBuilderSMPClientFactory m_aSMPClientFactory;
+
+  /**
+   * Constructor using a new {@link DefaultAS2ClientBuilderMessageHandler} for
+   * each message.
+   *
+   * @param aTemplate
+   *        The template builder with the sender configuration. May not be
+   *        <code>null</code>. The builder is copied, so later modifications
+   *        don't affect this sender.
+   */
+  public AS2ClientSender (@Nonnull final AS2ClientBuilder aTemplate)
+  {
+    this (aTemplate, DefaultAS2ClientBuilderMessageHandler::new);
+  }
+
+  /**
+   * Constructor using a new {@link DefaultAS2ClientBuilderMessageHandler} for
+   * each message.
+   *
+   * @param aTemplate
+   *        The template builder with the sender configuration. May not be
+   *        <code>null</code>. The builder is copied, so later modifications
+   *        don't affect this sender.
+   * @param aSMPClientFactory
+   *        The factory for the SMP client of each receiver. May be
+   *        <code>null</code> to use the SMP client of the template for all
+   *        receivers.
+   */
+  public AS2ClientSender (@Nonnull final AS2ClientBuilder aTemplate, @Nullable final IAS2ClientBuilderSMPClientFactory aSMPClientFactory)
+  {
+    this (aTemplate, DefaultAS2ClientBuilderMessageHandler::new, aSMPClientFactory);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aTemplate
+   *        The template builder with the sender configuration. May not be
+   *        <code>null</code>. The builder is copied, so later modifications
+   *        don't affect this sender.
+   * @param aMessageHandlerFactory
+   *        The factory for the message handler to be used for each message. It
+   *        is invoked once per message. May not be <code>null</code>.
+   */
+  public AS2ClientSender (@Nonnull final AS2ClientBuilder aTemplate,
+                          @Nonnull final ISupplier <? extends IAS2ClientBuilderMessageHandler> aMessageHandlerFactory)
+  {
+    this (aTemplate, aMessageHandlerFactory, null);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aTemplate
+   *        The template builder with the sender configuration. May not be
+   *        <code>null</code>. The builder is copied, so later modifications
+   *        don't affect this sender.
+   * @param aMessageHandlerFactory
+   *        The factory for the message handler to be used for each message. It
+   *        is invoked once per message. May not be <code>null</code>.
+   * @param aSMPClientFactory
+   *        The factory for the SMP client of each receiver. It is invoked once
+   *        per message. May be <code>null</code> to use the SMP client of the
+   *        template for all receivers.
+   */
+  public AS2ClientSender (@Nonnull final AS2ClientBuilder aTemplate,
+                          @Nonnull final ISupplier <? extends IAS2ClientBuilderMessageHandler> aMessageHandlerFactory,
+                          @Nullable final IAS2ClientBuilderSMPClientFactory aSMPClientFactory)
+  {
+    ValueEnforcer.notNull (aTemplate, "Template");
+    ValueEnforcer.notNull (aMessageHandlerFactory, "MessageHandlerFactory");
+    m_aTemplate = aTemplate.getClone ();
+    m_aMessageHandlerFactory = aMessageHandlerFactory;
+    m_aSMPClientFactory = aSMPClientFactory;
+
+    // Create the validation registry once, so that it is shared by all copies
+    if (m_aTemplate.getValidationKey () != null)
+      m_aTemplate.getValidationRegistry ();
+  }
+
+  /**
+   * @return A new builder based on the template, without any message specific
+   *         settings. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  AS2ClientBuilder createTemplateBuilder ()
+  {
+    return m_aTemplate.getClone ().setMessageHandler (m_aMessageHandlerFactory.get ());
+  }
+
+  /**
+   * Create a new builder for a single message, based on the template. The
+   * returned builder can be further customized before sending.
+   *
+   * @param aReceiverID
+   *        The Peppol receiver ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        The Peppol document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        The Peppol process ID. May not be <code>null</code>.
+   * @return A new builder and never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         If the SMP client for the receiver cannot be created
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public AS2ClientBuilder createBuilder (@Nonnull final IParticipantIdentifier aReceiverID,
+                                         @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                         @Nonnull final IProcessIdentifier aProcessID) throws AS2ClientBuilderException
+  {
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+
+    final AS2ClientBuilder ret = createTemplateBuilder ().setPeppolReceiverID (aReceiverID)
+                                                         .setPeppolDocumentTypeID (aDocTypeID)
+                                                         .setPeppolProcessID (aProcessID);
+    if (m_aSMPClientFactory != null)
+    {
+      try
+      {
+        ret.setSMPClient (m_aSMPClientFactory.createSMPClient (aReceiverID));
+      }
+      catch (final Exception ex)
+      {
+        throw new AS2ClientBuilderException ("Failed to create the SMP client for receiver '" + aReceiverID.getURIEncoded () + "'", ex);
+      }
+    }
+    return ret;
+  }
+
+  /**
+   * Send a single business document.
+   *
+   * @param aReceiverID
+   *        The Peppol receiver ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        The Peppol document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        The Peppol process ID. May not be <code>null</code>.
+   * @param aBusinessDocument
+   *        The business document to be send. May not be <code>null</code>.
+   * @return The AS2 response. Never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         In case the message could not be build or sent
+   */
+  @Nonnull
+  public AS2ClientResponse send (@Nonnull final IParticipantIdentifier aReceiverID,
+                                 @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                 @Nonnull final IProcessIdentifier aProcessID,
+                                 @Nonnull final IReadableResource aBusinessDocument) throws AS2ClientBuilderException
+  {
+    ValueEnforcer.notNull (aBusinessDocument, "BusinessDocument");
+    return createBuilder (aReceiverID, aDocTypeID, aProcessID).setBusinessDocument (aBusinessDocument).sendSynchronous ();
+  }
+
+  /**
+   * Send a single business document.
+   *
+   * @param aReceiverID
+   *        The Peppol receiver ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        The Peppol document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        The Peppol process ID. May not be <code>null</code>.
+   * @param aBusinessDocument
+   *        The business document to be send. May not be <code>null</code>.
+   * @return The AS2 response. Never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         In case the message could not be build or sent
+   */
+  @Nonnull
+  public AS2ClientResponse send (@Nonnull final IParticipantIdentifier aReceiverID,
+                                 @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                 @Nonnull final IProcessIdentifier aProcessID,
+                                 @Nonnull final Element aBusinessDocument) throws AS2ClientBuilderException
+  {
+    ValueEnforcer.notNull (aBusinessDocument, "BusinessDocument");
+    return createBuilder (aReceiverID, aDocTypeID, aProcessID).setBusinessDocument (aBusinessDocument).sendSynchronous ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Template", m_aTemplate)
+                                       .append ("MessageHandlerFactory", m_aMessageHandlerFactory)
+                                       .append ("SMPClientFactory", m_aSMPClientFactory)
+                                       .getToString ();
+  }
+}
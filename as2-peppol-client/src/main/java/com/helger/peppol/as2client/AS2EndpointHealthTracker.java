@@ -0,0 +1,425 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A thread-safe tracker for the health of AS2 endpoints, keyed by the endpoint
+ * URL. It combines a retry policy with exponential backoff and full jitter for
+ * transient failures with a circuit breaker per endpoint:
+ * <ul>
+ * <li>CLOSED: all calls are permitted. After
+ * {@link #getFailureThreshold()} consecutive failures the circuit opens.</li>
+ * <li>OPEN: all calls fail fast until {@link #getOpenDuration()} has
+ * elapsed.</li>
+ * <li>HALF_OPEN: a single trial call is permitted. If it succeeds the circuit
+ * closes, otherwise it opens again.</li>
+ * </ul>
+ * Only failures in the connection phase are considered transient and are
+ * retried, because the message was definitively not received by the other
+ * side. Other I/O failures (e.g. read timeouts) count as endpoint failures but
+ * are not retried, to avoid duplicate deliveries.<br>
+ * Each call permitted by {@link #isCallPermitted(String)} must be followed by
+ * exactly one invocation of {@link #onSuccess(String)},
+ * {@link #onFailure(String)} or {@link #onCallAborted(String)}. Otherwise a
+ * half-open circuit never permits another trial call.<br>
+ * The same instance is meant to be shared between many builders.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class AS2EndpointHealthTracker
+{
+  /** The default number of consecutive failures that open the circuit */
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  /** The default duration a circuit stays open */
+  public static final Duration DEFAULT_OPEN_DURATION = Duration.ofMinutes (1);
+  /** The default number of retries for transient failures */
+  public static final int DEFAULT_MAX_RETRIES = 2;
+  /** The default backoff before the first retry */
+  public static final Duration DEFAULT_INITIAL_BACKOFF = Duration.ofSeconds (1);
+  /** The default maximum backoff */
+  public static final Duration DEFAULT_MAX_BACKOFF = Duration.ofSeconds (30);
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2EndpointHealthTracker.class);
+
+  /**
+   * The state of a single circuit.
+   *
+   * @author Philip Helger
+   */
+  public enum ECircuitState
+  {
+    CLOSED,
+    OPEN,
+    HALF_OPEN;
+  }
+
+  private static final class Circuit
+  {
+    private ECircuitState m_eState = ECircuitState.CLOSED;
+    private int m_nConsecutiveFailures;
+    private long m_nOpenUntilNanos;
+    private boolean m_bTrialInProgress;
+  }
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  private final int m_nFailureThreshold;
+  private final Duration m_aOpenDuration;
+  private final int m_nMaxRetries;
+  private final Duration m_aInitialBackoff;
+  private final Duration m_aMaxBackoff;
+  private final ICommonsMap <String, Circuit> m_aCircuits = new CommonsHashMap <> ();
+
+  /**
+   * Constructor using the default settings.
+   */
+  public AS2EndpointHealthTracker ()
+  {
+    this (DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION, DEFAULT_MAX_RETRIES, DEFAULT_INITIAL_BACKOFF, DEFAULT_MAX_BACKOFF);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nFailureThreshold
+   *        The number of consecutive failures after which the circuit opens.
+   *        Must be &gt; 0.
+   * @param aOpenDuration
+   *        The duration a circuit stays open before a trial call is permitted.
+   *        May not be <code>null</code> and must not be negative.
+   * @param nMaxRetries
+   *        The maximum number of retries for transient failures. Must be &ge;
+   *        0.
+   * @param aInitialBackoff
+   *        The backoff before the first retry. May not be <code>null</code> and
+   *        must not be negative.
+   * @param aMaxBackoff
+   *        The maximum backoff. May not be <code>null</code> and must not be
+   *        less than the initial backoff.
+   */
+  public AS2EndpointHealthTracker (@Nonnegative final int nFailureThreshold,
+                                   @Nonnull final Duration aOpenDuration,
+                                   @Nonnegative final int nMaxRetries,
+                                   @Nonnull final Duration aInitialBackoff,
+                                   @Nonnull final Duration aMaxBackoff)
+  {
+    ValueEnforcer.isGT0 (nFailureThreshold, "FailureThreshold");
+    ValueEnforcer.notNull (aOpenDuration, "OpenDuration");
+    ValueEnforcer.isFalse (aOpenDuration.isNegative (), "OpenDuration may not be negative");
+    ValueEnforcer.isGE0 (nMaxRetries, "MaxRetries");
+    ValueEnforcer.notNull (aInitialBackoff, "InitialBackoff");
+    ValueEnforcer.isFalse (aInitialBackoff.isNegative (), "InitialBackoff may not be negative");
+    ValueEnforcer.notNull (aMaxBackoff, "MaxBackoff");
+    ValueEnforcer.isFalse (aMaxBackoff.compareTo (aInitialBackoff) < 0, "MaxBackoff may not be less than InitialBackoff");
+    m_nFailureThreshold = nFailureThreshold;
+    m_aOpenDuration = aOpenDuration;
+    m_nMaxRetries = nMaxRetries;
+    m_aInitialBackoff = aInitialBackoff;
+    m_aMaxBackoff = aMaxBackoff;
+  }
+
+  /**
+   * @return The number of consecutive failures after which the circuit opens.
+   *         Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getFailureThreshold ()
+  {
+    return m_nFailureThreshold;
+  }
+
+  /**
+   * @return The duration a circuit stays open. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getOpenDuration ()
+  {
+    return m_aOpenDuration;
+  }
+
+  /**
+   * @return The maximum number of retries for transient failures. Always &ge;
+   *         0.
+   */
+  @Nonnegative
+  public final int getMaxRetries ()
+  {
+    return m_nMaxRetries;
+  }
+
+  /**
+   * @return The backoff before the first retry. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getInitialBackoff ()
+  {
+    return m_aInitialBackoff;
+  }
+
+  /**
+   * @return The maximum backoff. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getMaxBackoff ()
+  {
+    return m_aMaxBackoff;
+  }
+
+  /**
+   * Check if a call to the provided endpoint is permitted. If the circuit is
+   * open and the open duration has elapsed, the circuit switches to half-open
+   * and this call is the trial call.
+   *
+   * @param sURL
+   *        The endpoint URL. May neither be <code>null</code> nor empty.
+   * @return <code>true</code> if the call is permitted, <code>false</code> if
+   *         it should fail fast.
+   */
+  public boolean isCallPermitted (@Nonnull @Nonempty final String sURL)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+
+    m_aLock.lock ();
+    try
+    {
+      final Circuit aCircuit = m_aCircuits.get (sURL);
+      if (aCircuit == null || aCircuit.m_eState == ECircuitState.CLOSED)
+        return true;
+
+      if (aCircuit.m_eState == ECircuitState.OPEN)
+      {
+        if (System.nanoTime () - aCircuit.m_nOpenUntilNanos < 0)
+          return false;
+        aCircuit.m_eState = ECircuitState.HALF_OPEN;
+        aCircuit.m_bTrialInProgress = false;
+      }
+
+      // Half open - only one trial call at a time
+      if (aCircuit.m_bTrialInProgress)
+        return false;
+      aCircuit.m_bTrialInProgress = true;
+      return true;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Record a successful call. This closes the circuit.
+   *
+   * @param sURL
+   *        The endpoint URL. May neither be <code>null</code> nor empty.
+   */
+  public void onSuccess (@Nonnull @Nonempty final String sURL)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+
+    m_aLock.lock ();
+    try
+    {
+      final Circuit aCircuit = m_aCircuits.remove (sURL);
+      if (aCircuit != null && aCircuit.m_eState != ECircuitState.CLOSED)
+        LOGGER.info ("Circuit for AS2 endpoint '" + sURL + "' is closed again");
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Record a failed call. This may open the circuit.
+   *
+   * @param sURL
+   *        The endpoint URL. May neither be <code>null</code> nor empty.
+   */
+  public void onFailure (@Nonnull @Nonempty final String sURL)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+
+    m_aLock.lock ();
+    try
+    {
+      final Circuit aCircuit = m_aCircuits.computeIfAbsent (sURL, k -> new Circuit ());
+      aCircuit.m_nConsecutiveFailures++;
+      aCircuit.m_bTrialInProgress = false;
+      if (aCircuit.m_eState == ECircuitState.HALF_OPEN || aCircuit.m_nConsecutiveFailures >= m_nFailureThreshold)
+      {
+        if (aCircuit.m_eState != ECircuitState.OPEN)
+          LOGGER.warn ("Opening circuit for AS2 endpoint '" +
+                       sURL +
+                       "' after " +
+                       aCircuit.m_nConsecutiveFailures +
+                       " consecutive failures");
+        aCircuit.m_eState = ECircuitState.OPEN;
+        aCircuit.m_nOpenUntilNanos = System.nanoTime () + m_aOpenDuration.toNanos ();
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Record that a permitted call did not complete with a result, e.g. because
+   * it was not executed due to a partner throttle timeout or because of an
+   * unexpected exception. If it was the trial call of a half-open circuit,
+   * another trial call is permitted. The failure counter is not modified.
+   *
+   * @param sURL
+   *        The endpoint URL. May neither be <code>null</code> nor empty.
+   */
+  public void onCallAborted (@Nonnull @Nonempty final String sURL)
+  {
+    ValueEnforcer.notEmpty (sURL, "URL");
+
+    m_aLock.lock ();
+    try
+    {
+      final Circuit aCircuit = m_aCircuits.get (sURL);
+      if (aCircuit != null && aCircuit.m_eState == ECircuitState.HALF_OPEN)
+        aCircuit.m_bTrialInProgress = false;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Get the current circuit state of the provided endpoint.
+   *
+   * @param sURL
+   *        The endpoint URL. May not be <code>null</code>.
+   * @return The circuit state. Never <code>null</code>.
+   */
+  @Nonnull
+  public ECircuitState getCircuitState (@Nonnull final String sURL)
+  {
+    m_aLock.lock ();
+    try
+    {
+      final Circuit aCircuit = m_aCircuits.get (sURL);
+      return aCircuit == null ? ECircuitState.CLOSED : aCircuit.m_eState;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Get the backoff before the provided retry, using exponential backoff with
+   * full jitter.
+   *
+   * @param nRetry
+   *        The 1-based retry number.
+   * @return The backoff in milliseconds. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getBackoffMS (@Nonnegative final int nRetry)
+  {
+    ValueEnforcer.isGT0 (nRetry, "Retry");
+
+    final long nInitialMS = m_aInitialBackoff.toMillis ();
+    final long nMaxMS = m_aMaxBackoff.toMillis ();
+    // Avoid overflow for large retry numbers
+    final long nCapMS = nRetry > 30 ? nMaxMS : Math.min (nMaxMS, nInitialMS << (nRetry - 1));
+    return nCapMS <= 0 ? 0 : ThreadLocalRandom.current ().nextLong (nCapMS + 1);
+  }
+
+  /**
+   * Check if the provided exception indicates a failure of the endpoint (any
+   * I/O error), as opposed to e.g. a processing error.
+   *
+   * @param t
+   *        The exception to check. May be <code>null</code>.
+   * @return <code>true</code> if it is an endpoint failure.
+   */
+  public static boolean isEndpointFailure (@Nullable final Throwable t)
+  {
+    Throwable aCur = t;
+    while (aCur != null)
+    {
+      if (aCur instanceof IOException)
+        return true;
+      aCur = aCur.getCause () == aCur ? null : aCur.getCause ();
+    }
+    return false;
+  }
+
+  /**
+   * Check if the provided exception is a transient failure that may be retried.
+   * Only failures while establishing the connection are considered transient.
+   *
+   * @param t
+   *        The exception to check. May be <code>null</code>.
+   * @return <code>true</code> if the failure is transient.
+   */
+  public static boolean isTransientFailure (@Nullable final Throwable t)
+  {
+    Throwable aCur = t;
+    while (aCur != null)
+    {
+      if (aCur instanceof ConnectException ||
+          aCur instanceof NoRouteToHostException ||
+          aCur instanceof UnknownHostException ||
+          aCur instanceof ConnectTimeoutException)
+        return true;
+      aCur = aCur.getCause () == aCur ? null : aCur.getCause ();
+    }
+    return false;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("FailureThreshold", m_nFailureThreshold)
+                                       .append ("OpenDuration", m_aOpenDuration)
+                                       .append ("MaxRetries", m_nMaxRetries)
+                                       .append ("InitialBackoff", m_aInitialBackoff)
+                                       .append ("MaxBackoff", m_aMaxBackoff)
+                                       .getToString ();
+  }
+}
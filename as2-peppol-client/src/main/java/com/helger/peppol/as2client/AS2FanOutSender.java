@@ -0,0 +1,291 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+
+import com.helger.as2lib.client.AS2ClientResponse;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.io.resource.IReadableResource;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Send the same business document to many receivers. The business document is
+ * read, decompressed and validated only once. Afterwards only a new SBDH
+ * envelope is created for each receiver around the shared payload bytes, and
+ * the messages are sent in parallel.<br>
+ * The whole business document is kept in memory during sending and it must be
+ * UTF-8 compatible. If a memory governor is configured, the size of the
+ * business document and the streaming amount of all parallel messages are
+ * reserved once, after the business document was read.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class AS2FanOutSender
+{
+  /** The default number of receivers that are processed in parallel */
+  public static final int DEFAULT_PARALLELISM = 8;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2FanOutSender.class);
+
+  private final AS2ClientSender m_aSender;
+  private final int m_nParallelism;
+
+  /**
+   * Constructor using the default parallelism.
+   *
+   * @param aSender
+   *        The sender with the sender configuration. May not be
+   *        <code>null</code>.
+   */
+  public AS2FanOutSender (@Nonnull final AS2ClientSender aSender)
+  {
+    this (aSender, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aSender
+   *        The sender with the sender configuration. May not be
+   *        <code>null</code>.
+   * @param nParallelism
+   *        The number of receivers that are processed in parallel. Must be
+   *        &gt; 0.
+   */
+  public AS2FanOutSender (@Nonnull final AS2ClientSender aSender, @Nonnegative final int nParallelism)
+  {
+    ValueEnforcer.notNull (aSender, "Sender");
+    ValueEnforcer.isGT0 (nParallelism, "Parallelism");
+    m_aSender = aSender;
+    m_nParallelism = nParallelism;
+  }
+
+  /**
+   * @return The sender used. Never <code>null</code>.
+   */
+  @Nonnull
+  public final AS2ClientSender getSender ()
+  {
+    return m_aSender;
+  }
+
+  /**
+   * @return The number of receivers that are processed in parallel. Always
+   *         &gt; 0.
+   */
+  @Nonnegative
+  public final int getParallelism ()
+  {
+    return m_nParallelism;
+  }
+
+  /**
+   * Read the business document once and validate it.
+   *
+   * @return The payload bytes. Never <code>null</code>.
+   */
+  @Nonnull
+  private static byte [] _readAndValidate (@Nonnull final AS2ClientBuilder aBuilder,
+                                           @Nonnull final IReadableResource aBusinessDocument) throws AS2ClientBuilderException
+  {
+    // The wrapper detects the compression while reading, so the resource is
+    // only opened once
+    final IReadableResource aRes = aBuilder.isDecompressBusinessDocument () ? new DecompressingReadableResource (aBusinessDocument)
+                                                                            : aBusinessDocument;
+    final InputStream aIS = aRes.getInputStream ();
+    if (aIS == null)
+      throw new AS2ClientBuilderException ("Failed to open business document '" + aBusinessDocument.getPath () + "'");
+    final byte [] aBytes;
+    try
+    {
+      aBytes = StreamHelper.getAllBytes (aIS);
+    }
+    finally
+    {
+      StreamHelper.close (aIS);
+    }
+    if (aBytes == null)
+      throw new AS2ClientBuilderException ("Failed to read business document '" + aBusinessDocument.getPath () + "'");
+
+    if (aBuilder.getValidationKey () != null)
+    {
+      final Document aDoc = DOMReader.readXMLDOM (aBytes);
+      if (aDoc == null || aDoc.getDocumentElement () == null)
+        throw new AS2ClientBuilderException ("Failed to read business document '" + aBusinessDocument.getPath () + "' as XML");
+      aBuilder.validateOutgoingBusinessDocument (aDoc.getDocumentElement ());
+    }
+    return aBytes;
+  }
+
+  /**
+   * Send the provided business document to all provided receivers.
+   *
+   * @param aReceiverIDs
+   *        The Peppol receiver IDs. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        The Peppol document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        The Peppol process ID. May not be <code>null</code>.
+   * @param aBusinessDocument
+   *        The business document to be send. May not be <code>null</code>.
+   * @return A list with one result per receiver, in the same order as the
+   *         provided receivers. Never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         In case the business document cannot be read, is not UTF-8
+   *         compatible or is invalid. In this case nothing was sent.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public ICommonsList <AS2BatchResult> sendToAll (@Nonnull final Collection <? extends IParticipantIdentifier> aReceiverIDs,
+                                                  @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                                  @Nonnull final IProcessIdentifier aProcessID,
+                                                  @Nonnull final IReadableResource aBusinessDocument) throws AS2ClientBuilderException
+  {
+    ValueEnforcer.noNullValue (aReceiverIDs, "ReceiverIDs");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcessID, "ProcessID");
+    ValueEnforcer.notNull (aBusinessDocument, "BusinessDocument");
+
+    final ICommonsList <IParticipantIdentifier> aReceivers = new CommonsArrayList <> (aReceiverIDs);
+    if (aReceivers.isEmpty ())
+      return new CommonsArrayList <> ();
+
+    // 1. read, decompress and validate once
+    final AS2ClientBuilder aTemplateBuilder = m_aSender.createTemplateBuilder ();
+    final byte [] aPayloadBytes = _readAndValidate (aTemplateBuilder, aBusinessDocument);
+    final XMLPayloadHelper.RootElement aPayloadRoot = XMLPayloadHelper.readRootElement (new NonBlockingByteArrayInputStream (aPayloadBytes));
+    if (aPayloadRoot == null)
+      throw new AS2ClientBuilderException ("Failed to read business document '" + aBusinessDocument.getPath () + "' as XML");
+    if (!aPayloadRoot.isUTF8Compatible ())
+      throw new AS2ClientBuilderException ("The business document '" +
+                                           aBusinessDocument.getPath () +
+                                           "' is encoded in '" +
+                                           aPayloadRoot.getEncoding () +
+                                           "' but only UTF-8 is supported");
+
+    if (LOGGER.isDebugEnabled ())
+      LOGGER.debug ("Sending business document '" +
+                    aBusinessDocument.getPath () +
+                    "' with " +
+                    aPayloadBytes.length +
+                    " bytes to " +
+                    aReceivers.size () +
+                    " receivers");
+
+    // 2. account the shared payload and all parallel messages at once, so that
+    // the sending never waits for its own reservation
+    final int nWorkers = Math.min (m_nParallelism, aReceivers.size ());
+    final AS2MemoryGovernor aMemoryGovernor = aTemplateBuilder.getMemoryGovernor ();
+    AS2MemoryGovernor.Reservation aReservation = null;
+    if (aMemoryGovernor != null)
+    {
+      final long nBytes = aPayloadBytes.length + nWorkers * aMemoryGovernor.getStreamingReservationBytes ();
+      aReservation = aMemoryGovernor.reserve (nBytes);
+      if (aReservation == null)
+        throw new AS2ClientBuilderTransientException ("Failed to reserve " +
+                                                      nBytes +
+                                                      " bytes of the memory budget within " +
+                                                      aMemoryGovernor.getMaxWait ());
+    }
+
+    // 3. send to all receivers in parallel
+    final AS2BatchResult [] aResults = new AS2BatchResult [aReceivers.size ()];
+    final AtomicInteger aNextReceiver = new AtomicInteger (0);
+    final Runnable aWorker = () -> {
+      int nIndex;
+      while ((nIndex = aNextReceiver.getAndIncrement ()) < aResults.length)
+      {
+        final IParticipantIdentifier aReceiverID = aReceivers.get (nIndex);
+        final AS2BatchMessage aMsg = new AS2BatchMessage (aReceiverID, aDocTypeID, aProcessID, aBusinessDocument);
+        AS2ClientBuilder aBuilder = null;
+        AS2BatchResult aResult;
+        try
+        {
+          aBuilder = m_aSender.createBuilder (aReceiverID, aDocTypeID, aProcessID);
+          final AS2ClientResponse aResponse = aBuilder.sendSynchronousPrepared (aPayloadBytes, aPayloadRoot);
+          aResult = new AS2BatchResult (aMsg, aBuilder.getReceiverAS2Url (), aResponse, null);
+        }
+        catch (final Exception ex)
+        {
+          aResult = new AS2BatchResult (aMsg, aBuilder == null ? null : aBuilder.getReceiverAS2Url (), null, ex);
+        }
+        aResults[nIndex] = aResult;
+      }
+    };
+
+    final ExecutorService aExecutor = Executors.newFixedThreadPool (nWorkers);
+    try
+    {
+      final ICommonsList <Callable <Object>> aWorkers = new CommonsArrayList <> (nWorkers);
+      for (int i = 0; i < nWorkers; ++i)
+        aWorkers.add (Executors.callable (aWorker));
+      aExecutor.invokeAll (aWorkers);
+    }
+    catch (final InterruptedException ex)
+    {
+      LOGGER.warn ("Interrupted while waiting for fan-out workers");
+      Thread.currentThread ().interrupt ();
+    }
+    finally
+    {
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aExecutor);
+      if (aReservation != null)
+        aReservation.close ();
+    }
+
+    final ICommonsList <AS2BatchResult> ret = new CommonsArrayList <> (aResults.length);
+    for (int i = 0; i < aResults.length; ++i)
+      ret.add (aResults[i] != null ? aResults[i]
+                                   : new AS2BatchResult (new AS2BatchMessage (aReceivers.get (i), aDocTypeID, aProcessID, aBusinessDocument),
+                                                         null,
+                                                         null,
+                                                         new IllegalStateException ("Message was not processed")));
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Sender", m_aSender).append ("Parallelism", m_nParallelism).getToString ();
+  }
+}
@@ -0,0 +1,435 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableObject;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.io.file.FileHelper;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.security.keystore.EKeyStoreType;
+import com.helger.security.keystore.IKeyStoreType;
+import com.helger.security.messagedigest.EMessageDigestAlgorithm;
+import com.helger.security.messagedigest.MessageDigestValue;
+
+/**
+ * A process wide cache for key stores used by {@link AS2ClientBuilder}. Loading
+ * a PKCS12 key store requires an expensive password based key derivation which
+ * would otherwise happen for every single message. Each key store is loaded
+ * once and re-encoded as an in-memory JKS key store which is cheap to load, and
+ * which is handed to the AS2 client instead of the original key store.<br>
+ * The cache key consists of the key store type, the absolute file path or a
+ * digest of the key store bytes and a digest of the password. The digest is
+ * only calculated once per byte array instance, so key store byte arrays must
+ * not be modified after they were passed to the cache. Entries for key store
+ * files are reloaded if the file modification time or size changes. If a key
+ * store cannot be loaded, this is remembered for a configurable time, so that
+ * the failure is not logged for every message. Key stores are loaded outside
+ * of the cache lock, so loading one key store does not block the users of
+ * other key stores. The least recently used entries are evicted if the maximum
+ * size is reached.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public final class AS2KeyStoreCache
+{
+  /** The key store type used for the in-memory copy */
+  public static final EKeyStoreType CACHED_KEY_STORE_TYPE = EKeyStoreType.JKS;
+  /** The default time a failure to load a key store is remembered */
+  public static final Duration DEFAULT_FAILURE_TTL = Duration.ofMinutes (1);
+  /** The default maximum number of cached key stores */
+  public static final int DEFAULT_MAX_SIZE = 100;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2KeyStoreCache.class);
+  private static final AS2KeyStoreCache DEFAULT_INSTANCE = new AS2KeyStoreCache ();
+
+  /**
+   * A single loaded key store. The contained objects are shared between all
+   * users of the cache and must not be modified.
+   *
+   * @author Philip Helger
+   */
+  public static final class CachedKeyStore
+  {
+    private final KeyStore m_aKeyStore;
+    private final byte [] m_aCachedBytes;
+
+    CachedKeyStore (@Nonnull final KeyStore aKeyStore, @Nonnull final byte [] aCachedBytes)
+    {
+      m_aKeyStore = aKeyStore;
+      m_aCachedBytes = aCachedBytes;
+    }
+
+    /**
+     * @return The loaded key store. Never <code>null</code>. Don't modify it.
+     */
+    @Nonnull
+    @ReturnsMutableObject
+    public KeyStore getKeyStore ()
+    {
+      return m_aKeyStore;
+    }
+
+    /**
+     * @return The serialized key store of type {@link #CACHED_KEY_STORE_TYPE}.
+     *         Never <code>null</code>. Don't modify it.
+     */
+    @Nonnull
+    @ReturnsMutableObject
+    public byte [] getCachedBytes ()
+    {
+      return m_aCachedBytes;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("CachedBytes#", m_aCachedBytes.length).getToString ();
+    }
+  }
+
+  /**
+   * A single key store version. The future is completed with
+   * <code>null</code> if the key store cannot be loaded.
+   */
+  private static final class Entry
+  {
+    private final long m_nLastModified;
+    private final long m_nFileSize;
+    private final CompletableFuture <CachedKeyStore> m_aFuture = new CompletableFuture <> ();
+    // Only set if loading failed
+    private volatile long m_nFailureExpirationNanos;
+    private volatile boolean m_bFailed;
+
+    Entry (final long nLastModified, final long nFileSize)
+    {
+      m_nLastModified = nLastModified;
+      m_nFileSize = nFileSize;
+    }
+
+    void setFailed (final long nFailureExpirationNanos)
+    {
+      m_nFailureExpirationNanos = nFailureExpirationNanos;
+      m_bFailed = true;
+    }
+
+    boolean isUsable (final long nLastModified, final long nFileSize, final long nNow)
+    {
+      if (m_nLastModified != nLastModified || m_nFileSize != nFileSize)
+        return false;
+      return !m_bFailed || nNow - m_nFailureExpirationNanos < 0;
+    }
+  }
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  private final Duration m_aFailureTTL;
+  private final int m_nMaxSize;
+  private final Map <String, Entry> m_aMap;
+  // Digests of key store byte arrays by identity
+  private final Map <byte [], String> m_aDigests = new WeakHashMap <> ();
+
+  /**
+   * Constructor using the default settings. Usually
+   * {@link #getDefaultInstance()} should be used.
+   */
+  public AS2KeyStoreCache ()
+  {
+    this (DEFAULT_FAILURE_TTL, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aFailureTTL
+   *        The time a failure to load a key store is remembered. May not be
+   *        <code>null</code>. Use {@link Duration#ZERO} to retry on every
+   *        call.
+   * @param nMaxSize
+   *        The maximum number of entries to keep. Must be &gt; 0.
+   */
+  public AS2KeyStoreCache (@Nonnull final Duration aFailureTTL, @Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.notNull (aFailureTTL, "FailureTTL");
+    ValueEnforcer.isFalse (aFailureTTL.isNegative (), "FailureTTL may not be negative");
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_aFailureTTL = aFailureTTL;
+    m_nMaxSize = nMaxSize;
+    // Access order for LRU eviction
+    m_aMap = new LinkedHashMap <String, Entry> (16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <String, Entry> aEldest)
+      {
+        return size () > m_nMaxSize;
+      }
+    };
+  }
+
+  /**
+   * @return The time a failure to load a key store is remembered. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public Duration getFailureTTL ()
+  {
+    return m_aFailureTTL;
+  }
+
+  /**
+   * @return The maximum number of entries. Always &gt; 0.
+   */
+  @Nonnegative
+  public int getMaxSize ()
+  {
+    return m_nMaxSize;
+  }
+
+  /**
+   * @return The process wide default instance. Never <code>null</code>.
+   */
+  @Nonnull
+  public static AS2KeyStoreCache getDefaultInstance ()
+  {
+    return DEFAULT_INSTANCE;
+  }
+
+  @Nonnull
+  private static String _getPasswordHash (@Nonnull final String sPassword)
+  {
+    return MessageDigestValue.create (sPassword.getBytes (StandardCharsets.UTF_8), EMessageDigestAlgorithm.SHA_256)
+                             .getHexEncodedDigestString ();
+  }
+
+  @Nonnull
+  private static String _createKey (@Nonnull final IKeyStoreType aType, @Nonnull final String sSource, @Nonnull final String sPassword)
+  {
+    return aType.getID () + '\n' + sSource + '\n' + _getPasswordHash (sPassword);
+  }
+
+  @Nonnull
+  private static CachedKeyStore _load (@Nonnull final IKeyStoreType aType,
+                                       @Nonnull final InputStream aIS,
+                                       @Nonnull final String sPassword) throws AS2ClientBuilderException
+  {
+    final char [] aPassword = sPassword.toCharArray ();
+    try
+    {
+      final KeyStore aKeyStore = aType.getKeyStore ();
+      aKeyStore.load (aIS, aPassword);
+
+      // Re-encode as key store type that is cheap to load
+      final KeyStore aCachedKeyStore = CACHED_KEY_STORE_TYPE.getKeyStore ();
+      aCachedKeyStore.load (null, null);
+      for (final String sAlias : Collections.list (aKeyStore.aliases ()))
+      {
+        if (aKeyStore.isKeyEntry (sAlias))
+          aCachedKeyStore.setKeyEntry (sAlias, aKeyStore.getKey (sAlias, aPassword), aPassword, aKeyStore.getCertificateChain (sAlias));
+        else
+          aCachedKeyStore.setCertificateEntry (sAlias, aKeyStore.getCertificate (sAlias));
+      }
+
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        aCachedKeyStore.store (aBAOS, aPassword);
+        return new CachedKeyStore (aKeyStore, aBAOS.toByteArray ());
+      }
+    }
+    catch (final Exception ex)
+    {
+      throw new AS2ClientBuilderException ("Failed to load key store of type " + aType.getID (), ex);
+    }
+    finally
+    {
+      StreamHelper.close (aIS);
+    }
+  }
+
+  @Nullable
+  private CachedKeyStore _getOrLoad (@Nonnull final String sKey,
+                                     @Nonnull final String sDisplayName,
+                                     final long nLastModified,
+                                     final long nFileSize,
+                                     @Nonnull final IKeyStoreLoader aLoader)
+  {
+    final long nNow = System.nanoTime ();
+    final Entry aNewEntry = new Entry (nLastModified, nFileSize);
+    final Entry aEntry = m_aLock.lockedGet ( () -> {
+      final Entry aExisting = m_aMap.get (sKey);
+      if (aExisting != null && aExisting.isUsable (nLastModified, nFileSize, nNow))
+        return aExisting;
+      m_aMap.put (sKey, aNewEntry);
+      return aNewEntry;
+    });
+
+    if (aEntry != aNewEntry)
+    {
+      // Loaded or being loaded by another thread
+      return aEntry.m_aFuture.join ();
+    }
+
+    // Load outside of the lock
+    CachedKeyStore aCachedKeyStore = null;
+    try
+    {
+      aCachedKeyStore = aLoader.load ();
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Loaded key store " + sDisplayName + " into the cache: " + aCachedKeyStore);
+    }
+    catch (final AS2ClientBuilderException ex)
+    {
+      LOGGER.warn ("Failed to load key store " + sDisplayName + " into the cache", ex);
+    }
+    finally
+    {
+      if (aCachedKeyStore == null)
+      {
+        // Remember the failure for a while
+        aEntry.setFailed (System.nanoTime () + m_aFailureTTL.toNanos ());
+      }
+      aEntry.m_aFuture.complete (aCachedKeyStore);
+    }
+    return aCachedKeyStore;
+  }
+
+  @Nonnull
+  private String _getDigest (@Nonnull final byte [] aBytes)
+  {
+    String ret = m_aLock.lockedGet ( () -> m_aDigests.get (aBytes));
+    if (ret == null)
+    {
+      final String sDigest = MessageDigestValue.create (aBytes, EMessageDigestAlgorithm.SHA_256).getHexEncodedDigestString ();
+      m_aLock.locked ( () -> m_aDigests.put (aBytes, sDigest));
+      ret = sDigest;
+    }
+    return ret;
+  }
+
+  @FunctionalInterface
+  private interface IKeyStoreLoader
+  {
+    @Nonnull
+    CachedKeyStore load () throws AS2ClientBuilderException;
+  }
+
+  /**
+   * Get the cached key store for the provided file. The key store is reloaded
+   * if the file was modified.
+   *
+   * @param aType
+   *        The key store type. May not be <code>null</code>.
+   * @param aFile
+   *        The key store file. May not be <code>null</code>.
+   * @param sPassword
+   *        The key store password. May not be <code>null</code>.
+   * @return The cached key store or <code>null</code> if the key store cannot
+   *         be loaded.
+   */
+  @Nullable
+  public CachedKeyStore getKeyStore (@Nonnull final IKeyStoreType aType, @Nonnull final File aFile, @Nonnull final String sPassword)
+  {
+    ValueEnforcer.notNull (aType, "Type");
+    ValueEnforcer.notNull (aFile, "File");
+    ValueEnforcer.notNull (sPassword, "Password");
+
+    final long nLastModified = aFile.lastModified ();
+    final long nFileSize = aFile.length ();
+    return _getOrLoad (_createKey (aType, aFile.getAbsolutePath (), sPassword),
+                       "'" + aFile.getAbsolutePath () + "'",
+                       nLastModified,
+                       nFileSize,
+                       () -> {
+                         final InputStream aIS = FileHelper.getInputStream (aFile);
+                         if (aIS == null)
+                           throw new AS2ClientBuilderException ("Failed to open key store file '" + aFile.getAbsolutePath () + "'");
+                         return _load (aType, aIS, sPassword);
+                       });
+  }
+
+  /**
+   * Get the cached key store for the provided bytes. The byte array is
+   * identified by its digest, which is only calculated upon the first call for
+   * each byte array instance. Therefore the byte array must not be modified
+   * afterwards.
+   *
+   * @param aType
+   *        The key store type. May not be <code>null</code>.
+   * @param aBytes
+   *        The key store bytes. May not be <code>null</code>.
+   * @param sPassword
+   *        The key store password. May not be <code>null</code>.
+   * @return The cached key store or <code>null</code> if the key store cannot
+   *         be loaded.
+   */
+  @Nullable
+  public CachedKeyStore getKeyStore (@Nonnull final IKeyStoreType aType, @Nonnull final byte [] aBytes, @Nonnull final String sPassword)
+  {
+    ValueEnforcer.notNull (aType, "Type");
+    ValueEnforcer.notNull (aBytes, "Bytes");
+    ValueEnforcer.notNull (sPassword, "Password");
+
+    return _getOrLoad (_createKey (aType, _getDigest (aBytes), sPassword),
+                       "from " + aBytes.length + " bytes",
+                       0,
+                       aBytes.length,
+                       () -> _load (aType, new NonBlockingByteArrayInputStream (aBytes), sPassword));
+  }
+
+  /**
+   * Remove all cached key stores and remembered failures.
+   */
+  public void clear ()
+  {
+    m_aLock.locked ( () -> {
+      m_aMap.clear ();
+      m_aDigests.clear ();
+    });
+  }
+
+  /**
+   * @return The number of cached key stores, including the ones that failed to
+   *         load.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aLock.lockedGet (m_aMap::size).intValue ();
+  }
+}
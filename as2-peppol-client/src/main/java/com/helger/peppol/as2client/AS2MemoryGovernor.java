@@ -0,0 +1,512 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A client wide budget for the heap memory used by payloads of messages that
+ * are currently being sent. It works like a semaphore counted in bytes:
+ * before a payload is processed in memory, the estimated number of bytes is
+ * reserved, and released again after sending. If the budget is exhausted,
+ * {@link AS2ClientBuilder} either diverts the message to the spool-to-disk
+ * path or waits until enough memory is available.<br>
+ * If the payload size is unknown (e.g. for a DOM element or a stream), a
+ * configurable default size is assumed. Compressed payloads are estimated with
+ * an additional expansion factor. Messages that are streamed or spooled to
+ * disk reserve a small fixed amount for the envelope and the I/O buffers.<br>
+ * Waiting reservations are served in FIFO order, so that large payloads are
+ * not starved by small ones. A single reservation larger than the whole budget
+ * is reduced to the budget, so it runs alone.<br>
+ * The same instance is meant to be shared between many builders.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class AS2MemoryGovernor
+{
+  /** The default estimated heap bytes per payload byte for DOM processing */
+  public static final int DEFAULT_PAYLOAD_FACTOR = 6;
+  /** The default maximum time to wait for a reservation */
+  public static final Duration DEFAULT_MAX_WAIT = Duration.ofMinutes (5);
+  /** The default assumed payload size in bytes if the size is unknown */
+  public static final long DEFAULT_UNKNOWN_PAYLOAD_BYTES = 1024L * 1024L;
+  /** The default estimated decompressed bytes per compressed payload byte */
+  public static final int DEFAULT_COMPRESSED_PAYLOAD_FACTOR = 10;
+  /** The default bytes reserved for a streamed or spooled message */
+  public static final long DEFAULT_STREAMING_RESERVATION_BYTES = 64L * 1024L;
+
+  /**
+   * A reservation that must be closed after the payload is no longer needed.
+   *
+   * @author Philip Helger
+   */
+  public final class Reservation implements AutoCloseable
+  {
+    private final long m_nBytes;
+    private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+
+    private Reservation (@Nonnegative final long nBytes)
+    {
+      m_nBytes = nBytes;
+    }
+
+    /**
+     * @return The number of reserved bytes. Always &ge; 0.
+     */
+    @Nonnegative
+    public long getBytes ()
+    {
+      return m_nBytes;
+    }
+
+    /**
+     * Release the reservation. Calling this multiple times has no effect.
+     */
+    public void close ()
+    {
+      if (m_aClosed.compareAndSet (false, true) && m_nBytes > 0)
+        _release (m_nBytes);
+    }
+  }
+
+  private final long m_nBudgetBytes;
+  private final int m_nPayloadFactor;
+  private final Duration m_aMaxWait;
+  private final long m_nUnknownPayloadBytes;
+  private final int m_nCompressedPayloadFactor;
+  private final long m_nStreamingReservationBytes;
+  private final Lock m_aLock = new ReentrantLock ();
+  private final Condition m_aReleased = m_aLock.newCondition ();
+  private final ArrayDeque <Object> m_aWaiters = new ArrayDeque <> ();
+  private long m_nReservedBytes;
+  private long m_nPeakReservedBytes;
+  private final AtomicLong m_aDivertedCount = new AtomicLong (0);
+  private final AtomicLong m_aTimeoutCount = new AtomicLong (0);
+
+  /**
+   * Constructor with the default payload factor and maximum wait time.
+   *
+   * @param nBudgetBytes
+   *        The budget in bytes. Must be &gt; 0.
+   */
+  public AS2MemoryGovernor (@Nonnegative final long nBudgetBytes)
+  {
+    this (nBudgetBytes, DEFAULT_PAYLOAD_FACTOR, DEFAULT_MAX_WAIT);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nBudgetBytes
+   *        The budget in bytes. Must be &gt; 0.
+   * @param nPayloadFactor
+   *        The estimated heap bytes per payload byte, if the payload is
+   *        processed as DOM. This covers the DOM, the SBDH object tree and the
+   *        serialized buffers. Must be &gt; 0.
+   * @param aMaxWait
+   *        The maximum time to wait for a reservation. May not be
+   *        <code>null</code> and must not be negative.
+   */
+  public AS2MemoryGovernor (@Nonnegative final long nBudgetBytes,
+                            @Nonnegative final int nPayloadFactor,
+                            @Nonnull final Duration aMaxWait)
+  {
+    this (nBudgetBytes,
+          nPayloadFactor,
+          aMaxWait,
+          DEFAULT_UNKNOWN_PAYLOAD_BYTES,
+          DEFAULT_COMPRESSED_PAYLOAD_FACTOR,
+          DEFAULT_STREAMING_RESERVATION_BYTES);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nBudgetBytes
+   *        The budget in bytes. Must be &gt; 0.
+   * @param nPayloadFactor
+   *        The estimated heap bytes per payload byte, if the payload is
+   *        processed as DOM. This covers the DOM, the SBDH object tree and the
+   *        serialized buffers. Must be &gt; 0.
+   * @param aMaxWait
+   *        The maximum time to wait for a reservation. May not be
+   *        <code>null</code> and must not be negative.
+   * @param nUnknownPayloadBytes
+   *        The payload size in bytes that is assumed if the size is unknown.
+   *        Must be &gt; 0.
+   * @param nCompressedPayloadFactor
+   *        The estimated decompressed bytes per compressed payload byte. Must
+   *        be &gt; 0.
+   * @param nStreamingReservationBytes
+   *        The bytes reserved for a message that is streamed or spooled to
+   *        disk. Must be &ge; 0.
+   */
+  public AS2MemoryGovernor (@Nonnegative final long nBudgetBytes,
+                            @Nonnegative final int nPayloadFactor,
+                            @Nonnull final Duration aMaxWait,
+                            @Nonnegative final long nUnknownPayloadBytes,
+                            @Nonnegative final int nCompressedPayloadFactor,
+                            @Nonnegative final long nStreamingReservationBytes)
+  {
+    ValueEnforcer.isGT0 (nBudgetBytes, "BudgetBytes");
+    ValueEnforcer.isGT0 (nPayloadFactor, "PayloadFactor");
+    ValueEnforcer.notNull (aMaxWait, "MaxWait");
+    ValueEnforcer.isFalse (aMaxWait.isNegative (), "MaxWait may not be negative");
+    ValueEnforcer.isGT0 (nUnknownPayloadBytes, "UnknownPayloadBytes");
+    ValueEnforcer.isGT0 (nCompressedPayloadFactor, "CompressedPayloadFactor");
+    ValueEnforcer.isGE0 (nStreamingReservationBytes, "StreamingReservationBytes");
+    m_nBudgetBytes = nBudgetBytes;
+    m_nPayloadFactor = nPayloadFactor;
+    m_aMaxWait = aMaxWait;
+    m_nUnknownPayloadBytes = nUnknownPayloadBytes;
+    m_nCompressedPayloadFactor = nCompressedPayloadFactor;
+    m_nStreamingReservationBytes = nStreamingReservationBytes;
+  }
+
+  /**
+   * @return The budget in bytes. Always &gt; 0.
+   */
+  @Nonnegative
+  public final long getBudgetBytes ()
+  {
+    return m_nBudgetBytes;
+  }
+
+  /**
+   * @return The estimated heap bytes per payload byte for DOM processing.
+   *         Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getPayloadFactor ()
+  {
+    return m_nPayloadFactor;
+  }
+
+  /**
+   * @return The maximum time to wait for a reservation. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getMaxWait ()
+  {
+    return m_aMaxWait;
+  }
+
+  /**
+   * @return The payload size in bytes that is assumed if the size is unknown.
+   *         Always &gt; 0.
+   */
+  @Nonnegative
+  public final long getUnknownPayloadBytes ()
+  {
+    return m_nUnknownPayloadBytes;
+  }
+
+  /**
+   * @return The estimated decompressed bytes per compressed payload byte.
+   *         Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getCompressedPayloadFactor ()
+  {
+    return m_nCompressedPayloadFactor;
+  }
+
+  /**
+   * @return The bytes reserved for a message that is streamed or spooled to
+   *         disk. Always &ge; 0. Never more than the budget.
+   */
+  @Nonnegative
+  public final long getStreamingReservationBytes ()
+  {
+    return Math.min (m_nStreamingReservationBytes, m_nBudgetBytes);
+  }
+
+  /**
+   * Get the estimated heap usage for processing an uncompressed payload as
+   * DOM.
+   *
+   * @param nPayloadBytes
+   *        The payload size in bytes. Values &le; 0 mean unknown.
+   * @return The estimated heap bytes. Never more than the budget.
+   * @see #getEstimatedHeapBytes(long, boolean)
+   */
+  @Nonnegative
+  public long getEstimatedHeapBytes (final long nPayloadBytes)
+  {
+    return getEstimatedHeapBytes (nPayloadBytes, false);
+  }
+
+  /**
+   * Get the estimated heap usage for processing a payload as DOM.
+   *
+   * @param nPayloadBytes
+   *        The payload size in bytes. For compressed payloads this is the
+   *        compressed size. Values &le; 0 mean unknown, in which case
+   *        {@link #getUnknownPayloadBytes()} is used.
+   * @param bCompressed
+   *        <code>true</code> if the payload is compressed and is decompressed
+   *        while reading.
+   * @return The estimated heap bytes. Always &gt; 0. Never more than the
+   *         budget.
+   */
+  @Nonnegative
+  public long getEstimatedHeapBytes (final long nPayloadBytes, final boolean bCompressed)
+  {
+    final long nRealPayloadBytes = nPayloadBytes <= 0 ? m_nUnknownPayloadBytes : nPayloadBytes;
+    final long nFactor = bCompressed ? (long) m_nPayloadFactor * m_nCompressedPayloadFactor : m_nPayloadFactor;
+    // Avoid overflow
+    if (nRealPayloadBytes > m_nBudgetBytes / nFactor)
+      return m_nBudgetBytes;
+    return nRealPayloadBytes * nFactor;
+  }
+
+  private void _reserve (final long nBytes)
+  {
+    m_nReservedBytes += nBytes;
+    if (m_nReservedBytes > m_nPeakReservedBytes)
+      m_nPeakReservedBytes = m_nReservedBytes;
+  }
+
+  private void _release (final long nBytes)
+  {
+    m_aLock.lock ();
+    try
+    {
+      m_nReservedBytes -= nBytes;
+      m_aReleased.signalAll ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Reserve the provided number of bytes, if they are available right now.
+   *
+   * @param nBytes
+   *        The number of bytes to reserve. Must be &ge; 0. Values larger than
+   *        the budget are reduced to the budget.
+   * @return The reservation or <code>null</code> if not enough memory is
+   *         available or if other reservations are waiting.
+   */
+  @Nullable
+  public Reservation tryReserve (@Nonnegative final long nBytes)
+  {
+    ValueEnforcer.isGE0 (nBytes, "Bytes");
+    final long nRealBytes = Math.min (nBytes, m_nBudgetBytes);
+    if (nRealBytes == 0)
+      return new Reservation (0);
+
+    m_aLock.lock ();
+    try
+    {
+      if (!m_aWaiters.isEmpty () || m_nReservedBytes + nRealBytes > m_nBudgetBytes)
+        return null;
+      _reserve (nRealBytes);
+      return new Reservation (nRealBytes);
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Reserve the provided number of bytes and wait up to the maximum wait time
+   * until they are available.
+   *
+   * @param nBytes
+   *        The number of bytes to reserve. Must be &ge; 0. Values larger than
+   *        the budget are reduced to the budget.
+   * @return The reservation or <code>null</code> if the memory was not
+   *         available within the maximum wait time or if the thread was
+   *         interrupted.
+   */
+  @Nullable
+  public Reservation reserve (@Nonnegative final long nBytes)
+  {
+    ValueEnforcer.isGE0 (nBytes, "Bytes");
+    final long nRealBytes = Math.min (nBytes, m_nBudgetBytes);
+    if (nRealBytes == 0)
+      return new Reservation (0);
+
+    final Object aTicket = new Object ();
+    m_aLock.lock ();
+    try
+    {
+      m_aWaiters.add (aTicket);
+      try
+      {
+        long nRemainingNanos = m_aMaxWait.toNanos ();
+        while (m_aWaiters.peek () != aTicket || m_nReservedBytes + nRealBytes > m_nBudgetBytes)
+        {
+          if (nRemainingNanos <= 0)
+          {
+            m_aTimeoutCount.incrementAndGet ();
+            return null;
+          }
+          nRemainingNanos = m_aReleased.awaitNanos (nRemainingNanos);
+        }
+        _reserve (nRealBytes);
+        return new Reservation (nRealBytes);
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        return null;
+      }
+      finally
+      {
+        m_aWaiters.remove (aTicket);
+        // The next waiter may be able to proceed
+        m_aReleased.signalAll ();
+      }
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Remember that a message was diverted to the spool-to-disk path because the
+   * budget was exhausted.
+   */
+  void onDiverted ()
+  {
+    m_aDivertedCount.incrementAndGet ();
+  }
+
+  /**
+   * @return The number of bytes currently reserved. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getReservedBytes ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_nReservedBytes;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return The maximum number of bytes that were reserved at the same time.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public long getPeakReservedBytes ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_nPeakReservedBytes;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * Reset the peak reservation to the current reservation, e.g. after the
+   * metrics were collected.
+   */
+  public void resetPeakReservedBytes ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      m_nPeakReservedBytes = m_nReservedBytes;
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return The number of reservations currently waiting. Always &ge; 0.
+   */
+  @Nonnegative
+  public int getWaitingCount ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      return m_aWaiters.size ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  /**
+   * @return The number of messages diverted to the spool-to-disk path because
+   *         the budget was exhausted. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getDivertedCount ()
+  {
+    return m_aDivertedCount.get ();
+  }
+
+  /**
+   * @return The number of reservations that were not granted within the
+   *         maximum wait time. Always &ge; 0.
+   */
+  @Nonnegative
+  public long getTimeoutCount ()
+  {
+    return m_aTimeoutCount.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("BudgetBytes", m_nBudgetBytes)
+                                       .append ("PayloadFactor", m_nPayloadFactor)
+                                       .append ("MaxWait", m_aMaxWait)
+                                       .append ("UnknownPayloadBytes", m_nUnknownPayloadBytes)
+                                       .append ("CompressedPayloadFactor", m_nCompressedPayloadFactor)
+                                       .append ("StreamingReservationBytes", m_nStreamingReservationBytes)
+                                       .getToString ();
+  }
+}
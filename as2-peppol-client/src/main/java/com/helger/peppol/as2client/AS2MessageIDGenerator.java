@@ -0,0 +1,222 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A pre-compiled AS2 message ID format. The format is parsed once and the date
+ * formatters are created once, so that creating a message ID does not need the
+ * generic placeholder engine of the AS2 library. Supported placeholders are:
+ * <ul>
+ * <li><code>$date.<i>pattern</i>$</code> - the current date and time in the
+ * provided pattern</li>
+ * <li><code>$rand.<i>digits</i>$</code> - a random number with as many digits
+ * as provided, followed by a JVM wide sequence number. The sequence number
+ * guarantees that no two message IDs created in the same JVM are identical,
+ * even if many messages are created in the same second.</li>
+ * <li><code>$msg.sender.as2_id$</code> - the sender AS2 ID</li>
+ * <li><code>$msg.receiver.as2_id$</code> - the receiver AS2 ID</li>
+ * </ul>
+ * Formats with other placeholders cannot be compiled and are handled by the
+ * AS2 library.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@Immutable
+public final class AS2MessageIDGenerator
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2MessageIDGenerator.class);
+  private static final char PLACEHOLDER = '$';
+  private static final AtomicLong s_aSequence = new AtomicLong (0);
+
+  @FunctionalInterface
+  private interface ISegment
+  {
+    void append (@Nonnull StringBuilder aSB,
+                 @Nonnull ZonedDateTime aNow,
+                 @Nullable String sSenderAS2ID,
+                 @Nullable String sReceiverAS2ID);
+  }
+
+  private final String m_sFormat;
+  private final ICommonsList <ISegment> m_aSegments;
+
+  private AS2MessageIDGenerator (@Nonnull final String sFormat, @Nonnull final ICommonsList <ISegment> aSegments)
+  {
+    m_sFormat = sFormat;
+    m_aSegments = aSegments;
+  }
+
+  /**
+   * @return The original format. Never <code>null</code>.
+   */
+  @Nonnull
+  public String getFormat ()
+  {
+    return m_sFormat;
+  }
+
+  @Nullable
+  private static ISegment _compilePlaceholder (@Nonnull final String sPlaceholder)
+  {
+    if (sPlaceholder.startsWith ("date."))
+    {
+      final DateTimeFormatter aFormatter;
+      try
+      {
+        aFormatter = DateTimeFormatter.ofPattern (sPlaceholder.substring (5), Locale.US);
+      }
+      catch (final IllegalArgumentException ex)
+      {
+        return null;
+      }
+      return (aSB, aNow, s, r) -> aFormatter.formatTo (aNow, aSB);
+    }
+
+    if (sPlaceholder.startsWith ("rand."))
+    {
+      final int nDigits = sPlaceholder.length () - 5;
+      if (nDigits <= 0 || nDigits > 18)
+        return null;
+      long nBound = 1;
+      for (int i = 0; i < nDigits; ++i)
+        nBound *= 10;
+      final long nFinalBound = nBound;
+      return (aSB, aNow, s, r) -> {
+        final String sRand = Long.toString (ThreadLocalRandom.current ().nextLong (nFinalBound));
+        for (int i = sRand.length (); i < nDigits; ++i)
+          aSB.append ('0');
+        aSB.append (sRand).append ('.').append (Long.toString (s_aSequence.incrementAndGet (), Character.MAX_RADIX));
+      };
+    }
+
+    if (sPlaceholder.equals ("msg.sender.as2_id"))
+      return (aSB, aNow, s, r) -> aSB.append (StringHelper.getNotNull (s));
+
+    if (sPlaceholder.equals ("msg.receiver.as2_id"))
+      return (aSB, aNow, s, r) -> aSB.append (StringHelper.getNotNull (r));
+
+    return null;
+  }
+
+  /**
+   * Compile the provided message ID format.
+   *
+   * @param sFormat
+   *        The format to compile. May neither be <code>null</code> nor empty.
+   * @return <code>null</code> if the format contains placeholders that are not
+   *         supported.
+   */
+  @Nullable
+  public static AS2MessageIDGenerator compile (@Nonnull @Nonempty final String sFormat)
+  {
+    ValueEnforcer.notEmpty (sFormat, "Format");
+
+    final ICommonsList <ISegment> aSegments = new CommonsArrayList <> ();
+    int nIndex = 0;
+    while (nIndex < sFormat.length ())
+    {
+      final int nStart = sFormat.indexOf (PLACEHOLDER, nIndex);
+      if (nStart < 0)
+      {
+        final String sText = sFormat.substring (nIndex);
+        aSegments.add ((aSB, aNow, s, r) -> aSB.append (sText));
+        break;
+      }
+      if (nStart > nIndex)
+      {
+        final String sText = sFormat.substring (nIndex, nStart);
+        aSegments.add ((aSB, aNow, s, r) -> aSB.append (sText));
+      }
+
+      final int nEnd = sFormat.indexOf (PLACEHOLDER, nStart + 1);
+      if (nEnd < 0)
+      {
+        LOGGER.warn ("The AS2 message ID format '" + sFormat + "' contains an unterminated placeholder");
+        return null;
+      }
+      final ISegment aSegment = _compilePlaceholder (sFormat.substring (nStart + 1, nEnd));
+      if (aSegment == null)
+      {
+        if (LOGGER.isDebugEnabled ())
+          LOGGER.debug ("The AS2 message ID format '" + sFormat + "' contains unsupported placeholders and cannot be compiled");
+        return null;
+      }
+      aSegments.add (aSegment);
+      nIndex = nEnd + 1;
+    }
+    return new AS2MessageIDGenerator (sFormat, aSegments);
+  }
+
+  /**
+   * Check if the provided value can be used as an AS2 message ID format
+   * without being modified by the AS2 library.
+   *
+   * @param s
+   *        The value to check. May be <code>null</code>.
+   * @return <code>true</code> if the value contains no placeholder character.
+   */
+  static boolean isLiteral (@Nullable final String s)
+  {
+    return s == null || s.indexOf (PLACEHOLDER) < 0;
+  }
+
+  /**
+   * Create a new message ID.
+   *
+   * @param sSenderAS2ID
+   *        The sender AS2 ID. May be <code>null</code>.
+   * @param sReceiverAS2ID
+   *        The receiver AS2 ID. May be <code>null</code>.
+   * @return The new message ID. Never <code>null</code>.
+   */
+  @Nonnull
+  public String createMessageID (@Nullable final String sSenderAS2ID, @Nullable final String sReceiverAS2ID)
+  {
+    final ZonedDateTime aNow = ZonedDateTime.now ();
+    final StringBuilder aSB = new StringBuilder (64);
+    for (final ISegment aSegment : m_aSegments)
+      aSegment.append (aSB, aNow, sSenderAS2ID, sReceiverAS2ID);
+    return aSB.toString ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Format", m_sFormat).getToString ();
+  }
+}
@@ -0,0 +1,514 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.time.Duration;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A thread-safe outbound throttle per receiving partner. Every partner has a
+ * token bucket that limits the number of messages per second and a semaphore
+ * that limits the number of concurrent connections. Partners are identified by
+ * their AS2 ID or by their AS2 endpoint URL. If no specific limit is configured
+ * for a partner, the default limit applies - but each partner still gets its
+ * own bucket and semaphore. The state of a partner that was not used for the
+ * idle timeout and whose bucket is full again is evicted, so that the number of
+ * tracked partners does not grow without limit.<br>
+ * The same instance is meant to be shared between many builders.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class AS2PartnerThrottle
+{
+  /** The default maximum time to wait for a permit */
+  public static final Duration DEFAULT_MAX_WAIT = Duration.ofMinutes (5);
+  /** The default time after which the state of an unused partner is evicted */
+  public static final Duration DEFAULT_IDLE_TIMEOUT = Duration.ofMinutes (10);
+
+  /**
+   * The limits of a single partner.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class Limit
+  {
+    /** No limits at all */
+    public static final Limit UNLIMITED = new Limit (0, 0, 0);
+
+    private final double m_dMessagesPerSecond;
+    private final int m_nBurst;
+    private final int m_nMaxConcurrent;
+
+    /**
+     * Constructor
+     *
+     * @param dMessagesPerSecond
+     *        The sustained number of messages per second. Use 0 for no rate
+     *        limit. Must be &ge; 0.
+     * @param nBurst
+     *        The number of messages that may be sent at once before the rate
+     *        limit applies. Must be &ge; 0. Values &lt; 1 are treated as 1 if a
+     *        rate limit is defined.
+     * @param nMaxConcurrent
+     *        The maximum number of concurrent connections. Use 0 for no limit.
+     *        Must be &ge; 0.
+     */
+    public Limit (final double dMessagesPerSecond, @Nonnegative final int nBurst, @Nonnegative final int nMaxConcurrent)
+    {
+      ValueEnforcer.isTrue (dMessagesPerSecond >= 0, "MessagesPerSecond may not be negative");
+      ValueEnforcer.isGE0 (nBurst, "Burst");
+      ValueEnforcer.isGE0 (nMaxConcurrent, "MaxConcurrent");
+      m_dMessagesPerSecond = dMessagesPerSecond;
+      m_nBurst = nBurst;
+      m_nMaxConcurrent = nMaxConcurrent;
+    }
+
+    /**
+     * @return The sustained number of messages per second. 0 means unlimited.
+     */
+    public double getMessagesPerSecond ()
+    {
+      return m_dMessagesPerSecond;
+    }
+
+    /**
+     * @return The burst size. Always &ge; 0.
+     */
+    @Nonnegative
+    public int getBurst ()
+    {
+      return m_nBurst;
+    }
+
+    /**
+     * @return The maximum number of concurrent connections. 0 means unlimited.
+     */
+    @Nonnegative
+    public int getMaxConcurrent ()
+    {
+      return m_nMaxConcurrent;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("MessagesPerSecond", m_dMessagesPerSecond)
+                                         .append ("Burst", m_nBurst)
+                                         .append ("MaxConcurrent", m_nMaxConcurrent)
+                                         .getToString ();
+    }
+  }
+
+  /**
+   * A permit that must be closed after the message was sent.
+   *
+   * @author Philip Helger
+   */
+  public static final class Permit implements AutoCloseable
+  {
+    private final PartnerState m_aState;
+    private final AtomicBoolean m_aClosed = new AtomicBoolean (false);
+
+    private Permit (@Nonnull final PartnerState aState)
+    {
+      m_aState = aState;
+    }
+
+    /**
+     * Release the permit. Calling this multiple times has no effect.
+     */
+    public void close ()
+    {
+      if (m_aClosed.compareAndSet (false, true))
+        m_aState.release ();
+    }
+  }
+
+  private static final class PartnerState
+  {
+    private final Limit m_aLimit;
+    private final Semaphore m_aSemaphore;
+    private final SimpleLock m_aBucketLock = new SimpleLock ();
+    private final double m_dCapacity;
+    private double m_dTokens;
+    private long m_nLastRefillNanos;
+    // Number of pending acquires and open permits
+    private final AtomicInteger m_aUsageCount = new AtomicInteger (0);
+    private volatile long m_nLastUsedNanos;
+
+    PartnerState (@Nonnull final Limit aLimit)
+    {
+      m_aLimit = aLimit;
+      m_aSemaphore = aLimit.getMaxConcurrent () > 0 ? new Semaphore (aLimit.getMaxConcurrent (), true) : null;
+      m_dCapacity = Math.max (1, aLimit.getBurst ());
+      m_dTokens = m_dCapacity;
+      m_nLastRefillNanos = System.nanoTime ();
+      m_nLastUsedNanos = m_nLastRefillNanos;
+    }
+
+    void markUsed ()
+    {
+      m_aUsageCount.incrementAndGet ();
+    }
+
+    void markUnused ()
+    {
+      // Update the time first, so that an evicting thread never sees an old
+      // time with a usage count of 0
+      m_nLastUsedNanos = System.nanoTime ();
+      m_aUsageCount.decrementAndGet ();
+    }
+
+    void release ()
+    {
+      if (m_aSemaphore != null)
+        m_aSemaphore.release ();
+      markUnused ();
+    }
+
+    /**
+     * @return <code>true</code> if this state is unused for at least the idle
+     *         time and the bucket is full again, so that it can be replaced by
+     *         a new state without changing the behaviour.
+     */
+    boolean isEvictable (final long nNowNanos, final long nIdleNanos)
+    {
+      if (m_aUsageCount.get () > 0 || nNowNanos - m_nLastUsedNanos < nIdleNanos)
+        return false;
+
+      final double dRate = m_aLimit.getMessagesPerSecond ();
+      if (dRate <= 0)
+        return true;
+
+      return m_aBucketLock.lockedGet ( () -> {
+        final double dRefill = (nNowNanos - m_nLastRefillNanos) * dRate / TimeUnit.SECONDS.toNanos (1);
+        return m_dTokens + dRefill >= m_dCapacity;
+      }).booleanValue ();
+    }
+
+    /**
+     * Take a token from the bucket. If no token is available, a future token is
+     * reserved, so that concurrent callers are served in order.
+     *
+     * @return The nanoseconds to wait until the reserved token is available or
+     *         -1 if the wait would exceed the maximum wait time.
+     */
+    long reserveToken (final long nMaxWaitNanos)
+    {
+      final double dRate = m_aLimit.getMessagesPerSecond ();
+      if (dRate <= 0)
+        return 0;
+
+      m_aBucketLock.lock ();
+      try
+      {
+        final long nNow = System.nanoTime ();
+        final double dRefill = (nNow - m_nLastRefillNanos) * dRate / TimeUnit.SECONDS.toNanos (1);
+        m_dTokens = Math.min (m_dCapacity, m_dTokens + dRefill);
+        m_nLastRefillNanos = nNow;
+
+        final double dNewTokens = m_dTokens - 1;
+        final long nWaitNanos = dNewTokens >= 0 ? 0 : (long) Math.ceil (-dNewTokens * TimeUnit.SECONDS.toNanos (1) / dRate);
+        if (nWaitNanos > nMaxWaitNanos)
+          return -1;
+        m_dTokens = dNewTokens;
+        return nWaitNanos;
+      }
+      finally
+      {
+        m_aBucketLock.unlock ();
+      }
+    }
+  }
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  private final Limit m_aDefaultLimit;
+  private final Duration m_aMaxWait;
+  private final Duration m_aIdleTimeout;
+  private final ICommonsMap <String, Limit> m_aPartnerLimits = new CommonsHashMap <> ();
+  private final ICommonsMap <String, PartnerState> m_aStates = new CommonsHashMap <> ();
+  private long m_nLastEvictionNanos;
+
+  /**
+   * Constructor
+   *
+   * @param aDefaultLimit
+   *        The limit for all partners without a specific limit. May not be
+   *        <code>null</code>.
+   */
+  public AS2PartnerThrottle (@Nonnull final Limit aDefaultLimit)
+  {
+    this (aDefaultLimit, DEFAULT_MAX_WAIT);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDefaultLimit
+   *        The limit for all partners without a specific limit. May not be
+   *        <code>null</code>.
+   * @param aMaxWait
+   *        The maximum time to wait for a permit. May not be <code>null</code>
+   *        and must not be negative.
+   */
+  public AS2PartnerThrottle (@Nonnull final Limit aDefaultLimit, @Nonnull final Duration aMaxWait)
+  {
+    this (aDefaultLimit, aMaxWait, DEFAULT_IDLE_TIMEOUT);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aDefaultLimit
+   *        The limit for all partners without a specific limit. May not be
+   *        <code>null</code>.
+   * @param aMaxWait
+   *        The maximum time to wait for a permit. May not be <code>null</code>
+   *        and must not be negative.
+   * @param aIdleTimeout
+   *        The time after which the state of an unused partner is evicted. May
+   *        not be <code>null</code> and must be positive.
+   */
+  public AS2PartnerThrottle (@Nonnull final Limit aDefaultLimit,
+                             @Nonnull final Duration aMaxWait,
+                             @Nonnull final Duration aIdleTimeout)
+  {
+    ValueEnforcer.notNull (aDefaultLimit, "DefaultLimit");
+    ValueEnforcer.notNull (aMaxWait, "MaxWait");
+    ValueEnforcer.isFalse (aMaxWait.isNegative (), "MaxWait may not be negative");
+    ValueEnforcer.notNull (aIdleTimeout, "IdleTimeout");
+    ValueEnforcer.isFalse (aIdleTimeout.isNegative () || aIdleTimeout.isZero (), "IdleTimeout must be positive");
+    m_aDefaultLimit = aDefaultLimit;
+    m_aMaxWait = aMaxWait;
+    m_aIdleTimeout = aIdleTimeout;
+    m_nLastEvictionNanos = System.nanoTime ();
+  }
+
+  /**
+   * @return The limit for all partners without a specific limit. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Limit getDefaultLimit ()
+  {
+    return m_aDefaultLimit;
+  }
+
+  /**
+   * @return The maximum time to wait for a permit. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getMaxWait ()
+  {
+    return m_aMaxWait;
+  }
+
+  /**
+   * @return The time after which the state of an unused partner is evicted.
+   *         Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getIdleTimeout ()
+  {
+    return m_aIdleTimeout;
+  }
+
+  /**
+   * @return The number of partners whose state is currently tracked. Always
+   *         &ge; 0.
+   */
+  @Nonnegative
+  public int getPartnerStateCount ()
+  {
+    return m_aLock.lockedGet (m_aStates::size).intValue ();
+  }
+
+  /**
+   * Set or remove the specific limit of a single partner. Messages currently
+   * in flight are not affected.
+   *
+   * @param sPartnerKey
+   *        The AS2 ID or the AS2 endpoint URL of the partner. May neither be
+   *        <code>null</code> nor empty.
+   * @param aLimit
+   *        The limit to use. May be <code>null</code> to use the default limit.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS2PartnerThrottle setPartnerLimit (@Nonnull @Nonempty final String sPartnerKey, @Nullable final Limit aLimit)
+  {
+    ValueEnforcer.notEmpty (sPartnerKey, "PartnerKey");
+
+    m_aLock.locked ( () -> {
+      if (aLimit == null)
+        m_aPartnerLimits.remove (sPartnerKey);
+      else
+        m_aPartnerLimits.put (sPartnerKey, aLimit);
+      // Recreate the state on next use
+      m_aStates.remove (sPartnerKey);
+    });
+    return this;
+  }
+
+  /**
+   * Get the effective limit of a partner.
+   *
+   * @param sAS2ID
+   *        The AS2 ID of the partner. May be <code>null</code>.
+   * @param sURL
+   *        The AS2 endpoint URL of the partner. May be <code>null</code>.
+   * @return The specific limit of the AS2 ID, the specific limit of the URL or
+   *         the default limit. Never <code>null</code>.
+   */
+  @Nonnull
+  public Limit getEffectiveLimit (@Nullable final String sAS2ID, @Nullable final String sURL)
+  {
+    return m_aLock.lockedGet ( () -> {
+      Limit ret = sAS2ID == null ? null : m_aPartnerLimits.get (sAS2ID);
+      if (ret == null && sURL != null)
+        ret = m_aPartnerLimits.get (sURL);
+      return ret != null ? ret : m_aDefaultLimit;
+    });
+  }
+
+  /**
+   * Get or create the state of a partner and mark it as used. The caller must
+   * call {@link PartnerState#markUnused()} or {@link PartnerState#release()}
+   * afterwards.
+   */
+  @Nonnull
+  private PartnerState _getState (@Nullable final String sAS2ID, @Nullable final String sURL)
+  {
+    return m_aLock.lockedGet ( () -> {
+      final long nNowNanos = System.nanoTime ();
+      final long nIdleNanos = m_aIdleTimeout.toNanos ();
+      if (nNowNanos - m_nLastEvictionNanos >= nIdleNanos)
+      {
+        m_aStates.entrySet ().removeIf (e -> e.getValue ().isEvictable (nNowNanos, nIdleNanos));
+        m_nLastEvictionNanos = nNowNanos;
+      }
+
+      final String sKey;
+      Limit aLimit;
+      if (sAS2ID != null && (aLimit = m_aPartnerLimits.get (sAS2ID)) != null)
+        sKey = sAS2ID;
+      else
+        if (sURL != null && (aLimit = m_aPartnerLimits.get (sURL)) != null)
+          sKey = sURL;
+        else
+        {
+          aLimit = m_aDefaultLimit;
+          sKey = StringHelper.hasText (sAS2ID) ? sAS2ID : sURL;
+        }
+      final Limit aFinalLimit = aLimit;
+      final PartnerState ret = m_aStates.computeIfAbsent (sKey, k -> new PartnerState (aFinalLimit));
+      // Inside the lock, so that the state cannot be evicted in between
+      ret.markUsed ();
+      return ret;
+    });
+  }
+
+  /**
+   * Wait until a message may be sent to the provided partner. The returned
+   * permit must be closed after the message was sent.
+   *
+   * @param sAS2ID
+   *        The AS2 ID of the partner. May be <code>null</code> if the URL is
+   *        present.
+   * @param sURL
+   *        The AS2 endpoint URL of the partner. May be <code>null</code> if the
+   *        AS2 ID is present.
+   * @return The permit or <code>null</code> if no permit could be obtained
+   *         within the maximum wait time or if the thread was interrupted.
+   */
+  @Nullable
+  public Permit acquire (@Nullable final String sAS2ID, @Nullable final String sURL)
+  {
+    ValueEnforcer.isTrue (StringHelper.hasText (sAS2ID) || StringHelper.hasText (sURL), "Either AS2 ID or URL must be present");
+
+    final PartnerState aState = _getState (sAS2ID, sURL);
+    final long nStartNanos = System.nanoTime ();
+    final long nMaxWaitNanos = m_aMaxWait.toNanos ();
+    try
+    {
+      // Concurrency first, so that the rate applies to the actual sending
+      if (aState.m_aSemaphore != null && !aState.m_aSemaphore.tryAcquire (nMaxWaitNanos, TimeUnit.NANOSECONDS))
+      {
+        aState.markUnused ();
+        return null;
+      }
+    }
+    catch (final InterruptedException ex)
+    {
+      aState.markUnused ();
+      Thread.currentThread ().interrupt ();
+      return null;
+    }
+
+    final Permit ret = new Permit (aState);
+    final long nWaitNanos = aState.reserveToken (nMaxWaitNanos - (System.nanoTime () - nStartNanos));
+    if (nWaitNanos < 0)
+    {
+      ret.close ();
+      return null;
+    }
+    if (nWaitNanos > 0)
+    {
+      try
+      {
+        TimeUnit.NANOSECONDS.sleep (nWaitNanos);
+      }
+      catch (final InterruptedException ex)
+      {
+        ret.close ();
+        Thread.currentThread ().interrupt ();
+        return null;
+      }
+    }
+    return ret;
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("DefaultLimit", m_aDefaultLimit)
+                                       .append ("MaxWait", m_aMaxWait)
+                                       .append ("IdleTimeout", m_aIdleTimeout)
+                                       .append ("PartnerLimits", m_aPartnerLimits)
+                                       .getToString ();
+  }
+}
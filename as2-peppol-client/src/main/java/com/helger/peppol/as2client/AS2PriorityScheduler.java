@@ -0,0 +1,405 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A scheduler for asynchronous AS2 sending with multiple priority classes (see
+ * {@link EAS2SendPriority}). Each priority has its own bounded queue. The
+ * worker threads dequeue using weighted round robin, so that if all queues
+ * contain tasks, each priority gets a share according to its weight, and no
+ * priority starves. Additionally a number of worker threads can be reserved
+ * for {@link EAS2SendPriority#INTERACTIVE} tasks, so that a single interactive
+ * message never waits until a running bulk send is finished.<br>
+ * Use {@link #getExecutor(EAS2SendPriority)} together with
+ * {@link AS2ClientBuilder#sendAsync(Executor)}. If the queue of a priority is
+ * full, the task is rejected, which results in an exceptionally completed
+ * future.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class AS2PriorityScheduler implements AutoCloseable
+{
+  /** The default number of worker threads */
+  public static final int DEFAULT_THREAD_COUNT = 16;
+  /** The default number of worker threads reserved for interactive tasks */
+  public static final int DEFAULT_RESERVED_INTERACTIVE_THREADS = 2;
+  /** The default maximum number of queued tasks per priority */
+  public static final int DEFAULT_QUEUE_CAPACITY = 1_000;
+  /** The default number of interactive tasks dequeued per round */
+  public static final int DEFAULT_INTERACTIVE_WEIGHT = 8;
+  /** The default number of bulk tasks dequeued per round */
+  public static final int DEFAULT_BULK_WEIGHT = 1;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2PriorityScheduler.class);
+  private static final AtomicInteger s_aPoolCounter = new AtomicInteger (0);
+  private static final EAS2SendPriority [] PRIORITIES = EAS2SendPriority.values ();
+
+  private final int m_nThreadCount;
+  private final int m_nReservedInteractiveThreads;
+  private final int m_nQueueCapacity;
+  private final int [] m_aWeights = new int [PRIORITIES.length];
+  private final Lock m_aLock = new ReentrantLock ();
+  private final Condition m_aWorkAvailable = m_aLock.newCondition ();
+  private final Map <EAS2SendPriority, ArrayDeque <Runnable>> m_aQueues = new EnumMap <> (EAS2SendPriority.class);
+  private final Map <EAS2SendPriority, Executor> m_aExecutors = new EnumMap <> (EAS2SendPriority.class);
+  private final int [] m_aCredits = new int [PRIORITIES.length];
+  private final ICommonsList <Thread> m_aWorkers;
+  private int m_nRunningBulk;
+  private boolean m_bClosed;
+
+  /**
+   * Constructor with the default settings.
+   */
+  public AS2PriorityScheduler ()
+  {
+    this (DEFAULT_THREAD_COUNT, DEFAULT_RESERVED_INTERACTIVE_THREADS, DEFAULT_QUEUE_CAPACITY);
+  }
+
+  /**
+   * Constructor with the default weights.
+   *
+   * @param nThreadCount
+   *        The number of worker threads. Must be &gt; 0.
+   * @param nReservedInteractiveThreads
+   *        The number of worker threads that only execute interactive tasks.
+   *        Must be &ge; 0 and less than the thread count.
+   * @param nQueueCapacity
+   *        The maximum number of tasks waiting for execution per priority. Must
+   *        be &gt; 0.
+   */
+  public AS2PriorityScheduler (@Nonnegative final int nThreadCount,
+                               @Nonnegative final int nReservedInteractiveThreads,
+                               @Nonnegative final int nQueueCapacity)
+  {
+    this (nThreadCount, nReservedInteractiveThreads, nQueueCapacity, DEFAULT_INTERACTIVE_WEIGHT, DEFAULT_BULK_WEIGHT);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param nThreadCount
+   *        The number of worker threads. Must be &gt; 0.
+   * @param nReservedInteractiveThreads
+   *        The number of worker threads that only execute interactive tasks.
+   *        Must be &ge; 0 and less than the thread count.
+   * @param nQueueCapacity
+   *        The maximum number of tasks waiting for execution per priority. Must
+   *        be &gt; 0.
+   * @param nInteractiveWeight
+   *        The number of interactive tasks that are dequeued per round, if
+   *        tasks of all priorities are waiting. Must be &gt; 0.
+   * @param nBulkWeight
+   *        The number of bulk tasks that are dequeued per round, if tasks of
+   *        all priorities are waiting. Must be &gt; 0.
+   */
+  public AS2PriorityScheduler (@Nonnegative final int nThreadCount,
+                               @Nonnegative final int nReservedInteractiveThreads,
+                               @Nonnegative final int nQueueCapacity,
+                               @Nonnegative final int nInteractiveWeight,
+                               @Nonnegative final int nBulkWeight)
+  {
+    ValueEnforcer.isGT0 (nThreadCount, "ThreadCount");
+    ValueEnforcer.isBetweenInclusive (nReservedInteractiveThreads, "ReservedInteractiveThreads", 0, nThreadCount - 1);
+    ValueEnforcer.isGT0 (nQueueCapacity, "QueueCapacity");
+    ValueEnforcer.isGT0 (nInteractiveWeight, "InteractiveWeight");
+    ValueEnforcer.isGT0 (nBulkWeight, "BulkWeight");
+    m_nThreadCount = nThreadCount;
+    m_nReservedInteractiveThreads = nReservedInteractiveThreads;
+    m_nQueueCapacity = nQueueCapacity;
+    m_aWeights[EAS2SendPriority.INTERACTIVE.ordinal ()] = nInteractiveWeight;
+    m_aWeights[EAS2SendPriority.BULK.ordinal ()] = nBulkWeight;
+
+    for (final EAS2SendPriority ePriority : PRIORITIES)
+    {
+      m_aQueues.put (ePriority, new ArrayDeque <> ());
+      m_aExecutors.put (ePriority, r -> _enqueue (ePriority, r));
+      m_aCredits[ePriority.ordinal ()] = m_aWeights[ePriority.ordinal ()];
+    }
+
+    final String sPrefix = "as2-prio-send-" + s_aPoolCounter.incrementAndGet () + "-";
+    m_aWorkers = new CommonsArrayList <> (nThreadCount);
+    for (int i = 0; i < nThreadCount; ++i)
+    {
+      final Thread t = new Thread (this::_runWorker, sPrefix + (i + 1));
+      t.setDaemon (true);
+      m_aWorkers.add (t);
+      t.start ();
+    }
+  }
+
+  /**
+   * @return The number of worker threads. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getThreadCount ()
+  {
+    return m_nThreadCount;
+  }
+
+  /**
+   * @return The number of worker threads reserved for interactive tasks.
+   *         Always &ge; 0.
+   */
+  @Nonnegative
+  public final int getReservedInteractiveThreads ()
+  {
+    return m_nReservedInteractiveThreads;
+  }
+
+  /**
+   * @return The maximum number of queued tasks per priority. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getQueueCapacity ()
+  {
+    return m_nQueueCapacity;
+  }
+
+  /**
+   * Get the weight of the provided priority.
+   *
+   * @param ePriority
+   *        The priority to check. May not be <code>null</code>.
+   * @return The number of tasks of this priority that are dequeued per round,
+   *         if tasks of all priorities are waiting. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getWeight (@Nonnull final EAS2SendPriority ePriority)
+  {
+    ValueEnforcer.notNull (ePriority, "Priority");
+    return m_aWeights[ePriority.ordinal ()];
+  }
+
+  /**
+   * Get the executor that schedules tasks with the provided priority.
+   *
+   * @param ePriority
+   *        The priority to use. May not be <code>null</code>.
+   * @return The executor. Never <code>null</code>.
+   */
+  @Nonnull
+  public Executor getExecutor (@Nonnull final EAS2SendPriority ePriority)
+  {
+    ValueEnforcer.notNull (ePriority, "Priority");
+    return m_aExecutors.get (ePriority);
+  }
+
+  /**
+   * Get the number of tasks waiting for execution.
+   *
+   * @param ePriority
+   *        The priority to check. May not be <code>null</code>.
+   * @return The number of queued tasks of the provided priority.
+   */
+  @Nonnegative
+  public int getQueuedTaskCount (@Nonnull final EAS2SendPriority ePriority)
+  {
+    ValueEnforcer.notNull (ePriority, "Priority");
+
+    m_aLock.lock ();
+    try
+    {
+      return m_aQueues.get (ePriority).size ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  private void _enqueue (@Nonnull final EAS2SendPriority ePriority, @Nonnull final Runnable aRunnable)
+  {
+    ValueEnforcer.notNull (aRunnable, "Runnable");
+
+    m_aLock.lock ();
+    try
+    {
+      if (m_bClosed)
+        throw new RejectedExecutionException ("The scheduler is closed");
+      final ArrayDeque <Runnable> aQueue = m_aQueues.get (ePriority);
+      if (aQueue.size () >= m_nQueueCapacity)
+        throw new RejectedExecutionException ("The " + ePriority + " queue is full (" + m_nQueueCapacity + " tasks)");
+      aQueue.add (aRunnable);
+      m_aWorkAvailable.signal ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+  }
+
+  private boolean _isRunnable (@Nonnull final EAS2SendPriority ePriority)
+  {
+    if (m_aQueues.get (ePriority).isEmpty ())
+      return false;
+    // Keep the reserved threads free for interactive tasks
+    return ePriority != EAS2SendPriority.BULK || m_nRunningBulk < m_nThreadCount - m_nReservedInteractiveThreads;
+  }
+
+  /**
+   * Weighted round robin: take from the first priority that has tasks and
+   * credits left. If no such priority exists, all credits are refilled.
+   *
+   * @return <code>null</code> if no task can be executed right now.
+   */
+  @Nullable
+  private EAS2SendPriority _pollPriority ()
+  {
+    for (int nPass = 0; nPass < 2; ++nPass)
+    {
+      for (final EAS2SendPriority ePriority : PRIORITIES)
+        if (m_aCredits[ePriority.ordinal ()] > 0 && _isRunnable (ePriority))
+        {
+          m_aCredits[ePriority.ordinal ()]--;
+          return ePriority;
+        }
+      for (final EAS2SendPriority ePriority : PRIORITIES)
+        m_aCredits[ePriority.ordinal ()] = m_aWeights[ePriority.ordinal ()];
+    }
+    return null;
+  }
+
+  private boolean _hasQueuedTasks ()
+  {
+    for (final ArrayDeque <Runnable> aQueue : m_aQueues.values ())
+      if (!aQueue.isEmpty ())
+        return true;
+    return false;
+  }
+
+  private void _runWorker ()
+  {
+    while (true)
+    {
+      final EAS2SendPriority ePriority;
+      final Runnable aTask;
+      m_aLock.lock ();
+      try
+      {
+        EAS2SendPriority eNext;
+        while ((eNext = _pollPriority ()) == null)
+        {
+          if (m_bClosed && !_hasQueuedTasks ())
+            return;
+          m_aWorkAvailable.awaitUninterruptibly ();
+        }
+        ePriority = eNext;
+        aTask = m_aQueues.get (ePriority).poll ();
+        if (ePriority == EAS2SendPriority.BULK)
+          m_nRunningBulk++;
+      }
+      finally
+      {
+        m_aLock.unlock ();
+      }
+
+      try
+      {
+        aTask.run ();
+      }
+      catch (final Throwable t)
+      {
+        // Errors are logged as well, so that the worker thread stays alive
+        LOGGER.error ("Error running " + ePriority + " AS2 send task", t);
+      }
+      finally
+      {
+        if (ePriority == EAS2SendPriority.BULK)
+        {
+          m_aLock.lock ();
+          try
+          {
+            m_nRunningBulk--;
+            // A waiting bulk task may run now
+            m_aWorkAvailable.signalAll ();
+          }
+          finally
+          {
+            m_aLock.unlock ();
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Stop accepting new tasks and wait until all queued tasks are finished.
+   */
+  public void close ()
+  {
+    m_aLock.lock ();
+    try
+    {
+      m_bClosed = true;
+      m_aWorkAvailable.signalAll ();
+    }
+    finally
+    {
+      m_aLock.unlock ();
+    }
+
+    for (final Thread aWorker : m_aWorkers)
+    {
+      try
+      {
+        aWorker.join ();
+      }
+      catch (final InterruptedException ex)
+      {
+        LOGGER.warn ("Interrupted while waiting for AS2 send workers");
+        Thread.currentThread ().interrupt ();
+        return;
+      }
+    }
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("ThreadCount", m_nThreadCount)
+                                       .append ("ReservedInteractiveThreads", m_nReservedInteractiveThreads)
+                                       .append ("QueueCapacity", m_nQueueCapacity)
+                                       .append ("InteractiveWeight", getWeight (EAS2SendPriority.INTERACTIVE))
+                                       .append ("BulkWeight", getWeight (EAS2SendPriority.BULK))
+                                       .getToString ();
+  }
+}
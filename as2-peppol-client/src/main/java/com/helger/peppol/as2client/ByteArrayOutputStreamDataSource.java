@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import javax.activation.DataSource;
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A read-only {@link DataSource} that directly uses the internal buffer of a
+ * {@link NonBlockingByteArrayOutputStream} without copying it. The output
+ * stream must not be modified as long as this data source is in use.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@Immutable
+public class ByteArrayOutputStreamDataSource implements DataSource
+{
+  private final byte [] m_aBuffer;
+  private final int m_nLength;
+  private final String m_sContentType;
+
+  /**
+   * Constructor
+   *
+   * @param aBAOS
+   *        The output stream to use. May not be <code>null</code>.
+   * @param sContentType
+   *        The MIME type to use. May neither be <code>null</code> nor empty.
+   */
+  public ByteArrayOutputStreamDataSource (@Nonnull final NonBlockingByteArrayOutputStream aBAOS,
+                                          @Nonnull @Nonempty final String sContentType)
+  {
+    ValueEnforcer.notNull (aBAOS, "BAOS");
+    ValueEnforcer.notEmpty (sContentType, "ContentType");
+    m_aBuffer = aBAOS.directGetBuffer ();
+    m_nLength = aBAOS.size ();
+    m_sContentType = sContentType;
+  }
+
+  /**
+   * @return The number of bytes available.
+   */
+  @Nonnegative
+  public final int getLength ()
+  {
+    return m_nLength;
+  }
+
+  /**
+   * @return A read-only view on the bytes without copying. The position is 0
+   *         and the limit is {@link #getLength()}. Never <code>null</code>.
+   */
+  @Nonnull
+  public ByteBuffer getAsReadOnlyByteBuffer ()
+  {
+    return ByteBuffer.wrap (m_aBuffer, 0, m_nLength).slice ().asReadOnlyBuffer ();
+  }
+
+  @Nonnull
+  public InputStream getInputStream ()
+  {
+    return new NonBlockingByteArrayInputStream (m_aBuffer, 0, m_nLength);
+  }
+
+  @Nonnull
+  public OutputStream getOutputStream () throws IOException
+  {
+    throw new IOException ("This DataSource is read-only");
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getContentType ()
+  {
+    return m_sContentType;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getName ()
+  {
+    return "StandardBusinessDocument";
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Length", m_nLength).append ("ContentType", m_sContentType).getToString ();
+  }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillCloseWhenClosed;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.resource.IReadableResource;
+import com.helger.commons.io.resource.wrapped.AbstractWrappedReadableResource;
+import com.helger.commons.io.stream.NonBlockingBufferedInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * A readable resource that transparently decompresses the wrapped resource, if
+ * it is compressed. The compression format is detected by the magic bytes at
+ * the beginning of the content, so the file name is irrelevant. Supported are
+ * GZIP and ZIP (the first file entry is used). Uncompressed content is returned
+ * as is. Decompression happens while reading, so no decompressed copy is
+ * created in memory or on disk.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+public class DecompressingReadableResource extends AbstractWrappedReadableResource
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (DecompressingReadableResource.class);
+
+  private static final int MAGIC_LENGTH = 4;
+
+  /**
+   * Constructor
+   *
+   * @param aBaseResource
+   *        The resource to be wrapped. May not be <code>null</code>.
+   */
+  public DecompressingReadableResource (@Nonnull final IReadableResource aBaseResource)
+  {
+    super (aBaseResource);
+  }
+
+  private static boolean _isGZIP (@Nonnull final byte [] aMagic, final int nLength)
+  {
+    return nLength >= 2 && aMagic[0] == (byte) 0x1f && aMagic[1] == (byte) 0x8b;
+  }
+
+  private static boolean _isZIP (@Nonnull final byte [] aMagic, final int nLength)
+  {
+    return nLength >= 4 && aMagic[0] == 'P' && aMagic[1] == 'K' && aMagic[2] == 3 && aMagic[3] == 4;
+  }
+
+  private static int _readMagic (@Nonnull final InputStream aIS, @Nonnull final byte [] aMagic) throws IOException
+  {
+    int nLength = 0;
+    int nRead;
+    while (nLength < aMagic.length && (nRead = aIS.read (aMagic, nLength, aMagic.length - nLength)) > 0)
+      nLength += nRead;
+    return nLength;
+  }
+
+  /**
+   * Check if the provided resource starts with the magic bytes of a supported
+   * compression format. Only the first bytes of the resource are read.
+   * Resources that cannot be read multiple times are never read, because this
+   * would consume them.
+   *
+   * @param aRes
+   *        The resource to check. May not be <code>null</code>.
+   * @return <code>true</code> if the resource is compressed,
+   *         <code>false</code> if not, if it cannot be read or if it cannot be
+   *         read multiple times.
+   */
+  public static boolean isCompressed (@Nonnull final IReadableResource aRes)
+  {
+    ValueEnforcer.notNull (aRes, "Resource");
+    if (!aRes.isReadMultiple ())
+      return false;
+
+    final InputStream aIS = aRes.getInputStream ();
+    if (aIS == null)
+      return false;
+    try
+    {
+      final byte [] aMagic = new byte [MAGIC_LENGTH];
+      final int nLength = _readMagic (aIS, aMagic);
+      return _isGZIP (aMagic, nLength) || _isZIP (aMagic, nLength);
+    }
+    catch (final IOException ex)
+    {
+      return false;
+    }
+    finally
+    {
+      StreamHelper.close (aIS);
+    }
+  }
+
+  /**
+   * Get a stream that decompresses the provided stream, if it starts with the
+   * magic bytes of a supported compression format.
+   *
+   * @param aIS
+   *        The source input stream. May not be <code>null</code>.
+   * @return The decompressing stream or a stream with the unmodified content.
+   *         Never <code>null</code>.
+   * @throws IOException
+   *         In case of a read error or if a ZIP file contains no file entry.
+   */
+  @Nonnull
+  public static InputStream getDecompressingInputStream (@Nonnull @WillCloseWhenClosed final InputStream aIS) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    final InputStream aBufferedIS = aIS.markSupported () ? aIS : new NonBlockingBufferedInputStream (aIS);
+    final byte [] aMagic = new byte [MAGIC_LENGTH];
+    aBufferedIS.mark (MAGIC_LENGTH);
+    final int nLength = _readMagic (aBufferedIS, aMagic);
+    aBufferedIS.reset ();
+
+    if (_isGZIP (aMagic, nLength))
+      return new GZIPInputStream (aBufferedIS);
+
+    if (_isZIP (aMagic, nLength))
+    {
+      final ZipInputStream aZIS = new ZipInputStream (aBufferedIS);
+      ZipEntry aEntry;
+      while ((aEntry = aZIS.getNextEntry ()) != null)
+        if (!aEntry.isDirectory ())
+          return aZIS;
+      aZIS.close ();
+      throw new IOException ("The ZIP archive contains no file entry");
+    }
+
+    // Not compressed
+    return aBufferedIS;
+  }
+
+  @Nullable
+  public InputStream getInputStream ()
+  {
+    final InputStream aIS = getWrappedReadableResource ().getInputStream ();
+    if (aIS == null)
+      return null;
+
+    try
+    {
+      return getDecompressingInputStream (aIS);
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to open decompressing stream for " + getWrappedReadableResource (), ex);
+      StreamHelper.close (aIS);
+      return null;
+    }
+  }
+
+  @Override
+  public boolean isReadMultiple ()
+  {
+    return getWrappedReadableResource ().isReadMultiple ();
+  }
+
+  /**
+   * @return Always <code>null</code> because the file size does not match the
+   *         decompressed content size.
+   */
+  @Override
+  @Nullable
+  public File getAsFile ()
+  {
+    return null;
+  }
+
+  @Nonnull
+  public IReadableResource getReadableCloneForPath (@Nonnull final String sPath)
+  {
+    return new DecompressingReadableResource (getWrappedReadableResource ().getReadableCloneForPath (sPath));
+  }
+}
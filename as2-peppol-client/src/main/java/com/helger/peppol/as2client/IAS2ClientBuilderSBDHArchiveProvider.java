@@ -0,0 +1,74 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * Interface for archiving the serialized StandardBusinessDocument that is sent
+ * via AS2. The SBDH bytes are written to the provided stream without creating
+ * an additional copy in memory.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@FunctionalInterface
+public interface IAS2ClientBuilderSBDHArchiveProvider
+{
+  /**
+   * Open the stream to write the archive copy to. The stream is closed by the
+   * caller after the complete SBDH was written. Archiving happens before the
+   * message is sent.
+   *
+   * @param aSenderID
+   *        The Peppol sender ID. May be <code>null</code> if unknown.
+   * @param aReceiverID
+   *        The Peppol receiver ID. May be <code>null</code> if unknown.
+   * @param aDocTypeID
+   *        The Peppol document type ID. May be <code>null</code> if unknown.
+   * @param aProcessID
+   *        The Peppol process ID. May be <code>null</code> if unknown.
+   * @return The output stream to write to. May be <code>null</code> to not
+   *         archive this message.
+   * @throws IOException
+   *         If the stream cannot be opened. This prevents sending.
+   */
+  @Nullable
+  OutputStream openArchiveStream (@Nullable IParticipantIdentifier aSenderID,
+                                  @Nullable IParticipantIdentifier aReceiverID,
+                                  @Nullable IDocumentTypeIdentifier aDocTypeID,
+                                  @Nullable IProcessIdentifier aProcessID) throws IOException;
+
+  /**
+   * Helper method for implementations that should never archive.
+   *
+   * @return A provider that never archives. Never <code>null</code>.
+   */
+  @Nonnull
+  static IAS2ClientBuilderSBDHArchiveProvider none ()
+  {
+    return (s, r, d, p) -> null;
+  }
+}
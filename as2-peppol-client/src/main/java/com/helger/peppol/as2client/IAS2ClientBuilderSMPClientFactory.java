@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import javax.annotation.Nonnull;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.smpclient.peppol.ISMPServiceMetadataProvider;
+import com.helger.smpclient.peppol.SMPClientReadOnly;
+import com.helger.smpclient.url.PeppolURLProvider;
+
+/**
+ * Factory for the SMP client to be used for a single receiver. With SML based
+ * discovery each receiver may be registered at a different SMP, so the SMP
+ * client must be created per receiver.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@FunctionalInterface
+public interface IAS2ClientBuilderSMPClientFactory
+{
+  /**
+   * Create the SMP client for the provided receiver.
+   *
+   * @param aReceiverID
+   *        The Peppol receiver ID. Never <code>null</code>.
+   * @return The SMP client to be used. May not be <code>null</code>.
+   * @throws Exception
+   *         If the SMP client cannot be created, e.g. because the DNS lookup
+   *         of the receiver failed. This prevents sending.
+   */
+  @Nonnull
+  ISMPServiceMetadataProvider createSMPClient (@Nonnull IParticipantIdentifier aReceiverID) throws Exception;
+
+  /**
+   * Create a factory that determines the SMP of each receiver via the provided
+   * SML, using the {@link PeppolURLProvider}.
+   *
+   * @param aSML
+   *        The SML to use. May not be <code>null</code>.
+   * @return The factory. Never <code>null</code>.
+   */
+  @Nonnull
+  static IAS2ClientBuilderSMPClientFactory createForSML (@Nonnull final ISMLInfo aSML)
+  {
+    ValueEnforcer.notNull (aSML, "SML");
+    return aReceiverID -> new SMPClientReadOnly (PeppolURLProvider.INSTANCE, aReceiverID, aSML);
+  }
+}
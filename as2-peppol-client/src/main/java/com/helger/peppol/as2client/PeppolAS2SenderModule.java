@@ -16,19 +16,153 @@
  */
 package com.helger.peppol.as2client;
 
+import java.security.GeneralSecurityException;
+
+import javax.annotation.Nonnegative;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 
 import com.helger.as2lib.exception.AS2Exception;
 import com.helger.as2lib.message.AS2Message;
 import com.helger.as2lib.processor.sender.AS2SenderModule;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.concurrent.SimpleLock;
 
 /**
- * Specialized sender module for the AS2 client.
+ * Specialized sender module for the AS2 client.<br>
+ * Since v5.4.4 the {@link SSLContext} is shared between all instances, so that
+ * TLS sessions can be resumed when sending multiple messages to the same
+ * receiver, instead of performing a full handshake for every message. The
+ * shared SSL context is bound to the current settings and is re-created if the
+ * settings change. Once it was created, no lock is needed to access it.
  *
  * @author Philip Helger
  */
 public class PeppolAS2SenderModule extends AS2SenderModule
 {
+  /** By default the SSL context is shared */
+  public static final boolean DEFAULT_SHARE_SSL_CONTEXT = true;
+  /** The default TLS session timeout in seconds */
+  public static final int DEFAULT_SSL_SESSION_TIMEOUT_SECONDS = 10 * 60;
+  /** The default maximum number of cached TLS sessions */
+  public static final int DEFAULT_SSL_SESSION_CACHE_SIZE = 1_000;
+
+  /**
+   * The immutable settings for the shared SSL context together with the SSL
+   * context that is lazily created for these settings.
+   */
+  private static final class SSLContextHolder
+  {
+    private final SimpleLock m_aLock = new SimpleLock ();
+    private final boolean m_bShareSSLContext;
+    private final int m_nSessionTimeoutSeconds;
+    private final int m_nSessionCacheSize;
+    private volatile SSLContext m_aSSLContext;
+
+    SSLContextHolder (final boolean bShareSSLContext, final int nSessionTimeoutSeconds, final int nSessionCacheSize)
+    {
+      m_bShareSSLContext = bShareSSLContext;
+      m_nSessionTimeoutSeconds = nSessionTimeoutSeconds;
+      m_nSessionCacheSize = nSessionCacheSize;
+    }
+  }
+
+  // Only used for modifications of the settings
+  private static final SimpleLock s_aLock = new SimpleLock ();
+  private static volatile SSLContextHolder s_aHolder = new SSLContextHolder (DEFAULT_SHARE_SSL_CONTEXT,
+                                                                            DEFAULT_SSL_SESSION_TIMEOUT_SECONDS,
+                                                                            DEFAULT_SSL_SESSION_CACHE_SIZE);
+
+  /**
+   * @return <code>true</code> if the SSL context is shared between all
+   *         instances, <code>false</code> if not.
+   * @since 5.4.4
+   */
+  public static boolean isShareSSLContext ()
+  {
+    return s_aHolder.m_bShareSSLContext;
+  }
+
+  /**
+   * Enable or disable the sharing of the SSL context between all instances.
+   *
+   * @param bShareSSLContext
+   *        <code>true</code> to share the SSL context, <code>false</code> to
+   *        create a new one for each message.
+   * @since 5.4.4
+   */
+  public static void setShareSSLContext (final boolean bShareSSLContext)
+  {
+    s_aLock.locked ( () -> {
+      final SSLContextHolder aOld = s_aHolder;
+      s_aHolder = new SSLContextHolder (bShareSSLContext, aOld.m_nSessionTimeoutSeconds, aOld.m_nSessionCacheSize);
+    });
+  }
+
+  /**
+   * Set the TLS client session settings of the shared SSL context. The shared
+   * SSL context is re-created on the next usage.
+   *
+   * @param nSessionTimeoutSeconds
+   *        The timeout of a cached TLS session in seconds. Must be &ge; 0. 0
+   *        means no limit.
+   * @param nSessionCacheSize
+   *        The maximum number of cached TLS sessions. Must be &ge; 0. 0 means
+   *        no limit.
+   * @since 5.4.4
+   */
+  public static void setSSLSessionSettings (@Nonnegative final int nSessionTimeoutSeconds, @Nonnegative final int nSessionCacheSize)
+  {
+    ValueEnforcer.isGE0 (nSessionTimeoutSeconds, "SessionTimeoutSeconds");
+    ValueEnforcer.isGE0 (nSessionCacheSize, "SessionCacheSize");
+    s_aLock.locked ( () -> {
+      final SSLContextHolder aOld = s_aHolder;
+      s_aHolder = new SSLContextHolder (aOld.m_bShareSSLContext, nSessionTimeoutSeconds, nSessionCacheSize);
+    });
+  }
+
+  @Override
+  @Nullable
+  public SSLContext createSSLContext () throws GeneralSecurityException
+  {
+    final SSLContextHolder aHolder = s_aHolder;
+    if (!aHolder.m_bShareSSLContext)
+      return super.createSSLContext ();
+
+    // Lock free if the SSL context was already created
+    SSLContext ret = aHolder.m_aSSLContext;
+    if (ret == null)
+    {
+      aHolder.m_aLock.lock ();
+      try
+      {
+        // Try again in lock
+        ret = aHolder.m_aSSLContext;
+        if (ret == null)
+        {
+          ret = super.createSSLContext ();
+          if (ret != null)
+          {
+            final SSLSessionContext aSessionCtx = ret.getClientSessionContext ();
+            if (aSessionCtx != null)
+            {
+              aSessionCtx.setSessionTimeout (aHolder.m_nSessionTimeoutSeconds);
+              aSessionCtx.setSessionCacheSize (aHolder.m_nSessionCacheSize);
+            }
+            aHolder.m_aSSLContext = ret;
+          }
+        }
+      }
+      finally
+      {
+        aHolder.m_aLock.unlock ();
+      }
+    }
+    return ret;
+  }
+
   @Override
   protected void onReceivedMDNError (@Nonnull final AS2Message aMsg, @Nonnull final AS2Exception ex) throws AS2Exception
   {
@@ -0,0 +1,417 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.UUID;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.ArrayHelper;
+import com.helger.commons.datetime.PDTFactory;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.sbdh.CPeppolSBDH;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.sbdh.CSBDH;
+import com.helger.xml.XMLFactory;
+import com.helger.xml.namespace.INamespaceContext;
+
+/**
+ * The serialized Peppol Standard Business Document envelope without the
+ * business document itself. It consists of a header part (from the XML
+ * declaration up to and including the closing
+ * <code>StandardBusinessDocumentHeader</code> element) and a footer part (the
+ * closing <code>StandardBusinessDocument</code> element). The business document
+ * bytes must be placed in between the two parts. The envelope is written with
+ * StAX so no DOM or JAXB object tree is needed. Alternatively the envelope can
+ * be created with the JAXB marshaller, to get exactly the same bytes as the
+ * in-memory SBDH creation.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@Immutable
+public final class SBDHEnvelope
+{
+  private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newFactory ();
+  // Same as the JAXB serialization of the XMLGregorianCalendar without a time
+  // zone, that always contains the milliseconds
+  private static final DateTimeFormatter CREATION_DATE_TIME_FORMATTER = DateTimeFormatter.ofPattern ("uuuu-MM-dd'T'HH:mm:ss.SSS");
+
+  private final byte [] m_aHeader;
+  private final byte [] m_aFooter;
+  private final boolean m_bSBDHInDefaultNamespace;
+
+  private SBDHEnvelope (@Nonnull final byte [] aHeader, @Nonnull final byte [] aFooter, final boolean bSBDHInDefaultNamespace)
+  {
+    m_aHeader = aHeader;
+    m_aFooter = aFooter;
+    m_bSBDHInDefaultNamespace = bSBDHInDefaultNamespace;
+  }
+
+  /**
+   * @return <code>true</code> if the SBDH namespace is the default namespace
+   *         of the envelope. In that case the business document root element
+   *         must reset the default namespace, if it does not declare one
+   *         itself.
+   */
+  public boolean isSBDHInDefaultNamespace ()
+  {
+    return m_bSBDHInDefaultNamespace;
+  }
+
+  /**
+   * Check if the default namespace must be reset on the root element of the
+   * business document to be embedded.
+   *
+   * @param aPayloadRoot
+   *        The business document root element information. May not be
+   *        <code>null</code>.
+   * @return <code>true</code> if an <code>xmlns=""</code> must be added to the
+   *         business document root element.
+   */
+  public boolean isResetDefaultNamespaceRequired (@Nonnull final XMLPayloadHelper.RootElement aPayloadRoot)
+  {
+    return m_bSBDHInDefaultNamespace && !aPayloadRoot.isDeclaresDefaultNamespace ();
+  }
+
+  /**
+   * @return A copy of the header bytes. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public byte [] getHeaderBytes ()
+  {
+    return ArrayHelper.getCopy (m_aHeader);
+  }
+
+  /**
+   * @return A copy of the footer bytes. Never <code>null</code>.
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  public byte [] getFooterBytes ()
+  {
+    return ArrayHelper.getCopy (m_aFooter);
+  }
+
+  /**
+   * @return The number of bytes of header and footer together.
+   */
+  public int getEnvelopeSize ()
+  {
+    return m_aHeader.length + m_aFooter.length;
+  }
+
+  /**
+   * Create a stream that consists of the header, the provided business
+   * document stream and the footer.
+   *
+   * @param aPayloadIS
+   *        The stream with the business document bytes. It must start with the
+   *        root element (see
+   *        {@link XMLPayloadHelper#openRootElementStream(InputStream, boolean)}).
+   *        May not be <code>null</code>.
+   * @return The new input stream. Never <code>null</code>.
+   */
+  @Nonnull
+  public InputStream getAsInputStream (@Nonnull final InputStream aPayloadIS)
+  {
+    ValueEnforcer.notNull (aPayloadIS, "PayloadIS");
+    return new SequenceInputStream (new SequenceInputStream (new NonBlockingByteArrayInputStream (m_aHeader), aPayloadIS),
+                                    new NonBlockingByteArrayInputStream (m_aFooter));
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("HeaderLength", m_aHeader.length)
+                                       .append ("FooterLength", m_aFooter.length)
+                                       .append ("SBDHInDefaultNamespace", m_bSBDHInDefaultNamespace)
+                                       .getToString ();
+  }
+
+  private static void _writeElement (@Nonnull final XMLStreamWriter aWriter,
+                                     @Nonnull final String sPrefix,
+                                     @Nonnull final String sLocalName,
+                                     @Nonnull final String sValue) throws XMLStreamException
+  {
+    aWriter.writeStartElement (sPrefix, sLocalName, CSBDH.SBDH_NS);
+    aWriter.writeCharacters (sValue);
+    aWriter.writeEndElement ();
+  }
+
+  private static void _writeIdentifier (@Nonnull final XMLStreamWriter aWriter,
+                                        @Nonnull final String sPrefix,
+                                        @Nonnull final String sLocalName,
+                                        @Nonnull final IParticipantIdentifier aParticipantID) throws XMLStreamException
+  {
+    aWriter.writeStartElement (sPrefix, sLocalName, CSBDH.SBDH_NS);
+    aWriter.writeStartElement (sPrefix, "Identifier", CSBDH.SBDH_NS);
+    aWriter.writeAttribute ("Authority", aParticipantID.getScheme ());
+    aWriter.writeCharacters (aParticipantID.getValue ());
+    aWriter.writeEndElement ();
+    aWriter.writeEndElement ();
+  }
+
+  private static void _writeScope (@Nonnull final XMLStreamWriter aWriter,
+                                   @Nonnull final String sPrefix,
+                                   @Nonnull final String sType,
+                                   @Nonnull final String sValue,
+                                   @Nullable final String sScheme) throws XMLStreamException
+  {
+    aWriter.writeStartElement (sPrefix, "Scope", CSBDH.SBDH_NS);
+    _writeElement (aWriter, sPrefix, "Type", sType);
+    _writeElement (aWriter, sPrefix, "InstanceIdentifier", sValue);
+    if (StringHelper.hasText (sScheme))
+      _writeElement (aWriter, sPrefix, "Identifier", sScheme);
+    aWriter.writeEndElement ();
+  }
+
+  /**
+   * Create a new SBDH envelope according to the Peppol rules.
+   *
+   * @param aSenderID
+   *        Sender participant ID. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcID
+   *        Process ID. May not be <code>null</code>.
+   * @param sInstanceIdentifier
+   *        Optional instance identifier. May be <code>null</code> in which case
+   *        a random UUID is will be used.
+   * @param sUBLVersion
+   *        The UBL version to use. May be <code>null</code> in which case the
+   *        default "2.1" will be used.
+   * @param aCreationDateTime
+   *        The creation date and time to use. May be <code>null</code> in which
+   *        case the current date and time is used.
+   * @param aPayloadRoot
+   *        The root element information of the business document to be
+   *        embedded. May not be <code>null</code>.
+   * @param aNamespaceContext
+   *        An optional namespace context to determine the prefix of the SBDH
+   *        namespace. May be <code>null</code> in which case the SBDH namespace
+   *        is used as the default namespace.
+   * @return The created envelope and never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         In case writing fails
+   */
+  @Nonnull
+  public static SBDHEnvelope create (@Nonnull final IParticipantIdentifier aSenderID,
+                                     @Nonnull final IParticipantIdentifier aReceiverID,
+                                     @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                     @Nonnull final IProcessIdentifier aProcID,
+                                     @Nullable final String sInstanceIdentifier,
+                                     @Nullable final String sUBLVersion,
+                                     @Nullable final LocalDateTime aCreationDateTime,
+                                     @Nonnull final XMLPayloadHelper.RootElement aPayloadRoot,
+                                     @Nullable final INamespaceContext aNamespaceContext) throws AS2ClientBuilderException
+  {
+    ValueEnforcer.notNull (aSenderID, "SenderID");
+    ValueEnforcer.notNull (aReceiverID, "ReceiverID");
+    ValueEnforcer.notNull (aDocTypeID, "DocTypeID");
+    ValueEnforcer.notNull (aProcID, "ProcID");
+    ValueEnforcer.notNull (aPayloadRoot, "PayloadRoot");
+
+    String sPrefix = aNamespaceContext == null ? null : aNamespaceContext.getPrefix (CSBDH.SBDH_NS);
+    if (sPrefix == null)
+      sPrefix = "";
+    final LocalDateTime aDT = aCreationDateTime != null ? aCreationDateTime : PDTFactory.getCurrentLocalDateTime ();
+
+    try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream (2048))
+    {
+      final XMLStreamWriter aWriter = XML_OUTPUT_FACTORY.createXMLStreamWriter (aBAOS, StandardCharsets.UTF_8.name ());
+      aWriter.writeStartDocument (StandardCharsets.UTF_8.name (), "1.0");
+      aWriter.writeStartElement (sPrefix, "StandardBusinessDocument", CSBDH.SBDH_NS);
+      if (sPrefix.isEmpty ())
+        aWriter.writeDefaultNamespace (CSBDH.SBDH_NS);
+      else
+        aWriter.writeNamespace (sPrefix, CSBDH.SBDH_NS);
+
+      aWriter.writeStartElement (sPrefix, "StandardBusinessDocumentHeader", CSBDH.SBDH_NS);
+      _writeElement (aWriter, sPrefix, "HeaderVersion", CPeppolSBDH.HEADER_VERSION);
+      _writeIdentifier (aWriter, sPrefix, "Sender", aSenderID);
+      _writeIdentifier (aWriter, sPrefix, "Receiver", aReceiverID);
+
+      aWriter.writeStartElement (sPrefix, "DocumentIdentification", CSBDH.SBDH_NS);
+      _writeElement (aWriter, sPrefix, "Standard", StringHelper.getNotNull (aPayloadRoot.getNamespaceURI ()));
+      _writeElement (aWriter, sPrefix, "TypeVersion", StringHelper.hasText (sUBLVersion) ? sUBLVersion : CPeppolSBDH.TYPE_VERSION_21);
+      _writeElement (aWriter,
+                     sPrefix,
+                     "InstanceIdentifier",
+                     StringHelper.hasText (sInstanceIdentifier) ? sInstanceIdentifier : UUID.randomUUID ().toString ());
+      _writeElement (aWriter, sPrefix, "Type", aPayloadRoot.getLocalName ());
+      _writeElement (aWriter,
+                     sPrefix,
+                     "CreationDateAndTime",
+                     CREATION_DATE_TIME_FORMATTER.format (aDT));
+      aWriter.writeEndElement ();
+
+      aWriter.writeStartElement (sPrefix, "BusinessScope", CSBDH.SBDH_NS);
+      _writeScope (aWriter, sPrefix, CPeppolSBDH.SCOPE_DOCUMENT_TYPE_ID, aDocTypeID.getValue (), aDocTypeID.getScheme ());
+      _writeScope (aWriter, sPrefix, CPeppolSBDH.SCOPE_PROCESS_ID, aProcID.getValue (), aProcID.getScheme ());
+      aWriter.writeEndElement ();
+
+      // End of StandardBusinessDocumentHeader
+      aWriter.writeEndElement ();
+      aWriter.flush ();
+      final int nHeaderLength = aBAOS.size ();
+
+      // End of StandardBusinessDocument
+      aWriter.writeEndElement ();
+      aWriter.writeEndDocument ();
+      aWriter.flush ();
+      aWriter.close ();
+
+      final byte [] aAll = aBAOS.toByteArray ();
+      return new SBDHEnvelope (ArrayHelper.getCopy (aAll, 0, nHeaderLength),
+                               ArrayHelper.getCopy (aAll, nHeaderLength, aAll.length - nHeaderLength),
+                               sPrefix.isEmpty ());
+    }
+    catch (final XMLStreamException ex)
+    {
+      throw new AS2ClientBuilderException ("Failed to write SBDH envelope", ex);
+    }
+  }
+
+  private static int _indexOf (@Nonnull final byte [] aHaystack, @Nonnull final byte [] aNeedle)
+  {
+    outer: for (int i = 0; i <= aHaystack.length - aNeedle.length; ++i)
+    {
+      for (int j = 0; j < aNeedle.length; ++j)
+        if (aHaystack[i + j] != aNeedle[j])
+          continue outer;
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Create the envelope with the same JAXB marshaller that is used for the
+   * in-memory SBDH creation (see
+   * {@link AS2ClientBuilder#getSerializedSBDH(com.helger.sbdh.StandardBusinessDocument, INamespaceContext)}).
+   * The SBDH is marshalled with an empty placeholder element instead of the
+   * business document, and the bytes before and after the placeholder become
+   * header and footer. Therefore the envelope bytes are identical to the ones
+   * created in memory. Compared to {@link #create(IParticipantIdentifier,
+   * IParticipantIdentifier, IDocumentTypeIdentifier, IProcessIdentifier,
+   * String, String, LocalDateTime, XMLPayloadHelper.RootElement,
+   * INamespaceContext)} this is slower, but it is still independent of the
+   * business document size.
+   *
+   * @param aSenderID
+   *        Sender participant ID. May not be <code>null</code>.
+   * @param aReceiverID
+   *        Receiver participant ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Document type ID. May not be <code>null</code>.
+   * @param aProcID
+   *        Process ID. May not be <code>null</code>.
+   * @param sInstanceIdentifier
+   *        Optional instance identifier. May be <code>null</code> in which case
+   *        a random UUID is used.
+   * @param sUBLVersion
+   *        The UBL version to use. May be <code>null</code> in which case the
+   *        default "2.1" is used.
+   * @param aCreationDateTime
+   *        The creation date and time to use. May be <code>null</code> in which
+   *        case the current date and time is used.
+   * @param aPayloadRoot
+   *        The root element information of the business document to be
+   *        embedded. May not be <code>null</code>.
+   * @param aNamespaceContext
+   *        An optional namespace context to determine the prefix of the SBDH
+   *        namespace. May be <code>null</code> in which case the SBDH namespace
+   *        is used as the default namespace.
+   * @return The created envelope and never <code>null</code>.
+   * @throws AS2ClientBuilderException
+   *         In case marshalling fails
+   */
+  @Nonnull
+  public static SBDHEnvelope createMarshalled (@Nonnull final IParticipantIdentifier aSenderID,
+                                               @Nonnull final IParticipantIdentifier aReceiverID,
+                                               @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                               @Nonnull final IProcessIdentifier aProcID,
+                                               @Nullable final String sInstanceIdentifier,
+                                               @Nullable final String sUBLVersion,
+                                               @Nullable final LocalDateTime aCreationDateTime,
+                                               @Nonnull final XMLPayloadHelper.RootElement aPayloadRoot,
+                                               @Nullable final INamespaceContext aNamespaceContext) throws AS2ClientBuilderException
+  {
+    ValueEnforcer.notNull (aPayloadRoot, "PayloadRoot");
+
+    // The placeholder has the same name as the business document root, so
+    // that the DocumentIdentification is identical
+    final String sMarker = "sbdh-placeholder-" + UUID.randomUUID ().toString ();
+    final Document aDoc = XMLFactory.newDocument ();
+    final Element aPlaceholder = aDoc.createElementNS (aPayloadRoot.getNamespaceURI (), aPayloadRoot.getLocalName ());
+    aPlaceholder.appendChild (aDoc.createTextNode (sMarker));
+    aDoc.appendChild (aPlaceholder);
+
+    final byte [] aAll = AS2ClientBuilder.getSerializedSBDH (AS2ClientBuilder.createSBDH (aSenderID,
+                                                                                            aReceiverID,
+                                                                                            aDocTypeID,
+                                                                                            aProcID,
+                                                                                            sInstanceIdentifier,
+                                                                                            sUBLVersion,
+                                                                                            aCreationDateTime,
+                                                                                            aPlaceholder),
+                                                             aNamespaceContext)
+                                          .toByteArray ();
+
+    // The marker is directly enclosed by the start and end tag of the
+    // placeholder. A '<' cannot occur inside a start tag.
+    final int nMarkerStart = _indexOf (aAll, sMarker.getBytes (StandardCharsets.US_ASCII));
+    if (nMarkerStart < 0)
+      throw new AS2ClientBuilderException ("Failed to find the business document placeholder in the marshalled SBDH");
+    int nStartTag = nMarkerStart - 1;
+    while (nStartTag >= 0 && aAll[nStartTag] != '<')
+      nStartTag--;
+    int nEndTagEnd = nMarkerStart + sMarker.length ();
+    while (nEndTagEnd < aAll.length && aAll[nEndTagEnd] != '>')
+      nEndTagEnd++;
+    if (nStartTag < 0 || nEndTagEnd >= aAll.length)
+      throw new AS2ClientBuilderException ("Failed to find the business document placeholder tags in the marshalled SBDH");
+
+    final String sPrefix = aNamespaceContext == null ? null : aNamespaceContext.getPrefix (CSBDH.SBDH_NS);
+    return new SBDHEnvelope (ArrayHelper.getCopy (aAll, 0, nStartTag),
+                             ArrayHelper.getCopy (aAll, nEndTagEnd + 1, aAll.length - nEndTagEnd - 1),
+                             StringHelper.hasNoText (sPrefix));
+  }
+}
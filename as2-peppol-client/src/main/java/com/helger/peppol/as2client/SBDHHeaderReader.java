@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.InputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillClose;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.sbdh.CPeppolSBDH;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.sbdh.CSBDH;
+
+/**
+ * Read the Peppol identifiers from the header of a serialized
+ * StandardBusinessDocument via StAX. Only the StandardBusinessDocumentHeader is
+ * read - the business document itself is never touched, so this works for
+ * arbitrarily large documents.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@Immutable
+public final class SBDHHeaderReader
+{
+  /**
+   * The Peppol identifiers contained in an SBDH.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class Header
+  {
+    private final IParticipantIdentifier m_aSenderID;
+    private final IParticipantIdentifier m_aReceiverID;
+    private final IDocumentTypeIdentifier m_aDocTypeID;
+    private final IProcessIdentifier m_aProcessID;
+
+    Header (@Nullable final IParticipantIdentifier aSenderID,
+            @Nullable final IParticipantIdentifier aReceiverID,
+            @Nullable final IDocumentTypeIdentifier aDocTypeID,
+            @Nullable final IProcessIdentifier aProcessID)
+    {
+      m_aSenderID = aSenderID;
+      m_aReceiverID = aReceiverID;
+      m_aDocTypeID = aDocTypeID;
+      m_aProcessID = aProcessID;
+    }
+
+    /**
+     * @return The sender participant ID. May be <code>null</code>.
+     */
+    @Nullable
+    public IParticipantIdentifier getSenderID ()
+    {
+      return m_aSenderID;
+    }
+
+    /**
+     * @return The receiver participant ID. May be <code>null</code>.
+     */
+    @Nullable
+    public IParticipantIdentifier getReceiverID ()
+    {
+      return m_aReceiverID;
+    }
+
+    /**
+     * @return The document type ID. May be <code>null</code>.
+     */
+    @Nullable
+    public IDocumentTypeIdentifier getDocumentTypeID ()
+    {
+      return m_aDocTypeID;
+    }
+
+    /**
+     * @return The process ID. May be <code>null</code>.
+     */
+    @Nullable
+    public IProcessIdentifier getProcessID ()
+    {
+      return m_aProcessID;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("SenderID", m_aSenderID)
+                                         .append ("ReceiverID", m_aReceiverID)
+                                         .append ("DocTypeID", m_aDocTypeID)
+                                         .append ("ProcessID", m_aProcessID)
+                                         .getToString ();
+    }
+  }
+
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+  static
+  {
+    XML_INPUT_FACTORY = XMLInputFactory.newFactory ();
+    // No DTD or external entity processing for untrusted input
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private SBDHHeaderReader ()
+  {}
+
+  @Nullable
+  private static IParticipantIdentifier _readParticipant (@Nonnull final XMLStreamReader aReader) throws XMLStreamException
+  {
+    // Positioned on "Sender" or "Receiver"
+    IParticipantIdentifier ret = null;
+    int nDepth = 1;
+    while (nDepth > 0 && aReader.hasNext ())
+    {
+      final int nEvent = aReader.next ();
+      if (nEvent == XMLStreamConstants.START_ELEMENT)
+      {
+        nDepth++;
+        if (nDepth == 2 && ret == null && "Identifier".equals (aReader.getLocalName ()))
+        {
+          final String sScheme = aReader.getAttributeValue (null, "Authority");
+          final String sValue = aReader.getElementText ();
+          // getElementText consumed the end element
+          nDepth--;
+          ret = PeppolIdentifierFactory.INSTANCE.createParticipantIdentifier (sScheme, StringHelper.trim (sValue));
+        }
+      }
+      else
+        if (nEvent == XMLStreamConstants.END_ELEMENT)
+          nDepth--;
+    }
+    return ret;
+  }
+
+  @Nonnull
+  private static String [] _readScope (@Nonnull final XMLStreamReader aReader) throws XMLStreamException
+  {
+    // Positioned on "Scope"; result is type, instance identifier, identifier
+    final String [] ret = new String [3];
+    int nDepth = 1;
+    while (nDepth > 0 && aReader.hasNext ())
+    {
+      final int nEvent = aReader.next ();
+      if (nEvent == XMLStreamConstants.START_ELEMENT)
+      {
+        if (nDepth == 1)
+        {
+          final String sLocalName = aReader.getLocalName ();
+          int nIndex = -1;
+          if ("Type".equals (sLocalName))
+            nIndex = 0;
+          else
+            if ("InstanceIdentifier".equals (sLocalName))
+              nIndex = 1;
+            else
+              if ("Identifier".equals (sLocalName))
+                nIndex = 2;
+          if (nIndex >= 0)
+          {
+            ret[nIndex] = StringHelper.trim (aReader.getElementText ());
+            continue;
+          }
+        }
+        nDepth++;
+      }
+      else
+        if (nEvent == XMLStreamConstants.END_ELEMENT)
+          nDepth--;
+    }
+    return ret;
+  }
+
+  /**
+   * Read the Peppol identifiers from the SBDH in the provided stream. Reading
+   * stops at the end of the StandardBusinessDocumentHeader element.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>. Will be
+   *        closed.
+   * @return <code>null</code> if the content is not well-formed XML, if it
+   *         contains a DOCTYPE, if the stream ends before the end of the header
+   *         or if it is no StandardBusinessDocument with a header.
+   */
+  @Nullable
+  public static Header readHeader (@Nonnull @WillClose final InputStream aIS)
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    try
+    {
+      final XMLStreamReader aReader;
+      synchronized (XML_INPUT_FACTORY)
+      {
+        aReader = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+      }
+      try
+      {
+        // Find the root element - documents with a DOCTYPE are rejected
+        while (aReader.hasNext ())
+        {
+          final int nEvent = aReader.next ();
+          if (nEvent == XMLStreamConstants.DTD)
+            return null;
+          if (nEvent == XMLStreamConstants.START_ELEMENT)
+            break;
+        }
+        if (!aReader.isStartElement () ||
+            !CSBDH.SBDH_NS.equals (aReader.getNamespaceURI ()) ||
+            !"StandardBusinessDocument".equals (aReader.getLocalName ()))
+          return null;
+
+        // The first child must be the header
+        while (aReader.hasNext () && aReader.next () != XMLStreamConstants.START_ELEMENT)
+        {}
+        if (!aReader.isStartElement () || !"StandardBusinessDocumentHeader".equals (aReader.getLocalName ()))
+          return null;
+
+        IParticipantIdentifier aSenderID = null;
+        IParticipantIdentifier aReceiverID = null;
+        IDocumentTypeIdentifier aDocTypeID = null;
+        IProcessIdentifier aProcessID = null;
+        int nDepth = 1;
+        while (nDepth > 0 && aReader.hasNext ())
+        {
+          final int nEvent = aReader.next ();
+          if (nEvent == XMLStreamConstants.START_ELEMENT)
+          {
+            final String sLocalName = aReader.getLocalName ();
+            if (nDepth == 1 && "Sender".equals (sLocalName))
+              aSenderID = _readParticipant (aReader);
+            else
+              if (nDepth == 1 && "Receiver".equals (sLocalName))
+                aReceiverID = _readParticipant (aReader);
+              else
+                if (nDepth == 2 && "Scope".equals (sLocalName))
+                {
+                  final String [] aScope = _readScope (aReader);
+                  if (CPeppolSBDH.SCOPE_DOCUMENT_TYPE_ID.equals (aScope[0]))
+                  {
+                    if (StringHelper.hasText (aScope[2]))
+                      aDocTypeID = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifier (aScope[2], aScope[1]);
+                    else
+                      aDocTypeID = PeppolIdentifierFactory.INSTANCE.createDocumentTypeIdentifierWithDefaultScheme (aScope[1]);
+                  }
+                  else
+                    if (CPeppolSBDH.SCOPE_PROCESS_ID.equals (aScope[0]))
+                    {
+                      if (StringHelper.hasText (aScope[2]))
+                        aProcessID = PeppolIdentifierFactory.INSTANCE.createProcessIdentifier (aScope[2], aScope[1]);
+                      else
+                        aProcessID = PeppolIdentifierFactory.INSTANCE.createProcessIdentifierWithDefaultScheme (aScope[1]);
+                    }
+                }
+                else
+                  nDepth++;
+          }
+          else
+            if (nEvent == XMLStreamConstants.END_ELEMENT)
+              nDepth--;
+        }
+        if (nDepth > 0)
+        {
+          // The stream ended before the header was closed
+          return null;
+        }
+        return new Header (aSenderID, aReceiverID, aDocTypeID, aProcessID);
+      }
+      finally
+      {
+        aReader.close ();
+      }
+    }
+    catch (final XMLStreamException ex)
+    {
+      return null;
+    }
+    finally
+    {
+      StreamHelper.close (aIS);
+    }
+  }
+}
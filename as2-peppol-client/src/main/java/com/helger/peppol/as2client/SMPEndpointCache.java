@@ -0,0 +1,447 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.concurrent.SimpleLock;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.smp.ISMPTransportProfile;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+
+/**
+ * A thread-safe cache for the results of SMP lookups performed by
+ * {@link AS2ClientBuilder}. It is meant to be shared between many builder
+ * instances, so that the SMP is not queried for every single message that is
+ * sent to the same receiver. Entries expire after a configurable time to live
+ * and the least recently used entries are evicted if the maximum size is
+ * reached. Lookups that were answered with "no such registration" are cached as
+ * well, whereas lookups that failed with an SMP client error are never cached.
+ * <br>
+ * Note: the cache key does not contain the SMP client, so different caches
+ * must be used for different networks (e.g. production and test).
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class SMPEndpointCache
+{
+  /** The default time to live of a cache entry */
+  public static final Duration DEFAULT_TTL = Duration.ofMinutes (30);
+  /** The default time to live of a negative cache entry */
+  public static final Duration DEFAULT_NEGATIVE_TTL = Duration.ofMinutes (5);
+  /** The default maximum number of entries */
+  public static final int DEFAULT_MAX_SIZE = 10_000;
+
+  /**
+   * The resolved SMP endpoint information that is cached.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class Endpoint
+  {
+    private final boolean m_bServiceMetadataFound;
+    private final String m_sEndpointURL;
+    private final X509Certificate m_aCertificate;
+    private final String m_sAS2ID;
+    private final ISMPTransportProfile m_aTransportProfile;
+
+    private Endpoint (final boolean bServiceMetadataFound,
+                      @Nullable final String sEndpointURL,
+                      @Nullable final X509Certificate aCertificate,
+                      @Nullable final String sAS2ID,
+                      @Nullable final ISMPTransportProfile aTransportProfile)
+    {
+      m_bServiceMetadataFound = bServiceMetadataFound;
+      m_sEndpointURL = sEndpointURL;
+      m_aCertificate = aCertificate;
+      m_sAS2ID = sAS2ID;
+      m_aTransportProfile = aTransportProfile;
+    }
+
+    /**
+     * @return <code>true</code> if the service metadata was found,
+     *         <code>false</code> if there is no such service registration.
+     */
+    public boolean isServiceMetadataFound ()
+    {
+      return m_bServiceMetadataFound;
+    }
+
+    /**
+     * @return <code>true</code> if a matching endpoint was found,
+     *         <code>false</code> if not.
+     */
+    public boolean isEndpointFound ()
+    {
+      return m_aTransportProfile != null;
+    }
+
+    /**
+     * @return The endpoint URL. May be <code>null</code>.
+     */
+    @Nullable
+    public String getEndpointURL ()
+    {
+      return m_sEndpointURL;
+    }
+
+    /**
+     * @return The endpoint certificate. May be <code>null</code>.
+     */
+    @Nullable
+    public X509Certificate getCertificate ()
+    {
+      return m_aCertificate;
+    }
+
+    /**
+     * @return The AS2 ID derived from the endpoint certificate. May be
+     *         <code>null</code>.
+     */
+    @Nullable
+    public String getAS2ID ()
+    {
+      return m_sAS2ID;
+    }
+
+    /**
+     * @return The transport profile of the selected endpoint. May be
+     *         <code>null</code> if no endpoint was found.
+     */
+    @Nullable
+    public ISMPTransportProfile getTransportProfile ()
+    {
+      return m_aTransportProfile;
+    }
+
+    /**
+     * @return <code>true</code> if this result can be cached. Endpoints with
+     *         incomplete information (e.g. an unparsable certificate) are not
+     *         cached.
+     */
+    public boolean isCacheable ()
+    {
+      if (!isEndpointFound ())
+        return true;
+      return m_sEndpointURL != null && m_aCertificate != null && m_sAS2ID != null;
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("ServiceMetadataFound", m_bServiceMetadataFound)
+                                         .append ("EndpointURL", m_sEndpointURL)
+                                         .append ("AS2ID", m_sAS2ID)
+                                         .append ("TransportProfile", m_aTransportProfile == null ? null : m_aTransportProfile.getID ())
+                                         .getToString ();
+    }
+
+    /**
+     * Create an endpoint for the case that no matching registration was found.
+     *
+     * @param bServiceMetadataFound
+     *        <code>true</code> if the service metadata was found but it did not
+     *        contain a matching endpoint, <code>false</code> if no service
+     *        metadata was found.
+     * @return Never <code>null</code>.
+     */
+    @Nonnull
+    public static Endpoint createNotFound (final boolean bServiceMetadataFound)
+    {
+      return new Endpoint (bServiceMetadataFound, null, null, null, null);
+    }
+
+    /**
+     * Create a found endpoint.
+     *
+     * @param sEndpointURL
+     *        The endpoint URL. May be <code>null</code>.
+     * @param aCertificate
+     *        The endpoint certificate. May be <code>null</code>.
+     * @param sAS2ID
+     *        The AS2 ID derived from the certificate. May be <code>null</code>.
+     * @param aTransportProfile
+     *        The transport profile of the endpoint. May not be
+     *        <code>null</code>.
+     * @return Never <code>null</code>.
+     */
+    @Nonnull
+    public static Endpoint createFound (@Nullable final String sEndpointURL,
+                                        @Nullable final X509Certificate aCertificate,
+                                        @Nullable final String sAS2ID,
+                                        @Nonnull final ISMPTransportProfile aTransportProfile)
+    {
+      ValueEnforcer.notNull (aTransportProfile, "TransportProfile");
+      return new Endpoint (true, sEndpointURL, aCertificate, sAS2ID, aTransportProfile);
+    }
+  }
+
+  private static final class CacheEntry
+  {
+    private final Endpoint m_aEndpoint;
+    private final long m_nExpirationNanos;
+
+    CacheEntry (@Nonnull final Endpoint aEndpoint, final long nExpirationNanos)
+    {
+      m_aEndpoint = aEndpoint;
+      m_nExpirationNanos = nExpirationNanos;
+    }
+  }
+
+  private final SimpleLock m_aLock = new SimpleLock ();
+  private final Duration m_aTTL;
+  private final Duration m_aNegativeTTL;
+  private final int m_nMaxSize;
+  private final Map <String, CacheEntry> m_aMap;
+  private final AtomicLong m_aHits = new AtomicLong ();
+  private final AtomicLong m_aMisses = new AtomicLong ();
+
+  /**
+   * Constructor using the default settings.
+   */
+  public SMPEndpointCache ()
+  {
+    this (DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aTTL
+   *        The time to live for found endpoints. May not be <code>null</code>
+   *        and must be positive.
+   * @param aNegativeTTL
+   *        The time to live for "no such registration" results. May not be
+   *        <code>null</code>. Use {@link Duration#ZERO} to disable negative
+   *        caching.
+   * @param nMaxSize
+   *        The maximum number of entries to keep. Must be &gt; 0.
+   */
+  public SMPEndpointCache (@Nonnull final Duration aTTL, @Nonnull final Duration aNegativeTTL, @Nonnegative final int nMaxSize)
+  {
+    ValueEnforcer.notNull (aTTL, "TTL");
+    ValueEnforcer.isFalse (aTTL.isNegative () || aTTL.isZero (), "TTL must be positive");
+    ValueEnforcer.notNull (aNegativeTTL, "NegativeTTL");
+    ValueEnforcer.isFalse (aNegativeTTL.isNegative (), "NegativeTTL may not be negative");
+    ValueEnforcer.isGT0 (nMaxSize, "MaxSize");
+    m_aTTL = aTTL;
+    m_aNegativeTTL = aNegativeTTL;
+    m_nMaxSize = nMaxSize;
+    // Access order for LRU eviction
+    m_aMap = new LinkedHashMap <String, CacheEntry> (16, 0.75f, true)
+    {
+      @Override
+      protected boolean removeEldestEntry (final Map.Entry <String, CacheEntry> aEldest)
+      {
+        return size () > m_nMaxSize;
+      }
+    };
+  }
+
+  /**
+   * @return The time to live for found endpoints. Never <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getTTL ()
+  {
+    return m_aTTL;
+  }
+
+  /**
+   * @return The time to live for "no such registration" results. Never
+   *         <code>null</code>.
+   */
+  @Nonnull
+  public final Duration getNegativeTTL ()
+  {
+    return m_aNegativeTTL;
+  }
+
+  /**
+   * @return The maximum number of cache entries. Always &gt; 0.
+   */
+  @Nonnegative
+  public final int getMaxSize ()
+  {
+    return m_nMaxSize;
+  }
+
+  /**
+   * Create the cache key for the provided lookup parameters.
+   *
+   * @param aReceiverID
+   *        Peppol receiver ID. May not be <code>null</code>.
+   * @param aDocTypeID
+   *        Peppol document type ID. May not be <code>null</code>.
+   * @param aProcessID
+   *        Peppol process ID. May not be <code>null</code>.
+   * @param aTransportProfiles
+   *        The transport profiles in lookup order. May not be
+   *        <code>null</code>.
+   * @return The cache key. Neither <code>null</code> nor empty.
+   */
+  @Nonnull
+  @Nonempty
+  public static String createKey (@Nonnull final IParticipantIdentifier aReceiverID,
+                                  @Nonnull final IDocumentTypeIdentifier aDocTypeID,
+                                  @Nonnull final IProcessIdentifier aProcessID,
+                                  @Nonnull final Iterable <? extends ISMPTransportProfile> aTransportProfiles)
+  {
+    return aReceiverID.getURIEncoded () +
+           '\n' +
+           aDocTypeID.getURIEncoded () +
+           '\n' +
+           aProcessID.getURIEncoded () +
+           '\n' +
+           StringHelper.getImplodedMapped (",", aTransportProfiles, ISMPTransportProfile::getID);
+  }
+
+  /**
+   * Get the cached endpoint for the provided key. Expired entries are removed.
+   *
+   * @param sKey
+   *        The key as created by
+   *        {@link #createKey(IParticipantIdentifier, IDocumentTypeIdentifier, IProcessIdentifier, Iterable)}.
+   *        May not be <code>null</code>.
+   * @return <code>null</code> if no valid entry is present.
+   */
+  @Nullable
+  public Endpoint get (@Nonnull final String sKey)
+  {
+    ValueEnforcer.notNull (sKey, "Key");
+
+    final long nNow = System.nanoTime ();
+    final Endpoint ret = m_aLock.lockedGet ( () -> {
+      final CacheEntry aEntry = m_aMap.get (sKey);
+      if (aEntry == null)
+        return null;
+      if (nNow - aEntry.m_nExpirationNanos >= 0)
+      {
+        // Expired
+        m_aMap.remove (sKey);
+        return null;
+      }
+      return aEntry.m_aEndpoint;
+    });
+    (ret != null ? m_aHits : m_aMisses).incrementAndGet ();
+    return ret;
+  }
+
+  /**
+   * Put a resolved endpoint into the cache. Endpoints that are not cacheable
+   * are ignored.
+   *
+   * @param sKey
+   *        The key as created by
+   *        {@link #createKey(IParticipantIdentifier, IDocumentTypeIdentifier, IProcessIdentifier, Iterable)}.
+   *        May not be <code>null</code>.
+   * @param aEndpoint
+   *        The endpoint to cache. May not be <code>null</code>.
+   */
+  public void put (@Nonnull final String sKey, @Nonnull final Endpoint aEndpoint)
+  {
+    ValueEnforcer.notNull (sKey, "Key");
+    ValueEnforcer.notNull (aEndpoint, "Endpoint");
+
+    if (!aEndpoint.isCacheable ())
+      return;
+
+    final Duration aTTL = aEndpoint.isEndpointFound () ? m_aTTL : m_aNegativeTTL;
+    if (aTTL.isZero ())
+      return;
+
+    final CacheEntry aEntry = new CacheEntry (aEndpoint, System.nanoTime () + aTTL.toNanos ());
+    m_aLock.locked ( () -> m_aMap.put (sKey, aEntry));
+  }
+
+  /**
+   * Remove the entry with the provided key.
+   *
+   * @param sKey
+   *        The key to remove. May be <code>null</code>.
+   */
+  public void remove (@Nullable final String sKey)
+  {
+    if (sKey != null)
+      m_aLock.locked ( () -> m_aMap.remove (sKey));
+  }
+
+  /**
+   * Remove all entries from the cache. The statistics are not reset.
+   */
+  public void clear ()
+  {
+    m_aLock.locked (m_aMap::clear);
+  }
+
+  /**
+   * @return The number of entries currently in the cache, including expired
+   *         ones that were not yet removed.
+   */
+  @Nonnegative
+  public int size ()
+  {
+    return m_aLock.lockedGet (m_aMap::size).intValue ();
+  }
+
+  /**
+   * @return The number of cache hits since creation.
+   */
+  @Nonnegative
+  public long getHitCount ()
+  {
+    return m_aHits.get ();
+  }
+
+  /**
+   * @return The number of cache misses since creation.
+   */
+  @Nonnegative
+  public long getMissCount ()
+  {
+    return m_aMisses.get ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("TTL", m_aTTL)
+                                       .append ("NegativeTTL", m_aNegativeTTL)
+                                       .append ("MaxSize", m_nMaxSize)
+                                       .append ("Hits", getHitCount ())
+                                       .append ("Misses", getMissCount ())
+                                       .getToString ();
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import javax.activation.DataSource;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.Immutable;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.functional.ISupplier;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * A {@link DataSource} that provides the Standard Business Document by
+ * streaming the SBDH envelope and the raw business document bytes. The
+ * business document is never held in memory. Every call to
+ * {@link #getInputStream()} opens the business document again, so the
+ * underlying source must be readable multiple times.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@Immutable
+public class StreamingSBDHDataSource implements DataSource
+{
+  private final SBDHEnvelope m_aEnvelope;
+  private final ISupplier <InputStream> m_aPayloadISProvider;
+  private final boolean m_bResetDefaultNamespace;
+  private final String m_sContentType;
+
+  /**
+   * Constructor
+   *
+   * @param aEnvelope
+   *        The SBDH envelope to use. May not be <code>null</code>.
+   * @param aPayloadISProvider
+   *        The provider for the business document stream. It must return a new
+   *        stream on every invocation. May not be <code>null</code>.
+   * @param bResetDefaultNamespace
+   *        <code>true</code> if the default namespace of the business document
+   *        root element must be reset.
+   * @param sContentType
+   *        The MIME type to use. May neither be <code>null</code> nor empty.
+   */
+  public StreamingSBDHDataSource (@Nonnull final SBDHEnvelope aEnvelope,
+                                  @Nonnull final ISupplier <InputStream> aPayloadISProvider,
+                                  final boolean bResetDefaultNamespace,
+                                  @Nonnull @Nonempty final String sContentType)
+  {
+    ValueEnforcer.notNull (aEnvelope, "Envelope");
+    ValueEnforcer.notNull (aPayloadISProvider, "PayloadISProvider");
+    ValueEnforcer.notEmpty (sContentType, "ContentType");
+    m_aEnvelope = aEnvelope;
+    m_aPayloadISProvider = aPayloadISProvider;
+    m_bResetDefaultNamespace = bResetDefaultNamespace;
+    m_sContentType = sContentType;
+  }
+
+  @Nonnull
+  public InputStream getInputStream () throws IOException
+  {
+    final InputStream aPayloadIS = m_aPayloadISProvider.get ();
+    if (aPayloadIS == null)
+      throw new IOException ("Failed to open the business document");
+
+    try
+    {
+      return m_aEnvelope.getAsInputStream (XMLPayloadHelper.openRootElementStream (aPayloadIS, m_bResetDefaultNamespace));
+    }
+    catch (final IOException | RuntimeException ex)
+    {
+      StreamHelper.close (aPayloadIS);
+      throw ex;
+    }
+  }
+
+  @Nonnull
+  public OutputStream getOutputStream () throws IOException
+  {
+    throw new IOException ("This DataSource is read-only");
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getContentType ()
+  {
+    return m_sContentType;
+  }
+
+  @Nonnull
+  @Nonempty
+  public String getName ()
+  {
+    return "StandardBusinessDocument";
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Envelope", m_aEnvelope)
+                                       .append ("ResetDefaultNamespace", m_bResetDefaultNamespace)
+                                       .append ("ContentType", m_sContentType)
+                                       .getToString ();
+  }
+}
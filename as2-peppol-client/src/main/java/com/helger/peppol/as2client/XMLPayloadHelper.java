@@ -0,0 +1,348 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.WillClose;
+import javax.annotation.concurrent.Immutable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringHelper;
+import com.helger.commons.string.ToStringGenerator;
+
+/**
+ * Helper class to handle the raw bytes of an XML business document without
+ * building a DOM. It can determine the root element of the document via StAX
+ * and it can open a stream that starts directly at the root element (the XML
+ * declaration and all other prolog content is skipped), so that the bytes can
+ * be embedded into another XML document.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@Immutable
+public final class XMLPayloadHelper
+{
+  /**
+   * Information on the root element of an XML business document.
+   *
+   * @author Philip Helger
+   */
+  @Immutable
+  public static final class RootElement
+  {
+    private final String m_sNamespaceURI;
+    private final String m_sLocalName;
+    private final boolean m_bDeclaresDefaultNamespace;
+    private final String m_sEncoding;
+
+    RootElement (@Nullable final String sNamespaceURI,
+                 @Nonnull @Nonempty final String sLocalName,
+                 final boolean bDeclaresDefaultNamespace,
+                 @Nullable final String sEncoding)
+    {
+      m_sNamespaceURI = sNamespaceURI;
+      m_sLocalName = sLocalName;
+      m_bDeclaresDefaultNamespace = bDeclaresDefaultNamespace;
+      m_sEncoding = sEncoding;
+    }
+
+    /**
+     * @return The namespace URI of the root element. May be <code>null</code>
+     *         if the element is in no namespace.
+     */
+    @Nullable
+    public String getNamespaceURI ()
+    {
+      return m_sNamespaceURI;
+    }
+
+    /**
+     * @return The local name of the root element. Neither <code>null</code>
+     *         nor empty.
+     */
+    @Nonnull
+    @Nonempty
+    public String getLocalName ()
+    {
+      return m_sLocalName;
+    }
+
+    /**
+     * @return <code>true</code> if the root element itself declares the
+     *         default namespace (<code>xmlns="..."</code>), <code>false</code>
+     *         if not.
+     */
+    public boolean isDeclaresDefaultNamespace ()
+    {
+      return m_bDeclaresDefaultNamespace;
+    }
+
+    /**
+     * @return The encoding of the document as declared or detected by the
+     *         parser. May be <code>null</code>.
+     */
+    @Nullable
+    public String getEncoding ()
+    {
+      return m_sEncoding;
+    }
+
+    /**
+     * @return <code>true</code> if the document is UTF-8 (or plain ASCII)
+     *         encoded and can therefore be embedded byte-wise into an UTF-8
+     *         encoded document.
+     */
+    public boolean isUTF8Compatible ()
+    {
+      return m_sEncoding == null ||
+             m_sEncoding.equalsIgnoreCase ("UTF-8") ||
+             m_sEncoding.equalsIgnoreCase ("UTF8") ||
+             m_sEncoding.equalsIgnoreCase ("US-ASCII");
+    }
+
+    @Override
+    public String toString ()
+    {
+      return new ToStringGenerator (this).append ("NamespaceURI", m_sNamespaceURI)
+                                         .append ("LocalName", m_sLocalName)
+                                         .append ("DeclaresDefaultNamespace", m_bDeclaresDefaultNamespace)
+                                         .append ("Encoding", m_sEncoding)
+                                         .getToString ();
+    }
+  }
+
+  private static final byte [] UTF8_BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+  private static final byte [] RESET_DEFAULT_NAMESPACE = " xmlns=\"\"".getBytes (StandardCharsets.US_ASCII);
+
+  private static final XMLInputFactory XML_INPUT_FACTORY;
+  static
+  {
+    XML_INPUT_FACTORY = XMLInputFactory.newFactory ();
+    // No DTD or external entity processing for untrusted input
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    XML_INPUT_FACTORY.setProperty (XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+  }
+
+  private XMLPayloadHelper ()
+  {}
+
+  /**
+   * Read the root element information of the provided XML document. Only the
+   * prolog and the start tag of the root element are read from the stream.
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>. Will be
+   *        closed.
+   * @return <code>null</code> if the content is not well-formed XML or if no
+   *         root element is present.
+   */
+  @Nullable
+  public static RootElement readRootElement (@Nonnull @WillClose final InputStream aIS)
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+    try
+    {
+      final XMLStreamReader aReader;
+      synchronized (XML_INPUT_FACTORY)
+      {
+        aReader = XML_INPUT_FACTORY.createXMLStreamReader (aIS);
+      }
+      try
+      {
+        while (aReader.hasNext ())
+          if (aReader.next () == XMLStreamConstants.START_ELEMENT)
+          {
+            boolean bDeclaresDefaultNamespace = false;
+            for (int i = 0; i < aReader.getNamespaceCount (); ++i)
+              if (StringHelper.hasNoText (aReader.getNamespacePrefix (i)))
+              {
+                bDeclaresDefaultNamespace = true;
+                break;
+              }
+
+            String sEncoding = aReader.getCharacterEncodingScheme ();
+            if (sEncoding == null)
+              sEncoding = aReader.getEncoding ();
+            return new RootElement (StringHelper.getNotEmpty (aReader.getNamespaceURI (), null),
+                                    aReader.getLocalName (),
+                                    bDeclaresDefaultNamespace,
+                                    sEncoding);
+          }
+        return null;
+      }
+      finally
+      {
+        aReader.close ();
+      }
+    }
+    catch (final XMLStreamException ex)
+    {
+      return null;
+    }
+    finally
+    {
+      StreamHelper.close (aIS);
+    }
+  }
+
+  private static boolean _isWhitespace (final int c)
+  {
+    return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+  }
+
+  private static void _skipUntil (@Nonnull final InputStream aIS, @Nonnull final byte [] aEnd) throws IOException
+  {
+    int nMatched = 0;
+    int c;
+    while ((c = aIS.read ()) >= 0)
+    {
+      if (c == aEnd[nMatched])
+      {
+        if (++nMatched == aEnd.length)
+          return;
+      }
+      else
+        nMatched = c == aEnd[0] ? 1 : 0;
+    }
+    throw new IOException ("Unexpected end of XML prolog");
+  }
+
+  private static void _skipDoctype (@Nonnull final InputStream aIS) throws IOException
+  {
+    // Skip the DOCTYPE incl. an optional internal subset
+    int nDepth = 0;
+    int c;
+    while ((c = aIS.read ()) >= 0)
+    {
+      if (c == '[')
+        nDepth++;
+      else
+        if (c == ']')
+          nDepth--;
+        else
+          if (c == '>' && nDepth == 0)
+            return;
+    }
+    throw new IOException ("Unexpected end of XML DOCTYPE");
+  }
+
+  /**
+   * Open a stream on the provided XML document, that starts directly with the
+   * start tag of the root element. A byte order mark, the XML declaration,
+   * processing instructions, comments and a DOCTYPE declaration before the
+   * root element are skipped. The document must be encoded in UTF-8 (see
+   * {@link RootElement#isUTF8Compatible()}).
+   *
+   * @param aIS
+   *        The input stream to read from. May not be <code>null</code>. Must be
+   *        closed by the caller of the returned stream.
+   * @param bResetDefaultNamespace
+   *        <code>true</code> to add an <code>xmlns=""</code> attribute to the
+   *        root element. This is required if the root element does not declare
+   *        a default namespace itself, but is embedded into an element that
+   *        has a default namespace.
+   * @return The stream starting with the root element and never
+   *         <code>null</code>.
+   * @throws IOException
+   *         In case of a read error or if the prolog is malformed
+   */
+  @Nonnull
+  public static InputStream openRootElementStream (@Nonnull final InputStream aIS,
+                                                   final boolean bResetDefaultNamespace) throws IOException
+  {
+    ValueEnforcer.notNull (aIS, "InputStream");
+
+    final InputStream aBufferedIS = StreamHelper.getBuffered (aIS);
+    int nBOMIndex = 0;
+    while (true)
+    {
+      int c = aBufferedIS.read ();
+      if (c < 0)
+        throw new IOException ("No XML root element found");
+
+      // Skip an optional UTF-8 BOM
+      if (nBOMIndex < UTF8_BOM.length && c == (UTF8_BOM[nBOMIndex] & 0xff))
+      {
+        nBOMIndex++;
+        continue;
+      }
+      nBOMIndex = UTF8_BOM.length;
+
+      if (_isWhitespace (c))
+        continue;
+      if (c != '<')
+        throw new IOException ("Unexpected character 0x" + Integer.toHexString (c) + " in XML prolog");
+
+      c = aBufferedIS.read ();
+      if (c == '?')
+      {
+        // XML declaration or processing instruction
+        _skipUntil (aBufferedIS, new byte [] { '?', '>' });
+      }
+      else
+        if (c == '!')
+        {
+          final int c2 = aBufferedIS.read ();
+          if (c2 == '-')
+          {
+            // Comment
+            _skipUntil (aBufferedIS, new byte [] { '-', '-', '>' });
+          }
+          else
+            _skipDoctype (aBufferedIS);
+        }
+        else
+        {
+          if (c < 0)
+            throw new IOException ("Unexpected end of XML prolog");
+
+          // Start of the root element
+          try (final NonBlockingByteArrayOutputStream aStart = new NonBlockingByteArrayOutputStream (128))
+          {
+            aStart.write ('<');
+            aStart.write (c);
+            if (bResetDefaultNamespace)
+            {
+              // Read the element name
+              while ((c = aBufferedIS.read ()) >= 0 && !_isWhitespace (c) && c != '/' && c != '>')
+                aStart.write (c);
+              if (c < 0)
+                throw new IOException ("Unexpected end of XML root element");
+              aStart.write (RESET_DEFAULT_NAMESPACE);
+              aStart.write (c);
+            }
+            return new SequenceInputStream (new NonBlockingByteArrayInputStream (aStart.toByteArray ()), aBufferedIS);
+          }
+        }
+    }
+  }
+}
@@ -0,0 +1,521 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.client.AS2ClientResponse;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.CommonsLinkedHashMap;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.functional.IConsumer;
+import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.resource.FileSystemResource;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.commons.string.StringParser;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.as2client.AS2BatchMessage;
+import com.helger.peppol.as2client.AS2BatchResult;
+import com.helger.peppol.as2client.AS2ClientBuilder;
+import com.helger.peppol.as2client.AS2ClientHelper;
+import com.helger.peppol.as2client.AS2ClientSender;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * A durable outbound queue on top of {@link AS2ClientSender}. Each enqueued
+ * message is copied into the outbox directory and recorded in an append-only
+ * journal before {@link #enqueue(AS2BatchMessage)} returns. A pool of workers
+ * sends the messages and records the outcome (including the MDN disposition)
+ * in the journal. Sends that failed for a reason that may not occur later
+ * (e.g. an unreachable endpoint or an open circuit) and for which no MDN was
+ * received are retried after a delay, until the maximum number of attempts is
+ * reached. The number of failed attempts is recorded in the journal as well,
+ * so that it survives a restart.
+ * Other failures (e.g. a validation error or an unknown receiver) are final
+ * immediately.<br>
+ * When the outbox is started, all journal entries without an outcome are
+ * replayed. This gives at-least-once delivery: a message that was sent right
+ * before a crash, but whose outcome was not yet recorded, is sent again.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class AS2Outbox implements Closeable
+{
+  /** The default number of parallel workers */
+  public static final int DEFAULT_WORKER_COUNT = 4;
+  /** The default maximum number of send attempts per message */
+  public static final int DEFAULT_MAX_ATTEMPTS = 5;
+  /** The default delay before a failed message is retried */
+  public static final Duration DEFAULT_RETRY_DELAY = Duration.ofMinutes (1);
+  /** The number of outcome records after which the journal is compacted */
+  public static final int DEFAULT_COMPACTION_THRESHOLD = 10_000;
+
+  static final String JOURNAL_FILENAME = "outbox.journal";
+  static final String DATA_DIRECTORY = "data";
+  static final String RECORD_ENQUEUED = "E";
+  static final String RECORD_ATTEMPT = "A";
+  static final String RECORD_DONE = "D";
+  static final String OUTCOME_SUCCESS = "SUCCESS";
+  static final String OUTCOME_FAILED = "FAILED";
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2Outbox.class);
+
+  private static final class Entry
+  {
+    private final String m_sID;
+    private final AS2BatchMessage m_aMessage;
+    // Only modified by the worker processing this entry
+    private volatile int m_nFailedAttempts;
+
+    Entry (@Nonnull final String sID, @Nonnull final AS2BatchMessage aMessage, @Nonnegative final int nFailedAttempts)
+    {
+      m_sID = sID;
+      m_aMessage = aMessage;
+      m_nFailedAttempts = nFailedAttempts;
+    }
+
+    @Nonnull
+    String [] getAsEnqueuedRecord ()
+    {
+      return new String [] { RECORD_ENQUEUED,
+                             m_sID,
+                             m_aMessage.getReceiverID ().getURIEncoded (),
+                             m_aMessage.getDocTypeID ().getURIEncoded (),
+                             m_aMessage.getProcessID ().getURIEncoded () };
+    }
+
+    @Nonnull
+    String [] getAsAttemptRecord ()
+    {
+      return new String [] { RECORD_ATTEMPT, m_sID, Integer.toString (m_nFailedAttempts) };
+    }
+  }
+
+  private final AS2ClientSender m_aSender;
+  private final File m_aDirectory;
+  private final File m_aDataDirectory;
+  private final int m_nWorkerCount;
+  private final int m_nMaxAttempts;
+  private final Duration m_aRetryDelay;
+  private final AS2OutboxJournal m_aJournal;
+  private final Map <String, Entry> m_aPending = new ConcurrentHashMap <> ();
+  private final AtomicInteger m_aOutcomesSinceCompaction = new AtomicInteger (0);
+  private IConsumer <? super AS2BatchResult> m_aResultConsumer;
+  private volatile ScheduledThreadPoolExecutor m_aExecutor;
+  private volatile boolean m_bClosing = false;
+
+  /**
+   * Constructor using the default settings.
+   *
+   * @param aSender
+   *        The sender to be used. May not be <code>null</code>.
+   * @param aDirectory
+   *        The directory for the journal and the message copies. May not be
+   *        <code>null</code>. Only one outbox may use a directory at a time.
+   */
+  public AS2Outbox (@Nonnull final AS2ClientSender aSender, @Nonnull final File aDirectory)
+  {
+    this (aSender, aDirectory, DEFAULT_WORKER_COUNT, DEFAULT_MAX_ATTEMPTS, DEFAULT_RETRY_DELAY);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aSender
+   *        The sender to be used. May not be <code>null</code>.
+   * @param aDirectory
+   *        The directory for the journal and the message copies. May not be
+   *        <code>null</code>. Only one outbox may use a directory at a time.
+   * @param nWorkerCount
+   *        The number of parallel workers. Must be &gt; 0.
+   * @param nMaxAttempts
+   *        The maximum number of send attempts per message. Must be &gt; 0.
+   * @param aRetryDelay
+   *        The delay before a failed message is retried. May not be
+   *        <code>null</code>.
+   */
+  public AS2Outbox (@Nonnull final AS2ClientSender aSender,
+                    @Nonnull final File aDirectory,
+                    @Nonnegative final int nWorkerCount,
+                    @Nonnegative final int nMaxAttempts,
+                    @Nonnull final Duration aRetryDelay)
+  {
+    ValueEnforcer.notNull (aSender, "Sender");
+    ValueEnforcer.notNull (aDirectory, "Directory");
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    ValueEnforcer.isGT0 (nMaxAttempts, "MaxAttempts");
+    ValueEnforcer.notNull (aRetryDelay, "RetryDelay");
+    ValueEnforcer.isFalse (aRetryDelay.isNegative (), "RetryDelay may not be negative");
+    m_aSender = aSender;
+    m_aDirectory = aDirectory;
+    m_aDataDirectory = new File (aDirectory, DATA_DIRECTORY);
+    m_nWorkerCount = nWorkerCount;
+    m_nMaxAttempts = nMaxAttempts;
+    m_aRetryDelay = aRetryDelay;
+    m_aJournal = new AS2OutboxJournal (new File (aDirectory, JOURNAL_FILENAME));
+  }
+
+  /**
+   * @return The outbox directory. Never <code>null</code>.
+   */
+  @Nonnull
+  public final File getDirectory ()
+  {
+    return m_aDirectory;
+  }
+
+  /**
+   * @return The number of messages that were not yet sent successfully or
+   *         failed finally.
+   */
+  @Nonnegative
+  public int getPendingCount ()
+  {
+    return m_aPending.size ();
+  }
+
+  /**
+   * Set the consumer that is invoked with the final outcome of every message.
+   * It is invoked on a worker thread after the outcome was recorded in the
+   * journal. Must be called before {@link #start()}.
+   *
+   * @param aResultConsumer
+   *        The consumer to use. May be <code>null</code>.
+   * @return this for chaining
+   */
+  @Nonnull
+  public AS2Outbox setResultConsumer (@Nullable final IConsumer <? super AS2BatchResult> aResultConsumer)
+  {
+    m_aResultConsumer = aResultConsumer;
+    return this;
+  }
+
+  @Nonnull
+  private File _getDataFile (@Nonnull final String sID)
+  {
+    return new File (m_aDataDirectory, sID + ".xml");
+  }
+
+  /**
+   * Replay the journal and start the workers.
+   *
+   * @throws IOException
+   *         If the directory or the journal cannot be accessed
+   */
+  public void start () throws IOException
+  {
+    if (m_aExecutor != null)
+      throw new IllegalStateException ("The outbox was already started");
+
+    if (FileOperationManager.INSTANCE.createDirRecursiveIfNotExisting (m_aDataDirectory).isFailure ())
+      throw new IOException ("Failed to create outbox directory '" + m_aDataDirectory.getAbsolutePath () + "'");
+
+    // Replay
+    final ICommonsMap <String, String []> aOpen = new CommonsLinkedHashMap <> ();
+    final ICommonsMap <String, Integer> aFailedAttempts = new CommonsHashMap <> ();
+    int nDone = 0;
+    for (final String [] aRecord : m_aJournal.open ())
+    {
+      if (RECORD_ENQUEUED.equals (aRecord[0]) && aRecord.length == 5)
+        aOpen.put (aRecord[1], aRecord);
+      else
+        if (RECORD_ATTEMPT.equals (aRecord[0]) && aRecord.length == 3)
+          aFailedAttempts.put (aRecord[1], Integer.valueOf (StringParser.parseInt (aRecord[2], 0)));
+        else
+          if (RECORD_DONE.equals (aRecord[0]) && aRecord.length >= 2)
+          {
+            aOpen.remove (aRecord[1]);
+            aFailedAttempts.remove (aRecord[1]);
+            nDone++;
+          }
+    }
+
+    for (final String [] aRecord : aOpen.values ())
+    {
+      final String sID = aRecord[1];
+      final File aDataFile = _getDataFile (sID);
+      final IParticipantIdentifier aReceiverID = PeppolIdentifierFactory.INSTANCE.parseParticipantIdentifier (aRecord[2]);
+      final IDocumentTypeIdentifier aDocTypeID = PeppolIdentifierFactory.INSTANCE.parseDocumentTypeIdentifier (aRecord[3]);
+      final IProcessIdentifier aProcessID = PeppolIdentifierFactory.INSTANCE.parseProcessIdentifier (aRecord[4]);
+      if (!aDataFile.isFile () || aReceiverID == null || aDocTypeID == null || aProcessID == null)
+      {
+        LOGGER.error ("Dropping outbox entry '" + sID + "' because it is incomplete");
+        continue;
+      }
+      final Integer aAttempts = aFailedAttempts.get (sID);
+      m_aPending.put (sID,
+                      new Entry (sID,
+                                 new AS2BatchMessage (aReceiverID, aDocTypeID, aProcessID, new FileSystemResource (aDataFile)),
+                                 aAttempts == null ? 0 : aAttempts.intValue ()));
+    }
+    LOGGER.info ("Replayed outbox journal: " + m_aPending.size () + " pending and " + nDone + " completed entries");
+
+    // Start with a compact journal
+    _compact ();
+
+    final ScheduledThreadPoolExecutor aExecutor = new ScheduledThreadPoolExecutor (m_nWorkerCount);
+    aExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy (false);
+    m_aExecutor = aExecutor;
+    for (final Entry aEntry : m_aPending.values ())
+      m_aExecutor.execute ( () -> _process (aEntry));
+  }
+
+  private void _copyDurable (@Nonnull final AS2BatchMessage aMessage, @Nonnull final File aTargetFile) throws IOException
+  {
+    final InputStream aIS = aMessage.getBusinessDocument ().getInputStream ();
+    if (aIS == null)
+      throw new IOException ("Failed to open business document " + aMessage.getBusinessDocument ().getPath ());
+    try (final FileChannel aChannel = FileChannel.open (aTargetFile.toPath (),
+                                                        StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING))
+    {
+      final byte [] aBuffer = new byte [16 * 1024];
+      int nRead;
+      while ((nRead = aIS.read (aBuffer)) > 0)
+      {
+        final ByteBuffer aBB = ByteBuffer.wrap (aBuffer, 0, nRead);
+        while (aBB.hasRemaining ())
+          aChannel.write (aBB);
+      }
+      aChannel.force (true);
+    }
+    finally
+    {
+      StreamHelper.close (aIS);
+    }
+  }
+
+  /**
+   * Add a message to the outbox. When this method returns, the message is
+   * stored durably and will be sent, even if the JVM crashes.
+   *
+   * @param aMessage
+   *        The message to be sent. The business document is copied. May not be
+   *        <code>null</code>.
+   * @return The ID of the outbox entry. Neither <code>null</code> nor empty.
+   * @throws IOException
+   *         If the message could not be stored
+   */
+  @Nonnull
+  @Nonempty
+  public String enqueue (@Nonnull final AS2BatchMessage aMessage) throws IOException
+  {
+    ValueEnforcer.notNull (aMessage, "Message");
+    if (m_aExecutor == null)
+      throw new IllegalStateException ("The outbox was not started");
+
+    final String sID = UUID.randomUUID ().toString ();
+    final File aDataFile = _getDataFile (sID);
+    _copyDurable (aMessage, aDataFile);
+
+    final Entry aEntry = new Entry (sID,
+                                    new AS2BatchMessage (aMessage.getReceiverID (),
+                                                         aMessage.getDocTypeID (),
+                                                         aMessage.getProcessID (),
+                                                         new FileSystemResource (aDataFile)),
+                                    0);
+    // Add before the journal record, so that a concurrent compaction keeps it
+    m_aPending.put (sID, aEntry);
+    try
+    {
+      m_aJournal.append (aEntry.getAsEnqueuedRecord ());
+    }
+    catch (final IOException ex)
+    {
+      m_aPending.remove (sID);
+      FileOperationManager.INSTANCE.deleteFileIfExisting (aDataFile);
+      throw ex;
+    }
+
+    m_aExecutor.execute ( () -> _process (aEntry));
+    return sID;
+  }
+
+  /**
+   * Check if a failed send should be retried. By default only failures that
+   * may not occur later are retried: connection and other I/O errors, open
+   * circuits and exhausted sending permits or memory. A message for which an
+   * MDN was received is never retried, because the receiver already got it,
+   * even if the MDN is negative or cannot be verified. Validation errors and
+   * receivers that are unknown to the SMP are never retried either.
+   *
+   * @param aResult
+   *        The failed result. Never <code>null</code>.
+   * @return <code>true</code> if the send should be retried.
+   */
+  protected boolean isRetryable (@Nonnull final AS2BatchResult aResult)
+  {
+    return AS2ClientHelper.isRetryable (aResult.getResponse (), aResult.getException ());
+  }
+
+  private void _process (@Nonnull final Entry aEntry)
+  {
+    if (m_bClosing)
+      return;
+
+    final AS2BatchMessage aMsg = aEntry.m_aMessage;
+    final int nAttempt = aEntry.m_nFailedAttempts + 1;
+
+    AS2BatchResult aResult;
+    AS2ClientBuilder aBuilder = null;
+    try
+    {
+      aBuilder = m_aSender.createBuilder (aMsg.getReceiverID (), aMsg.getDocTypeID (), aMsg.getProcessID ())
+                          .setBusinessDocument (aMsg.getBusinessDocument ());
+      final AS2ClientResponse aResponse = aBuilder.sendSynchronous ();
+      aResult = new AS2BatchResult (aMsg, aBuilder.getReceiverAS2Url (), aResponse, null);
+    }
+    catch (final Exception ex)
+    {
+      aResult = new AS2BatchResult (aMsg, aBuilder == null ? null : aBuilder.getReceiverAS2Url (), null, ex);
+    }
+
+    if (!aResult.isSuccess () && nAttempt < m_nMaxAttempts && isRetryable (aResult))
+    {
+      LOGGER.warn ("Sending outbox entry '" + aEntry.m_sID + "' failed in attempt " + nAttempt + " - retrying later");
+      aEntry.m_nFailedAttempts = nAttempt;
+      try
+      {
+        m_aJournal.append (aEntry.getAsAttemptRecord ());
+      }
+      catch (final IOException ex)
+      {
+        // Only the attempt count is lost
+        LOGGER.error ("Failed to record the failed attempt of outbox entry '" + aEntry.m_sID + "'", ex);
+      }
+      final ScheduledExecutorService aExecutor = m_aExecutor;
+      if (aExecutor != null && !aExecutor.isShutdown ())
+        aExecutor.schedule ( () -> _process (aEntry), m_aRetryDelay.toMillis (), TimeUnit.MILLISECONDS);
+      return;
+    }
+
+    // Final outcome
+    final AS2ClientResponse aResponse = aResult.getResponse ();
+    final String sMessageID = aResponse == null ? null : aResponse.getOriginalMessageID ();
+    final String sDetails;
+    if (aResult.isSuccess ())
+      sDetails = aResponse.getMDNDisposition ();
+    else
+      if (aResult.getException () != null)
+        sDetails = aResult.getException ().getMessage ();
+      else
+        sDetails = aResponse.getException ().getMessage ();
+
+    // Remove before the journal record, so that a concurrent compaction drops
+    // it
+    m_aPending.remove (aEntry.m_sID);
+    try
+    {
+      m_aJournal.append (RECORD_DONE, aEntry.m_sID, aResult.isSuccess () ? OUTCOME_SUCCESS : OUTCOME_FAILED, sMessageID, sDetails);
+      FileOperationManager.INSTANCE.deleteFileIfExisting (_getDataFile (aEntry.m_sID));
+    }
+    catch (final IOException ex)
+    {
+      // The entry will be sent again after a restart
+      LOGGER.error ("Failed to record the outcome of outbox entry '" + aEntry.m_sID + "'", ex);
+    }
+
+    if (m_aResultConsumer != null)
+      m_aResultConsumer.accept (aResult);
+
+    if (m_aOutcomesSinceCompaction.incrementAndGet () >= DEFAULT_COMPACTION_THRESHOLD)
+      try
+      {
+        _compact ();
+      }
+      catch (final IOException ex)
+      {
+        LOGGER.error ("Failed to compact the outbox journal", ex);
+      }
+  }
+
+  private void _compact () throws IOException
+  {
+    m_aOutcomesSinceCompaction.set (0);
+    m_aJournal.rewrite ( () -> {
+      final ICommonsList <String []> ret = new CommonsArrayList <> (m_aPending.size ());
+      for (final Entry aEntry : m_aPending.values ())
+      {
+        ret.add (aEntry.getAsEnqueuedRecord ());
+        if (aEntry.m_nFailedAttempts > 0)
+          ret.add (aEntry.getAsAttemptRecord ());
+      }
+      return ret;
+    });
+  }
+
+  /**
+   * Stop the workers and close the journal. Messages that are currently being
+   * sent are finished, pending messages stay in the journal.
+   */
+  public void close () throws IOException
+  {
+    final ScheduledExecutorService aExecutor = m_aExecutor;
+    if (aExecutor != null)
+    {
+      // Queued entries are skipped, delayed retries are dropped
+      m_bClosing = true;
+      m_aExecutor = null;
+      ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (aExecutor);
+    }
+    m_aJournal.close ();
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("Sender", m_aSender)
+                                       .append ("Directory", m_aDirectory)
+                                       .append ("WorkerCount", m_nWorkerCount)
+                                       .append ("MaxAttempts", m_nMaxAttempts)
+                                       .append ("RetryDelay", m_aRetryDelay)
+                                       .getToString ();
+  }
+}
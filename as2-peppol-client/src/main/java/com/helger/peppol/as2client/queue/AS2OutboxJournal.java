@@ -0,0 +1,421 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.annotation.Nonempty;
+import com.helger.commons.annotation.ReturnsMutableCopy;
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.functional.ISupplier;
+import com.helger.commons.io.stream.NonBlockingBufferedInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
+import com.helger.commons.string.StringHelper;
+
+/**
+ * An append-only journal file for the {@link AS2Outbox}. Each record is a
+ * single line of tab separated, URL encoded fields, terminated by a CRC32
+ * checksum. Concurrent appenders share a single fsync (group commit): every
+ * appender waits until its record is on disk, but a single
+ * {@link FileChannel#force(boolean)} call covers all records written so far.
+ * <br>
+ * When the journal is opened, a torn or corrupt tail (e.g. caused by a crash
+ * during a write) is truncated. Compaction writes a new journal that atomically
+ * replaces the old one.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+final class AS2OutboxJournal implements Closeable
+{
+  private static final Logger LOGGER = LoggerFactory.getLogger (AS2OutboxJournal.class);
+  private static final char SEPARATOR = '\t';
+
+  private final File m_aFile;
+  // Lock order: sync lock before write lock
+  private final Lock m_aSyncLock = new ReentrantLock ();
+  private final Lock m_aWriteLock = new ReentrantLock ();
+  private FileChannel m_aChannel;
+  private boolean m_bOpen;
+  private long m_nWrittenSeq;
+  private long m_nSyncedSeq;
+
+  AS2OutboxJournal (@Nonnull final File aFile)
+  {
+    ValueEnforcer.notNull (aFile, "File");
+    m_aFile = aFile;
+  }
+
+  @Nonnull
+  File getFile ()
+  {
+    return m_aFile;
+  }
+
+  @Nonnull
+  private static String _encode (@Nullable final String s) throws IOException
+  {
+    return URLEncoder.encode (StringHelper.getNotNull (s), StandardCharsets.UTF_8.name ());
+  }
+
+  @Nonnull
+  private static byte [] _createRecord (@Nonnull final String [] aFields) throws IOException
+  {
+    final StringBuilder aSB = new StringBuilder ();
+    for (final String sField : aFields)
+      aSB.append (_encode (sField)).append (SEPARATOR);
+    final byte [] aContent = aSB.toString ().getBytes (StandardCharsets.UTF_8);
+
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (aContent);
+    final byte [] aSuffix = (Long.toHexString (aCRC.getValue ()) + "\n").getBytes (StandardCharsets.US_ASCII);
+
+    final byte [] ret = new byte [aContent.length + aSuffix.length];
+    System.arraycopy (aContent, 0, ret, 0, aContent.length);
+    System.arraycopy (aSuffix, 0, ret, aContent.length, aSuffix.length);
+    return ret;
+  }
+
+  /**
+   * Parse a single line without the trailing newline.
+   *
+   * @return <code>null</code> if the line is corrupt.
+   */
+  @Nullable
+  private static String [] _parseRecord (@Nonnull final byte [] aLine, final int nLength) throws IOException
+  {
+    // Find the last separator - the CRC follows
+    int nLastSep = nLength - 1;
+    while (nLastSep >= 0 && aLine[nLastSep] != SEPARATOR)
+      nLastSep--;
+    if (nLastSep < 0)
+      return null;
+
+    final CRC32 aCRC = new CRC32 ();
+    aCRC.update (aLine, 0, nLastSep + 1);
+    final String sCRC = new String (aLine, nLastSep + 1, nLength - nLastSep - 1, StandardCharsets.US_ASCII);
+    if (!Long.toHexString (aCRC.getValue ()).equals (sCRC))
+      return null;
+
+    final ICommonsList <String> aFields = StringHelper.getExploded (SEPARATOR,
+                                                                    new String (aLine, 0, nLastSep, StandardCharsets.UTF_8));
+    final String [] ret = new String [aFields.size ()];
+    for (int i = 0; i < ret.length; ++i)
+      ret[i] = URLDecoder.decode (aFields.get (i), StandardCharsets.UTF_8.name ());
+    return ret;
+  }
+
+  /**
+   * Open the journal for appending and read all existing records. A torn or
+   * corrupt tail is truncated.
+   *
+   * @return All valid records in the order they were written. Never
+   *         <code>null</code>.
+   * @throws IOException
+   *         on error
+   */
+  @Nonnull
+  @ReturnsMutableCopy
+  ICommonsList <String []> open () throws IOException
+  {
+    final ICommonsList <String []> ret = new CommonsArrayList <> ();
+    long nValidLength = 0;
+    if (m_aFile.exists ())
+    {
+      try (final InputStream aIS = new NonBlockingBufferedInputStream (Files.newInputStream (m_aFile.toPath ()));
+           final NonBlockingByteArrayOutputStream aLine = new NonBlockingByteArrayOutputStream (256))
+      {
+        int c;
+        while ((c = aIS.read ()) >= 0)
+        {
+          if (c != '\n')
+          {
+            aLine.write (c);
+            continue;
+          }
+          final String [] aRecord = _parseRecord (aLine.directGetBuffer (), aLine.size ());
+          if (aRecord == null)
+          {
+            LOGGER.warn ("Found corrupt record in outbox journal '" + m_aFile.getAbsolutePath () + "' at offset " + nValidLength);
+            break;
+          }
+          ret.add (aRecord);
+          nValidLength += aLine.size () + 1;
+          aLine.reset ();
+        }
+      }
+    }
+
+    m_aWriteLock.lock ();
+    try
+    {
+      m_aChannel = FileChannel.open (m_aFile.toPath (), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      m_bOpen = true;
+      if (m_aChannel.size () > nValidLength)
+      {
+        LOGGER.warn ("Truncating outbox journal '" + m_aFile.getAbsolutePath () + "' from " + m_aChannel.size () + " to " + nValidLength + " bytes");
+        m_aChannel.truncate (nValidLength);
+        m_aChannel.force (false);
+      }
+      m_aChannel.position (nValidLength);
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+    return ret;
+  }
+
+  /**
+   * Open the journal file for appending. Must be called with the write lock.
+   */
+  @Nonnull
+  private FileChannel _openForAppend () throws IOException
+  {
+    final FileChannel ret = FileChannel.open (m_aFile.toPath (), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    ret.position (ret.size ());
+    return ret;
+  }
+
+  /**
+   * Get the channel to append to. If a previous compaction failed to reopen
+   * the journal, it is reopened now. Must be called with the write lock.
+   */
+  @Nonnull
+  private FileChannel _getChannel () throws IOException
+  {
+    if (!m_bOpen)
+      throw new IOException ("The outbox journal is not open");
+    if (m_aChannel == null)
+      m_aChannel = _openForAppend ();
+    return m_aChannel;
+  }
+
+  /**
+   * Make a rename within the provided directory durable. This is not supported
+   * on all platforms.
+   */
+  private static void _syncDirectory (@Nullable final File aDir)
+  {
+    if (aDir == null)
+      return;
+    try (final FileChannel aDirChannel = FileChannel.open (aDir.toPath (), StandardOpenOption.READ))
+    {
+      aDirChannel.force (true);
+    }
+    catch (final IOException ex)
+    {
+      if (LOGGER.isDebugEnabled ())
+        LOGGER.debug ("Failed to sync directory '" + aDir.getAbsolutePath () + "': " + ex.getMessage ());
+    }
+  }
+
+  private void _writeFully (@Nonnull final FileChannel aChannel, @Nonnull final byte [] aBytes) throws IOException
+  {
+    final ByteBuffer aBB = ByteBuffer.wrap (aBytes);
+    while (aBB.hasRemaining ())
+      aChannel.write (aBB);
+  }
+
+  /**
+   * Append a record and wait until it is on disk.
+   *
+   * @param aFields
+   *        The fields of the record. May not be <code>null</code>.
+   * @throws IOException
+   *         on error
+   */
+  void append (@Nonnull @Nonempty final String... aFields) throws IOException
+  {
+    ValueEnforcer.notEmpty (aFields, "Fields");
+    final byte [] aRecord = _createRecord (aFields);
+
+    final long nMySeq;
+    m_aWriteLock.lock ();
+    try
+    {
+      _writeFully (_getChannel (), aRecord);
+      nMySeq = ++m_nWrittenSeq;
+    }
+    finally
+    {
+      m_aWriteLock.unlock ();
+    }
+
+    // Group commit: one fsync for all records written so far
+    m_aSyncLock.lock ();
+    try
+    {
+      if (m_nSyncedSeq < nMySeq)
+      {
+        final long nTargetSeq;
+        final FileChannel aChannel;
+        m_aWriteLock.lock ();
+        try
+        {
+          nTargetSeq = m_nWrittenSeq;
+          aChannel = _getChannel ();
+        }
+        finally
+        {
+          m_aWriteLock.unlock ();
+        }
+        aChannel.force (false);
+        m_nSyncedSeq = nTargetSeq;
+      }
+    }
+    finally
+    {
+      m_aSyncLock.unlock ();
+    }
+  }
+
+  /**
+   * Replace the journal content with the provided records. The new journal is
+   * written to a temporary file which atomically replaces the journal. If
+   * replacing fails, the old journal is kept and used further.
+   *
+   * @param aRecordSupplier
+   *        The supplier for the records to keep. It is invoked while no other
+   *        record can be appended. May not be <code>null</code>.
+   * @throws IOException
+   *         on error
+   */
+  void rewrite (@Nonnull final ISupplier <? extends Iterable <String []>> aRecordSupplier) throws IOException
+  {
+    ValueEnforcer.notNull (aRecordSupplier, "RecordSupplier");
+
+    m_aSyncLock.lock ();
+    try
+    {
+      m_aWriteLock.lock ();
+      try
+      {
+        final File aTempFile = new File (m_aFile.getParentFile (), m_aFile.getName () + ".tmp");
+        try (final FileChannel aTempChannel = FileChannel.open (aTempFile.toPath (),
+                                                                StandardOpenOption.CREATE,
+                                                                StandardOpenOption.WRITE,
+                                                                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+          for (final String [] aRecord : aRecordSupplier.get ())
+            _writeFully (aTempChannel, _createRecord (aRecord));
+          aTempChannel.force (true);
+        }
+
+        // All records written so far are contained in the new journal
+        final long nWrittenSeq = m_nWrittenSeq;
+
+        // The open file cannot be replaced on all platforms
+        if (m_aChannel != null)
+        {
+          m_aChannel.close ();
+          m_aChannel = null;
+        }
+        try
+        {
+          Files.move (aTempFile.toPath (), m_aFile.toPath (), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (final IOException ex)
+        {
+          // Continue with the old journal
+          try
+          {
+            Files.deleteIfExists (aTempFile.toPath ());
+          }
+          catch (final IOException ex2)
+          {
+            ex.addSuppressed (ex2);
+          }
+          try
+          {
+            m_aChannel = _openForAppend ();
+          }
+          catch (final IOException ex2)
+          {
+            // Reopened upon the next append
+            ex.addSuppressed (ex2);
+          }
+          throw ex;
+        }
+        _syncDirectory (m_aFile.getAbsoluteFile ().getParentFile ());
+        m_nSyncedSeq = nWrittenSeq;
+
+        // If this fails, the journal is reopened upon the next append
+        m_aChannel = _openForAppend ();
+      }
+      finally
+      {
+        m_aWriteLock.unlock ();
+      }
+    }
+    finally
+    {
+      m_aSyncLock.unlock ();
+    }
+  }
+
+  public void close () throws IOException
+  {
+    m_aSyncLock.lock ();
+    try
+    {
+      m_aWriteLock.lock ();
+      try
+      {
+        m_bOpen = false;
+        if (m_aChannel != null)
+        {
+          m_aChannel.force (false);
+          m_aChannel.close ();
+          m_aChannel = null;
+        }
+      }
+      finally
+      {
+        m_aWriteLock.unlock ();
+      }
+    }
+    finally
+    {
+      m_aSyncLock.unlock ();
+    }
+  }
+}
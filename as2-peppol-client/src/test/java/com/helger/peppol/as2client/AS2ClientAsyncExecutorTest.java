@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.as2lib.client.AS2ClientResponse;
+
+/**
+ * Test class for class {@link AS2ClientAsyncExecutor}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2ClientAsyncExecutorTest
+{
+  @Test (expected = IllegalArgumentException.class)
+  public void testDiscardPolicy ()
+  {
+    new AS2ClientAsyncExecutor (1, 1, new ThreadPoolExecutor.DiscardPolicy ());
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void testDiscardOldestPolicy ()
+  {
+    new AS2ClientAsyncExecutor (1, 1, new ThreadPoolExecutor.DiscardOldestPolicy ());
+  }
+
+  private static void _assertRejected (@Nonnull final CompletableFuture <AS2ClientResponse> aFuture) throws Exception
+  {
+    assertTrue (aFuture.isCompletedExceptionally ());
+    try
+    {
+      aFuture.get (1, TimeUnit.SECONDS);
+      fail ();
+    }
+    catch (final ExecutionException ex)
+    {
+      assertTrue (ex.getCause () instanceof RejectedExecutionException);
+    }
+  }
+
+  @Test
+  public void testQueueFull () throws Exception
+  {
+    final CountDownLatch aLatch = new CountDownLatch (1);
+    try (final AS2ClientAsyncExecutor aExecutor = new AS2ClientAsyncExecutor (1, 1, new ThreadPoolExecutor.AbortPolicy ()))
+    {
+      // Blocks the only worker
+      final CompletableFuture <AS2ClientResponse> f1 = AS2ClientAsyncExecutor.runAsync ( () -> {
+        try
+        {
+          aLatch.await ();
+        }
+        catch (final InterruptedException ex)
+        {
+          Thread.currentThread ().interrupt ();
+        }
+        return new AS2ClientResponse ();
+      }, aExecutor);
+      // Fills the queue
+      final CompletableFuture <AS2ClientResponse> f2 = AS2ClientAsyncExecutor.runAsync (AS2ClientResponse::new, aExecutor);
+      // Rejected
+      _assertRejected (AS2ClientAsyncExecutor.runAsync (AS2ClientResponse::new, aExecutor));
+
+      aLatch.countDown ();
+      f1.get (10, TimeUnit.SECONDS);
+      f2.get (10, TimeUnit.SECONDS);
+    }
+  }
+
+  @Test
+  public void testCallerRunsAfterClose () throws Exception
+  {
+    final AS2ClientAsyncExecutor aExecutor = new AS2ClientAsyncExecutor (1, 1, new ThreadPoolExecutor.CallerRunsPolicy ());
+    aExecutor.close ();
+    // Must not be discarded silently
+    _assertRejected (AS2ClientAsyncExecutor.runAsync (AS2ClientResponse::new, aExecutor));
+  }
+}
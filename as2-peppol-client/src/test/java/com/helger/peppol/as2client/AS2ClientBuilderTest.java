@@ -0,0 +1,159 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.Test;
+
+import com.helger.commons.io.resource.inmemory.ReadableResourceByteArray;
+import com.helger.commons.io.resource.inmemory.ReadableResourceInputStream;
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.phive.api.executorset.VESID;
+
+/**
+ * Test class for class {@link AS2ClientBuilder}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2ClientBuilderTest
+{
+  private static final byte [] UTF8_PAYLOAD = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                               "<Invoice xmlns=\"urn:as2-peppol:test\">1</Invoice>").getBytes (StandardCharsets.UTF_8);
+  private static final byte [] LATIN1_PAYLOAD = ("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n" +
+                                                 "<Invoice xmlns=\"urn:as2-peppol:test\">1</Invoice>").getBytes (StandardCharsets.ISO_8859_1);
+
+  @Test
+  public void testStreamedReservation () throws Exception
+  {
+    final AS2MemoryGovernor aGovernor = new AS2MemoryGovernor (100 * 1024 * 1024);
+    final AS2ClientBuilder aBuilder = new AS2ClientBuilder ().setMemoryGovernor (aGovernor)
+                                                             .setUseStreamingSBDH (true)
+                                                             .setBusinessDocument (UTF8_PAYLOAD);
+    final XMLPayloadHelper.RootElement aRoot = aBuilder.getStreamingRootElement (true);
+    assertNotNull (aRoot);
+    assertEquals (aGovernor.getStreamingReservationBytes (), aBuilder.getRequiredHeapBytes (aRoot, false));
+    assertEquals (aGovernor.getStreamingReservationBytes (), aBuilder.getRequiredHeapBytes (aRoot, true));
+
+    // Streaming not requested
+    assertNull (aBuilder.getStreamingRootElement (false));
+    assertEquals (aGovernor.getEstimatedHeapBytes (UTF8_PAYLOAD.length), aBuilder.getRequiredHeapBytes (null, false));
+  }
+
+  @Test
+  public void testNotUTF8Reservation () throws Exception
+  {
+    final AS2MemoryGovernor aGovernor = new AS2MemoryGovernor (100 * 1024 * 1024);
+    final AS2ClientBuilder aBuilder = new AS2ClientBuilder ().setMemoryGovernor (aGovernor)
+                                                             .setUseStreamingSBDH (true)
+                                                             .setBusinessDocument (LATIN1_PAYLOAD);
+    // Falls back to the DOM
+    final XMLPayloadHelper.RootElement aRoot = aBuilder.getStreamingRootElement (true);
+    assertNull (aRoot);
+    assertEquals (aGovernor.getEstimatedHeapBytes (LATIN1_PAYLOAD.length), aBuilder.getRequiredHeapBytes (aRoot, false));
+  }
+
+  @Test
+  public void testReadOnceReservation () throws Exception
+  {
+    final AS2MemoryGovernor aGovernor = new AS2MemoryGovernor (100 * 1024 * 1024);
+    final AS2ClientBuilder aBuilder = new AS2ClientBuilder ().setMemoryGovernor (aGovernor)
+                                                             .setUseStreamingSBDH (true)
+                                                             .setBusinessDocument (new ReadableResourceInputStream (new NonBlockingByteArrayInputStream (UTF8_PAYLOAD)));
+    // Falls back to the DOM with an unknown size
+    final XMLPayloadHelper.RootElement aRoot = aBuilder.getStreamingRootElement (true);
+    assertNull (aRoot);
+    assertEquals (aGovernor.getEstimatedHeapBytes (-1), aBuilder.getRequiredHeapBytes (aRoot, false));
+  }
+
+  @Test
+  public void testConsumerReservation () throws Exception
+  {
+    final AS2MemoryGovernor aGovernor = new AS2MemoryGovernor (100 * 1024 * 1024);
+    final AS2ClientBuilder aBuilder = new AS2ClientBuilder ().setMemoryGovernor (aGovernor)
+                                                             .setUseStreamingSBDH (true)
+                                                             .setBusinessDocument (new ReadableResourceByteArray (UTF8_PAYLOAD))
+                                                             .setSBDHBytesConsumer (x -> {});
+    final XMLPayloadHelper.RootElement aRoot = aBuilder.getStreamingRootElement (true);
+    assertNotNull (aRoot);
+    // The complete SBDH is created in memory for the consumer
+    assertEquals (aGovernor.getEstimatedHeapBytes (UTF8_PAYLOAD.length), aBuilder.getRequiredHeapBytes (aRoot, false));
+    // Spooling doesn't invoke the consumer
+    assertEquals (aGovernor.getStreamingReservationBytes (), aBuilder.getRequiredHeapBytes (aRoot, true));
+  }
+
+  @Test
+  public void testValidationReservation () throws Exception
+  {
+    final AS2MemoryGovernor aGovernor = new AS2MemoryGovernor (100 * 1024 * 1024);
+    final AS2ClientBuilder aBuilder = new AS2ClientBuilder ().setMemoryGovernor (aGovernor)
+                                                             .setUseStreamingSBDH (true)
+                                                             .setBusinessDocument (UTF8_PAYLOAD)
+                                                             .setValidationKey (new VESID ("eu.peppol.bis3", "invoice", "3.0.0"));
+    final XMLPayloadHelper.RootElement aRoot = aBuilder.getStreamingRootElement (true);
+    assertNotNull (aRoot);
+    // Validation requires the DOM
+    assertEquals (aGovernor.getEstimatedHeapBytes (UTF8_PAYLOAD.length), aBuilder.getRequiredHeapBytes (aRoot, false));
+    assertEquals (aGovernor.getEstimatedHeapBytes (UTF8_PAYLOAD.length), aBuilder.getRequiredHeapBytes (aRoot, true));
+  }
+
+  @Test
+  public void testSpoolCompressedFile () throws Exception
+  {
+    final File aFile = File.createTempFile ("as2-peppol-test-", ".xml.gz");
+    try
+    {
+      // Highly compressible payload
+      final StringBuilder aSB = new StringBuilder ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<Invoice xmlns=\"urn:as2-peppol:test\">");
+      for (int i = 0; i < 10_000; ++i)
+        aSB.append ("<Line>1</Line>");
+      aSB.append ("</Invoice>");
+      try (final OutputStream aOS = new GZIPOutputStream (Files.newOutputStream (aFile.toPath ())))
+      {
+        aOS.write (aSB.toString ().getBytes (StandardCharsets.UTF_8));
+      }
+      final long nCompressedBytes = aFile.length ();
+
+      final AS2ClientBuilder aBuilder = new AS2ClientBuilder ().setBusinessDocument (aFile)
+                                                               .setSpoolThresholdBytes (nCompressedBytes);
+      // Without decompression only the file size counts
+      assertFalse (aBuilder.isSpoolingRequired ());
+
+      // The estimated decompressed size exceeds the threshold
+      aBuilder.setDecompressBusinessDocument (true);
+      assertTrue (aBuilder.isSpoolingRequired ());
+      assertNotNull (aBuilder.getStreamingRootElement (true));
+
+      aBuilder.setSpoolThresholdBytes (nCompressedBytes * AS2MemoryGovernor.DEFAULT_COMPRESSED_PAYLOAD_FACTOR);
+      assertFalse (aBuilder.isSpoolingRequired ());
+    }
+    finally
+    {
+      Files.deleteIfExists (aFile.toPath ());
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+import com.helger.peppol.as2client.AS2EndpointHealthTracker.ECircuitState;
+
+/**
+ * Test class for class {@link AS2EndpointHealthTracker}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2EndpointHealthTrackerTest
+{
+  private static final String URL = "http://localhost:8080/as2";
+
+  @Test
+  public void testOpenAfterThreshold ()
+  {
+    final AS2EndpointHealthTracker aTracker = new AS2EndpointHealthTracker (2, Duration.ofHours (1), 0, Duration.ZERO, Duration.ZERO);
+    assertEquals (ECircuitState.CLOSED, aTracker.getCircuitState (URL));
+    assertTrue (aTracker.isCallPermitted (URL));
+
+    aTracker.onFailure (URL);
+    assertEquals (ECircuitState.CLOSED, aTracker.getCircuitState (URL));
+    assertTrue (aTracker.isCallPermitted (URL));
+
+    aTracker.onFailure (URL);
+    assertEquals (ECircuitState.OPEN, aTracker.getCircuitState (URL));
+    // Fail fast while open
+    assertFalse (aTracker.isCallPermitted (URL));
+    assertEquals (ECircuitState.OPEN, aTracker.getCircuitState (URL));
+  }
+
+  @Test
+  public void testSuccessResetsFailures ()
+  {
+    final AS2EndpointHealthTracker aTracker = new AS2EndpointHealthTracker (2, Duration.ofHours (1), 0, Duration.ZERO, Duration.ZERO);
+    aTracker.onFailure (URL);
+    aTracker.onSuccess (URL);
+    aTracker.onFailure (URL);
+    assertEquals (ECircuitState.CLOSED, aTracker.getCircuitState (URL));
+    assertTrue (aTracker.isCallPermitted (URL));
+  }
+
+  @Test
+  public void testHalfOpenSuccess ()
+  {
+    final AS2EndpointHealthTracker aTracker = new AS2EndpointHealthTracker (1, Duration.ZERO, 0, Duration.ZERO, Duration.ZERO);
+    aTracker.onFailure (URL);
+    assertEquals (ECircuitState.OPEN, aTracker.getCircuitState (URL));
+
+    // Open duration elapsed - trial call
+    assertTrue (aTracker.isCallPermitted (URL));
+    assertEquals (ECircuitState.HALF_OPEN, aTracker.getCircuitState (URL));
+    // Only one trial call at a time
+    assertFalse (aTracker.isCallPermitted (URL));
+
+    aTracker.onSuccess (URL);
+    assertEquals (ECircuitState.CLOSED, aTracker.getCircuitState (URL));
+    assertTrue (aTracker.isCallPermitted (URL));
+    assertTrue (aTracker.isCallPermitted (URL));
+  }
+
+  @Test
+  public void testHalfOpenFailure ()
+  {
+    final AS2EndpointHealthTracker aTracker = new AS2EndpointHealthTracker (3, Duration.ZERO, 0, Duration.ZERO, Duration.ZERO);
+    aTracker.onFailure (URL);
+    aTracker.onFailure (URL);
+    aTracker.onFailure (URL);
+    assertEquals (ECircuitState.OPEN, aTracker.getCircuitState (URL));
+
+    assertTrue (aTracker.isCallPermitted (URL));
+    assertEquals (ECircuitState.HALF_OPEN, aTracker.getCircuitState (URL));
+
+    // A single failure in half-open state opens the circuit again
+    aTracker.onFailure (URL);
+    assertEquals (ECircuitState.OPEN, aTracker.getCircuitState (URL));
+
+    // Next trial
+    assertTrue (aTracker.isCallPermitted (URL));
+    assertEquals (ECircuitState.HALF_OPEN, aTracker.getCircuitState (URL));
+  }
+
+  @Test
+  public void testHalfOpenAborted ()
+  {
+    final AS2EndpointHealthTracker aTracker = new AS2EndpointHealthTracker (1, Duration.ZERO, 0, Duration.ZERO, Duration.ZERO);
+    aTracker.onFailure (URL);
+    assertTrue (aTracker.isCallPermitted (URL));
+    assertFalse (aTracker.isCallPermitted (URL));
+
+    // The trial call did not complete - another trial is permitted
+    aTracker.onCallAborted (URL);
+    assertEquals (ECircuitState.HALF_OPEN, aTracker.getCircuitState (URL));
+    assertTrue (aTracker.isCallPermitted (URL));
+    assertFalse (aTracker.isCallPermitted (URL));
+
+    aTracker.onSuccess (URL);
+    assertEquals (ECircuitState.CLOSED, aTracker.getCircuitState (URL));
+
+    // Aborting a call of a closed circuit has no effect
+    aTracker.onCallAborted (URL);
+    assertEquals (ECircuitState.CLOSED, aTracker.getCircuitState (URL));
+  }
+}
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+import com.helger.security.keystore.EKeyStoreType;
+
+/**
+ * Test class for class {@link AS2KeyStoreCache}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2KeyStoreCacheTest
+{
+  @Test
+  public void testFailureIsCached ()
+  {
+    final AS2KeyStoreCache aCache = new AS2KeyStoreCache ();
+    final byte [] aInvalid = { 1, 2, 3 };
+    assertNull (aCache.getKeyStore (EKeyStoreType.PKCS12, aInvalid, "pw"));
+    assertEquals (1, aCache.size ());
+    // Same byte array and password
+    assertNull (aCache.getKeyStore (EKeyStoreType.PKCS12, aInvalid, "pw"));
+    assertEquals (1, aCache.size ());
+    // Different password
+    assertNull (aCache.getKeyStore (EKeyStoreType.PKCS12, aInvalid, "pw2"));
+    assertEquals (2, aCache.size ());
+
+    aCache.clear ();
+    assertEquals (0, aCache.size ());
+  }
+
+  @Test
+  public void testMaxSize ()
+  {
+    final AS2KeyStoreCache aCache = new AS2KeyStoreCache (Duration.ZERO, 2);
+    for (int i = 0; i < 5; ++i)
+      assertNull (aCache.getKeyStore (EKeyStoreType.PKCS12, new byte [] { (byte) i }, "pw"));
+    assertEquals (2, aCache.size ());
+  }
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.helger.commons.regex.RegExHelper;
+
+/**
+ * Test class for class {@link AS2MessageIDGenerator}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2MessageIDGeneratorTest
+{
+  @Test
+  public void testLiteral ()
+  {
+    final AS2MessageIDGenerator aGen = AS2MessageIDGenerator.compile ("abc");
+    assertNotNull (aGen);
+    assertEquals ("abc", aGen.getFormat ());
+    assertEquals ("abc", aGen.createMessageID ("s", "r"));
+  }
+
+  @Test
+  public void testAS2IDs ()
+  {
+    final AS2MessageIDGenerator aGen = AS2MessageIDGenerator.compile ("<$msg.sender.as2_id$-$msg.receiver.as2_id$>");
+    assertNotNull (aGen);
+    assertEquals ("<sender-receiver>", aGen.createMessageID ("sender", "receiver"));
+    assertEquals ("<->", aGen.createMessageID (null, null));
+  }
+
+  @Test
+  public void testDate ()
+  {
+    final AS2MessageIDGenerator aGen = AS2MessageIDGenerator.compile ("x$date.uuuuMMdd$y");
+    assertNotNull (aGen);
+    assertTrue (RegExHelper.stringMatchesPattern ("x[0-9]{8}y", aGen.createMessageID ("s", "r")));
+
+    // Invalid pattern
+    assertNull (AS2MessageIDGenerator.compile ("$date.{$"));
+  }
+
+  @Test
+  public void testRand ()
+  {
+    final AS2MessageIDGenerator aGen = AS2MessageIDGenerator.compile ("$rand.123456$");
+    assertNotNull (aGen);
+    // Random digits, followed by the sequence number
+    assertTrue (RegExHelper.stringMatchesPattern ("[0-9]{6}\\.[0-9a-z]+", aGen.createMessageID ("s", "r")));
+
+    assertNull (AS2MessageIDGenerator.compile ("$rand.$"));
+    assertNull (AS2MessageIDGenerator.compile ("$rand.1234567890123456789$"));
+  }
+
+  @Test
+  public void testNotCompilable ()
+  {
+    // Unsupported placeholder
+    assertNull (AS2MessageIDGenerator.compile ("$msg.headers.subject$"));
+    assertNull (AS2MessageIDGenerator.compile ("abc$foo$def"));
+    // Unterminated placeholder
+    assertNull (AS2MessageIDGenerator.compile ("abc$date.uuuu"));
+    assertNull (AS2MessageIDGenerator.compile ("$"));
+  }
+
+  @Test
+  public void testIsLiteral ()
+  {
+    assertTrue (AS2MessageIDGenerator.isLiteral (null));
+    assertTrue (AS2MessageIDGenerator.isLiteral ("abc"));
+    assertFalse (AS2MessageIDGenerator.isLiteral ("a$b"));
+  }
+
+  @Test
+  public void testUniqueInParallel () throws Exception
+  {
+    // Only a single random digit, so that only the sequence number guarantees
+    // uniqueness
+    final AS2MessageIDGenerator aGen = AS2MessageIDGenerator.compile ("<$date.uuuuMMddHHmmss$-$rand.1$@$msg.sender.as2_id$>");
+    assertNotNull (aGen);
+
+    final int nThreads = 8;
+    final int nPerThread = 10_000;
+    final Set <String> aIDs = ConcurrentHashMap.newKeySet ();
+    final ExecutorService aES = Executors.newFixedThreadPool (nThreads);
+    for (int i = 0; i < nThreads; ++i)
+      aES.submit ( () -> {
+        for (int j = 0; j < nPerThread; ++j)
+          aIDs.add (aGen.createMessageID ("sender", "receiver"));
+      });
+    aES.shutdown ();
+    assertTrue (aES.awaitTermination (1, TimeUnit.MINUTES));
+    assertEquals (nThreads * nPerThread, aIDs.size ());
+  }
+}
@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.helger.peppol.as2client.AS2PartnerThrottle.Limit;
+import com.helger.peppol.as2client.AS2PartnerThrottle.Permit;
+
+/**
+ * Test class for class {@link AS2PartnerThrottle}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2PartnerThrottleTest
+{
+  private static final String URL = "https://as2.example.org/as2";
+
+  @Test
+  public void testUnlimited ()
+  {
+    final AS2PartnerThrottle aThrottle = new AS2PartnerThrottle (Limit.UNLIMITED, Duration.ZERO);
+    for (int i = 0; i < 100; ++i)
+      assertNotNull (aThrottle.acquire ("AS2ID", null));
+    assertEquals (1, aThrottle.getPartnerStateCount ());
+  }
+
+  @Test
+  public void testTokenBucketBurst ()
+  {
+    // 1 message per minute with a burst of 2
+    final AS2PartnerThrottle aThrottle = new AS2PartnerThrottle (new Limit (1 / 60d, 2, 0), Duration.ZERO);
+    try (final Permit p1 = aThrottle.acquire ("AS2ID", null); final Permit p2 = aThrottle.acquire ("AS2ID", null))
+    {
+      assertNotNull (p1);
+      assertNotNull (p2);
+      // Bucket empty and waiting is not allowed
+      assertNull (aThrottle.acquire ("AS2ID", null));
+      // Other partners have their own bucket
+      assertNotNull (aThrottle.acquire ("OtherAS2ID", null));
+    }
+  }
+
+  @Test
+  public void testTokenBucketWait ()
+  {
+    // 10 messages per second without burst
+    final AS2PartnerThrottle aThrottle = new AS2PartnerThrottle (new Limit (10, 1, 0), Duration.ofSeconds (5));
+    assertNotNull (aThrottle.acquire (null, URL));
+    final long nStart = System.nanoTime ();
+    assertNotNull (aThrottle.acquire (null, URL));
+    assertTrue (TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - nStart) >= 50);
+  }
+
+  @Test
+  public void testConcurrencyLimit ()
+  {
+    final AS2PartnerThrottle aThrottle = new AS2PartnerThrottle (new Limit (0, 0, 1), Duration.ofMillis (50));
+    final Permit p1 = aThrottle.acquire ("AS2ID", URL);
+    assertNotNull (p1);
+    assertNull (aThrottle.acquire ("AS2ID", URL));
+    assertNotNull (aThrottle.acquire ("OtherAS2ID", URL));
+
+    p1.close ();
+    // Closing twice must not release a second permit
+    p1.close ();
+    final Permit p2 = aThrottle.acquire ("AS2ID", URL);
+    assertNotNull (p2);
+    assertNull (aThrottle.acquire ("AS2ID", URL));
+    p2.close ();
+  }
+
+  @Test
+  public void testPartnerLimit ()
+  {
+    final Limit aLimit = new Limit (0, 0, 1);
+    final AS2PartnerThrottle aThrottle = new AS2PartnerThrottle (Limit.UNLIMITED, Duration.ZERO);
+    aThrottle.setPartnerLimit (URL, aLimit);
+    assertSame (aLimit, aThrottle.getEffectiveLimit ("AS2ID", URL));
+    assertSame (Limit.UNLIMITED, aThrottle.getEffectiveLimit ("AS2ID", null));
+
+    try (final Permit p1 = aThrottle.acquire ("AS2ID", URL))
+    {
+      assertNotNull (p1);
+      assertNull (aThrottle.acquire ("OtherAS2ID", URL));
+    }
+
+    aThrottle.setPartnerLimit (URL, null);
+    assertSame (Limit.UNLIMITED, aThrottle.getEffectiveLimit ("AS2ID", URL));
+  }
+
+  @Test
+  public void testIdleEviction () throws Exception
+  {
+    final AS2PartnerThrottle aThrottle = new AS2PartnerThrottle (Limit.UNLIMITED,
+                                                                 Duration.ZERO,
+                                                                 Duration.ofMillis (1));
+    final Permit p1 = aThrottle.acquire ("AS2ID1", null);
+    aThrottle.acquire ("AS2ID2", null).close ();
+    Thread.sleep (10);
+
+    // Partner 1 is still in use
+    aThrottle.acquire ("AS2ID3", null).close ();
+    assertEquals (2, aThrottle.getPartnerStateCount ());
+
+    p1.close ();
+    Thread.sleep (10);
+    aThrottle.acquire ("AS2ID4", null).close ();
+    assertEquals (1, aThrottle.getPartnerStateCount ());
+  }
+
+  @Test
+  public void testNoEvictionWithEmptyBucket () throws Exception
+  {
+    // 1 message per hour
+    final AS2PartnerThrottle aThrottle = new AS2PartnerThrottle (new Limit (1 / 3600d, 1, 0),
+                                                                 Duration.ZERO,
+                                                                 Duration.ofMillis (1));
+    aThrottle.acquire ("AS2ID1", null).close ();
+    Thread.sleep (10);
+    aThrottle.acquire ("AS2ID2", null).close ();
+    assertEquals (2, aThrottle.getPartnerStateCount ());
+
+    // The rate limit still applies
+    assertNull (aThrottle.acquire ("AS2ID1", null));
+  }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+/**
+ * Test class for class {@link AS2PriorityScheduler}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2PrioritySchedulerTest
+{
+  @Nonnull
+  private static Runnable _blocker (@Nonnull final CountDownLatch aStarted, @Nonnull final CountDownLatch aRelease)
+  {
+    return () -> {
+      aStarted.countDown ();
+      try
+      {
+        aRelease.await ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+      }
+    };
+  }
+
+  @Test (expected = IllegalArgumentException.class)
+  public void testInvalidWeight ()
+  {
+    new AS2PriorityScheduler (1, 0, 1, 0, 1);
+  }
+
+  @Test
+  public void testWeightedRoundRobin () throws Exception
+  {
+    final StringBuffer aOrder = new StringBuffer ();
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    try (final AS2PriorityScheduler aScheduler = new AS2PriorityScheduler (1, 0, 100, 2, 1))
+    {
+      assertEquals (2, aScheduler.getWeight (EAS2SendPriority.INTERACTIVE));
+      assertEquals (1, aScheduler.getWeight (EAS2SendPriority.BULK));
+
+      // Blocks the only worker and uses one interactive credit
+      aScheduler.getExecutor (EAS2SendPriority.INTERACTIVE).execute (_blocker (aStarted, aRelease));
+      assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+
+      for (int i = 0; i < 5; ++i)
+        aScheduler.getExecutor (EAS2SendPriority.INTERACTIVE).execute ( () -> aOrder.append ('I'));
+      for (int i = 0; i < 3; ++i)
+        aScheduler.getExecutor (EAS2SendPriority.BULK).execute ( () -> aOrder.append ('B'));
+      aRelease.countDown ();
+    }
+    // close waits for all queued tasks
+    assertEquals ("IBIIBIIB", aOrder.toString ());
+  }
+
+  @Test
+  public void testReservedInteractiveThreads () throws Exception
+  {
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    final CountDownLatch aInteractiveDone = new CountDownLatch (1);
+    final AtomicInteger aBulkCount = new AtomicInteger (0);
+    try (final AS2PriorityScheduler aScheduler = new AS2PriorityScheduler (2, 1, 10))
+    {
+      final Executor aBulk = aScheduler.getExecutor (EAS2SendPriority.BULK);
+      aBulk.execute (_blocker (aStarted, aRelease));
+      assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+
+      // The second bulk task may not use the reserved thread
+      aBulk.execute (aBulkCount::incrementAndGet);
+      aScheduler.getExecutor (EAS2SendPriority.INTERACTIVE).execute (aInteractiveDone::countDown);
+      assertTrue (aInteractiveDone.await (5, TimeUnit.SECONDS));
+      assertEquals (1, aScheduler.getQueuedTaskCount (EAS2SendPriority.BULK));
+      assertEquals (0, aBulkCount.get ());
+
+      aRelease.countDown ();
+    }
+    assertEquals (1, aBulkCount.get ());
+  }
+
+  @Test
+  public void testQueueFull () throws Exception
+  {
+    final CountDownLatch aStarted = new CountDownLatch (1);
+    final CountDownLatch aRelease = new CountDownLatch (1);
+    try (final AS2PriorityScheduler aScheduler = new AS2PriorityScheduler (1, 0, 1))
+    {
+      final Executor aBulk = aScheduler.getExecutor (EAS2SendPriority.BULK);
+      aBulk.execute (_blocker (aStarted, aRelease));
+      assertTrue (aStarted.await (5, TimeUnit.SECONDS));
+
+      aBulk.execute ( () -> {});
+      try
+      {
+        aBulk.execute ( () -> {});
+        fail ();
+      }
+      catch (final RejectedExecutionException ex)
+      {
+        // expected
+      }
+      // Each priority has its own queue
+      aScheduler.getExecutor (EAS2SendPriority.INTERACTIVE).execute ( () -> {});
+      assertEquals (1, aScheduler.getQueuedTaskCount (EAS2SendPriority.BULK));
+      assertEquals (1, aScheduler.getQueuedTaskCount (EAS2SendPriority.INTERACTIVE));
+
+      aRelease.countDown ();
+    }
+  }
+
+  @Test
+  public void testWorkerSurvivesError () throws Exception
+  {
+    final CountDownLatch aDone = new CountDownLatch (1);
+    try (final AS2PriorityScheduler aScheduler = new AS2PriorityScheduler (1, 0, 10))
+    {
+      final Executor aExecutor = aScheduler.getExecutor (EAS2SendPriority.INTERACTIVE);
+      aExecutor.execute ( () -> {
+        throw new AssertionError ("Expected test error");
+      });
+      aExecutor.execute (aDone::countDown);
+      assertTrue (aDone.await (5, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test (expected = RejectedExecutionException.class)
+  public void testClosed ()
+  {
+    final AS2PriorityScheduler aScheduler = new AS2PriorityScheduler (1, 0, 10);
+    aScheduler.close ();
+    aScheduler.getExecutor (EAS2SendPriority.BULK).execute ( () -> {});
+  }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.sbdh.CSBDH;
+import com.helger.xml.XMLHelper;
+import com.helger.xml.serialize.read.DOMReader;
+
+/**
+ * Test class for class {@link SBDHEnvelope}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDHEnvelopeTest
+{
+  private static final PeppolIdentifierFactory IF = PeppolIdentifierFactory.INSTANCE;
+  private static final IParticipantIdentifier SENDER_ID = IF.createParticipantIdentifierWithDefaultScheme ("9999:test-sender");
+  private static final IParticipantIdentifier RECEIVER_ID = IF.createParticipantIdentifierWithDefaultScheme ("9915:test");
+  private static final IDocumentTypeIdentifier DOCTYPE_ID = IF.createDocumentTypeIdentifierWithDefaultScheme ("urn:as2-peppol:test::Invoice##urn:test::2.1");
+  private static final IProcessIdentifier PROCESS_ID = IF.createProcessIdentifierWithDefaultScheme ("urn:as2-peppol:test:process");
+  private static final Pattern CREATION_DT = Pattern.compile ("CreationDateAndTime>([^<]+)<");
+
+  @Nonnull
+  private static String _getCreationDateAndTime (@Nonnull final SBDHEnvelope aEnvelope)
+  {
+    final Matcher aMatcher = CREATION_DT.matcher (new String (aEnvelope.getHeaderBytes (), StandardCharsets.UTF_8));
+    assertTrue (aMatcher.find ());
+    return aMatcher.group (1);
+  }
+
+  @Nonnull
+  private static byte [] _getEnvelopedBytes (@Nonnull final SBDHEnvelope aEnvelope,
+                                             @Nonnull final XMLPayloadHelper.RootElement aRoot,
+                                             @Nonnull final byte [] aPayload) throws Exception
+  {
+    final StreamingSBDHDataSource aDS = new StreamingSBDHDataSource (aEnvelope,
+                                                                     () -> new NonBlockingByteArrayInputStream (aPayload),
+                                                                     aEnvelope.isResetDefaultNamespaceRequired (aRoot),
+                                                                     "application/xml");
+    return StreamHelper.getAllBytes (aDS.getInputStream ());
+  }
+
+  @Test
+  public void testSplicedIsIdenticalToInMemory () throws Exception
+  {
+    final byte [] aPayload = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                              "<Invoice xmlns=\"urn:as2-peppol:test\">1</Invoice>").getBytes (StandardCharsets.UTF_8);
+    final IParticipantIdentifier aSenderID = IF.createParticipantIdentifierWithDefaultScheme ("9999:test-sender");
+    final IParticipantIdentifier aReceiverID = IF.createParticipantIdentifierWithDefaultScheme ("9915:test");
+    final IDocumentTypeIdentifier aDocTypeID = IF.createDocumentTypeIdentifierWithDefaultScheme ("urn:as2-peppol:test::Invoice##urn:test::2.1");
+    final IProcessIdentifier aProcessID = IF.createProcessIdentifierWithDefaultScheme ("urn:as2-peppol:test:process");
+    final String sInstanceID = "instance-1";
+    final LocalDateTime aCreationDT = LocalDateTime.of (2021, 1, 1, 12, 0, 0);
+
+    // In-memory version with DOM and JAXB
+    final Document aDoc = DOMReader.readXMLDOM (aPayload);
+    assertNotNull (aDoc);
+    final byte [] aInMemory = AS2ClientBuilder.getSerializedSBDH (AS2ClientBuilder.createSBDH (aSenderID,
+                                                                                               aReceiverID,
+                                                                                               aDocTypeID,
+                                                                                               aProcessID,
+                                                                                               sInstanceID,
+                                                                                               null,
+                                                                                               aCreationDT,
+                                                                                               aDoc.getDocumentElement ()),
+                                                                  null)
+                                              .toByteArray ();
+
+    // Spliced version
+    final XMLPayloadHelper.RootElement aRoot = XMLPayloadHelper.readRootElement (new NonBlockingByteArrayInputStream (aPayload));
+    assertNotNull (aRoot);
+    final SBDHEnvelope aEnvelope = SBDHEnvelope.createMarshalled (aSenderID,
+                                                                  aReceiverID,
+                                                                  aDocTypeID,
+                                                                  aProcessID,
+                                                                  sInstanceID,
+                                                                  null,
+                                                                  aCreationDT,
+                                                                  aRoot,
+                                                                  null);
+    final StreamingSBDHDataSource aDS = new StreamingSBDHDataSource (aEnvelope,
+                                                                     () -> new NonBlockingByteArrayInputStream (aPayload),
+                                                                     aEnvelope.isResetDefaultNamespaceRequired (aRoot),
+                                                                     "application/xml");
+    final byte [] aSpliced = StreamHelper.getAllBytes (aDS.getInputStream ());
+
+    assertArrayEquals (aInMemory, aSpliced);
+  }
+
+  @Test
+  public void testCreationDateAndTimeMatchesMarshalled () throws Exception
+  {
+    final XMLPayloadHelper.RootElement aRoot = XMLPayloadHelper.readRootElement (new NonBlockingByteArrayInputStream ("<Invoice xmlns=\"urn:as2-peppol:test\"/>".getBytes (StandardCharsets.UTF_8)));
+    assertNotNull (aRoot);
+    for (final LocalDateTime aDT : new LocalDateTime [] { LocalDateTime.of (2021, 1, 1, 12, 0, 0),
+                                                          LocalDateTime.of (2021, 1, 1, 12, 0, 0, 100_000_000),
+                                                          LocalDateTime.of (2021, 12, 31, 23, 59, 59, 123_456_789) })
+    {
+      final String sStreamed = _getCreationDateAndTime (SBDHEnvelope.create (SENDER_ID,
+                                                                             RECEIVER_ID,
+                                                                             DOCTYPE_ID,
+                                                                             PROCESS_ID,
+                                                                             "instance-1",
+                                                                             null,
+                                                                             aDT,
+                                                                             aRoot,
+                                                                             null));
+      final String sMarshalled = _getCreationDateAndTime (SBDHEnvelope.createMarshalled (SENDER_ID,
+                                                                                         RECEIVER_ID,
+                                                                                         DOCTYPE_ID,
+                                                                                         PROCESS_ID,
+                                                                                         "instance-1",
+                                                                                         null,
+                                                                                         aDT,
+                                                                                         aRoot,
+                                                                                         null));
+      assertEquals (sMarshalled, sStreamed);
+    }
+  }
+
+  @Test
+  public void testCreateWithProlog () throws Exception
+  {
+    // Payload without a namespace, with a BOM, a comment, a processing
+    // instruction and a DOCTYPE
+    final byte [] aXML = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                          "<!-- comment -->\n" +
+                          "<?pi data?>\n" +
+                          "<!DOCTYPE Invoice>\n" +
+                          "<Invoice><Line>1</Line></Invoice>").getBytes (StandardCharsets.UTF_8);
+    final byte [] aPayload = new byte [aXML.length + 3];
+    aPayload[0] = (byte) 0xef;
+    aPayload[1] = (byte) 0xbb;
+    aPayload[2] = (byte) 0xbf;
+    System.arraycopy (aXML, 0, aPayload, 3, aXML.length);
+
+    final XMLPayloadHelper.RootElement aRoot = XMLPayloadHelper.readRootElement (new NonBlockingByteArrayInputStream (aPayload));
+    assertNotNull (aRoot);
+    final SBDHEnvelope aEnvelope = SBDHEnvelope.create (SENDER_ID,
+                                                        RECEIVER_ID,
+                                                        DOCTYPE_ID,
+                                                        PROCESS_ID,
+                                                        null,
+                                                        null,
+                                                        null,
+                                                        aRoot,
+                                                        null);
+    // The SBDH uses the default namespace, so it must be reset
+    assertTrue (aEnvelope.isResetDefaultNamespaceRequired (aRoot));
+
+    final Document aDoc = DOMReader.readXMLDOM (_getEnvelopedBytes (aEnvelope, aRoot, aPayload));
+    assertNotNull (aDoc);
+    final Element aSBD = aDoc.getDocumentElement ();
+    assertEquals (CSBDH.SBDH_NS, aSBD.getNamespaceURI ());
+    final Element aInvoice = XMLHelper.getFirstChildElementOfName (aSBD, "Invoice");
+    assertNotNull (aInvoice);
+    assertNull (aInvoice.getNamespaceURI ());
+    final Element aLine = XMLHelper.getFirstChildElement (aInvoice);
+    assertNotNull (aLine);
+    assertNull (aLine.getNamespaceURI ());
+    assertEquals ("1", aLine.getTextContent ());
+  }
+}
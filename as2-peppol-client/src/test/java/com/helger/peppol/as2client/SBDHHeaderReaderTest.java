@@ -0,0 +1,172 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.junit.Test;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.peppol.sbdh.CPeppolSBDH;
+import com.helger.peppolid.IDocumentTypeIdentifier;
+import com.helger.peppolid.IParticipantIdentifier;
+import com.helger.peppolid.IProcessIdentifier;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+import com.helger.sbdh.CSBDH;
+
+/**
+ * Test class for class {@link SBDHHeaderReader}.
+ *
+ * @author Philip Helger
+ */
+public final class SBDHHeaderReaderTest
+{
+  private static final PeppolIdentifierFactory IF = PeppolIdentifierFactory.INSTANCE;
+  private static final IParticipantIdentifier SENDER_ID = IF.createParticipantIdentifierWithDefaultScheme ("9999:test-sender");
+  private static final IParticipantIdentifier RECEIVER_ID = IF.createParticipantIdentifierWithDefaultScheme ("9915:test");
+  private static final IDocumentTypeIdentifier DOCTYPE_ID = IF.createDocumentTypeIdentifierWithDefaultScheme ("urn:as2-peppol:test::Invoice##urn:test::2.1");
+  private static final IProcessIdentifier PROCESS_ID = IF.createProcessIdentifierWithDefaultScheme ("urn:as2-peppol:test:process");
+
+  private static final String SENDER = "<Sender><Identifier Authority=\"" +
+                                       SENDER_ID.getScheme () +
+                                       "\">" +
+                                       SENDER_ID.getValue () +
+                                       "</Identifier></Sender>";
+  private static final String RECEIVER = "<Receiver><Identifier Authority=\"" +
+                                         RECEIVER_ID.getScheme () +
+                                         "\">" +
+                                         RECEIVER_ID.getValue () +
+                                         "</Identifier></Receiver>";
+  private static final String DOCUMENT_IDENTIFICATION = "<DocumentIdentification>" +
+                                                        "<Standard>urn:test</Standard>" +
+                                                        "<TypeVersion>2.1</TypeVersion>" +
+                                                        "<InstanceIdentifier>abc</InstanceIdentifier>" +
+                                                        "<Type>Invoice</Type>" +
+                                                        "<CreationDateAndTime>2021-01-01T00:00:00.000</CreationDateAndTime>" +
+                                                        "</DocumentIdentification>";
+  private static final String BUSINESS_SCOPE = "<BusinessScope>" +
+                                               "<Scope><Type>" +
+                                               CPeppolSBDH.SCOPE_DOCUMENT_TYPE_ID +
+                                               "</Type><InstanceIdentifier>" +
+                                               DOCTYPE_ID.getValue () +
+                                               "</InstanceIdentifier><Identifier>" +
+                                               DOCTYPE_ID.getScheme () +
+                                               "</Identifier></Scope>" +
+                                               "<Scope><Type>" +
+                                               CPeppolSBDH.SCOPE_PROCESS_ID +
+                                               "</Type><InstanceIdentifier>" +
+                                               PROCESS_ID.getValue () +
+                                               "</InstanceIdentifier><Identifier>" +
+                                               PROCESS_ID.getScheme () +
+                                               "</Identifier></Scope>" +
+                                               "</BusinessScope>";
+  private static final String PAYLOAD = "<Invoice xmlns=\"urn:test\"><ID>1</ID></Invoice>";
+
+  @Nonnull
+  private static String _sbd (@Nonnull final String sHeaderContent, @Nonnull final String sPayload)
+  {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+           "<StandardBusinessDocument xmlns=\"" +
+           CSBDH.SBDH_NS +
+           "\"><StandardBusinessDocumentHeader><HeaderVersion>1.0</HeaderVersion>" +
+           sHeaderContent +
+           "</StandardBusinessDocumentHeader>" +
+           sPayload +
+           "</StandardBusinessDocument>";
+  }
+
+  @Nullable
+  private static SBDHHeaderReader.Header _read (@Nonnull final String sXML)
+  {
+    return SBDHHeaderReader.readHeader (new NonBlockingByteArrayInputStream (sXML.getBytes (StandardCharsets.UTF_8)));
+  }
+
+  @Test
+  public void testValidHeader ()
+  {
+    final SBDHHeaderReader.Header aHeader = _read (_sbd (SENDER + RECEIVER + DOCUMENT_IDENTIFICATION + BUSINESS_SCOPE, PAYLOAD));
+    assertNotNull (aHeader);
+    assertEquals (SENDER_ID.getURIEncoded (), aHeader.getSenderID ().getURIEncoded ());
+    assertEquals (RECEIVER_ID.getURIEncoded (), aHeader.getReceiverID ().getURIEncoded ());
+    assertEquals (DOCTYPE_ID.getURIEncoded (), aHeader.getDocumentTypeID ().getURIEncoded ());
+    assertEquals (PROCESS_ID.getURIEncoded (), aHeader.getProcessID ().getURIEncoded ());
+  }
+
+  @Test
+  public void testPayloadIsNotRead ()
+  {
+    // The payload is malformed, but reading stops after the header
+    final SBDHHeaderReader.Header aHeader = _read (_sbd (SENDER + RECEIVER + DOCUMENT_IDENTIFICATION + BUSINESS_SCOPE,
+                                                         "<Invoice><unclosed></Invoice>"));
+    assertNotNull (aHeader);
+    assertEquals (RECEIVER_ID.getURIEncoded (), aHeader.getReceiverID ().getURIEncoded ());
+  }
+
+  @Test
+  public void testMissingElements ()
+  {
+    // No receiver and no business scope
+    SBDHHeaderReader.Header aHeader = _read (_sbd (SENDER + DOCUMENT_IDENTIFICATION, PAYLOAD));
+    assertNotNull (aHeader);
+    assertEquals (SENDER_ID.getURIEncoded (), aHeader.getSenderID ().getURIEncoded ());
+    assertNull (aHeader.getReceiverID ());
+    assertNull (aHeader.getDocumentTypeID ());
+    assertNull (aHeader.getProcessID ());
+
+    // No header at all
+    assertNull (_read ("<StandardBusinessDocument xmlns=\"" + CSBDH.SBDH_NS + "\">" + PAYLOAD + "</StandardBusinessDocument>"));
+
+    // No StandardBusinessDocument
+    assertNull (_read (PAYLOAD));
+    assertNull (_read ("<StandardBusinessDocument><StandardBusinessDocumentHeader /></StandardBusinessDocument>"));
+
+    // Empty stream
+    assertNull (_read (""));
+  }
+
+  @Test
+  public void testDoctypeRejected ()
+  {
+    final String sXML = _sbd (SENDER + RECEIVER + DOCUMENT_IDENTIFICATION + BUSINESS_SCOPE, PAYLOAD);
+    final int nRootStart = sXML.indexOf ("<StandardBusinessDocument ");
+    assertNull (_read (sXML.substring (0, nRootStart) +
+                       "<!DOCTYPE StandardBusinessDocument [<!ENTITY x \"y\">]>" +
+                       sXML.substring (nRootStart)));
+    assertNull (_read (sXML.substring (0, nRootStart) +
+                       "<!DOCTYPE StandardBusinessDocument SYSTEM \"http://localhost/sbd.dtd\">" +
+                       sXML.substring (nRootStart)));
+  }
+
+  @Test
+  public void testStreamEndsBeforeHeaderEnd ()
+  {
+    final String sXML = _sbd (SENDER + RECEIVER + DOCUMENT_IDENTIFICATION + BUSINESS_SCOPE, PAYLOAD);
+    // Cut inside the business scope
+    assertNull (_read (sXML.substring (0, sXML.indexOf ("</BusinessScope>"))));
+    // Cut inside the sender
+    assertNull (_read (sXML.substring (0, sXML.indexOf ("</Sender>"))));
+    // Cut directly before the end of the header
+    assertNull (_read (sXML.substring (0, sXML.indexOf ("</StandardBusinessDocumentHeader>"))));
+  }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.annotation.Nonnull;
+
+import org.junit.Test;
+
+import com.helger.commons.io.stream.NonBlockingByteArrayInputStream;
+import com.helger.commons.io.stream.StreamHelper;
+
+/**
+ * Test class for class {@link XMLPayloadHelper}.
+ *
+ * @author Philip Helger
+ */
+public final class XMLPayloadHelperTest
+{
+  private static final byte [] UTF8_BOM = { (byte) 0xef, (byte) 0xbb, (byte) 0xbf };
+
+  @Nonnull
+  private static String _getRootElementStream (@Nonnull final byte [] aXML, final boolean bResetDefaultNamespace) throws IOException
+  {
+    try (final InputStream aIS = XMLPayloadHelper.openRootElementStream (new NonBlockingByteArrayInputStream (aXML),
+                                                                         bResetDefaultNamespace))
+    {
+      return new String (StreamHelper.getAllBytes (aIS), StandardCharsets.UTF_8);
+    }
+  }
+
+  @Nonnull
+  private static String _getRootElementStream (@Nonnull final String sXML, final boolean bResetDefaultNamespace) throws IOException
+  {
+    return _getRootElementStream (sXML.getBytes (StandardCharsets.UTF_8), bResetDefaultNamespace);
+  }
+
+  @Test
+  public void testSkipProlog () throws IOException
+  {
+    assertEquals ("<a/>", _getRootElementStream ("<a/>", false));
+    assertEquals ("<a/>", _getRootElementStream ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<a/>", false));
+    // Comment containing special characters
+    assertEquals ("<a>x</a>", _getRootElementStream ("<?xml version=\"1.0\"?><!-- a - b -> c --><a>x</a>", false));
+    // Processing instruction
+    assertEquals ("<a/>", _getRootElementStream ("<?xml version=\"1.0\"?>\n<?xml-stylesheet href=\"a.xsl\"?>\n<a/>", false));
+    // DOCTYPE with an internal subset
+    assertEquals ("<a/>", _getRootElementStream ("<!DOCTYPE a [<!ELEMENT a EMPTY><!-- > -->]>\n<a/>", false));
+    // All together
+    assertEquals ("<b:a xmlns:b=\"urn:b\"/>",
+                  _getRootElementStream ("<?xml version=\"1.0\"?>\n<!-- c -->\n<?pi?>\n<!DOCTYPE a>\n<!-- d -->\n<b:a xmlns:b=\"urn:b\"/>",
+                                         false));
+  }
+
+  @Test
+  public void testSkipBOM () throws IOException
+  {
+    final byte [] aXML = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<a>\u00e4</a>".getBytes (StandardCharsets.UTF_8);
+    final byte [] aXMLWithBOM = new byte [UTF8_BOM.length + aXML.length];
+    System.arraycopy (UTF8_BOM, 0, aXMLWithBOM, 0, UTF8_BOM.length);
+    System.arraycopy (aXML, 0, aXMLWithBOM, UTF8_BOM.length, aXML.length);
+    assertEquals ("<a>\u00e4</a>", _getRootElementStream (aXMLWithBOM, false));
+
+    final XMLPayloadHelper.RootElement aRoot = XMLPayloadHelper.readRootElement (new NonBlockingByteArrayInputStream (aXMLWithBOM));
+    assertNotNull (aRoot);
+    assertEquals ("a", aRoot.getLocalName ());
+    assertTrue (aRoot.isUTF8Compatible ());
+  }
+
+  @Test
+  public void testResetDefaultNamespace () throws IOException
+  {
+    assertEquals ("<a xmlns=\"\">x</a>", _getRootElementStream ("<?xml version=\"1.0\"?><a>x</a>", true));
+    assertEquals ("<a xmlns=\"\"/>", _getRootElementStream ("<a/>", true));
+    assertEquals ("<a xmlns=\"\" b=\"c\"/>", _getRootElementStream ("<a b=\"c\"/>", true));
+    assertEquals ("<a xmlns=\"\"\n b=\"c\"/>", _getRootElementStream ("<a\n b=\"c\"/>", true));
+  }
+
+  @Test
+  public void testReadRootElement ()
+  {
+    XMLPayloadHelper.RootElement aRoot = XMLPayloadHelper.readRootElement (new NonBlockingByteArrayInputStream ("<!-- c --><Invoice xmlns=\"urn:x\"/>".getBytes (StandardCharsets.UTF_8)));
+    assertNotNull (aRoot);
+    assertEquals ("urn:x", aRoot.getNamespaceURI ());
+    assertEquals ("Invoice", aRoot.getLocalName ());
+    assertTrue (aRoot.isDeclaresDefaultNamespace ());
+
+    aRoot = XMLPayloadHelper.readRootElement (new NonBlockingByteArrayInputStream ("<p:Invoice xmlns:p=\"urn:x\"/>".getBytes (StandardCharsets.UTF_8)));
+    assertNotNull (aRoot);
+    assertEquals ("urn:x", aRoot.getNamespaceURI ());
+    assertFalse (aRoot.isDeclaresDefaultNamespace ());
+
+    aRoot = XMLPayloadHelper.readRootElement (new NonBlockingByteArrayInputStream ("<Invoice/>".getBytes (StandardCharsets.UTF_8)));
+    assertNotNull (aRoot);
+    assertNull (aRoot.getNamespaceURI ());
+    assertFalse (aRoot.isDeclaresDefaultNamespace ());
+
+    // Not well-formed
+    assertNull (XMLPayloadHelper.readRootElement (new NonBlockingByteArrayInputStream ("no xml".getBytes (StandardCharsets.UTF_8))));
+  }
+
+  @Test
+  public void testMalformedProlog ()
+  {
+    for (final String sXML : new String [] { "", "  ", "x<a/>", "<?xml version=\"1.0\"", "<!-- c", "<!DOCTYPE a [" })
+      try
+      {
+        _getRootElementStream (sXML, false);
+        fail (sXML);
+      }
+      catch (final IOException ex)
+      {
+        // expected
+      }
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client.queue;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.collection.impl.CommonsArrayList;
+import com.helger.commons.collection.impl.ICommonsList;
+
+/**
+ * Test class for class {@link AS2OutboxJournal}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2OutboxJournalTest
+{
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  @Test
+  public void testAppendAndReopen () throws Exception
+  {
+    final File aFile = new File (m_aTempFolder.getRoot (), "test.journal");
+    final AS2OutboxJournal aJournal = new AS2OutboxJournal (aFile);
+    assertTrue (aJournal.open ().isEmpty ());
+    aJournal.append ("E", "id1", "a\tb", null);
+    aJournal.append ("D", "id1", "\u00c4\u00d6\u00dc\n");
+    aJournal.close ();
+
+    final AS2OutboxJournal aJournal2 = new AS2OutboxJournal (aFile);
+    final ICommonsList <String []> aRecords = aJournal2.open ();
+    aJournal2.close ();
+    assertEquals (2, aRecords.size ());
+    assertArrayEquals (new String [] { "E", "id1", "a\tb", "" }, aRecords.get (0));
+    assertArrayEquals (new String [] { "D", "id1", "\u00c4\u00d6\u00dc\n" }, aRecords.get (1));
+  }
+
+  @Test
+  public void testTornTailIsTruncated () throws Exception
+  {
+    final File aFile = new File (m_aTempFolder.getRoot (), "test.journal");
+    final AS2OutboxJournal aJournal = new AS2OutboxJournal (aFile);
+    aJournal.open ();
+    aJournal.append ("E", "id1");
+    aJournal.append ("E", "id2");
+    aJournal.close ();
+    final long nValidLength = aFile.length ();
+
+    // Simulate a crash while writing the next record
+    Files.write (aFile.toPath (), "E\tid3\tabc".getBytes (StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    assertTrue (aFile.length () > nValidLength);
+
+    final AS2OutboxJournal aJournal2 = new AS2OutboxJournal (aFile);
+    assertEquals (2, aJournal2.open ().size ());
+    assertEquals (nValidLength, aFile.length ());
+
+    // New records are appended after the last valid record
+    aJournal2.append ("D", "id1");
+    aJournal2.close ();
+
+    final AS2OutboxJournal aJournal3 = new AS2OutboxJournal (aFile);
+    final ICommonsList <String []> aRecords = aJournal3.open ();
+    aJournal3.close ();
+    assertEquals (3, aRecords.size ());
+    assertArrayEquals (new String [] { "D", "id1" }, aRecords.getLastOrNull ());
+  }
+
+  @Test
+  public void testCorruptRecordIsTruncated () throws Exception
+  {
+    final File aFile = new File (m_aTempFolder.getRoot (), "test.journal");
+    final AS2OutboxJournal aJournal = new AS2OutboxJournal (aFile);
+    aJournal.open ();
+    aJournal.append ("E", "id1");
+    aJournal.close ();
+    final long nValidLength = aFile.length ();
+
+    // Complete line with a wrong checksum
+    Files.write (aFile.toPath (), "E\tid2\t0\n".getBytes (StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+    final AS2OutboxJournal aJournal2 = new AS2OutboxJournal (aFile);
+    final ICommonsList <String []> aRecords = aJournal2.open ();
+    aJournal2.close ();
+    assertEquals (1, aRecords.size ());
+    assertEquals (nValidLength, aFile.length ());
+  }
+
+  @Test
+  public void testRewrite () throws Exception
+  {
+    final File aFile = new File (m_aTempFolder.getRoot (), "test.journal");
+    final AS2OutboxJournal aJournal = new AS2OutboxJournal (aFile);
+    aJournal.open ();
+    aJournal.append ("E", "id1");
+    aJournal.append ("E", "id2");
+    aJournal.append ("D", "id1");
+    aJournal.rewrite ( () -> new CommonsArrayList <> (new String [] { "E", "id2" }));
+    assertFalse (new File (m_aTempFolder.getRoot (), "test.journal.tmp").exists ());
+
+    // Appending continues on the new journal
+    aJournal.append ("A", "id2", "1");
+    aJournal.close ();
+
+    final AS2OutboxJournal aJournal2 = new AS2OutboxJournal (aFile);
+    final ICommonsList <String []> aRecords = aJournal2.open ();
+    aJournal2.close ();
+    assertEquals (2, aRecords.size ());
+    assertArrayEquals (new String [] { "E", "id2" }, aRecords.get (0));
+    assertArrayEquals (new String [] { "A", "id2", "1" }, aRecords.get (1));
+  }
+}
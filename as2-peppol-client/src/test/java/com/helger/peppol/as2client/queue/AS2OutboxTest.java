@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2client.queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.ConnectException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.helger.commons.collection.impl.ICommonsList;
+import com.helger.commons.io.resource.inmemory.ReadableResourceByteArray;
+import com.helger.peppol.as2client.AS2BatchMessage;
+import com.helger.peppol.as2client.AS2BatchResult;
+import com.helger.peppol.as2client.AS2ClientBuilder;
+import com.helger.peppol.as2client.AS2ClientBuilderException;
+import com.helger.peppol.as2client.AS2ClientBuilderTransientException;
+import com.helger.peppol.as2client.AS2ClientSender;
+import com.helger.peppolid.factory.PeppolIdentifierFactory;
+
+/**
+ * Test class for class {@link AS2Outbox}.
+ *
+ * @author Philip Helger
+ */
+public final class AS2OutboxTest
+{
+  private static final PeppolIdentifierFactory IF = PeppolIdentifierFactory.INSTANCE;
+
+  @Rule
+  public final TemporaryFolder m_aTempFolder = new TemporaryFolder ();
+
+  @Test
+  public void testIsRetryable ()
+  {
+    final AS2Outbox aOutbox = new AS2Outbox (new AS2ClientSender (new AS2ClientBuilder ()), m_aTempFolder.getRoot ());
+    final AS2BatchMessage aMsg = new AS2BatchMessage (IF.createParticipantIdentifierWithDefaultScheme ("9915:test"),
+                                                      IF.createDocumentTypeIdentifierWithDefaultScheme ("urn:as2-peppol:test::Invoice##urn:test::2.1"),
+                                                      IF.createProcessIdentifierWithDefaultScheme ("urn:as2-peppol:test:process"),
+                                                      new ReadableResourceByteArray (new byte [0]));
+
+    // Transient
+    assertTrue (aOutbox.isRetryable (new AS2BatchResult (aMsg, null, null, new AS2ClientBuilderTransientException ("circuit open"))));
+    assertTrue (aOutbox.isRetryable (new AS2BatchResult (aMsg,
+                                                         null,
+                                                         null,
+                                                         new AS2ClientBuilderException ("failed", new ConnectException ("refused")))));
+
+    // Not transient
+    assertFalse (aOutbox.isRetryable (new AS2BatchResult (aMsg, null, null, new AS2ClientBuilderException ("invalid"))));
+    assertFalse (aOutbox.isRetryable (new AS2BatchResult (aMsg, null, null, new IllegalStateException ("bug"))));
+  }
+
+  @Test
+  public void testReplayOpenEntry () throws Exception
+  {
+    final File aDir = m_aTempFolder.getRoot ();
+    final File aDataDir = new File (aDir, AS2Outbox.DATA_DIRECTORY);
+    assertTrue (aDataDir.mkdirs ());
+
+    // An entry that was enqueued, but has no outcome yet
+    final String sID = "replay-1";
+    Files.write (new File (aDataDir, sID + ".xml").toPath (), "<Invoice/>".getBytes (StandardCharsets.UTF_8));
+    final AS2OutboxJournal aJournal = new AS2OutboxJournal (new File (aDir, AS2Outbox.JOURNAL_FILENAME));
+    aJournal.open ();
+    aJournal.append (AS2Outbox.RECORD_ENQUEUED,
+                     sID,
+                     IF.createParticipantIdentifierWithDefaultScheme ("9915:test").getURIEncoded (),
+                     IF.createDocumentTypeIdentifierWithDefaultScheme ("urn:as2-peppol:test::Invoice##urn:test::2.1")
+                       .getURIEncoded (),
+                     IF.createProcessIdentifierWithDefaultScheme ("urn:as2-peppol:test:process").getURIEncoded ());
+    // Completed entries are not replayed
+    aJournal.append (AS2Outbox.RECORD_ENQUEUED, "done-1", "a", "b", "c");
+    aJournal.append (AS2Outbox.RECORD_DONE, "done-1", AS2Outbox.OUTCOME_SUCCESS, "msgid", "processed");
+    aJournal.close ();
+
+    // The sender is not configured, so sending fails finally without a retry
+    final CountDownLatch aLatch = new CountDownLatch (1);
+    final AtomicReference <AS2BatchResult> aResult = new AtomicReference <> ();
+    final AS2Outbox aOutbox = new AS2Outbox (new AS2ClientSender (new AS2ClientBuilder ()), aDir);
+    aOutbox.setResultConsumer (x -> {
+      aResult.set (x);
+      aLatch.countDown ();
+    });
+    aOutbox.start ();
+    try
+    {
+      assertTrue (aLatch.await (30, TimeUnit.SECONDS));
+    }
+    finally
+    {
+      aOutbox.close ();
+    }
+
+    assertNotNull (aResult.get ());
+    assertFalse (aResult.get ().isSuccess ());
+    assertNull (aResult.get ().getResponse ());
+    assertEquals ("9915:test", aResult.get ().getMessage ().getReceiverID ().getValue ());
+    assertEquals (0, aOutbox.getPendingCount ());
+    assertFalse (new File (aDataDir, sID + ".xml").exists ());
+
+    // The outcome was recorded
+    final AS2OutboxJournal aJournal2 = new AS2OutboxJournal (new File (aDir, AS2Outbox.JOURNAL_FILENAME));
+    final ICommonsList <String []> aRecords = aJournal2.open ();
+    aJournal2.close ();
+    assertEquals (AS2Outbox.RECORD_DONE, aRecords.getLastOrNull ()[0]);
+    assertEquals (sID, aRecords.getLastOrNull ()[1]);
+    assertEquals (AS2Outbox.OUTCOME_FAILED, aRecords.getLastOrNull ()[2]);
+  }
+}
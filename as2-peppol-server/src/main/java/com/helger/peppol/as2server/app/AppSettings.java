@@ -43,6 +43,11 @@ public final class AppSettings extends AbstractGlobalSingleton
 {
   public static final String KEY_FOLDER_SENDING = "folder.sending";
   public static final String KEY_FOLDER_SENDING_ERROR = "folder.sending.error";
+  public static final String KEY_FOLDER_SENDING_ENABLED = "folder.sending.enabled";
+  public static final String KEY_FOLDER_SENDING_WORKERS = "folder.sending.workers";
+  public static final String KEY_FOLDER_SENDING_POLL_INTERVAL = "folder.sending.pollinterval";
+  public static final String KEY_FOLDER_SENDING_STABLE_TIME = "folder.sending.stabletime";
+  public static final String KEY_SENDER_AS2_EMAIL = "sender.as2.email";
   public static final String KEY_FOLDER_RECEIVING = "folder.receiving";
   public static final String KEY_FOLDER_RECEIVING_ERROR = "folder.receiving.error";
   public static final String KEY_KEYSTORE_TYPE = "keystore.type";
@@ -54,6 +59,10 @@ public final class AppSettings extends AbstractGlobalSingleton
   public static final String KEY_TRUSTSTORE_PATH = "truststore.path";
   public static final String KEY_TRUSTSTORE_PASSWORD = "truststore.password";
 
+  public static final int DEFAULT_FOLDER_SENDING_WORKERS = 4;
+  public static final long DEFAULT_FOLDER_SENDING_POLL_INTERVAL_MS = 10_000;
+  public static final long DEFAULT_FOLDER_SENDING_STABLE_TIME_MS = 2_000;
+
   @Deprecated
   @UsedViaReflection
   private AppSettings ()
@@ -112,6 +121,57 @@ public final class AppSettings extends AbstractGlobalSingleton
     return _getAsFile (getConfig ().getAsString (KEY_FOLDER_SENDING_ERROR));
   }
 
+  /**
+   * @return <code>true</code> if the files in the sending folder should be
+   *         sent automatically. Property <code>folder.sending.enabled</code>.
+   *         Default is <code>false</code>.
+   */
+  public static boolean isFolderSendingEnabled ()
+  {
+    return getConfig ().getAsBoolean (KEY_FOLDER_SENDING_ENABLED, false);
+  }
+
+  /**
+   * @return The number of files from the sending folder that are sent in
+   *         parallel. Property <code>folder.sending.workers</code>. Always
+   *         &gt; 0.
+   */
+  public static int getFolderSendingWorkerCount ()
+  {
+    return Math.max (1, getConfig ().getAsInt (KEY_FOLDER_SENDING_WORKERS, DEFAULT_FOLDER_SENDING_WORKERS));
+  }
+
+  /**
+   * @return The interval in milliseconds in which the sending folder is
+   *         scanned, in case file system events are missed. Property
+   *         <code>folder.sending.pollinterval</code>. Always &gt; 0.
+   */
+  public static long getFolderSendingPollIntervalMS ()
+  {
+    return Math.max (100, getConfig ().getAsLong (KEY_FOLDER_SENDING_POLL_INTERVAL, DEFAULT_FOLDER_SENDING_POLL_INTERVAL_MS));
+  }
+
+  /**
+   * @return The time in milliseconds the size and modification time of a file
+   *         in the sending folder must not change, before it is considered to
+   *         be completely written. Property
+   *         <code>folder.sending.stabletime</code>. Always &ge; 0.
+   */
+  public static long getFolderSendingStableTimeMS ()
+  {
+    return Math.max (0, getConfig ().getAsLong (KEY_FOLDER_SENDING_STABLE_TIME, DEFAULT_FOLDER_SENDING_STABLE_TIME_MS));
+  }
+
+  /**
+   * @return The email address of the sender used in outgoing AS2 messages.
+   *         Property <code>sender.as2.email</code>.
+   */
+  @Nullable
+  public static String getSenderAS2Email ()
+  {
+    return getConfig ().getAsString (KEY_SENDER_AS2_EMAIL);
+  }
+
   /**
    * @return The absolute folder/directory path in which received files are
    *         stored. May be <code>null</code> in which case startup should fail.
@@ -0,0 +1,450 @@
+/**
+ * Copyright (C) 2014-2021 Philip Helger (www.helger.com)
+ * philip[at]helger[dot]com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.helger.peppol.as2server.sender;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnegative;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.helger.as2lib.client.AS2ClientResponse;
+import com.helger.commons.ValueEnforcer;
+import com.helger.commons.collection.impl.CommonsHashMap;
+import com.helger.commons.collection.impl.ICommonsMap;
+import com.helger.commons.concurrent.ExecutorServiceHelper;
+import com.helger.commons.string.ToStringGenerator;
+import com.helger.peppol.as2client.AS2ClientBuilder;
+import com.helger.peppol.as2client.AS2ClientHelper;
+import com.helger.peppol.as2client.DefaultAS2ClientBuilderMessageHandler;
+import com.helger.peppol.as2client.IAS2ClientBuilderSMPClientFactory;
+import com.helger.peppol.as2client.SBDHHeaderReader;
+import com.helger.peppol.sml.ISMLInfo;
+import com.helger.peppolid.IParticipantIdentifier;
+
+/**
+ * Sends all SBDH files that are put into the sending folder. The folder is
+ * watched with a {@link WatchService} and additionally scanned in a fixed
+ * interval, because file system events may be lost (e.g. on network shares).
+ * A file is only sent if its size and modification time did not change for a
+ * configurable time, so that files that are still being written are not
+ * picked up. Files are sent in parallel. Successfully sent files are deleted.
+ * Files that failed with an error that may not occur later (see
+ * {@link AS2ClientHelper#isRetryable(AS2ClientResponse, Throwable)}) stay in
+ * the sending folder and are retried after a delay. All other files that
+ * could not be sent are moved to the error folder.
+ *
+ * @author Philip Helger
+ * @since 5.4.4
+ */
+@ThreadSafe
+public class PeppolAS2FolderSender
+{
+  /** The default delay in milliseconds before a transiently failed file is retried */
+  public static final long DEFAULT_RETRY_DELAY_MS = 60_000;
+
+  private static final Logger LOGGER = LoggerFactory.getLogger (PeppolAS2FolderSender.class);
+
+  private static final class FileState
+  {
+    private final long m_nSize;
+    private final long m_nLastModified;
+    private final long m_nUnchangedSinceMS;
+
+    FileState (final long nSize, final long nLastModified, final long nUnchangedSinceMS)
+    {
+      m_nSize = nSize;
+      m_nLastModified = nLastModified;
+      m_nUnchangedSinceMS = nUnchangedSinceMS;
+    }
+  }
+
+  private final File m_aSendingFolder;
+  private final File m_aErrorFolder;
+  private final AS2ClientBuilder m_aTemplate;
+  private final ISMLInfo m_aSML;
+  private final IAS2ClientBuilderSMPClientFactory m_aSMPClientFactory;
+  private final int m_nWorkerCount;
+  private final long m_nPollIntervalMS;
+  private final long m_nStableTimeMS;
+  private final long m_nRetryDelayMS;
+  // Only accessed by the watcher thread
+  private final ICommonsMap <File, FileState> m_aObserved = new CommonsHashMap <> ();
+  private final Map <File, Boolean> m_aInProgress = new ConcurrentHashMap <> ();
+  // The time in milliseconds from which on a transiently failed file is retried
+  private final Map <File, Long> m_aRetryNotBefore = new ConcurrentHashMap <> ();
+  private ExecutorService m_aWorkers;
+  private Thread m_aWatcherThread;
+  private WatchService m_aWatchService;
+  private volatile boolean m_bRunning = false;
+
+  /**
+   * Constructor using the default retry delay.
+   *
+   * @param aSendingFolder
+   *        The folder to be watched. May not be <code>null</code>.
+   * @param aErrorFolder
+   *        The folder to move failed files to. May not be <code>null</code>.
+   * @param aTemplate
+   *        The builder with the sender configuration. It is copied for every
+   *        file. May not be <code>null</code>.
+   * @param aSML
+   *        The SML to use for the SMP lookup of the receivers. May not be
+   *        <code>null</code>.
+   * @param nWorkerCount
+   *        The number of files sent in parallel. Must be &gt; 0.
+   * @param nPollIntervalMS
+   *        The interval in milliseconds in which the folder is scanned. Must be
+   *        &gt; 0.
+   * @param nStableTimeMS
+   *        The time in milliseconds a file must be unchanged before it is sent.
+   *        Must be &ge; 0.
+   */
+  public PeppolAS2FolderSender (@Nonnull final File aSendingFolder,
+                                @Nonnull final File aErrorFolder,
+                                @Nonnull final AS2ClientBuilder aTemplate,
+                                @Nonnull final ISMLInfo aSML,
+                                @Nonnegative final int nWorkerCount,
+                                @Nonnegative final long nPollIntervalMS,
+                                @Nonnegative final long nStableTimeMS)
+  {
+    this (aSendingFolder, aErrorFolder, aTemplate, aSML, nWorkerCount, nPollIntervalMS, nStableTimeMS, DEFAULT_RETRY_DELAY_MS);
+  }
+
+  /**
+   * Constructor
+   *
+   * @param aSendingFolder
+   *        The folder to be watched. May not be <code>null</code>.
+   * @param aErrorFolder
+   *        The folder to move failed files to. May not be <code>null</code>.
+   * @param aTemplate
+   *        The builder with the sender configuration. It is copied for every
+   *        file. May not be <code>null</code>.
+   * @param aSML
+   *        The SML to use for the SMP lookup of the receivers. May not be
+   *        <code>null</code>.
+   * @param nWorkerCount
+   *        The number of files sent in parallel. Must be &gt; 0.
+   * @param nPollIntervalMS
+   *        The interval in milliseconds in which the folder is scanned. Must be
+   *        &gt; 0.
+   * @param nStableTimeMS
+   *        The time in milliseconds a file must be unchanged before it is sent.
+   *        Must be &ge; 0.
+   * @param nRetryDelayMS
+   *        The time in milliseconds after which a file that failed with a
+   *        transient error is sent again. Must be &ge; 0.
+   */
+  public PeppolAS2FolderSender (@Nonnull final File aSendingFolder,
+                                @Nonnull final File aErrorFolder,
+                                @Nonnull final AS2ClientBuilder aTemplate,
+                                @Nonnull final ISMLInfo aSML,
+                                @Nonnegative final int nWorkerCount,
+                                @Nonnegative final long nPollIntervalMS,
+                                @Nonnegative final long nStableTimeMS,
+                                @Nonnegative final long nRetryDelayMS)
+  {
+    ValueEnforcer.notNull (aSendingFolder, "SendingFolder");
+    ValueEnforcer.notNull (aErrorFolder, "ErrorFolder");
+    ValueEnforcer.notNull (aTemplate, "Template");
+    ValueEnforcer.notNull (aSML, "SML");
+    ValueEnforcer.isGT0 (nWorkerCount, "WorkerCount");
+    ValueEnforcer.isGT0 (nPollIntervalMS, "PollIntervalMS");
+    ValueEnforcer.isGE0 (nStableTimeMS, "StableTimeMS");
+    ValueEnforcer.isGE0 (nRetryDelayMS, "RetryDelayMS");
+    m_aSendingFolder = aSendingFolder;
+    m_aErrorFolder = aErrorFolder;
+    m_aTemplate = aTemplate.getClone ();
+    m_aSML = aSML;
+    m_aSMPClientFactory = IAS2ClientBuilderSMPClientFactory.createForSML (aSML);
+    m_nWorkerCount = nWorkerCount;
+    m_nPollIntervalMS = nPollIntervalMS;
+    m_nStableTimeMS = nStableTimeMS;
+    m_nRetryDelayMS = nRetryDelayMS;
+  }
+
+  /**
+   * @return <code>true</code> if the sender is running.
+   */
+  public boolean isRunning ()
+  {
+    return m_bRunning;
+  }
+
+  /**
+   * Start watching the sending folder.
+   *
+   * @throws IOException
+   *         If the watch service cannot be created
+   */
+  public synchronized void start () throws IOException
+  {
+    if (m_bRunning)
+      return;
+
+    m_aWatchService = FileSystems.getDefault ().newWatchService ();
+    m_aSendingFolder.toPath ()
+                    .register (m_aWatchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    final AtomicInteger aThreadIndex = new AtomicInteger (0);
+    m_aWorkers = Executors.newFixedThreadPool (m_nWorkerCount, aRunnable -> {
+      final Thread ret = new Thread (aRunnable, "peppol-as2-folder-sender-" + aThreadIndex.incrementAndGet ());
+      ret.setDaemon (true);
+      return ret;
+    });
+    m_bRunning = true;
+    m_aWatcherThread = new Thread (this::_watch, "peppol-as2-folder-watcher");
+    m_aWatcherThread.setDaemon (true);
+    m_aWatcherThread.start ();
+    LOGGER.info ("Started watching '" + m_aSendingFolder.getAbsolutePath () + "' with " + m_nWorkerCount + " workers");
+  }
+
+  private void _watch ()
+  {
+    while (m_bRunning)
+    {
+      try
+      {
+        // Either an event or the poll interval triggers a scan
+        final WatchKey aKey = m_aWatchService.poll (_getWaitMS (), TimeUnit.MILLISECONDS);
+        if (aKey != null)
+        {
+          aKey.pollEvents ();
+          aKey.reset ();
+        }
+        _scan ();
+      }
+      catch (final InterruptedException ex)
+      {
+        Thread.currentThread ().interrupt ();
+        break;
+      }
+      catch (final ClosedWatchServiceException ex)
+      {
+        break;
+      }
+      catch (final RuntimeException ex)
+      {
+        LOGGER.error ("Error scanning the sending folder '" + m_aSendingFolder.getAbsolutePath () + "'", ex);
+      }
+    }
+  }
+
+  private long _getWaitMS ()
+  {
+    // Rescan soon, if files are waiting to become stable
+    if (m_aObserved.isNotEmpty ())
+      return Math.max (100, Math.min (m_nPollIntervalMS, m_nStableTimeMS));
+    return m_nPollIntervalMS;
+  }
+
+  private static boolean _isCandidate (@Nonnull final File aFile)
+  {
+    if (!aFile.isFile ())
+      return false;
+    final String sName = aFile.getName ();
+    // Ignore hidden and temporary files
+    return !sName.startsWith (".") && !sName.endsWith (".tmp") && !sName.endsWith (".part");
+  }
+
+  private void _scan ()
+  {
+    final File [] aFiles = m_aSendingFolder.listFiles ();
+    if (aFiles == null)
+      return;
+
+    final long nNow = System.currentTimeMillis ();
+    final ICommonsMap <File, FileState> aStillObserved = new CommonsHashMap <> ();
+    for (final File aFile : aFiles)
+    {
+      if (!_isCandidate (aFile) || m_aInProgress.containsKey (aFile))
+        continue;
+
+      final Long aRetryNotBefore = m_aRetryNotBefore.get (aFile);
+      if (aRetryNotBefore != null && nNow < aRetryNotBefore.longValue ())
+        continue;
+
+      final long nSize = aFile.length ();
+      final long nLastModified = aFile.lastModified ();
+      final FileState aOld = m_aObserved.get (aFile);
+      if (aOld == null || aOld.m_nSize != nSize || aOld.m_nLastModified != nLastModified)
+      {
+        // New or changed - wait until it is stable
+        aStillObserved.put (aFile, new FileState (nSize, nLastModified, nNow));
+        continue;
+      }
+
+      if (nNow - aOld.m_nUnchangedSinceMS < m_nStableTimeMS)
+      {
+        aStillObserved.put (aFile, aOld);
+        continue;
+      }
+
+      // Stable - send it
+      m_aInProgress.put (aFile, Boolean.TRUE);
+      try
+      {
+        m_aWorkers.execute ( () -> _send (aFile));
+      }
+      catch (final RuntimeException ex)
+      {
+        // Rejected during shutdown
+        m_aInProgress.remove (aFile);
+      }
+    }
+    // Forget files that disappeared
+    m_aObserved.clear ();
+    m_aObserved.putAll (aStillObserved);
+    m_aRetryNotBefore.keySet ().removeIf (x -> !x.exists ());
+  }
+
+  @Nonnull
+  protected AS2ClientBuilder createBuilder (@Nonnull final IParticipantIdentifier aReceiverID) throws Exception
+  {
+    // The message handler collects the errors of a single message
+    return m_aTemplate.getClone ()
+                      .setMessageHandler (new DefaultAS2ClientBuilderMessageHandler ())
+                      .setSMPClient (m_aSMPClientFactory.createSMPClient (aReceiverID));
+  }
+
+  private void _send (@Nonnull final File aFile)
+  {
+    try
+    {
+      String sError = null;
+      boolean bRetry = false;
+      try
+      {
+        final SBDHHeaderReader.Header aHeader = SBDHHeaderReader.readHeader (Files.newInputStream (aFile.toPath ()));
+        if (aHeader == null || aHeader.getReceiverID () == null)
+          sError = "The file is no StandardBusinessDocument with a valid receiver";
+        else
+        {
+          final AS2ClientResponse aResponse = createBuilder (aHeader.getReceiverID ()).sendSynchronousSBDH (aFile.toPath (), aHeader);
+          if (aResponse.hasException ())
+          {
+            sError = aResponse.getAsString ();
+            bRetry = AS2ClientHelper.isRetryable (aResponse, null);
+          }
+          else
+            LOGGER.info ("Successfully sent '" + aFile.getName () + "' with message ID '" + aResponse.getOriginalMessageID () + "'");
+        }
+      }
+      catch (final Exception ex)
+      {
+        LOGGER.error ("Failed to send '" + aFile.getAbsolutePath () + "'", ex);
+        sError = ex.getMessage ();
+        bRetry = AS2ClientHelper.isRetryable (null, ex);
+      }
+
+      if (sError == null)
+      {
+        m_aRetryNotBefore.remove (aFile);
+        Files.deleteIfExists (aFile.toPath ());
+      }
+      else
+        if (bRetry)
+        {
+          // Leave the file in place and try again later
+          LOGGER.warn ("Failed to send '" + aFile.getAbsolutePath () + "' - retrying in " + m_nRetryDelayMS + " ms: " + sError);
+          m_aRetryNotBefore.put (aFile, Long.valueOf (System.currentTimeMillis () + m_nRetryDelayMS));
+        }
+        else
+        {
+          LOGGER.error ("Failed to send '" + aFile.getAbsolutePath () + "': " + sError);
+          m_aRetryNotBefore.remove (aFile);
+          _moveToErrorFolder (aFile);
+        }
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.error ("Failed to clean up '" + aFile.getAbsolutePath () + "'", ex);
+    }
+    finally
+    {
+      m_aInProgress.remove (aFile);
+    }
+  }
+
+  private void _moveToErrorFolder (@Nonnull final File aFile) throws IOException
+  {
+    File aTarget = new File (m_aErrorFolder, aFile.getName ());
+    if (aTarget.exists ())
+      aTarget = new File (m_aErrorFolder, System.currentTimeMillis () + "-" + aFile.getName ());
+    Files.move (aFile.toPath (), aTarget.toPath (), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Stop watching and wait until all files currently being sent are done.
+   */
+  public synchronized void stop ()
+  {
+    if (!m_bRunning)
+      return;
+
+    m_bRunning = false;
+    try
+    {
+      m_aWatchService.close ();
+    }
+    catch (final IOException ex)
+    {
+      LOGGER.warn ("Failed to close watch service", ex);
+    }
+    m_aWatcherThread.interrupt ();
+    try
+    {
+      m_aWatcherThread.join ();
+    }
+    catch (final InterruptedException ex)
+    {
+      Thread.currentThread ().interrupt ();
+    }
+    ExecutorServiceHelper.shutdownAndWaitUntilAllTasksAreFinished (m_aWorkers);
+    LOGGER.info ("Stopped watching '" + m_aSendingFolder.getAbsolutePath () + "'");
+  }
+
+  @Override
+  public String toString ()
+  {
+    return new ToStringGenerator (this).append ("SendingFolder", m_aSendingFolder)
+                                       .append ("ErrorFolder", m_aErrorFolder)
+                                       .append ("SML", m_aSML)
+                                       .append ("WorkerCount", m_nWorkerCount)
+                                       .append ("PollIntervalMS", m_nPollIntervalMS)
+                                       .append ("StableTimeMS", m_nStableTimeMS)
+                                       .append ("RetryDelayMS", m_nRetryDelayMS)
+                                       .getToString ();
+  }
+}
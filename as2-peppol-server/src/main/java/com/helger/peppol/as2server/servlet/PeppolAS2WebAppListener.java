@@ -17,6 +17,8 @@
 package com.helger.peppol.as2server.servlet;
 
 import java.io.File;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
 import java.util.Locale;
 
 import javax.annotation.Nonnull;
@@ -31,13 +33,17 @@ import com.helger.commons.annotation.Nonempty;
 import com.helger.commons.debug.GlobalDebug;
 import com.helger.commons.exception.InitializationException;
 import com.helger.commons.io.file.FileOperationManager;
+import com.helger.commons.io.stream.NonBlockingByteArrayOutputStream;
 import com.helger.commons.locale.LocaleCache;
 import com.helger.commons.vendor.VendorInfo;
 import com.helger.html.hc.config.HCSettings;
+import com.helger.peppol.as2client.AS2ClientBuilder;
+import com.helger.peppol.as2client.AS2ClientHelper;
 import com.helger.peppol.as2server.app.APKeyManager;
 import com.helger.peppol.as2server.app.APTrustManager;
 import com.helger.peppol.as2server.app.AppSettings;
 import com.helger.peppol.as2server.app.WebAppSettings;
+import com.helger.peppol.as2server.sender.PeppolAS2FolderSender;
 import com.helger.photon.core.appid.CApplicationID;
 import com.helger.photon.core.appid.PhotonGlobalState;
 import com.helger.photon.core.locale.ILocaleManager;
@@ -57,6 +63,8 @@ public final class PeppolAS2WebAppListener extends WebAppListener
   public static final Locale LOCALE_EN_GB = LocaleCache.getInstance ().getLocale ("en", "GB");
   private static final Logger LOGGER = LoggerFactory.getLogger (PeppolAS2WebAppListener.class);
 
+  private PeppolAS2FolderSender m_aFolderSender;
+
   @Override
   protected String getInitParameterDebug (@Nonnull final ServletContext aSC)
   {
@@ -161,5 +169,63 @@ public final class PeppolAS2WebAppListener extends WebAppListener
     APTrustManager.reloadFromConfiguration ();
     if (!APTrustManager.isCertificateValid ())
       throw new InitializationException ("AP trust store initialization errors: " + APTrustManager.getInitializationError ());
+
+    _startFolderSender ();
+  }
+
+  private void _startFolderSender ()
+  {
+    if (!AppSettings.isFolderSendingEnabled ())
+    {
+      LOGGER.info ("Sending from folder '" + AppSettings.getFolderForSending () + "' is disabled");
+      return;
+    }
+
+    try
+    {
+      final APKeyManager aKeyMgr = APKeyManager.getInstance ();
+      final String sKeyStorePassword = AppSettings.getKeyStorePassword ();
+
+      // Use the already loaded key store
+      final byte [] aKeyStoreBytes;
+      try (final NonBlockingByteArrayOutputStream aBAOS = new NonBlockingByteArrayOutputStream ())
+      {
+        aKeyMgr.getKeyStore ().store (aBAOS, sKeyStorePassword == null ? new char [0] : sKeyStorePassword.toCharArray ());
+        aKeyStoreBytes = aBAOS.toByteArray ();
+      }
+      final KeyStore.PrivateKeyEntry aKeyEntry = aKeyMgr.getPrivateKeyEntry ();
+      final String sSenderAS2ID = AS2ClientHelper.getSubjectCommonName ((X509Certificate) aKeyEntry.getCertificate ());
+
+      final AS2ClientBuilder aTemplate = new AS2ClientBuilder ().setKeyStore (AppSettings.getKeyStoreType (),
+                                                                              aKeyStoreBytes,
+                                                                              sKeyStorePassword)
+                                                                .setSaveKeyStoreChangesToFile (false)
+                                                                .setSenderAS2ID (sSenderAS2ID)
+                                                                .setSenderAS2Email (AppSettings.getSenderAS2Email ())
+                                                                .setSenderAS2KeyAlias (AppSettings.getKeyStoreKeyAlias ());
+
+      m_aFolderSender = new PeppolAS2FolderSender (AppSettings.getFolderForSending (),
+                                                   AppSettings.getFolderForSendingErrors (),
+                                                   aTemplate,
+                                                   AppSettings.getSMLToUse (),
+                                                   AppSettings.getFolderSendingWorkerCount (),
+                                                   AppSettings.getFolderSendingPollIntervalMS (),
+                                                   AppSettings.getFolderSendingStableTimeMS ());
+      m_aFolderSender.start ();
+    }
+    catch (final Exception ex)
+    {
+      throw new InitializationException ("Failed to start sending from folder '" + AppSettings.getFolderForSending () + "'", ex);
+    }
+  }
+
+  @Override
+  protected void beforeContextDestroyed (@Nonnull final ServletContext aSC)
+  {
+    if (m_aFolderSender != null)
+    {
+      m_aFolderSender.stop ();
+      m_aFolderSender = null;
+    }
   }
 }